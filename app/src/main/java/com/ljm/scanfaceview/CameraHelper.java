@@ -6,6 +6,7 @@ import android.content.Context;
 import android.content.res.Configuration;
 import android.graphics.ImageFormat;
 import android.graphics.Matrix;
+import android.graphics.Point;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
@@ -19,33 +20,64 @@ import android.hardware.camera2.CaptureRequest;
 import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.hardware.camera2.params.Face;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.hardware.camera2.params.MeteringRectangle;
+import android.media.Image;
 import android.media.ImageReader;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
+import android.util.SparseArray;
 import android.view.Surface;
 import android.view.TextureView;
 import android.widget.Toast;
 
+import androidx.annotation.MainThread;
 import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.ClosedFileSystemException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 
 
-public class CameraHelper {
+public class CameraHelper implements FrameSource {
     private static final String TAG = "CameraHelper";
     // 预览宽度
     private static final int PREVIEW_WIDTH = 1080;
     // 预览高度
     private static final int PREVIEW_HEIGHT = 1440;
+    // 软件人脸检测分析流的最小宽度
+    private static final int ANALYSIS_WIDTH = 320;
+    // 软件人脸检测分析流的最小高度
+    private static final int ANALYSIS_HEIGHT = 240;
+    // 分析流 ImageReader 最多同时持有的图像数量
+    private static final int ANALYSIS_MAX_IMAGES = 2;
+    // 零延迟拍照保留的最近帧数
+    private static final int ZSL_RING_SIZE = 3;
+    // 拍照流 ImageReader 最多同时持有的图像数量，拍照线程处理一批候选帧时环形缓冲仍能存满
+    private static final int ZSL_MAX_IMAGES = ZSL_RING_SIZE * 2 + 1;
+    private static final int ZSL_JPEG_QUALITY = 90;
+    // 人脸质量滑动窗口的帧数
+    private static final int QUALITY_WINDOW_SIZE = 8;
+    // 硬件人脸等待对应分析图像时保留的帧数和最大时间差
+    private static final int PENDING_FACE_FRAMES = 4;
+    private static final long PENDING_FACE_MAX_AGE_NS = 50_000_000L;
+    // 活体检测默认依次要求的动作
+    private static final int[] LIVENESS_CHALLENGES = {LivenessDetector.CHALLENGE_BLINK,
+            LivenessDetector.CHALLENGE_OPEN_MOUTH, LivenessDetector.CHALLENGE_TURN_HEAD};
 
     private Activity mActivity;
 
@@ -54,8 +86,54 @@ public class CameraHelper {
     private HandlerThread handlerThread = new HandlerThread("CameraThread");
 
     private Handler mCameraHandler;
-    private Size mPreviewSize;
+
+    private HandlerThread analysisThread = new HandlerThread("AnalysisThread");
+
+    // 切换摄像头时在这个线程关闭旧相机，与打开新相机并行
+    private HandlerThread closeThread = new HandlerThread("CameraCloseThread");
+
+    private Handler mCloseHandler;
+
+    // 零延迟拍照挑选、裁剪和编码人脸照片，不占用相机线程
+    private HandlerThread captureThread = new HandlerThread("FaceCaptureThread");
+
+    private Handler mCaptureHandler;
+    // 正在关闭的旧相机数量，关闭完成前不能把预览 Surface 交给新相机，只在相机线程访问
+    private int mPendingCloseCount;
+    // 打开新相机时因旧相机还没关闭而失败，等关闭完成后重试
+    private boolean mRetryOpenAfterClose;
+
+    private Handler mAnalysisHandler;
+    // 相机线程选择，UI 线程读取
+    private volatile Size mPreviewSize;
+    // 选择预览尺寸时的最大宽高，即屏幕尺寸
+    private int mMaxPreviewWidth;
+    private int mMaxPreviewHeight;
     private CameraManager mCameraManager;
+    // 每个朝向准备好的相机信息，只在相机线程访问
+    private final SparseArray<CameraProfile> mCameraProfiles = new SparseArray<>();
+    // 跨启动保存的相机 id 和预览尺寸，在相机线程创建
+    private CameraInfoCache mCameraInfoCache;
+    // 预览的 SurfaceTexture，UI 线程可用后交给相机线程，只在相机线程访问
+    private SurfaceTexture mSurfaceTexture;
+    // 是否已经请求打开相机、还没有回调
+    private boolean mCameraOpening;
+    // 是否正在创建预览会话
+    private boolean mSessionConfiguring;
+    // 当前相机的预览会话是否已经创建，UI 线程读取
+    private volatile boolean mPreviewConfigured;
+    // 启动各阶段耗时
+    private final StartupTimer mStartupTimer = new StartupTimer("cold_start");
+    // 切换摄像头各阶段耗时
+    private final StartupTimer mSwitchTimer = new StartupTimer("camera_switch");
+    // 暂停后恢复各阶段耗时
+    private final StartupTimer mResumeTimer = new StartupTimer("resume");
+    // 当前使用的计时器，冷启动、切换摄像头或暂停后恢复
+    private volatile StartupTimer mActiveTimer = mStartupTimer;
+    // 界面是否暂停，暂停期间不打开相机，UI 线程写入
+    private volatile boolean mPaused;
+    // 是否已经调用 start，之前只接收配置不打开相机，UI 线程写入
+    private volatile boolean mStarted;
 
     // 默认使用前置摄像头
     private int mCameraFacing = CameraCharacteristics.LENS_FACING_FRONT;
@@ -64,140 +142,437 @@ public class CameraHelper {
 
     private CameraCharacteristics mCameraCharacteristics;
     private int mCameraSensorOrientation;
-    private int mDisplayRotation;
+    // 界面线程在 configureTransform 中读取，相机线程写入
+    private volatile int mDisplayRotation;
     // 人脸检测模式
     private int mFaceDetectMode = CaptureResult.STATISTICS_FACE_DETECT_MODE_OFF;
-    // 人脸检测坐标转换矩阵
-    private Matrix mFaceDetectMatrix = new Matrix();
+    // 硬件人脸坐标从成像区域到预览的转换，屏幕方向或裁剪区域变化时在相机线程重建
+    private FaceTransform mFaceTransform;
+    // 软件人脸坐标从分析图像到预览的转换，相机线程创建，分析线程读取
+    private volatile FaceTransform mAnalysisTransform;
 
     private CameraDevice mCameraDevice;
     private CameraCaptureSession mCameraCaptureSession;
-    // 保存人脸坐标信息
-    private List mFacesRect = new ArrayList<RectF>();
-    private FaceDetectListener mFaceDetectListener;
+    // 单帧最多保存的人脸数量
+    private static final int MAX_FACE_COUNT = 10;
+    // 一帧硬件人脸的传感器坐标和分数，紧凑存放后一次转换，只在相机线程访问
+    private final float[] mSensorRects = new float[MAX_FACE_COUNT * FaceFrame.RECT_STRIDE];
+    private final float[] mSensorScores = new float[MAX_FACE_COUNT];
+    // 流水线逐帧指标
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    // 定期导出指标时复用的快照，只在相机线程访问
+    private final PipelineMetrics.Snapshot mExportSnapshot = new PipelineMetrics.Snapshot();
+    private volatile MetricsListener mMetricsListener;
+    private long mMetricsPeriodMs;
+    // SENSOR_TIMESTAMP 是否与 SystemClock.elapsedRealtimeNanos 同一时间基准
+    private boolean mSensorTimestampRealtime;
+    // 人脸结果分发，相机线程写入，UI 线程按帧读取
+    private final FaceResultDispatcher mFaceResultDispatcher;
+    private long mFaceFrameNumber;
+    // 录制人脸数据，只在相机线程访问
+    private FrameRecording.Writer mFrameWriter;
+    // 软件人脸检测，硬件不支持人脸检测时使用
+    private FaceAnalyzer mFaceAnalyzer;
+    private ImageReader mAnalysisReader;
+    // 分析流的尺寸和亮度缓冲，创建分析流时在相机线程整体替换，只在相机线程访问
+    private int mAnalysisWidth;
+    private int mAnalysisHeight;
+    private AnalysisBuffer mAnalysisBuffer;
+    // 正在分析的一帧: 相机线程在 mAnalysisBusy 空闲时写入后投递给分析线程，释放 mAnalysisBusy 前不再修改
+    private AnalysisBuffer mAnalysisFrame;
+    private long mAnalysisTimestampNs;
+    // 当前分析图像的传感器时间戳，用于与拍照流图像对应
+    private long mAnalysisSensorTimestampNs;
+    // 分析线程是否正在处理上一帧，软件检测时直到相机线程发布结果后才释放
+    private final AtomicBoolean mAnalysisBusy = new AtomicBoolean(false);
+    // 软件检测结果，分析图像坐标，分析线程写入，相机线程在释放 mAnalysisBusy 前读取并发布
+    private final FaceFrame mAnalysisFaces = new FaceFrame(MAX_FACE_COUNT);
+    // 分析线程是否运行软件人脸检测，为 false 时分析流只用于人脸质量评估和活体检测
+    private volatile boolean mAnalysisDetect;
+    // 人脸质量评估，设置监听后随分析流创建，只在分析线程调用
+    private volatile FaceQuality mFaceQuality;
+    private FaceQuality.Listener mFaceQualityListener;
+    private volatile float mFaceQualityTargetSize;
+    // 活体检测，设置监听时创建，只在分析线程调用
+    private volatile LivenessDetector mLivenessDetector;
+    // 硬件人脸转换到分析图像坐标后等待对应的图像，相机线程写入，分析线程取出
+    private final FaceQuality.PendingFaces mPendingHardwareFaces =
+            new FaceQuality.PendingFaces(PENDING_FACE_FRAMES, MAX_FACE_COUNT, PENDING_FACE_MAX_AGE_NS);
+    // 硬件人脸从成像区域到分析图像的转换，只在相机线程访问
+    private FaceTransform mSensorAnalysisTransform;
+    // 转换到分析图像坐标的硬件人脸和关键点，只在相机线程访问
+    private final FaceFrame mSensorAnalysisFaces = new FaceFrame(MAX_FACE_COUNT);
+    private final float[] mSensorLandmarks = new float[MAX_FACE_COUNT * FaceQuality.LANDMARK_STRIDE];
+    // 分析线程取出的硬件人脸和关键点
+    private final FaceFrame mHardwareFaces = new FaceFrame(MAX_FACE_COUNT);
+    private final float[] mHardwareLandmarks = new float[MAX_FACE_COUNT * FaceQuality.LANDMARK_STRIDE];
+    // 是否保留拍照流的最近几帧，需要在 start 前设置
+    private boolean mZslEnabled;
+    private ImageReader mZslReader;
+    private ZslRing mZslRing;
+    // 硬件人脸从成像区域到拍照流图像的转换，只在相机线程访问
+    private FaceTransform mZslTransform;
+    // 软件人脸从分析图像到拍照流图像的转换，相机线程创建，分析线程读取
+    private volatile FaceTransform mZslAnalysisTransform;
+    // 转换到拍照流坐标的人脸，相机线程和分析线程各用一个
+    private final FaceFrame mZslFaces = new FaceFrame(MAX_FACE_COUNT);
+    private final FaceFrame mZslAnalysisFaces = new FaceFrame(MAX_FACE_COUNT);
+    // 是否有拍照正在挑选或编码
+    private final AtomicBoolean mZslCapturing = new AtomicBoolean(false);
+    // 每隔多少帧检测一次人脸，其余帧由 FaceTracker 外推
+    private volatile int mFaceDetectInterval = 1;
+    // 用于按间隔跳过检测的帧计数，只在相机线程访问
+    private long mDetectFrameCounter;
+    // 根据人脸运动和温度调整帧率和检测频率
+    private final DetectionScheduler mDetectionScheduler = new DetectionScheduler(MAX_FACE_COUNT);
+    // 各档位对应的 AE 目标帧率范围，为 null 时不设置
+    private Range<Integer>[] mLevelFpsRanges;
+    // 预览的重复请求，档位或测光区域变化时修改后重新提交
+    private CaptureRequest.Builder mPreviewRequestBuilder;
+    // 按最大的人脸设置 AE/AF 测光区域，并统计人脸出现到 AE 收敛的耗时
+    private final FaceMetering mFaceMetering = new FaceMetering();
+    // 当前相机支持的 AE 和 AF 模式，切换相机时在相机线程选择
+    private int mAeMode = CaptureRequest.CONTROL_AE_MODE_ON;
+    private int mAfMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+    private boolean mAeRegionsSupported;
+    private boolean mAfRegionsSupported;
+    private final int[] mMeteringRegion = new int[4];
+    private PowerManager.OnThermalStatusChangedListener mThermalStatusListener;
     //是否可以拍照
     private boolean canTakePic = true;
     //是否可以切换摄像头
-    private boolean canExchangeCamera = false;                                             //是否可以切换摄像头
+    private volatile boolean canExchangeCamera = false;                                             //是否可以切换摄像头
 
     public CameraHelper(Activity activity, CustomTextureView textureView) {
         this.mActivity = activity;
         this.mTextureView = textureView;
+        this.mFaceResultDispatcher = new FaceResultDispatcher(MAX_FACE_COUNT, mMetrics);
         init();
     }
 
     private void init() {
+        mStartupTimer.start(System.nanoTime());
         handlerThread.start();
         mCameraHandler = new Handler(handlerThread.getLooper());
+        analysisThread.start();
+        mAnalysisHandler = new Handler(analysisThread.getLooper());
+        closeThread.start();
+        mCloseHandler = new Handler(closeThread.getLooper());
+        captureThread.start();
+        mCaptureHandler = new Handler(captureThread.getLooper());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            PowerManager powerManager = (PowerManager) mActivity.getSystemService(Context.POWER_SERVICE);
+            mDetectionScheduler.setThermalStatus(powerManager.getCurrentThermalStatus());
+            mThermalStatusListener = new PowerManager.OnThermalStatusChangedListener() {
+                @Override
+                public void onThermalStatusChanged(int status) {
+                    TraceLog.i(TAG, "设备温度状态:", status);
+                    mDetectionScheduler.setThermalStatus(status);
+                }
+            };
+            powerManager.addThermalStatusListener(mThermalStatusListener);
+        }
         mPreviewSize = new Size(PREVIEW_WIDTH, PREVIEW_HEIGHT);
         mDisplayRotation = mActivity.getWindowManager().getDefaultDisplay().getRotation();
+        DisplayMetrics displayMetrics = mActivity.getResources().getDisplayMetrics();
+        mMaxPreviewWidth = displayMetrics.widthPixels;
+        mMaxPreviewHeight = displayMetrics.heightPixels;
+        mCameraManager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
 
         mTextureView.setSurfaceTextureListener(new TextureView.SurfaceTextureListener() {
             @Override
             public void onSurfaceTextureSizeChanged(@NonNull SurfaceTexture surfaceTexture, int width, int height) {
-                Log.i(TAG, "width=" + width + "//height=" + height);
+                TraceLog.d(TAG, "onSurfaceTextureSizeChanged", width, height);
                 configureTransform(width, height);
             }
 
             @Override
             public void onSurfaceTextureUpdated(@NonNull SurfaceTexture surfaceTexture) {
-
+                // 切换摄像头时旧相机最后几帧也会回调，会话创建后才算新相机的第一帧
+                if (mPreviewConfigured) {
+                    mActiveTimer.mark(StartupTimer.MARK_FIRST_PREVIEW_FRAME, System.nanoTime());
+                }
             }
 
             @Override
             public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surfaceTexture) {
                 releaseCamera();
+                mCameraHandler.post(() -> mSurfaceTexture = null);
                 return true;
             }
 
             @Override
             public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surfaceTexture, int width, int height) {
                 configureTransform(width, height);
-                initCameraInfo();
+                onSurfaceAvailable(surfaceTexture);
             }
         });
+        if (mTextureView.isAvailable()) {
+            onSurfaceAvailable(mTextureView.getSurfaceTexture());
+        }
     }
 
-    private void initCameraInfo() {
-        mCameraManager = (CameraManager) mActivity.getSystemService(Context.CAMERA_SERVICE);
+    /**
+     * 所有需要在相机打开前设置的配置完成后在 UI 线程调用，开始在相机线程查询和打开相机
+     * <p>
+     * 配置字段在 UI 线程写入，相机线程创建会话时读取，由这里投递到相机线程的消息保证可见；
+     * 不等 TextureView 创建好，预览 Surface 可用后再创建会话。
+     */
+    @MainThread
+    public void start() {
+        if (mStarted) {
+            throw new IllegalStateException("Camera already started.");
+        }
+        mStarted = true;
+        mCameraHandler.post(this::prepareAndOpenCamera);
+    }
+
+    private void checkNotStarted() {
+        if (mStarted) {
+            throw new IllegalStateException("Must be called before start().");
+        }
+    }
+
+    /**
+     * 预览 Surface 可用，交给相机线程；相机已经打开时直接创建会话，相机被关闭过时重新打开
+     */
+    private void onSurfaceAvailable(SurfaceTexture surfaceTexture) {
+        mCameraHandler.post(() -> {
+            mSurfaceTexture = surfaceTexture;
+            if (!mStarted) {
+                // 在 start 时打开
+                return;
+            }
+            if (mCameraDevice == null && !mCameraOpening) {
+                prepareAndOpenCamera();
+            } else {
+                startPreviewIfReady();
+            }
+        });
+    }
+
+    /**
+     * 准备当前朝向的相机信息并打开相机
+     * <p>
+     * 有缓存的相机 id 时先发起打开，打开过程中再查询相机信息、选择尺寸，两者并行。
+     */
+    @WorkerThread
+    private void prepareAndOpenCamera() {
+        if (mPaused || !mStarted) {
+            // 在 resume 或 start 时打开
+            return;
+        }
+        int facing = mCameraFacing;
+        if (mCameraInfoCache == null) {
+            mCameraInfoCache = new CameraInfoCache(mActivity);
+        }
+        CameraProfile profile = mCameraProfiles.get(facing);
+        String cachedId = profile != null ? profile.getCameraId() : mCameraInfoCache.getCameraId(facing);
+        if (cachedId != null) {
+            openCamera(cachedId);
+        }
         try {
+            if (profile == null) {
+                profile = createCameraProfile(facing, cachedId);
+                if (profile == null) {
+                    showToast("没有可用相机");
+                    return;
+                }
+                mCameraProfiles.put(facing, profile);
+                mCameraInfoCache.put(profile, mMaxPreviewWidth, mMaxPreviewHeight);
+            }
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+            return;
+        }
+        applyCameraProfile(profile);
+        if (!profile.getCameraId().equals(cachedId)) {
+            // 没有缓存或缓存失效，用查询到的 id 打开，之前打开的相机在回调时关闭
+            openCamera(profile.getCameraId());
+        }
+    }
+
+    /**
+     * 查询相机信息并选择预览尺寸，优先使用缓存的相机 id，缓存失效时再枚举所有相机
+     */
+    @WorkerThread
+    private CameraProfile createCameraProfile(int facing, String cachedId) throws CameraAccessException {
+        String cameraId = null;
+        CameraCharacteristics characteristics = null;
+        if (cachedId != null) {
+            CameraCharacteristics cachedCharacteristics = mCameraManager.getCameraCharacteristics(cachedId);
+            if (cachedCharacteristics.get(CameraCharacteristics.LENS_FACING) == facing) {
+                cameraId = cachedId;
+                characteristics = cachedCharacteristics;
+            } else {
+                mCameraInfoCache.removeCameraId(facing);
+            }
+        }
+        if (characteristics == null) {
             String[] cameraIdList = mCameraManager.getCameraIdList();
-            if (cameraIdList == null || cameraIdList.length == 0) {
-                Toast.makeText(mActivity, "没有可用相机", Toast.LENGTH_SHORT).show();
-                return;
+            if (cameraIdList == null) {
+                return null;
             }
             for (String id : cameraIdList) {
                 CameraCharacteristics cameraCharacteristics = mCameraManager.getCameraCharacteristics(id);
-                int facing = cameraCharacteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing == mCameraFacing) {
-                    mCameraId = id;
-                    mCameraCharacteristics = cameraCharacteristics;
+                if (cameraCharacteristics.get(CameraCharacteristics.LENS_FACING) == facing) {
+                    cameraId = id;
+                    characteristics = cameraCharacteristics;
+                    break;
                 }
-                Log.i(TAG, "设备中的摄像头:" + id);
             }
+        }
+        if (characteristics == null) {
+            return null;
+        }
+        int supportLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        if (supportLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
+            showToast("相机硬件不支持新特性");
+        }
+        StreamPlanner planner = StreamPlanner.from(characteristics);
+        Size previewSize = mCameraInfoCache.getPreviewSize(cameraId, mMaxPreviewWidth, mMaxPreviewHeight);
+        if (previewSize == null) {
+            previewSize = choosePreviewSize(planner, characteristics);
+        }
+        // 分析流尺寸只在软件人脸检测时使用，一起选出来代价很小
+        StreamPlanner.Plan streamPlan = planner.plan(previewSize.getWidth(), previewSize.getHeight(),
+                ANALYSIS_WIDTH, ANALYSIS_HEIGHT, mZslEnabled, false);
+        TraceLog.i(TAG, "分析流尺寸:", streamPlan.analysisWidth, streamPlan.analysisHeight);
+        TraceLog.i(TAG, "输出组合最小帧间隔(ns):", streamPlan.minFrameDurationNs);
+        return new CameraProfile(facing, cameraId, characteristics, previewSize, streamPlan);
+    }
 
-            int supportLevel = mCameraCharacteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
-            if (supportLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
-                Toast.makeText(mActivity, "相机硬件不支持新特性", Toast.LENGTH_SHORT).show();
-            }
-            // 获取摄像头方向
-            mCameraSensorOrientation = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-            // 获取StreamConfigurationMap，它是管理摄像头支持的所有输出格式和尺寸
-            StreamConfigurationMap configurationMap = mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-            Size[] previewSize = configurationMap.getOutputSizes(SurfaceTexture.class);
-
-            boolean exchange = exchangeWidthAndHeight(mDisplayRotation, mCameraSensorOrientation);
-
-            mPreviewSize = getBestSize(
-                    exchange ? mPreviewSize.getHeight() : mPreviewSize.getWidth(),
-                    exchange ? mPreviewSize.getWidth() : mPreviewSize.getHeight(),
-                    exchange ? mTextureView.getHeight() : mTextureView.getWidth(),
-                    exchange ? mTextureView.getWidth() : mTextureView.getHeight(),
-                    Arrays.asList(previewSize)
-            );
-            mTextureView.getSurfaceTexture().setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-            Log.i(TAG, "预览最优尺寸 ：" + mPreviewSize.getWidth() + " * " + mPreviewSize.getHeight() + ", 比例  " + (float) mPreviewSize.getWidth() / mPreviewSize.getHeight());
+    private Size choosePreviewSize(StreamPlanner planner, CameraCharacteristics characteristics) {
+        // 获取摄像头方向
+        int sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        boolean exchange = FaceTransform.exchangeWidthAndHeight(mDisplayRotation, sensorOrientation);
+        int index = planner.choosePreviewSize(
+                exchange ? PREVIEW_HEIGHT : PREVIEW_WIDTH,
+                exchange ? PREVIEW_WIDTH : PREVIEW_HEIGHT,
+                exchange ? mMaxPreviewHeight : mMaxPreviewWidth,
+                exchange ? mMaxPreviewWidth : mMaxPreviewHeight
+        );
+        return new Size(planner.getPreviewWidth(index), planner.getPreviewHeight(index));
+    }
 
+    /**
+     * 把准备好的相机信息设为当前使用的相机，计算人脸坐标转换和帧率，并通知 UI 线程调整 TextureView 比例
+     */
+    @WorkerThread
+    private void applyCameraProfile(CameraProfile profile) {
+        mCameraId = profile.getCameraId();
+        mCameraCharacteristics = profile.getCharacteristics();
+        mCameraSensorOrientation = profile.getSensorOrientation();
+        mPreviewSize = profile.getPreviewSize();
+        Integer timestampSource = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+        // 时间基准未知时一般与 System.nanoTime 相同
+        mSensorTimestampRealtime = timestampSource != null
+                && timestampSource == CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME;
+        TraceLog.i(TAG, "预览最优尺寸:", mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        if (profile.isPrepared()) {
+            mFaceDetectMode = profile.getFaceDetectMode();
+            mFaceTransform = profile.getFaceTransform();
+            mLevelFpsRanges = profile.getLevelFpsRanges();
+        } else {
+            initFaceDetect();
+            initFpsRanges();
+            profile.setPrepared(mFaceDetectMode, mFaceTransform, mLevelFpsRanges);
+        }
+        initMetering();
+        mAnalysisDetect = mFaceDetectMode == CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF && mFaceAnalyzer != null;
+        if (mAnalysisDetect || mFaceQualityListener != null || mLivenessDetector != null) {
+            initAnalysisReader(profile.getStreamPlan());
+        }
+        if (mZslEnabled) {
+            initZslReader(profile.getStreamPlan());
+        }
+        Size previewSize = mPreviewSize;
+        mActivity.runOnUiThread(() -> {
             // 根据预览的尺寸大小调整TextureView的大小，保证画面不被拉伸
             int orientation = mActivity.getResources().getConfiguration().orientation;
             if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+                mTextureView.setAspectRatio(previewSize.getWidth(), previewSize.getHeight());
             } else {
-                mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+                mTextureView.setAspectRatio(previewSize.getHeight(), previewSize.getWidth());
             }
-            initFaceDetect();
-            openCamera();
-        } catch (CameraAccessException e) {
-            e.printStackTrace();
-        }
+        });
     }
 
     @SuppressLint("MissingPermission")
-    private void openCamera() {
+    @WorkerThread
+    private void openCamera(String cameraId) {
+        mCameraOpening = true;
         try {
-            mCameraManager.openCamera(mCameraId, new CameraDevice.StateCallback() {
+            mCameraManager.openCamera(cameraId, new CameraDevice.StateCallback() {
                 @Override
                 public void onOpened(@NonNull CameraDevice cameraDevice) {
+                    // 缓存的 id 已失效，或打开过程中相机被释放
+                    if (!mCameraOpening || !cameraDevice.getId().equals(mCameraId)) {
+                        cameraDevice.close();
+                        return;
+                    }
+                    mCameraOpening = false;
                     mCameraDevice = cameraDevice;
-                    createCaptureSession(cameraDevice);
+                    mActiveTimer.mark(StartupTimer.MARK_CAMERA_OPENED, System.nanoTime());
+                    startPreviewIfReady();
                 }
 
                 @Override
                 public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-                    Log.i(TAG, "onDisconnected");
+                    TraceLog.w(TAG, "onDisconnected");
+                    cameraDevice.close();
+                    if (cameraDevice == mCameraDevice) {
+                        mCameraDevice = null;
+                    }
                 }
 
                 @Override
                 public void onError(@NonNull CameraDevice cameraDevice, int i) {
-                    Log.e(TAG, "onError");
-                    Toast.makeText(mActivity, "打开相机失败!", Toast.LENGTH_SHORT).show();
+                    TraceLog.e(TAG, "onError", i);
+                    TraceLog.dump("camera error");
+                    cameraDevice.close();
+                    if (cameraDevice == mCameraDevice) {
+                        mCameraDevice = null;
+                    } else if (mCameraOpening && cameraDevice.getId().equals(mCameraId)) {
+                        mCameraOpening = false;
+                        // 有的设备不能同时打开两个相机，等旧相机关闭后重试
+                        if (mPendingCloseCount > 0 && (i == CameraDevice.StateCallback.ERROR_CAMERA_IN_USE
+                                || i == CameraDevice.StateCallback.ERROR_MAX_CAMERAS_IN_USE)) {
+                            mRetryOpenAfterClose = true;
+                            return;
+                        }
+                    } else {
+                        // 已经切换或关闭的旧相机，不提示
+                        return;
+                    }
+                    showToast("打开相机失败!");
                 }
             }, mCameraHandler);
         } catch (CameraAccessException e) {
+            mCameraOpening = false;
+            if (mPendingCloseCount > 0 && (e.getReason() == CameraAccessException.CAMERA_IN_USE
+                    || e.getReason() == CameraAccessException.MAX_CAMERAS_IN_USE)) {
+                mRetryOpenAfterClose = true;
+                return;
+            }
             e.printStackTrace();
         }
     }
 
+    /**
+     * 相机已经打开且预览 Surface 可用时创建预览会话
+     */
+    @WorkerThread
+    private void startPreviewIfReady() {
+        // 旧相机还连接着预览 Surface 时不能创建新会话
+        if (mCameraDevice == null || mSurfaceTexture == null || mCameraCaptureSession != null || mSessionConfiguring
+                || mPendingCloseCount > 0) {
+            return;
+        }
+        mSurfaceTexture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        createCaptureSession(mCameraDevice);
+    }
+
     /**
      * 创建预览会话
      *
@@ -206,22 +581,48 @@ public class CameraHelper {
     private void createCaptureSession(CameraDevice cameraDevice) {
         try {
             CaptureRequest.Builder captureRequestBuilder = cameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-            Surface surface = new Surface(mTextureView.getSurfaceTexture());
+            Surface surface = new Surface(mSurfaceTexture);
             captureRequestBuilder.addTarget(surface);
-            // 闪光灯
-            captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH);
-            // 自动对焦
-            captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+            List<Surface> outputs = new ArrayList<>();
+            outputs.add(surface);
+            if (mAnalysisReader != null) {
+                // 软件人脸检测的分析流
+                captureRequestBuilder.addTarget(mAnalysisReader.getSurface());
+                outputs.add(mAnalysisReader.getSurface());
+            }
+            if (mZslReader != null) {
+                // 零延迟拍照流，每帧都输出到环形缓冲
+                captureRequestBuilder.addTarget(mZslReader.getSurface());
+                outputs.add(mZslReader.getSurface());
+            }
+            // 自动曝光，有闪光灯时自动闪光
+            captureRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, mAeMode);
+            // 自动对焦，定焦摄像头为 OFF
+            captureRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, mAfMode);
 
             if (mFaceDetectMode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF) {
                 // 人脸检测
-                captureRequestBuilder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE, CameraCharacteristics.STATISTICS_FACE_DETECT_MODE_SIMPLE);
+                captureRequestBuilder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE, mFaceDetectMode);
+            }
+            if (mLevelFpsRanges != null) {
+                captureRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mLevelFpsRanges[DetectionScheduler.LEVEL_ACTIVE]);
             }
+            mPreviewRequestBuilder = captureRequestBuilder;
+            mSessionConfiguring = true;
             // 为相机预览，创建一个CameraCaptureSession对象
-            cameraDevice.createCaptureSession(Arrays.asList(surface), new CameraCaptureSession.StateCallback() {
+            cameraDevice.createCaptureSession(outputs, new CameraCaptureSession.StateCallback() {
                 @Override
                 public void onConfigured(@NonNull CameraCaptureSession session) {
+                    mSessionConfiguring = false;
+                    if (cameraDevice != mCameraDevice) {
+                        // 创建过程中相机已被释放
+                        session.close();
+                        return;
+                    }
                     mCameraCaptureSession = session;
+                    mPreviewConfigured = true;
+                    mDetectionScheduler.reset(System.nanoTime());
+                    mFaceMetering.reset();
                     try {
                         session.setRepeatingRequest(captureRequestBuilder.build(), mCaptureCallBack, mCameraHandler);
                     } catch (CameraAccessException e) {
@@ -231,7 +632,10 @@ public class CameraHelper {
 
                 @Override
                 public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-                    Toast.makeText(mActivity, "开启预览会话失败", Toast.LENGTH_SHORT).show();
+                    mSessionConfiguring = false;
+                    TraceLog.e(TAG, "onConfigureFailed");
+                    TraceLog.dump("session configure failed");
+                    showToast("开启预览会话失败");
                 }
             }, mCameraHandler);
         } catch (CameraAccessException e) {
@@ -242,13 +646,44 @@ public class CameraHelper {
 
     /**
      * 处理人脸信息
+     * <p>
+     * 切换摄像头或暂停时旧会话交给关闭线程异步关闭，关闭完成前旧相机的结果仍会在相机线程回调，
+     * 只处理当前会话的结果，否则会用旧相机的裁剪区域重建坐标转换、把旧相机的人脸当作新相机的第一帧。
      */
     private CameraCaptureSession.CaptureCallback mCaptureCallBack = new CameraCaptureSession.CaptureCallback() {
         @Override
         public void onCaptureCompleted(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull TotalCaptureResult result) {
             super.onCaptureCompleted(session, request, result);
-            if (mFaceDetectMode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF) {
-                handleFaces(result);
+            if (session != mCameraCaptureSession) {
+                return;
+            }
+            mMetrics.onPreviewFrame();
+            Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+            if (sensorTimestamp != null) {
+                long nowNs = mSensorTimestampRealtime ? SystemClock.elapsedRealtimeNanos() : System.nanoTime();
+                mMetrics.recordSensorToCallback(nowNs - sensorTimestamp);
+            }
+            long frameNs = System.nanoTime();
+            // 两者都要每帧调用，不能短路
+            boolean levelChanged = mDetectionScheduler.onFrame(frameNs);
+            boolean meteringChanged = mFaceMetering.onFrame(frameNs);
+            if (levelChanged || meteringChanged) {
+                updatePreviewRequest();
+            }
+            if (request.getTag() == mFaceMetering && mFaceMetering.isMeasuring()) {
+                Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
+                long latencyNs = aeState == null ? -1 : mFaceMetering.onMeteredResult(aeState, frameNs);
+                if (latencyNs >= 0) {
+                    mMetrics.recordFaceToAeConverged(latencyNs);
+                    TraceLog.i(TAG, "人脸出现到 AE 收敛耗时(ms):", latencyNs / 1_000_000);
+                }
+            }
+            // 档位关闭人脸检测期间的结果里没有人脸数据，不能当作人脸消失处理
+            Integer resultFaceDetectMode = result.get(CaptureResult.STATISTICS_FACE_DETECT_MODE);
+            if (mFaceDetectMode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF
+                    && resultFaceDetectMode != null && resultFaceDetectMode != CaptureResult.STATISTICS_FACE_DETECT_MODE_OFF
+                    && shouldDetectFaces()) {
+                handleFaces(session, result);
             }
             canExchangeCamera = true;
             canTakePic = true;
@@ -257,56 +692,733 @@ public class CameraHelper {
         @Override
         public void onCaptureFailed(@NonNull CameraCaptureSession session, @NonNull CaptureRequest request, @NonNull CaptureFailure failure) {
             super.onCaptureFailed(session, request, failure);
-            Log.e(TAG, "onCaptureFailed");
-            Toast.makeText(mActivity, "开启预览失败", Toast.LENGTH_SHORT).show();
+            if (session != mCameraCaptureSession) {
+                // 旧会话关闭时丢弃的请求也会失败
+                return;
+            }
+            TraceLog.e(TAG, "onCaptureFailed", failure.getReason());
+            TraceLog.dump("capture failed");
+            mMetrics.onCaptureFailed();
+            showToast("开启预览失败");
         }
     };
 
-    private void handleFaces(TotalCaptureResult result) {
+    @WorkerThread
+    private void handleFaces(CameraCaptureSession session, TotalCaptureResult result) {
+        if (session != mCameraCaptureSession) {
+            return;
+        }
         Face[] faces = result.get(CaptureResult.STATISTICS_FACES);
-        mFacesRect.clear();
-        if (faces != null) {
-            for (Face face : faces) {
-                Rect bounds = face.getBounds();
-                int left = bounds.left;
-                int top = bounds.top;
-                int right = bounds.right;
-                int bottom = bounds.bottom;
-                RectF rawFaceRect = new RectF(left, top, right, bottom);
-                mFaceDetectMatrix.mapRect(rawFaceRect);
-                RectF resultFaceRect;
-                if (mCameraFacing == CaptureRequest.LENS_FACING_FRONT) {
-                    resultFaceRect = rawFaceRect;
-                } else {
-                    resultFaceRect = new RectF(rawFaceRect.left, rawFaceRect.top - mPreviewSize.getWidth(), rawFaceRect.right, rawFaceRect.bottom - mPreviewSize.getWidth());
+        Rect cropRegion = result.get(CaptureResult.SCALER_CROP_REGION);
+        if (cropRegion != null) {
+            updateFaceTransform(cropRegion.left, cropRegion.top, cropRegion.right, cropRegion.bottom);
+        }
+        FaceFrame faceFrame = mFaceResultDispatcher.obtain();
+        faceFrame.reset(mFaceFrameNumber++, System.nanoTime());
+        int count = faces == null ? 0 : Math.min(faces.length, MAX_FACE_COUNT);
+        for (int i = 0; i < count; i++) {
+            Rect bounds = faces[i].getBounds();
+            int offset = i * FaceFrame.RECT_STRIDE;
+            mSensorRects[offset] = bounds.left;
+            mSensorRects[offset + 1] = bounds.top;
+            mSensorRects[offset + 2] = bounds.right;
+            mSensorRects[offset + 3] = bounds.bottom;
+            mSensorScores[i] = faces[i].getScore();
+            TraceLog.v(TAG, "原始人脸位置:", bounds.left, bounds.top, bounds.right, bounds.bottom);
+        }
+        mFaceTransform.mapFaces(mSensorRects, mSensorScores, count, faceFrame);
+        Long sensorTimestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+        if (mZslReader != null && sensorTimestamp != null && count > 0) {
+            mZslFaces.reset(0, sensorTimestamp);
+            mZslTransform.mapFaces(mSensorRects, mSensorScores, count, mZslFaces);
+            putZslFace(mZslFaces);
+        }
+        // 没有人脸的帧也要写入，分析线程据此判断人脸消失
+        if (mSensorAnalysisTransform != null && sensorTimestamp != null) {
+            putHardwareFaces(sensorTimestamp, faces, count);
+        }
+        if (mFrameWriter != null) {
+            recordFaces(faceFrame.getTimestampNs(), faces);
+        }
+        if (!faceFrame.isEmpty()) {
+            mActiveTimer.mark(StartupTimer.MARK_FIRST_FACE, faceFrame.getTimestampNs());
+        }
+        mDetectionScheduler.onFaces(faceFrame, faceFrame.getTimestampNs());
+        mFaceMetering.onFaces(faceFrame, faceFrame.getTimestampNs());
+        mFaceResultDispatcher.publish();
+    }
+
+    /**
+     * 把硬件人脸和 FULL 模式下眼睛、嘴巴的位置转换到分析图像坐标，等待分析线程按时间戳取出评估质量和活体检测
+     */
+    private void putHardwareFaces(long sensorTimestampNs, Face[] faces, int count) {
+        mSensorAnalysisFaces.reset(0, sensorTimestampNs);
+        count = mSensorAnalysisTransform.mapFaces(mSensorRects, mSensorScores, count, mSensorAnalysisFaces);
+        for (int i = 0; i < count; i++) {
+            int offset = i * FaceQuality.LANDMARK_STRIDE;
+            setLandmark(faces[i].getLeftEyePosition(), offset);
+            setLandmark(faces[i].getRightEyePosition(), offset + 2);
+            setLandmark(faces[i].getMouthPosition(), offset + 4);
+        }
+        mSensorAnalysisTransform.mapPoints(mSensorLandmarks, count * FaceQuality.LANDMARK_STRIDE / 2);
+        mPendingHardwareFaces.put(sensorTimestampNs, mSensorAnalysisFaces, mSensorLandmarks);
+    }
+
+    private void setLandmark(Point point, int offset) {
+        mSensorLandmarks[offset] = point == null ? Float.NaN : point.x;
+        mSensorLandmarks[offset + 1] = point == null ? Float.NaN : point.y;
+    }
+
+    /**
+     * 按当前档位修改预览请求的帧率和人脸检测开关，按人脸设置测光区域并重新提交，只在相机线程调用
+     */
+    private void updatePreviewRequest() {
+        if (mCameraCaptureSession == null || mPreviewRequestBuilder == null) {
+            return;
+        }
+        int level = mDetectionScheduler.getLevel();
+        if (mLevelFpsRanges != null) {
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE, mLevelFpsRanges[level]);
+        }
+        if (mFaceDetectMode != CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF) {
+            mPreviewRequestBuilder.set(CaptureRequest.STATISTICS_FACE_DETECT_MODE,
+                    mDetectionScheduler.isFaceDetectEnabled() ? mFaceDetectMode : CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF);
+        }
+        if (mFaceMetering.isEnabled()) {
+            setMeteringRegions();
+        }
+        try {
+            mCameraCaptureSession.setRepeatingRequest(mPreviewRequestBuilder.build(), mCaptureCallBack, mCameraHandler);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        TraceLog.i(TAG, "检测档位, 人脸检测:", level, mDetectionScheduler.isFaceDetectEnabled() ? 1 : 0);
+    }
+
+    /**
+     * 把人脸测光区域设置到预览请求，没有人脸时清除恢复整个画面测光；
+     * 设置了区域的请求以 mFaceMetering 为 tag，结果回调据此判断 AE 状态是否对应人脸测光
+     */
+    private void setMeteringRegions() {
+        MeteringRectangle[] regions = null;
+        if (mFaceMetering.hasRegion()) {
+            int[] region = mMeteringRegion;
+            mFaceMetering.getRegion(region);
+            regions = new MeteringRectangle[]{new MeteringRectangle(region[0], region[1],
+                    region[2] - region[0], region[3] - region[1], MeteringRectangle.METERING_WEIGHT_MAX)};
+            TraceLog.d(TAG, "人脸测光区域宽高:", region[2] - region[0], region[3] - region[1]);
+        }
+        if (mAeRegionsSupported) {
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_REGIONS, regions);
+        }
+        if (mAfRegionsSupported) {
+            mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_REGIONS, regions);
+        }
+        mPreviewRequestBuilder.setTag(regions == null ? null : mFaceMetering);
+    }
+
+    /**
+     * 根据闪光灯和对焦能力选择 AE/AF 模式，根据支持的测光区域数量决定是否按人脸测光
+     */
+    private void initMetering() {
+        // 前置摄像头一般没有闪光灯，AUTO_FLASH 没有意义
+        Boolean flashAvailable = mCameraCharacteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+        mAeMode = Boolean.TRUE.equals(flashAvailable)
+                ? CaptureRequest.CONTROL_AE_MODE_ON_AUTO_FLASH : CaptureRequest.CONTROL_AE_MODE_ON;
+        mAfMode = CaptureRequest.CONTROL_AF_MODE_OFF;
+        int[] afModes = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES);
+        if (afModes != null) {
+            for (int afMode : afModes) {
+                if (afMode == CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE) {
+                    mAfMode = afMode;
+                    break;
                 }
-                mFacesRect.add(resultFaceRect);
-                Log.i(TAG, "原始人脸位置: " + bounds.width() + " * " + bounds.height() + "  " + bounds.left + " " + bounds.top + " " + bounds.right + " " + bounds.bottom + "分数: " + face.getScore());
-                Log.i(TAG, "转换后人脸位置: " + resultFaceRect.width() + " * " + resultFaceRect.height() + "  " + resultFaceRect.left + " " + resultFaceRect.top + " " + resultFaceRect.right + " " + resultFaceRect.bottom + "   分数: " + face.getScore());
             }
         }
-        mActivity.runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                if (mFaceDetectListener != null) {
-                    mFaceDetectListener.onFaceDetect(mFacesRect);
+        Integer maxAeRegions = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AE);
+        Integer maxAfRegions = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_MAX_REGIONS_AF);
+        mAeRegionsSupported = maxAeRegions != null && maxAeRegions > 0;
+        // 定焦摄像头设置对焦区域没有作用
+        mAfRegionsSupported = maxAfRegions != null && maxAfRegions > 0
+                && mAfMode != CaptureRequest.CONTROL_AF_MODE_OFF;
+        Rect activeArraySizeRect = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+        mFaceMetering.configure(activeArraySizeRect.width(), activeArraySizeRect.height(),
+                mAeRegionsSupported || mAfRegionsSupported);
+        mFaceMetering.setSensorTransform(mFaceTransform.invert());
+        TraceLog.i(TAG, "AE 模式, AF 模式, AE 区域, AF 区域:", mAeMode, mAfMode,
+                mAeRegionsSupported ? 1 : 0, mAfRegionsSupported ? 1 : 0);
+    }
+
+    /**
+     * 为每个档位选择 AE 目标帧率范围
+     */
+    @SuppressWarnings("unchecked")
+    private void initFpsRanges() {
+        Range<Integer>[] ranges = mCameraCharacteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        if (ranges == null || ranges.length == 0) {
+            mLevelFpsRanges = null;
+            return;
+        }
+        mLevelFpsRanges = new Range[DetectionScheduler.LEVEL_COUNT];
+        mLevelFpsRanges[DetectionScheduler.LEVEL_ACTIVE] = pickFpsRange(ranges, Integer.MAX_VALUE);
+        mLevelFpsRanges[DetectionScheduler.LEVEL_STEADY] = pickFpsRange(ranges, 15);
+        mLevelFpsRanges[DetectionScheduler.LEVEL_IDLE] = pickFpsRange(ranges, 10);
+        mLevelFpsRanges[DetectionScheduler.LEVEL_SUSPENDED] = mLevelFpsRanges[DetectionScheduler.LEVEL_IDLE];
+    }
+
+    /**
+     * 选择上限不超过 maxFps 的范围中上限最高的，上限相同时选下限最低的，让 AE 在暗处可以降帧；
+     * 所有范围的上限都超过 maxFps 时选上限最低的
+     */
+    private static Range<Integer> pickFpsRange(Range<Integer>[] ranges, int maxFps) {
+        Range<Integer> best = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() > maxFps) {
+                continue;
+            }
+            if (best == null || range.getUpper() > best.getUpper()
+                    || (range.getUpper().equals(best.getUpper()) && range.getLower() < best.getLower())) {
+                best = range;
+            }
+        }
+        if (best != null) {
+            return best;
+        }
+        for (Range<Integer> range : ranges) {
+            if (best == null || range.getUpper() < best.getUpper()) {
+                best = range;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 分析流有新图像时在相机线程回调，分析线程空闲时复制亮度平面并立即关闭图像，否则直接丢弃
+     */
+    private final ImageReader.OnImageAvailableListener mAnalysisImageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image = reader.acquireLatestImage();
+            if (image == null) {
+                return;
+            }
+            try {
+                AnalysisBuffer buffer = mAnalysisBuffer;
+                if (reader != mAnalysisReader || buffer == null) {
+                    // 交给关闭线程的旧分析流
+                    return;
+                }
+                // 只评估质量时跟随硬件人脸，检测间隔由 handleFaces 计数；过热暂停期间只在探测窗口内检测
+                if (mAnalysisDetect && (!mDetectionScheduler.isFaceDetectEnabled() || !shouldDetectFaces())) {
+                    return;
+                }
+                if (!mAnalysisBusy.compareAndSet(false, true)) {
+                    mMetrics.onAnalysisDropped();
+                    return;
+                }
+                copyLuma(image.getPlanes()[0], buffer.luma, buffer.width, buffer.height);
+                mAnalysisFrame = buffer;
+                mAnalysisTimestampNs = System.nanoTime();
+                mAnalysisSensorTimestampNs = image.getTimestamp();
+                if (mFrameWriter != null) {
+                    recordLuma(mAnalysisTimestampNs, buffer.luma);
+                }
+            } finally {
+                image.close();
+            }
+            mAnalysisHandler.post(mAnalyzeRunnable);
+        }
+    };
+
+    /**
+     * 在分析线程运行软件人脸检测，设置了质量监听时再评估人脸质量，硬件人脸检测时评估按时间戳对应的硬件人脸
+     * <p>
+     * 软件检测的结果交回相机线程，由 {@link #mPublishAnalysisRunnable} 与硬件人脸走同一个线程发布，
+     * 分发、跟踪、检测调度和测光都只有相机线程一个写入者。
+     */
+    private final Runnable mAnalyzeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            boolean publishing = false;
+            try {
+                AnalysisBuffer buffer = mAnalysisFrame;
+                FaceAnalyzer analyzer = mFaceAnalyzer;
+                if (mAnalysisDetect && analyzer != null) {
+                    mAnalysisFaces.reset(0, mAnalysisTimestampNs);
+                    long startNs = System.nanoTime();
+                    analyzer.analyze(buffer.luma, buffer.width, buffer.height, mAnalysisFaces);
+                    mMetrics.recordAnalysis(System.nanoTime() - startNs);
+                    processAnalysisFaces(buffer, mAnalysisFaces, null);
+                    publishing = mCameraHandler.post(mPublishAnalysisRunnable);
+                } else if (mPendingHardwareFaces.take(mAnalysisSensorTimestampNs, mHardwareFaces, mHardwareLandmarks)) {
+                    processAnalysisFaces(buffer, mHardwareFaces, mHardwareLandmarks);
+                }
+            } finally {
+                if (!publishing) {
+                    mAnalysisBusy.set(false);
+                }
+            }
+        }
+    };
+
+    /**
+     * 在相机线程发布分析线程的检测结果，然后允许分析下一帧；分析流已经重建时结果属于旧相机，直接丢弃
+     */
+    private final Runnable mPublishAnalysisRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                if (mAnalysisFrame == mAnalysisBuffer) {
+                    publishAnalysisFaces();
                 }
+            } finally {
+                mAnalysisBusy.set(false);
+            }
+        }
+    };
+
+    /**
+     * 在分析线程评估人脸质量并更新活体检测，faces 和 landmarks 都是分析图像坐标
+     */
+    private void processAnalysisFaces(AnalysisBuffer buffer, FaceFrame faces, float[] landmarks) {
+        FaceQuality quality = mFaceQuality;
+        if (quality != null) {
+            quality.process(buffer.luma, buffer.width, buffer.height, mAnalysisSensorTimestampNs, faces, landmarks);
+        }
+        LivenessDetector liveness = mLivenessDetector;
+        if (liveness != null) {
+            liveness.process(buffer.luma, buffer.width, buffer.height, faces, landmarks);
+        }
+    }
+
+    /**
+     * 按 {@link #mFaceDetectInterval} 和当前档位判断当前帧是否需要检测人脸，只在相机线程调用
+     */
+    private boolean shouldDetectFaces() {
+        return mDetectFrameCounter++ % ((long) mFaceDetectInterval * mDetectionScheduler.getDetectInterval()) == 0;
+    }
+
+    private static void copyLuma(Image.Plane plane, byte[] dst, int width, int height) {
+        ByteBuffer buffer = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        if (rowStride == width) {
+            buffer.get(dst, 0, width * height);
+            return;
+        }
+        for (int row = 0; row < height; row++) {
+            buffer.position(row * rowStride);
+            buffer.get(dst, row * width, width);
+        }
+    }
+
+    @WorkerThread
+    private void publishAnalysisFaces() {
+        FaceFrame faceFrame = mFaceResultDispatcher.obtain();
+        faceFrame.reset(mFaceFrameNumber++, mAnalysisFaces.getTimestampNs());
+        mAnalysisTransform.mapFaces(mAnalysisFaces, faceFrame);
+        FaceTransform zslTransform = mZslAnalysisTransform;
+        if (zslTransform != null && !mAnalysisFaces.isEmpty()) {
+            mZslAnalysisFaces.reset(0, mAnalysisSensorTimestampNs);
+            zslTransform.mapFaces(mAnalysisFaces, mZslAnalysisFaces);
+            putZslFace(mZslAnalysisFaces);
+        }
+        if (!faceFrame.isEmpty()) {
+            mActiveTimer.mark(StartupTimer.MARK_FIRST_FACE, faceFrame.getTimestampNs());
+        }
+        mDetectionScheduler.onFaces(faceFrame, faceFrame.getTimestampNs());
+        mFaceMetering.onFaces(faceFrame, faceFrame.getTimestampNs());
+        mFaceResultDispatcher.publish();
+    }
+
+    /**
+     * 按 {@link StreamPlanner} 选出的尺寸创建软件人脸检测的 YUV 分析流，
+     * 即不小于 {@link #ANALYSIS_WIDTH} * {@link #ANALYSIS_HEIGHT} 且与预览比例一致的最小尺寸
+     */
+    private void initAnalysisReader(StreamPlanner.Plan streamPlan) {
+        if (!streamPlan.hasAnalysis()) {
+            TraceLog.w(TAG, "相机不支持 YUV_420_888 输出，无法使用软件人脸检测");
+            return;
+        }
+        mAnalysisWidth = streamPlan.analysisWidth;
+        mAnalysisHeight = streamPlan.analysisHeight;
+        // 分析线程可能还在处理旧缓冲的一帧，总是换成新的缓冲，不在原缓冲上修改
+        mAnalysisBuffer = new AnalysisBuffer(mAnalysisWidth, mAnalysisHeight);
+        mAnalysisReader = ImageReader.newInstance(mAnalysisWidth, mAnalysisHeight, ImageFormat.YUV_420_888, ANALYSIS_MAX_IMAGES);
+        mAnalysisTransform = createAnalysisTransform();
+        mAnalysisReader.setOnImageAvailableListener(mAnalysisImageListener, mCameraHandler);
+        if (!mAnalysisDetect) {
+            mSensorAnalysisTransform = createImageTransform(mFaceTransform, mAnalysisWidth, mAnalysisHeight);
+        }
+        if (mFaceQualityListener != null) {
+            initFaceQuality();
+        }
+        LivenessDetector liveness = mLivenessDetector;
+        if (liveness != null) {
+            // 之前的跟踪属于旧相机
+            mAnalysisHandler.post(liveness::reset);
+        }
+        updateAnalysisRotation();
+        TraceLog.i(TAG, mAnalysisDetect ? "软件人脸检测分析尺寸:" : "人脸质量和活体检测分析尺寸:", mAnalysisWidth, mAnalysisHeight);
+    }
+
+    /**
+     * 把分析图像旋转到屏幕方向的角度告诉人脸质量评估和活体检测
+     */
+    private void updateAnalysisRotation() {
+        int degrees = FaceTransform.getRotationDegrees(mCameraSensorOrientation,
+                mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT, mDisplayRotation);
+        FaceQuality quality = mFaceQuality;
+        if (quality != null) {
+            quality.setRotationDegrees(degrees);
+        }
+        LivenessDetector liveness = mLivenessDetector;
+        if (liveness != null) {
+            liveness.setRotationDegrees(degrees);
+        }
+    }
+
+    /**
+     * 分析尺寸变大时重新创建人脸质量评估
+     */
+    @WorkerThread
+    private void initFaceQuality() {
+        FaceQuality quality = mFaceQuality;
+        if (quality == null || quality.getLumaCapacity() < mAnalysisWidth * mAnalysisHeight) {
+            quality = new FaceQuality(mAnalysisWidth * mAnalysisHeight, QUALITY_WINDOW_SIZE);
+            quality.setListener(mFaceQualityListener);
+            if (mFaceQualityTargetSize > 0) {
+                quality.setTargetSize(mFaceQualityTargetSize);
+            }
+            mFaceQuality = quality;
+        } else {
+            // 分析线程空闲时才会处理下一帧，之前的候选属于旧相机
+            mAnalysisHandler.post(quality::reset);
+        }
+    }
+
+    /**
+     * 按 {@link StreamPlanner} 选出的尺寸创建零延迟拍照流，同时使用分析流但硬件级别不保证三个流的组合时不创建
+     */
+    @WorkerThread
+    private void initZslReader(StreamPlanner.Plan streamPlan) {
+        if (!streamPlan.hasCapture()) {
+            TraceLog.w(TAG, "相机不支持 YUV_420_888 输出，无法零延迟拍照");
+            return;
+        }
+        if (mAnalysisReader != null && !streamPlan.captureWithAnalysis) {
+            TraceLog.w(TAG, "硬件级别不保证同时输出分析流和拍照流，无法零延迟拍照");
+            return;
+        }
+        if (mZslRing == null) {
+            mZslRing = new ZslRing(ZSL_RING_SIZE);
+        }
+        mZslReader = ImageReader.newInstance(streamPlan.captureWidth, streamPlan.captureHeight,
+                ImageFormat.YUV_420_888, ZSL_MAX_IMAGES);
+        mZslReader.setOnImageAvailableListener(mZslImageListener, mCameraHandler);
+        mZslTransform = createImageTransform(mFaceTransform, mZslReader.getWidth(), mZslReader.getHeight());
+        if (mAnalysisReader != null) {
+            mZslAnalysisTransform = FaceTransform.forAnalysis(0, false, Surface.ROTATION_0,
+                    mAnalysisWidth, mAnalysisHeight, streamPlan.captureWidth, streamPlan.captureHeight);
+        }
+        TraceLog.i(TAG, "零延迟拍照流尺寸:", streamPlan.captureWidth, streamPlan.captureHeight);
+    }
 
+    /**
+     * 拍照流和分析流的图像坐标与传感器方向一致，只需按裁剪区域归一化后缩放，不旋转也不镜像
+     */
+    private static FaceTransform createImageTransform(FaceTransform faceTransform, int width, int height) {
+        return FaceTransform.forCropRegion(0, false, Surface.ROTATION_0,
+                faceTransform.getCropLeft(), faceTransform.getCropTop(),
+                faceTransform.getCropRight(), faceTransform.getCropBottom(), width, height);
+    }
+
+    /**
+     * 拍照流有新图像时在相机线程回调，直接放进环形缓冲，最旧的一帧被关闭
+     */
+    private final ImageReader.OnImageAvailableListener mZslImageListener = new ImageReader.OnImageAvailableListener() {
+        @Override
+        public void onImageAvailable(ImageReader reader) {
+            Image image;
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                // 拍照线程还持有上一批候选帧，丢弃这一帧
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            if (reader != mZslReader || mZslRing == null) {
+                image.close();
+                return;
+            }
+            mZslRing.addImage(image);
+        }
+    };
+
+    /**
+     * 把一帧中最大的人脸记入零延迟拍照的环形缓冲，faces 是拍照流图像坐标，时间戳为传感器时间戳
+     */
+    private void putZslFace(FaceFrame faces) {
+        int largest = -1;
+        float largestArea = 0;
+        for (int i = 0; i < faces.getCount(); i++) {
+            float area = (faces.getRight(i) - faces.getLeft(i)) * (faces.getBottom(i) - faces.getTop(i));
+            if (area > largestArea) {
+                largest = i;
+                largestArea = area;
+            }
+        }
+        if (largest >= 0) {
+            mZslRing.putFace(faces.getTimestampNs(), faces.getScore(largest), faces.getLeft(largest),
+                    faces.getTop(largest), faces.getRight(largest), faces.getBottom(largest));
+        }
+    }
+
+    /**
+     * 开启零延迟拍照: 预览时同时输出一路与预览同尺寸的 YUV 流，保留最近 {@link #ZSL_RING_SIZE} 帧，
+     * 调用 {@link #captureBestFace} 时直接从中挑选，需要在 {@link #start()} 前设置
+     */
+    @MainThread
+    public void setZslCaptureEnabled(boolean enabled) {
+        checkNotStarted();
+        this.mZslEnabled = enabled;
+    }
+
+    /**
+     * 从最近几帧中挑选人脸分数和清晰度最好的一帧，裁剪人脸区域、旋转到屏幕方向后编码为 JPEG
+     * <p>
+     * 不发起新的拍照请求，也不做对焦和测光预拍，挑选和编码在拍照线程进行，结果在 UI 线程回调。
+     * 没有开启零延迟拍照、预览还没开始、上一次拍照还没完成或最近几帧都没有人脸时回调失败。
+     */
+    public void captureBestFace(FaceCaptureListener listener) {
+        long startNs = System.nanoTime();
+        mCameraHandler.post(() -> {
+            if (mZslReader == null || !canTakePic || !mZslCapturing.compareAndSet(false, true)) {
+                mActivity.runOnUiThread(listener::onFaceCaptureFailed);
+                return;
             }
+            ZslRing.Batch batch = mZslRing.drain();
+            if (batch == null) {
+                mZslCapturing.set(false);
+                mActivity.runOnUiThread(listener::onFaceCaptureFailed);
+                return;
+            }
+            int degrees = FaceTransform.getRotationDegrees(mCameraSensorOrientation,
+                    mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT, mDisplayRotation);
+            mCaptureHandler.post(() -> encodeBestFace(batch, degrees, startNs, listener));
         });
     }
 
+    @WorkerThread
+    private void encodeBestFace(ZslRing.Batch batch, int degrees, long startNs, FaceCaptureListener listener) {
+        byte[] jpeg = null;
+        try {
+            int best = batch.selectBest();
+            Image image = batch.getImage(best);
+            int[] crop = new int[4];
+            FaceJpegEncoder.getCropRect(batch.getLeft(best), batch.getTop(best), batch.getRight(best),
+                    batch.getBottom(best), image.getWidth(), image.getHeight(), crop);
+            jpeg = FaceJpegEncoder.encode(image, crop, degrees, ZSL_JPEG_QUALITY);
+        } catch (IllegalStateException e) {
+            // 相机关闭时图像已经失效
+            TraceLog.w(TAG, "零延迟拍照图像已失效");
+        } finally {
+            batch.close();
+            mZslCapturing.set(false);
+        }
+        TraceLog.i(TAG, "零延迟拍照耗时(us):", (System.nanoTime() - startNs) / 1000);
+        byte[] result = jpeg;
+        mActivity.runOnUiThread(() -> {
+            if (result != null) {
+                listener.onFaceCaptured(result);
+            } else {
+                listener.onFaceCaptureFailed();
+            }
+        });
+    }
+
+    /**
+     * 设置软件人脸检测，相机硬件不支持人脸检测时通过低分辨率分析流调用，需要在 {@link #start()} 前设置
+     */
+    @Override
+    public void setFaceAnalyzer(FaceAnalyzer analyzer) {
+        checkNotStarted();
+        this.mFaceAnalyzer = analyzer;
+    }
+
+    /**
+     * 设置每隔多少帧检测一次人脸，中间帧的人脸框由跟踪按屏幕刷新率外推
+     */
+    @Override
+    public void setFaceDetectInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive.");
+        }
+        this.mFaceDetectInterval = interval;
+    }
+
+    @Override
     public void setFaceDetectListener(FaceDetectListener listener) {
-        this.mFaceDetectListener = listener;
+        mFaceResultDispatcher.setListener(listener);
+    }
+
+    @Override
+    public FaceEventStream getFaceEventStream() {
+        return mFaceResultDispatcher.getEventStream();
+    }
+
+    /**
+     * 设置人脸移动阈值(像素)，人脸框移动小于该值时不通知界面重绘
+     */
+    @Override
+    public void setFaceMotionEpsilon(float epsilon) {
+        mFaceResultDispatcher.setMotionEpsilon(epsilon);
+    }
+
+    /**
+     * 人脸结果的分发统计: 产生、因变化过小丢弃、被合并和实际分发的数量
+     */
+    public String getFaceDeliveryStats() {
+        return mFaceResultDispatcher.toString();
+    }
+
+    /**
+     * 流水线指标，{@link ScanFaceView#setPipelineMetrics} 通过它记录绘制耗时
+     */
+    @Override
+    public PipelineMetrics getPipelineMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 把当前指标复制到 out 并返回，帧率按 out 上一次填充到现在计算，可以在任意线程调用
+     */
+    @Override
+    public PipelineMetrics.Snapshot getMetricsSnapshot(PipelineMetrics.Snapshot out) {
+        mMetrics.snapshot(out);
+        out.mOfferedCount = mFaceResultDispatcher.getOfferedCount();
+        out.mDroppedCount = mFaceResultDispatcher.getDroppedCount();
+        out.mCoalescedCount = mFaceResultDispatcher.getCoalescedCount();
+        out.mDeliveredCount = mFaceResultDispatcher.getDeliveredCount();
+        return out;
+    }
+
+    /**
+     * 每隔 periodMs 在相机线程把指标快照交给 listener，快照对象复用，不要在回调之外持有；listener 为 null 时停止导出
+     */
+    public void setMetricsListener(MetricsListener listener, long periodMs) {
+        mCameraHandler.post(() -> {
+            mCameraHandler.removeCallbacks(mMetricsExportRunnable);
+            mMetricsListener = listener;
+            mMetricsPeriodMs = periodMs;
+            if (listener != null) {
+                mCameraHandler.postDelayed(mMetricsExportRunnable, periodMs);
+            }
+        });
+    }
+
+    private final Runnable mMetricsExportRunnable = new Runnable() {
+        @Override
+        public void run() {
+            MetricsListener listener = mMetricsListener;
+            if (listener == null) {
+                return;
+            }
+            listener.onMetrics(getMetricsSnapshot(mExportSnapshot));
+            mCameraHandler.postDelayed(this, mMetricsPeriodMs);
+        }
+    };
+
+    /**
+     * 开始把当前相机的人脸数据和分析流亮度图像录制到 outputStream，供 {@link ReplayFrameSource} 回放；
+     * 调用 {@link #stopRecording()}、切换摄像头或释放相机时结束并关闭 outputStream
+     */
+    public void startRecording(OutputStream outputStream) {
+        mCameraHandler.post(() -> {
+            closeFrameWriter();
+            if (mFaceTransform == null) {
+                TraceLog.w(TAG, "相机还没有准备好，无法录制");
+                closeQuietly(outputStream);
+                return;
+            }
+            Rect activeArraySizeRect = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+            boolean hasLuma = mAnalysisReader != null;
+            FrameRecording header = new FrameRecording(mCameraSensorOrientation,
+                    mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT, mDisplayRotation,
+                    activeArraySizeRect.width(), activeArraySizeRect.height(),
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                    hasLuma ? mAnalysisWidth : 0, hasLuma ? mAnalysisHeight : 0);
+            try {
+                mFrameWriter = new FrameRecording.Writer(outputStream, header);
+            } catch (IOException e) {
+                TraceLog.w(TAG, "开始录制失败");
+                closeQuietly(outputStream);
+            }
+        });
+    }
+
+    public void stopRecording() {
+        mCameraHandler.post(this::closeFrameWriter);
+    }
+
+    @WorkerThread
+    private void recordFaces(long timestampNs, Face[] faces) {
+        int count = faces == null ? 0 : Math.min(faces.length, 0xff);
+        try {
+            mFrameWriter.beginFaces(timestampNs, count);
+            for (int i = 0; i < count; i++) {
+                Rect bounds = faces[i].getBounds();
+                mFrameWriter.writeFace(bounds.left, bounds.top, bounds.right, bounds.bottom, faces[i].getScore());
+            }
+        } catch (IOException e) {
+            TraceLog.w(TAG, "录制人脸失败");
+            closeFrameWriter();
+        }
+    }
+
+    @WorkerThread
+    private void recordLuma(long timestampNs, byte[] luma) {
+        try {
+            mFrameWriter.writeLuma(timestampNs, luma);
+        } catch (IOException e) {
+            TraceLog.w(TAG, "录制亮度图像失败");
+            closeFrameWriter();
+        }
+    }
+
+    @WorkerThread
+    private void closeFrameWriter() {
+        if (mFrameWriter != null) {
+            closeQuietly(mFrameWriter);
+            mFrameWriter = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 启动各阶段耗时: 打开相机、第一帧预览、第一次检测到人脸，单位毫秒，还没到达的阶段为 -1
+     */
+    public String getStartupTimings() {
+        return mStartupTimer.toString();
     }
 
     private void initFaceDetect() {
+        initFaceTransform();
+        mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF;
         // 同时检测到人脸的数量
         int faceDetectCount = mCameraCharacteristics.get(CameraCharacteristics.STATISTICS_INFO_MAX_FACE_COUNT);
         // 人脸检测的模式
         int[] faceDetectModes = mCameraCharacteristics.get(CameraCharacteristics.STATISTICS_INFO_AVAILABLE_FACE_DETECT_MODES);
         if (faceDetectModes == null) {
-            Toast.makeText(mActivity, "相机硬件不支持人脸检测", Toast.LENGTH_SHORT).show();
+            onFaceDetectUnsupported();
             return;
         }
         List<Integer> faceDetectModeList = null;
@@ -316,90 +1428,129 @@ public class CameraHelper {
         if (faceDetectModeList.contains(CaptureRequest.STATISTICS_FACE_DETECT_MODE_FULL)) {
             mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_FULL;
         } else if (faceDetectModeList.contains(CaptureRequest.STATISTICS_FACE_DETECT_MODE_SIMPLE)) {
-            mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_FULL;
+            mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_SIMPLE;
         } else {
             mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF;
         }
         if (mFaceDetectMode == CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF) {
-            Toast.makeText(mActivity, "相机硬件不支持人脸检测", Toast.LENGTH_SHORT).show();
+            onFaceDetectUnsupported();
             return;
         }
+
+        TraceLog.i(TAG, "人脸检测模式, 同时检测到人脸的数量:", mFaceDetectMode, faceDetectCount);
+    }
+
+    /**
+     * 计算没有变焦时硬件人脸从成像区域到预览的转换；每次创建新的实例，保存在 {@link CameraProfile} 中复用
+     */
+    private void initFaceTransform() {
         Rect activeArraySizeRect = mCameraCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
-        float scaledWidth = mPreviewSize.getWidth() / (float) activeArraySizeRect.width();
-        float scaledHeight = mPreviewSize.getHeight() / (float) activeArraySizeRect.height();
-        boolean mirror = mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT;
+        mFaceTransform = null;
+        updateFaceTransform(0, 0, activeArraySizeRect.width(), activeArraySizeRect.height());
+        TraceLog.i(TAG, "成像区域, 预览区域:", activeArraySizeRect.width(), activeArraySizeRect.height(),
+                mPreviewSize.getWidth(), mPreviewSize.getHeight());
+    }
 
-        mFaceDetectMatrix.setRotate(mCameraSensorOrientation);
-        mFaceDetectMatrix.postScale(mirror ? -scaledWidth : scaledWidth, scaledHeight);
-        if (exchangeWidthAndHeight(mDisplayRotation, mCameraSensorOrientation)) {
-            mFaceDetectMatrix.postTranslate(mPreviewSize.getHeight(), mPreviewSize.getWidth());
+    /**
+     * 屏幕方向、摄像头朝向、预览尺寸或裁剪区域与当前转换不同时重建人脸坐标转换，相同时只比较几个整数，可以每帧调用
+     *
+     * @param cropLeft 裁剪区域，成像区域坐标
+     */
+    @WorkerThread
+    private void updateFaceTransform(int cropLeft, int cropTop, int cropRight, int cropBottom) {
+        boolean mirror = mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT;
+        int previewWidth = mPreviewSize.getWidth();
+        int previewHeight = mPreviewSize.getHeight();
+        if (mFaceTransform != null && mFaceTransform.matches(mCameraSensorOrientation, mirror, mDisplayRotation,
+                cropLeft, cropTop, cropRight, cropBottom, previewWidth, previewHeight)) {
+            return;
         }
-        Log.i(TAG, "成像区域  " + activeArraySizeRect.width() + "//" + activeArraySizeRect.height() + " 比例: " + (float) activeArraySizeRect.width() / activeArraySizeRect.height());
-        Log.i(TAG, "预览区域  " + mPreviewSize.getWidth() + "//" + mPreviewSize.getHeight() + " 比例 " + (float) mPreviewSize.getWidth() / mPreviewSize.getHeight());
-
-        for (Integer mode : faceDetectModeList) {
-            Log.i(TAG, "支持的人脸检测模式" + mode);
+        mFaceTransform = FaceTransform.forCropRegion(mCameraSensorOrientation, mirror, mDisplayRotation,
+                cropLeft, cropTop, cropRight, cropBottom, previewWidth, previewHeight);
+        mFaceMetering.setSensorTransform(mFaceTransform.invert());
+        if (mZslReader != null) {
+            mZslTransform = createImageTransform(mFaceTransform, mZslReader.getWidth(), mZslReader.getHeight());
+        }
+        if (mSensorAnalysisTransform != null) {
+            mSensorAnalysisTransform = createImageTransform(mFaceTransform, mAnalysisWidth, mAnalysisHeight);
         }
+        TraceLog.d(TAG, "重建人脸坐标转换, 裁剪区域宽高:", cropRight - cropLeft, cropBottom - cropTop);
+    }
 
-        Log.i(TAG, "同时检测到人脸的数量 " + faceDetectCount);
+    /**
+     * 分析图像与预览宽高比一致，数码变焦时两者按同一裁剪区域输出，不受裁剪区域影响
+     */
+    private FaceTransform createAnalysisTransform() {
+        return FaceTransform.forAnalysis(mCameraSensorOrientation, mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT,
+                mDisplayRotation, mAnalysisWidth, mAnalysisHeight, mPreviewSize.getWidth(), mPreviewSize.getHeight());
     }
 
     /**
-     * 根据提供的屏幕方向 [displayRotation] 和相机方向 [sensorOrientation] 返回是否需要交换宽高
+     * 屏幕方向变化后重建人脸坐标转换，裁剪区域沿用当前值
      */
-    private boolean exchangeWidthAndHeight(int displayRotation, int sensorOrientation) {
-        boolean exchange = false;
-        switch (displayRotation) {
-            case Surface.ROTATION_0:
-            case Surface.ROTATION_180:
-                if (sensorOrientation == 90 || sensorOrientation == 270) {
-                    exchange = true;
-                }
-                break;
-            case Surface.ROTATION_90:
-            case Surface.ROTATION_270:
-                if (sensorOrientation == 0 || sensorOrientation == 180) {
-                    exchange = true;
-                }
-                break;
-            default:
-                Log.i(TAG, "Display rotation is invalid: $displayRotation");
-                break;
-        }
-        Log.i(TAG, "屏幕方向  " + displayRotation);
-        Log.i(TAG, "相机方向  " + sensorOrientation);
-        return exchange;
-    }
-
-    private Size getBestSize(int targetWidth, int targetHeight, int maxWidth, int maxHeight, List<Size> sizeList) {
-        // 比指定宽高大的Size列表
-        ArrayList<Size> bigEnough = new ArrayList<>();
-        // 比指定宽高小的Size列表
-        ArrayList<Size> notBigEnough = new ArrayList<>();
-        for (Size size : sizeList) {
-            //宽<=最大宽度  &&  高<=最大高度  &&  宽高比 == 目标值宽高比
-            if (size.getWidth() <= maxWidth && size.getHeight() <= maxHeight
-                    && size.getWidth() == size.getHeight() * targetWidth / targetHeight) {
-                if (size.getWidth() >= targetWidth && size.getHeight() >= targetHeight) {
-                    bigEnough.add(size);
-                } else {
-                    notBigEnough.add(size);
-                }
-            }
-            Log.i(TAG, "系统支持的尺寸: " + size.getWidth() + "*" + size.getHeight() + ",  比例 ：" + ((float) size.getWidth() / size.getHeight()));
+    @WorkerThread
+    private void onDisplayRotationChanged(int rotation) {
+        mDisplayRotation = rotation;
+        FaceTransform transform = mFaceTransform;
+        if (transform == null) {
+            return;
         }
-        Log.i(TAG, "最大尺寸 ：" + maxWidth + "*" + maxHeight + ", 比例 ：" + (float) targetWidth / targetHeight);
-        Log.i(TAG, "目标尺寸 ：" + targetWidth + "*" + targetHeight + ", 比例 ：" + (float) targetWidth / targetHeight);
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
-            return sizeList.get(0);
+        updateFaceTransform(transform.getCropLeft(), transform.getCropTop(), transform.getCropRight(), transform.getCropBottom());
+        if (mAnalysisReader != null) {
+            mAnalysisTransform = createAnalysisTransform();
+            updateAnalysisRotation();
         }
     }
 
+    private void onFaceDetectUnsupported() {
+        if (mFaceAnalyzer != null) {
+            TraceLog.i(TAG, "相机硬件不支持人脸检测，使用软件人脸检测");
+            return;
+        }
+        showToast("相机硬件不支持人脸检测");
+    }
+
+    /**
+     * 在 UI 线程显示提示，可以在相机线程调用
+     */
+    private void showToast(String text) {
+        mActivity.runOnUiThread(() -> Toast.makeText(mActivity, text, Toast.LENGTH_SHORT).show());
+    }
+
+    /**
+     * 释放相机，实际关闭在相机线程进行
+     */
     public void releaseCamera() {
+        mFaceResultDispatcher.cancel();
+        if (TraceLog.isLoggable(Log.INFO)) {
+            PipelineMetrics.Snapshot snapshot = getMetricsSnapshot(new PipelineMetrics.Snapshot());
+            TraceLog.i(TAG, "人脸结果分发 提交/合并/丢弃/回调:", snapshot.getOfferedCount(),
+                    snapshot.getCoalescedCount(), snapshot.getDroppedCount(), snapshot.getDeliveredCount());
+            TraceLog.i(TAG, "流水线 预览帧/分析帧/分析丢弃/拍照失败:", snapshot.getPreviewFrameCount(),
+                    snapshot.getAnalysisFrameCount(), snapshot.getAnalysisDroppedCount(), snapshot.getCaptureFailedCount());
+            mStartupTimer.log();
+        }
+        mCameraHandler.post(this::closeCamera);
+    }
+
+    /**
+     * 释放相机和相机线程，之后不能再使用
+     */
+    @Override
+    public void release() {
+        releaseCamera();
+        releaseThread();
+    }
+
+    @WorkerThread
+    private void closeCamera() {
+        closeFrameWriter();
+        // 还在打开中的相机在回调时关闭
+        mCameraOpening = false;
+        mRetryOpenAfterClose = false;
+        mSessionConfiguring = false;
+        mPreviewConfigured = false;
+        canTakePic = false;
         if (mCameraCaptureSession != null) {
             mCameraCaptureSession.close();
             mCameraCaptureSession = null;
@@ -409,12 +1560,51 @@ public class CameraHelper {
             mCameraDevice.close();
             mCameraDevice = null;
         }
+
+        if (mAnalysisReader != null) {
+            mAnalysisReader.close();
+            mAnalysisReader = null;
+        }
+        // 旧相机的人脸坐标不再有效，清空界面上的人脸框，与 closeCameraAsync 一致
+        mFaceResultDispatcher.clear();
+        mSensorAnalysisTransform = null;
+        // 还在分析的一帧属于旧相机，发布时丢弃
+        mAnalysisBuffer = null;
+        mPendingHardwareFaces.clear();
+        // 同时清空零延迟拍照的环形缓冲
+        closeZslReader(mZslReader);
+        mZslReader = null;
+    }
+
+    /**
+     * 关闭环形缓冲中的图像，ImageReader 在拍照线程关闭，保证正在编码的候选帧先处理完
+     */
+    @WorkerThread
+    private void closeZslReader(ImageReader reader) {
+        if (reader == null) {
+            return;
+        }
+        mZslRing.clear();
+        mZslTransform = null;
+        mZslAnalysisTransform = null;
+        mCaptureHandler.post(reader::close);
     }
 
     public void releaseThread() {
         try {
+            if (mThermalStatusListener != null) {
+                PowerManager powerManager = (PowerManager) mActivity.getSystemService(Context.POWER_SERVICE);
+                powerManager.removeThermalStatusListener(mThermalStatusListener);
+                mThermalStatusListener = null;
+            }
             handlerThread.quitSafely();
             handlerThread.join();
+            closeThread.quitSafely();
+            closeThread.join();
+            captureThread.quitSafely();
+            captureThread.join();
+            analysisThread.quitSafely();
+            analysisThread.join();
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
@@ -440,42 +1630,245 @@ public class CameraHelper {
             matrix.postRotate(180f, centerX, centerY);
         }
         mTextureView.setTransform(matrix);
-        Log.i(TAG, "viewWidth=" + viewWidth + "//viewHeight=" + viewHeight);
+        if (rotation != mDisplayRotation) {
+            mCameraHandler.post(() -> onDisplayRotationChanged(rotation));
+        }
+        TraceLog.d(TAG, "configureTransform", viewWidth, viewHeight);
     }
 
     /**
-     * 切换摄像头
+     * 切换前后摄像头
+     * <p>
+     * 不重建界面和人脸分发，只在相机线程替换相机: 旧相机交给关闭线程关闭，同时立即打开新相机，
+     * 新相机的信息和人脸坐标转换在第一次使用后保存在 {@link CameraProfile} 中，之后的切换不再重新计算。
+     * 旧相机关闭完成、释放预览 Surface 后再创建新会话。切换耗时通过 {@link #getSwitchTimings()} 获取。
      */
     public void exchangeCamera() {
-        if (mCameraDevice == null || !canExchangeCamera || mTextureView.isAvailable()) {
+        if (!canExchangeCamera || !mTextureView.isAvailable()) {
             return;
         }
+        canExchangeCamera = false;
+        mSwitchTimer.start(System.nanoTime());
+        mActiveTimer = mSwitchTimer;
+        mCameraHandler.post(this::switchCamera);
+    }
+
+    @WorkerThread
+    private void switchCamera() {
+        if (mCameraDevice == null) {
+            // 相机已经被释放，不需要切换
+            return;
+        }
+        closeCameraAsync();
         if (mCameraFacing == CameraCharacteristics.LENS_FACING_FRONT) {
             mCameraFacing = CameraCharacteristics.LENS_FACING_BACK;
         } else {
             mCameraFacing = CameraCharacteristics.LENS_FACING_FRONT;
         }
-        //重置预览大小
-        mPreviewSize = new Size(PREVIEW_WIDTH, PREVIEW_HEIGHT);
-        releaseCamera();
-        initCameraInfo();
+        prepareAndOpenCamera();
     }
 
-    private class CompareSizesByArea implements Comparator<Size> {
+    /**
+     * 把当前相机交给关闭线程关闭，不等待关闭完成；关闭完成、释放预览 Surface 前不会创建新会话
+     */
+    @WorkerThread
+    private void closeCameraAsync() {
+        CameraDevice oldDevice = mCameraDevice;
+        ImageReader oldAnalysisReader = mAnalysisReader;
+        ImageReader oldZslReader = mZslReader;
+        mCameraCaptureSession = null;
+        mCameraDevice = null;
+        mAnalysisReader = null;
+        mZslReader = null;
+        mSessionConfiguring = false;
+        mPreviewConfigured = false;
+        canTakePic = false;
+        mPendingCloseCount++;
+        mCloseHandler.post(() -> {
+            // 关闭相机会同时关闭会话并断开预览 Surface，分析流的 ImageReader 要在相机关闭后再关闭
+            if (oldDevice != null) {
+                oldDevice.close();
+            }
+            if (oldAnalysisReader != null) {
+                oldAnalysisReader.close();
+            }
+            if (oldZslReader != null) {
+                // 正在编码的候选帧处理完后再关闭
+                mCaptureHandler.post(oldZslReader::close);
+            }
+            mCameraHandler.post(this::onOldCameraClosed);
+        });
+        // 旧相机的人脸坐标不再有效，清空界面上的人脸框，录制也随之结束
+        mFaceResultDispatcher.clear();
+        closeFrameWriter();
+        mSensorAnalysisTransform = null;
+        // 还在分析的一帧属于旧相机，发布时丢弃
+        mAnalysisBuffer = null;
+        mPendingHardwareFaces.clear();
+        if (oldZslReader != null) {
+            mZslRing.clear();
+            mZslTransform = null;
+            mZslAnalysisTransform = null;
+        }
+    }
 
-        @Override
-        public int compare(Size size1, Size size2) {
-            return java.lang.Long.signum((long) size1.getWidth() * size1.getHeight() - (long) size2.getWidth() * size2.getHeight());
+    @WorkerThread
+    private void onOldCameraClosed() {
+        mPendingCloseCount--;
+        if (mPendingCloseCount > 0) {
+            return;
         }
+        if (mRetryOpenAfterClose) {
+            mRetryOpenAfterClose = false;
+            openCamera(mCameraId);
+        } else {
+            startPreviewIfReady();
+        }
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            return false;
+    /**
+     * 最近一次切换摄像头各阶段耗时: 打开相机、第一帧预览、第一次检测到人脸，单位毫秒，还没到达的阶段为 -1
+     */
+    public String getSwitchTimings() {
+        return mSwitchTimer.toString();
+    }
+
+    /**
+     * 界面暂停时调用，在关闭线程释放相机并停止指标导出，不阻塞 UI 线程
+     * <p>
+     * 线程、每个朝向准备好的 {@link CameraProfile}(相机信息、尺寸、人脸坐标转换和帧率)都保留，
+     * {@link #resume()} 时不再查询相机和选择尺寸。
+     */
+    public void pause() {
+        if (mPaused) {
+            return;
+        }
+        mPaused = true;
+        mCameraHandler.post(this::pauseCamera);
+    }
+
+    @WorkerThread
+    private void pauseCamera() {
+        mCameraHandler.removeCallbacks(mMetricsExportRunnable);
+        // 还在打开中的相机在回调时关闭，关闭完成后也不再重试
+        mCameraOpening = false;
+        mRetryOpenAfterClose = false;
+        closeCameraAsync();
+        TraceLog.i(TAG, "暂停, 释放相机");
+    }
+
+    /**
+     * 界面恢复时调用，立即在相机线程用暂停前的相机信息重新打开相机，与界面恢复、预览 Surface 重建并行，
+     * 两者都完成后创建会话。恢复耗时通过 {@link #getResumeTimings()} 获取
+     */
+    public void resume() {
+        if (!mPaused) {
+            return;
+        }
+        mPaused = false;
+        mResumeTimer.start(System.nanoTime());
+        mActiveTimer = mResumeTimer;
+        mCameraHandler.post(this::resumeCamera);
+    }
+
+    @WorkerThread
+    private void resumeCamera() {
+        if (mPaused) {
+            // 执行前又暂停了
+            return;
         }
+        if (mMetricsListener != null) {
+            mCameraHandler.removeCallbacks(mMetricsExportRunnable);
+            mCameraHandler.postDelayed(mMetricsExportRunnable, mMetricsPeriodMs);
+        }
+        if (mCameraDevice == null && !mCameraOpening) {
+            prepareAndOpenCamera();
+        }
+    }
+
+    /**
+     * 最近一次暂停后恢复各阶段耗时: 打开相机、第一帧预览、第一次检测到人脸，单位毫秒，还没到达的阶段为 -1
+     */
+    public String getResumeTimings() {
+        return mResumeTimer.toString();
+    }
+
+    /**
+     * 设置人脸质量监听: 在分析流上评估每个人脸的清晰度、曝光、大小和姿态，滑动窗口内最好且各项都合格的人脸在分析线程回调，
+     * 硬件人脸检测时也会输出分析流，需要在 {@link #start()} 前设置
+     */
+    @MainThread
+    public void setFaceQualityListener(FaceQuality.Listener listener) {
+        checkNotStarted();
+        this.mFaceQualityListener = listener;
+    }
+
+    /**
+     * 设置扫描圆圈的大小，即圆圈边长与屏幕宽高几何平均的比值，人脸质量按人脸相对圆圈的大小评估，可以在任何线程调用
+     */
+    public void setFaceQualityTargetSize(float targetSize) {
+        this.mFaceQualityTargetSize = targetSize;
+        FaceQuality quality = mFaceQuality;
+        if (quality != null) {
+            quality.setTargetSize(targetSize);
+        }
+    }
+
+    /**
+     * 设置活体检测监听: 依次要求眨眼、张嘴和转头，最大人脸需要完成的动作变化或全部完成、超时时在 UI 线程回调，
+     * 硬件人脸检测时也会输出分析流，需要在 {@link #start()} 前设置
+     */
+    @MainThread
+    public void setLivenessListener(LivenessDetector.Listener listener) {
+        checkNotStarted();
+        if (listener == null) {
+            mLivenessDetector = null;
+            return;
+        }
+        LivenessDetector liveness = new LivenessDetector(LIVENESS_CHALLENGES);
+        liveness.setListener(new LivenessDetector.Listener() {
+            @Override
+            public void onLivenessChallenge(int challenge) {
+                mActivity.runOnUiThread(() -> listener.onLivenessChallenge(challenge));
+            }
+
+            @Override
+            public void onLivenessResult(boolean passed) {
+                mActivity.runOnUiThread(() -> listener.onLivenessResult(passed));
+            }
+        });
+        mLivenessDetector = liveness;
+    }
+
+    /**
+     * 分析流一帧亮度图像的缓冲和尺寸，创建后不再修改，分析线程处理一帧时只读取一次
+     */
+    private static final class AnalysisBuffer {
+        final byte[] luma;
+        final int width;
+        final int height;
+
+        AnalysisBuffer(int width, int height) {
+            this.luma = new byte[width * height];
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    interface FaceCaptureListener {
+        /**
+         * 在 UI 线程回调，jpeg 是已经旋转到屏幕方向的人脸照片
+         */
+        void onFaceCaptured(byte[] jpeg);
+
+        void onFaceCaptureFailed();
     }
 
-    interface FaceDetectListener {
-        void onFaceDetect(List<RectF> facesRect);
+    interface MetricsListener {
+        /**
+         * 在相机线程回调，snapshot 在下一次回调时被覆盖
+         */
+        void onMetrics(PipelineMetrics.Snapshot snapshot);
     }
 
 }
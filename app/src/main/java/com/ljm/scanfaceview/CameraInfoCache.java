@@ -0,0 +1,69 @@
+package com.ljm.scanfaceview;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Size;
+
+/**
+ * 在多次启动之间保存每个朝向的相机 id 和选择的预览尺寸
+ * <p>
+ * 冷启动时可以不枚举所有相机，直接用保存的 id 打开相机，同时只查询这一个相机的信息。
+ * 预览尺寸按相机 id 和可用的最大尺寸保存，屏幕尺寸变化后重新选择。
+ * 第一次读取时会从磁盘加载，只在相机线程使用。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/28
+ */
+final class CameraInfoCache {
+    private static final String PREFS_NAME = "camera_info";
+    private static final String KEY_CAMERA_ID = "camera_id_";
+    private static final String KEY_PREVIEW_SIZE = "preview_size_";
+
+    private final SharedPreferences mPreferences;
+
+    CameraInfoCache(Context context) {
+        mPreferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 获取上次使用的该朝向的相机 id，没有保存过时返回 null
+     */
+    String getCameraId(int facing) {
+        return mPreferences.getString(KEY_CAMERA_ID + facing, null);
+    }
+
+    /**
+     * 获取上次为该相机和最大尺寸选择的预览尺寸，没有保存过时返回 null
+     */
+    Size getPreviewSize(String cameraId, int maxWidth, int maxHeight) {
+        String value = mPreferences.getString(previewSizeKey(cameraId, maxWidth, maxHeight), null);
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Size.parseSize(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    void put(CameraProfile profile, int maxWidth, int maxHeight) {
+        Size previewSize = profile.getPreviewSize();
+        mPreferences.edit()
+                .putString(KEY_CAMERA_ID + profile.getFacing(), profile.getCameraId())
+                .putString(previewSizeKey(profile.getCameraId(), maxWidth, maxHeight),
+                        previewSize.getWidth() + "x" + previewSize.getHeight())
+                .apply();
+    }
+
+    /**
+     * 保存的相机 id 与实际朝向不符时移除
+     */
+    void removeCameraId(int facing) {
+        mPreferences.edit().remove(KEY_CAMERA_ID + facing).apply();
+    }
+
+    private static String previewSizeKey(String cameraId, int maxWidth, int maxHeight) {
+        return KEY_PREVIEW_SIZE + cameraId + "_" + maxWidth + "x" + maxHeight;
+    }
+}
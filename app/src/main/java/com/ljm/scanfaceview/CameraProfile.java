@@ -0,0 +1,94 @@
+package com.ljm.scanfaceview;
+
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CaptureRequest;
+import android.util.Range;
+import android.util.Size;
+
+/**
+ * 一个朝向的相机在打开前需要准备的信息
+ * <p>
+ * 查询相机信息和选择输出尺寸只在每个朝向第一次使用时进行一次；人脸检测模式、人脸坐标转换和各档位帧率
+ * 在第一次打开后由 {@link #setPrepared} 保存，之后切换回同一朝向时直接复用，不再重新计算。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/28
+ */
+final class CameraProfile {
+    private final int mFacing;
+    private final String mCameraId;
+    private final CameraCharacteristics mCharacteristics;
+    private final int mSensorOrientation;
+    private final Size mPreviewSize;
+    private final StreamPlanner.Plan mStreamPlan;
+    private boolean mPrepared;
+    private int mFaceDetectMode = CaptureRequest.STATISTICS_FACE_DETECT_MODE_OFF;
+    private FaceTransform mFaceTransform;
+    private Range<Integer>[] mLevelFpsRanges;
+
+    CameraProfile(int facing, String cameraId, CameraCharacteristics characteristics, Size previewSize,
+                  StreamPlanner.Plan streamPlan) {
+        mFacing = facing;
+        mCameraId = cameraId;
+        mCharacteristics = characteristics;
+        mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        mPreviewSize = previewSize;
+        mStreamPlan = streamPlan;
+    }
+
+    int getFacing() {
+        return mFacing;
+    }
+
+    String getCameraId() {
+        return mCameraId;
+    }
+
+    CameraCharacteristics getCharacteristics() {
+        return mCharacteristics;
+    }
+
+    int getSensorOrientation() {
+        return mSensorOrientation;
+    }
+
+    Size getPreviewSize() {
+        return mPreviewSize;
+    }
+
+    /**
+     * 与预览尺寸一起选出的分析流和拍照尺寸
+     */
+    StreamPlanner.Plan getStreamPlan() {
+        return mStreamPlan;
+    }
+
+    /**
+     * 是否已经保存了人脸检测和帧率设置
+     */
+    boolean isPrepared() {
+        return mPrepared;
+    }
+
+    void setPrepared(int faceDetectMode, FaceTransform faceTransform, Range<Integer>[] levelFpsRanges) {
+        mFaceDetectMode = faceDetectMode;
+        mFaceTransform = faceTransform;
+        mLevelFpsRanges = levelFpsRanges;
+        mPrepared = true;
+    }
+
+    int getFaceDetectMode() {
+        return mFaceDetectMode;
+    }
+
+    /**
+     * 人脸坐标从成像区域到预览的转换，创建后不再修改
+     */
+    FaceTransform getFaceTransform() {
+        return mFaceTransform;
+    }
+
+    Range<Integer>[] getLevelFpsRanges() {
+        return mLevelFpsRanges;
+    }
+}
@@ -0,0 +1,480 @@
+package com.ljm.scanfaceview;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 纯 Java 的多尺度 LBP 级联人脸检测
+ * <p>
+ * 每一帧先计算原图的积分图，再按尺度做区域平均缩放并计算各层积分图，最后把各层的窗口行切成条带，
+ * 由 {@link ForkJoinPool} 并行扫描。图像金字塔、积分图、特征偏移、候选框和聚类用的数组只在图像尺寸变化时分配，
+ * 任务对象通过 {@link ForkJoinTask#reinitialize()} 复用，稳态下检测不产生对象分配。
+ * <p>
+ * 结果是分析图像的像素坐标，由 {@link CameraHelper} 转换到与硬件人脸检测相同的预览坐标。
+ * 只能在一个线程中调用 {@link #analyze(byte[], int, int, FaceFrame)}。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/18
+ */
+public class CascadeFaceDetector implements FaceAnalyzer {
+    // 相邻两层金字塔的缩放比例
+    public static final float DEFAULT_SCALE_FACTOR = 1.2f;
+    // 一个人脸至少需要的候选框个数
+    public static final int DEFAULT_MIN_NEIGHBORS = 3;
+    // 最小人脸尺寸，分析图像像素
+    public static final int DEFAULT_MIN_FACE_SIZE = 40;
+    // 每个扫描任务最多保存的候选框个数
+    private static final int TASK_CANDIDATE_CAPACITY = 64;
+    // 聚类时判断两个候选框相似的比例
+    private static final float GROUP_EPS = 0.2f;
+    // 每个并行线程平均分到的扫描任务个数，用于负载均衡
+    private static final int TASKS_PER_THREAD = 4;
+    // LBP 特征 4x4 个积分图采样点
+    private static final int FEATURE_POINTS = 16;
+
+    private final FaceCascade mCascade;
+    private final ForkJoinPool mPool;
+    private final float mScaleFactor;
+    private final int mMinNeighbors;
+    private final int mMinFaceSize;
+
+    private int mWidth;
+    private int mHeight;
+    // 当前帧的亮度平面，只在一次检测期间持有
+    private byte[] mLuma;
+    // 原图积分图
+    private int[] mIntegral;
+    private Level[] mLevels = new Level[0];
+    private ScanTask[] mScanTasks = new ScanTask[0];
+    private final RootTask mRootTask = new RootTask();
+
+    // 聚类用的缓冲区
+    private float[] mCandidates = new float[0];
+    private int[] mParents = new int[0];
+    private int[] mClusterIndex = new int[0];
+    private float[] mClusterRects = new float[0];
+    private int[] mClusterCounts = new int[0];
+
+    public CascadeFaceDetector(FaceCascade cascade) {
+        this(cascade, DEFAULT_SCALE_FACTOR, DEFAULT_MIN_NEIGHBORS, DEFAULT_MIN_FACE_SIZE,
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cascade      级联分类器
+     * @param scaleFactor  相邻两层金字塔的缩放比例，大于 1
+     * @param minNeighbors 一个人脸至少需要的候选框个数
+     * @param minFaceSize  最小人脸尺寸，分析图像像素
+     * @param parallelism  并行线程数
+     */
+    public CascadeFaceDetector(FaceCascade cascade, float scaleFactor, int minNeighbors, int minFaceSize, int parallelism) {
+        if (scaleFactor <= 1.0f) {
+            throw new IllegalArgumentException("scaleFactor must be greater than 1.");
+        }
+        this.mCascade = cascade;
+        this.mScaleFactor = scaleFactor;
+        this.mMinNeighbors = minNeighbors;
+        this.mMinFaceSize = minFaceSize;
+        this.mPool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+
+    @Override
+    public void analyze(byte[] luma, int width, int height, FaceFrame out) {
+        if (width != mWidth || height != mHeight) {
+            configure(width, height);
+        }
+        mLuma = luma;
+        try {
+            mRootTask.reinitialize();
+            mPool.invoke(mRootTask);
+        } finally {
+            mLuma = null;
+        }
+        groupCandidates(out);
+    }
+
+    /**
+     * 释放并行线程，之后不能再使用
+     */
+    public void release() {
+        mPool.shutdown();
+    }
+
+    /**
+     * 根据图像尺寸计算金字塔各层和扫描任务，分配所有工作缓冲区
+     */
+    private void configure(int width, int height) {
+        mWidth = width;
+        mHeight = height;
+        mIntegral = new int[(width + 1) * (height + 1)];
+        int windowWidth = mCascade.windowWidth;
+        int windowHeight = mCascade.windowHeight;
+
+        int levelCount = 0;
+        float factor = Math.max(1.0f, mMinFaceSize / (float) windowWidth);
+        for (float f = factor; (int) (width / f) >= windowWidth && (int) (height / f) >= windowHeight; f *= mScaleFactor) {
+            levelCount++;
+        }
+        mLevels = new Level[levelCount];
+        long totalWindows = 0;
+        for (int i = 0; i < levelCount; i++, factor *= mScaleFactor) {
+            mLevels[i] = new Level(factor, width, height);
+            totalWindows += (long) mLevels[i].windowRows * mLevels[i].windowCols;
+        }
+
+        // 按窗口数量把各层切成大致相等的条带
+        long windowsPerTask = Math.max(1, totalWindows / ((long) mPool.getParallelism() * TASKS_PER_THREAD));
+        int taskCount = 0;
+        for (Level level : mLevels) {
+            taskCount += (level.windowRows + level.rowsPerTask(windowsPerTask) - 1) / level.rowsPerTask(windowsPerTask);
+        }
+        mScanTasks = new ScanTask[taskCount];
+        int index = 0;
+        for (Level level : mLevels) {
+            int rowsPerTask = level.rowsPerTask(windowsPerTask);
+            for (int row = 0; row < level.windowRows; row += rowsPerTask) {
+                mScanTasks[index++] = new ScanTask(level, row, Math.min(level.windowRows, row + rowsPerTask));
+            }
+        }
+
+        int candidateCapacity = taskCount * TASK_CANDIDATE_CAPACITY;
+        mCandidates = new float[candidateCapacity * 4];
+        mParents = new int[candidateCapacity];
+        mClusterIndex = new int[candidateCapacity];
+        mClusterRects = new float[candidateCapacity * 4];
+        mClusterCounts = new int[candidateCapacity];
+    }
+
+    /**
+     * 合并相互重叠的候选框，输出候选框个数不少于 {@link #mMinNeighbors} 的平均位置
+     */
+    private void groupCandidates(FaceFrame out) {
+        int count = 0;
+        for (ScanTask task : mScanTasks) {
+            System.arraycopy(task.candidates, 0, mCandidates, count * 4, task.count * 4);
+            count += task.count;
+        }
+        float[] rects = mCandidates;
+        int[] parents = mParents;
+        for (int i = 0; i < count; i++) {
+            parents[i] = i;
+        }
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < i; j++) {
+                if (isSimilar(rects, i, j)) {
+                    int rootI = findRoot(parents, i);
+                    int rootJ = findRoot(parents, j);
+                    if (rootI != rootJ) {
+                        parents[rootI] = rootJ;
+                    }
+                }
+            }
+        }
+
+        int clusterCount = 0;
+        for (int i = 0; i < count; i++) {
+            mClusterIndex[i] = -1;
+        }
+        for (int i = 0; i < count; i++) {
+            int root = findRoot(parents, i);
+            int cluster = mClusterIndex[root];
+            if (cluster < 0) {
+                cluster = clusterCount++;
+                mClusterIndex[root] = cluster;
+                mClusterCounts[cluster] = 0;
+                mClusterRects[cluster * 4] = 0;
+                mClusterRects[cluster * 4 + 1] = 0;
+                mClusterRects[cluster * 4 + 2] = 0;
+                mClusterRects[cluster * 4 + 3] = 0;
+            }
+            mClusterCounts[cluster]++;
+            for (int k = 0; k < 4; k++) {
+                mClusterRects[cluster * 4 + k] += rects[i * 4 + k];
+            }
+        }
+        for (int c = 0; c < clusterCount; c++) {
+            for (int k = 0; k < 4; k++) {
+                mClusterRects[c * 4 + k] /= mClusterCounts[c];
+            }
+        }
+
+        // 去掉被更可信的人脸框包含的小框
+        for (int i = 0; i < clusterCount; i++) {
+            int n1 = mClusterCounts[i];
+            if (n1 < mMinNeighbors) {
+                continue;
+            }
+            float left = mClusterRects[i * 4];
+            float top = mClusterRects[i * 4 + 1];
+            float right = mClusterRects[i * 4 + 2];
+            float bottom = mClusterRects[i * 4 + 3];
+            boolean nested = false;
+            for (int j = 0; j < clusterCount && !nested; j++) {
+                int n2 = mClusterCounts[j];
+                if (j == i || n2 <= mMinNeighbors) {
+                    continue;
+                }
+                float dx = (mClusterRects[j * 4 + 2] - mClusterRects[j * 4]) * GROUP_EPS;
+                float dy = (mClusterRects[j * 4 + 3] - mClusterRects[j * 4 + 1]) * GROUP_EPS;
+                nested = left >= mClusterRects[j * 4] - dx
+                        && top >= mClusterRects[j * 4 + 1] - dy
+                        && right <= mClusterRects[j * 4 + 2] + dx
+                        && bottom <= mClusterRects[j * 4 + 3] + dy
+                        && (n2 > Math.max(3, n1) || n1 < 3);
+            }
+            if (!nested && !out.add(left, top, right, bottom, n1)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 计算原图积分图
+     */
+    private void computeIntegral() {
+        byte[] luma = mLuma;
+        int[] ii = mIntegral;
+        int width = mWidth;
+        int stride = width + 1;
+        for (int y = 0; y < mHeight; y++) {
+            int rowSum = 0;
+            int src = y * width;
+            int dst = (y + 1) * stride;
+            for (int x = 0; x < width; x++) {
+                rowSum += luma[src + x] & 0xff;
+                ii[dst + x + 1] = ii[dst - stride + x + 1] + rowSum;
+            }
+        }
+    }
+
+    private static boolean isSimilar(float[] rects, int i, int j) {
+        float left1 = rects[i * 4];
+        float top1 = rects[i * 4 + 1];
+        float right1 = rects[i * 4 + 2];
+        float bottom1 = rects[i * 4 + 3];
+        float left2 = rects[j * 4];
+        float top2 = rects[j * 4 + 1];
+        float right2 = rects[j * 4 + 2];
+        float bottom2 = rects[j * 4 + 3];
+        float delta = GROUP_EPS * (Math.min(right1 - left1, right2 - left2) + Math.min(bottom1 - top1, bottom2 - top2)) * 0.5f;
+        return Math.abs(left1 - left2) <= delta && Math.abs(top1 - top2) <= delta
+                && Math.abs(right1 - right2) <= delta && Math.abs(bottom1 - bottom2) <= delta;
+    }
+
+    private static int findRoot(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * 计算一个 LBP 特征的编码，与 OpenCV 的位序一致
+     *
+     * @param ii      积分图
+     * @param p       窗口左上角在积分图中的下标
+     * @param offsets 特征 4x4 采样点相对窗口左上角的偏移
+     * @param o       特征在 offsets 中的起始位置
+     */
+    private static int lbpCode(int[] ii, int p, int[] offsets, int o) {
+        int p0 = ii[p + offsets[o]];
+        int p1 = ii[p + offsets[o + 1]];
+        int p2 = ii[p + offsets[o + 2]];
+        int p3 = ii[p + offsets[o + 3]];
+        int p4 = ii[p + offsets[o + 4]];
+        int p5 = ii[p + offsets[o + 5]];
+        int p6 = ii[p + offsets[o + 6]];
+        int p7 = ii[p + offsets[o + 7]];
+        int p8 = ii[p + offsets[o + 8]];
+        int p9 = ii[p + offsets[o + 9]];
+        int p10 = ii[p + offsets[o + 10]];
+        int p11 = ii[p + offsets[o + 11]];
+        int p12 = ii[p + offsets[o + 12]];
+        int p13 = ii[p + offsets[o + 13]];
+        int p14 = ii[p + offsets[o + 14]];
+        int p15 = ii[p + offsets[o + 15]];
+        int center = p5 - p6 - p9 + p10;
+        return (p0 - p1 - p4 + p5 >= center ? 128 : 0)
+                | (p1 - p2 - p5 + p6 >= center ? 64 : 0)
+                | (p2 - p3 - p6 + p7 >= center ? 32 : 0)
+                | (p6 - p7 - p10 + p11 >= center ? 16 : 0)
+                | (p10 - p11 - p14 + p15 >= center ? 8 : 0)
+                | (p9 - p10 - p13 + p14 >= center ? 4 : 0)
+                | (p8 - p9 - p12 + p13 >= center ? 2 : 0)
+                | (p4 - p5 - p8 + p9 >= center ? 1 : 0);
+    }
+
+    /**
+     * 用级联分类器判断一个窗口是否为人脸
+     */
+    private boolean evaluate(int[] ii, int p, int[] offsets) {
+        FaceCascade cascade = mCascade;
+        int[] stageWeakCounts = cascade.stageWeakCounts;
+        float[] stageThresholds = cascade.stageThresholds;
+        int[] weakFeatures = cascade.weakFeatures;
+        int[] weakSubsets = cascade.weakSubsets;
+        float[] weakLeftValues = cascade.weakLeftValues;
+        float[] weakRightValues = cascade.weakRightValues;
+        int weak = 0;
+        for (int stage = 0; stage < stageWeakCounts.length; stage++) {
+            float sum = 0;
+            for (int end = weak + stageWeakCounts[stage]; weak < end; weak++) {
+                int code = lbpCode(ii, p, offsets, weakFeatures[weak] * FEATURE_POINTS);
+                int bits = weakSubsets[weak * FaceCascade.SUBSET_SIZE + (code >> 5)];
+                sum += (bits & (1 << (code & 31))) != 0 ? weakLeftValues[weak] : weakRightValues[weak];
+            }
+            if (sum < stageThresholds[stage]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 金字塔的一层，并行执行时按区域平均缩放原图并计算本层积分图
+     */
+    private final class Level extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final float factor;
+        final int width;
+        final int height;
+        final int stride;
+        final int step;
+        final int windowRows;
+        final int windowCols;
+        // 本层每个像素对应原图区域的边界
+        final int[] xBounds;
+        final int[] yBounds;
+        final int[] integral;
+        final int[] featureOffsets;
+
+        Level(float factor, int srcWidth, int srcHeight) {
+            this.factor = factor;
+            this.width = (int) (srcWidth / factor);
+            this.height = (int) (srcHeight / factor);
+            this.stride = width + 1;
+            // 小尺度上隔一个像素扫描，大尺度上逐像素扫描
+            this.step = factor > 2.0f ? 1 : 2;
+            this.windowRows = (height - mCascade.windowHeight) / step + 1;
+            this.windowCols = (width - mCascade.windowWidth) / step + 1;
+            this.xBounds = new int[width + 1];
+            this.yBounds = new int[height + 1];
+            for (int x = 0; x <= width; x++) {
+                xBounds[x] = Math.min(srcWidth, Math.round(x * factor));
+            }
+            for (int y = 0; y <= height; y++) {
+                yBounds[y] = Math.min(srcHeight, Math.round(y * factor));
+            }
+            this.integral = new int[stride * (height + 1)];
+            int[] features = mCascade.features;
+            int featureCount = features.length / 4;
+            this.featureOffsets = new int[featureCount * FEATURE_POINTS];
+            for (int f = 0; f < featureCount; f++) {
+                int fx = features[f * 4];
+                int fy = features[f * 4 + 1];
+                int fw = features[f * 4 + 2];
+                int fh = features[f * 4 + 3];
+                for (int r = 0; r < 4; r++) {
+                    for (int c = 0; c < 4; c++) {
+                        featureOffsets[f * FEATURE_POINTS + r * 4 + c] = (fy + r * fh) * stride + fx + c * fw;
+                    }
+                }
+            }
+        }
+
+        int rowsPerTask(long windowsPerTask) {
+            return (int) Math.max(1, Math.min(windowRows, windowsPerTask / Math.max(1, windowCols)));
+        }
+
+        @Override
+        protected void compute() {
+            int[] src = mIntegral;
+            int srcStride = mWidth + 1;
+            int[] dst = integral;
+            for (int y = 0; y < height; y++) {
+                int y0 = yBounds[y];
+                int y1 = Math.max(y0 + 1, yBounds[y + 1]);
+                int rowSum = 0;
+                int dstRow = (y + 1) * stride;
+                for (int x = 0; x < width; x++) {
+                    int x0 = xBounds[x];
+                    int x1 = Math.max(x0 + 1, xBounds[x + 1]);
+                    int area = (x1 - x0) * (y1 - y0);
+                    int sum = src[y0 * srcStride + x0] - src[y0 * srcStride + x1]
+                            - src[y1 * srcStride + x0] + src[y1 * srcStride + x1];
+                    rowSum += sum / area;
+                    dst[dstRow + x + 1] = dst[dstRow - stride + x + 1] + rowSum;
+                }
+            }
+        }
+    }
+
+    /**
+     * 扫描一层金字塔中的若干行窗口
+     */
+    private final class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final Level level;
+        final int rowStart;
+        final int rowEnd;
+        final float[] candidates = new float[TASK_CANDIDATE_CAPACITY * 4];
+        int count;
+
+        ScanTask(Level level, int rowStart, int rowEnd) {
+            this.level = level;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected void compute() {
+            count = 0;
+            Level level = this.level;
+            int[] ii = level.integral;
+            int[] offsets = level.featureOffsets;
+            int step = level.step;
+            float factor = level.factor;
+            float windowWidth = mCascade.windowWidth * factor;
+            float windowHeight = mCascade.windowHeight * factor;
+            for (int row = rowStart; row < rowEnd; row++) {
+                int y = row * step;
+                int rowOffset = y * level.stride;
+                for (int col = 0; col < level.windowCols; col++) {
+                    int x = col * step;
+                    if (evaluate(ii, rowOffset + x, offsets) && count < TASK_CANDIDATE_CAPACITY) {
+                        int o = count * 4;
+                        candidates[o] = x * factor;
+                        candidates[o + 1] = y * factor;
+                        candidates[o + 2] = x * factor + windowWidth;
+                        candidates[o + 3] = y * factor + windowHeight;
+                        count++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 一帧检测的根任务: 原图积分图 -> 各层积分图 -> 并行扫描
+     */
+    private final class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            computeIntegral();
+            for (Level level : mLevels) {
+                level.reinitialize();
+            }
+            ForkJoinTask.invokeAll(mLevels);
+            for (ScanTask task : mScanTasks) {
+                task.reinitialize();
+            }
+            ForkJoinTask.invokeAll(mScanTasks);
+        }
+    }
+}
@@ -2,13 +2,13 @@ package com.ljm.scanfaceview;
 
 import android.content.Context;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.TextureView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 public class CustomTextureView extends TextureView {
+    private static final String TAG = "CustomTextureView";
     private int mRatioWidth = 0;
     private int mRatioHeight = 0;
 
@@ -30,7 +30,7 @@ public class CustomTextureView extends TextureView {
         }
         mRatioWidth = width;
         mRatioHeight = height;
-        Log.i("CustomTextureView", "mRatioWidth=" + mRatioWidth + "/mRatioHeight" + mRatioHeight);
+        TraceLog.d(TAG, "setAspectRatio", mRatioWidth, mRatioHeight);
         requestLayout();
     }
 
@@ -0,0 +1,167 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 根据人脸运动和设备温度调整预览帧率和人脸检测频率
+ * <p>
+ * 人脸保持不动一段时间后逐级降低帧率和检测频率，一旦检测到运动立即恢复到 {@link #LEVEL_ACTIVE}。
+ * 设备发热时按温度状态限制最高档位，温度达到 CRITICAL 时关闭硬件和软件人脸检测，只定期短暂打开探测是否有人，
+ * 探测期间按最低频率检测。
+ * 运动数据由发布人脸结果的线程写入，{@link #onFrame(long)} 只在相机线程调用。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/23
+ */
+final class DetectionScheduler {
+    /**
+     * 全帧率，每帧检测
+     */
+    static final int LEVEL_ACTIVE = 0;
+    /**
+     * 人脸短时间不动，降低帧率，隔帧检测
+     */
+    static final int LEVEL_STEADY = 1;
+    /**
+     * 人脸长时间不动或没有人脸，最低帧率，低频检测
+     */
+    static final int LEVEL_IDLE = 2;
+    /**
+     * 过热，关闭人脸检测，定期探测
+     */
+    static final int LEVEL_SUSPENDED = 3;
+    static final int LEVEL_COUNT = 4;
+
+    // 温度状态，与 PowerManager.THERMAL_STATUS_* 的取值一致
+    static final int THERMAL_STATUS_NONE = 0;
+    private static final int THERMAL_STATUS_MODERATE = 2;
+    private static final int THERMAL_STATUS_SEVERE = 3;
+    private static final int THERMAL_STATUS_CRITICAL = 4;
+
+    // 人脸中心移动超过人脸宽度的该比例时视为运动
+    private static final float MOTION_THRESHOLD = 0.05f;
+    // 多久不动进入 LEVEL_STEADY
+    private static final long STEADY_AFTER_NS = 1_000_000_000L;
+    // 多久不动进入 LEVEL_IDLE
+    private static final long IDLE_AFTER_NS = 5_000_000_000L;
+    // LEVEL_SUSPENDED 下探测的周期和每次打开人脸检测的时长
+    private static final long PROBE_PERIOD_NS = 2_000_000_000L;
+    private static final long PROBE_WINDOW_NS = 300_000_000L;
+    // 各档位每隔多少帧检测一次，过热时的探测不比 LEVEL_IDLE 更频繁
+    private static final int[] DETECT_INTERVALS = {1, 2, 4, 4};
+
+    private volatile int mThermalStatus = THERMAL_STATUS_NONE;
+    // 最近一次检测到运动的时间
+    private volatile long mLastMotionNs;
+    // 上一次的人脸中心和宽度，只在发布人脸结果的线程访问
+    private final float[] mLastCenterX;
+    private final float[] mLastCenterY;
+    private final float[] mLastWidth;
+    private int mLastCount;
+
+    private int mLevel = LEVEL_ACTIVE;
+    private boolean mFaceDetectEnabled = true;
+    private long mSuspendedSinceNs;
+
+    DetectionScheduler(int capacity) {
+        mLastCenterX = new float[capacity];
+        mLastCenterY = new float[capacity];
+        mLastWidth = new float[capacity];
+    }
+
+    /**
+     * 更新设备温度状态，可以在任意线程调用
+     */
+    void setThermalStatus(int status) {
+        mThermalStatus = status;
+    }
+
+    /**
+     * 根据新的人脸结果判断是否有运动
+     */
+    void onFaces(FaceFrame faceFrame, long nowNs) {
+        int count = Math.min(faceFrame.getCount(), mLastCenterX.length);
+        boolean moved = count != mLastCount;
+        for (int i = 0; i < count; i++) {
+            float centerX = faceFrame.getCenterX(i);
+            float centerY = faceFrame.getCenterY(i);
+            float width = faceFrame.getRight(i) - faceFrame.getLeft(i);
+            if (!moved) {
+                float threshold = Math.max(1.0f, mLastWidth[i] * MOTION_THRESHOLD);
+                moved = Math.abs(centerX - mLastCenterX[i]) > threshold
+                        || Math.abs(centerY - mLastCenterY[i]) > threshold
+                        || Math.abs(width - mLastWidth[i]) > threshold;
+            }
+            mLastCenterX[i] = centerX;
+            mLastCenterY[i] = centerY;
+            mLastWidth[i] = width;
+        }
+        mLastCount = count;
+        if (moved) {
+            mLastMotionNs = nowNs;
+        }
+    }
+
+    /**
+     * 每帧在相机线程调用，重新计算档位
+     *
+     * @return 帧率或人脸检测开关是否变化，变化时需要更新重复请求
+     */
+    boolean onFrame(long nowNs) {
+        long stillNs = nowNs - mLastMotionNs;
+        int level;
+        if (stillNs >= IDLE_AFTER_NS) {
+            level = LEVEL_IDLE;
+        } else if (stillNs >= STEADY_AFTER_NS) {
+            level = LEVEL_STEADY;
+        } else {
+            level = LEVEL_ACTIVE;
+        }
+        // 温度限制优先于运动
+        int thermalStatus = mThermalStatus;
+        if (thermalStatus >= THERMAL_STATUS_CRITICAL) {
+            level = LEVEL_SUSPENDED;
+        } else if (thermalStatus >= THERMAL_STATUS_SEVERE) {
+            level = Math.max(level, LEVEL_IDLE);
+        } else if (thermalStatus >= THERMAL_STATUS_MODERATE) {
+            level = Math.max(level, LEVEL_STEADY);
+        }
+
+        boolean levelChanged = level != mLevel;
+        if (levelChanged && level == LEVEL_SUSPENDED) {
+            mSuspendedSinceNs = nowNs;
+        }
+        mLevel = level;
+        boolean faceDetectEnabled = level != LEVEL_SUSPENDED
+                || (nowNs - mSuspendedSinceNs) % PROBE_PERIOD_NS >= PROBE_PERIOD_NS - PROBE_WINDOW_NS;
+        boolean faceDetectChanged = faceDetectEnabled != mFaceDetectEnabled;
+        mFaceDetectEnabled = faceDetectEnabled;
+        return levelChanged || faceDetectChanged;
+    }
+
+    /**
+     * 立即回到 {@link #LEVEL_ACTIVE}，用于重新打开相机
+     */
+    void reset(long nowNs) {
+        mLastMotionNs = nowNs;
+        mLastCount = 0;
+        mLevel = LEVEL_ACTIVE;
+        mFaceDetectEnabled = true;
+    }
+
+    int getLevel() {
+        return mLevel;
+    }
+
+    /**
+     * 当前档位下每隔多少帧检测一次人脸
+     */
+    int getDetectInterval() {
+        return DETECT_INTERVALS[mLevel];
+    }
+
+    /**
+     * 当前是否需要检测人脸，为 false 时关闭硬件人脸检测，软件人脸检测跳过分析帧
+     */
+    boolean isFaceDetectEnabled() {
+        return mFaceDetectEnabled;
+    }
+}
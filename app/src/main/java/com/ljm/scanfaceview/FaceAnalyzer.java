@@ -0,0 +1,20 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 软件人脸检测接口，在相机硬件不支持人脸检测时由 {@link CameraHelper} 的分析流调用
+ *
+ * @author: ljm
+ * 创建日期:2022/11/16
+ */
+public interface FaceAnalyzer {
+
+    /**
+     * 在分析线程中检测一帧图像里的人脸，调用期间 luma 不会被改写，调用返回后不要再持有
+     *
+     * @param luma   亮度平面，按行紧密排列，长度至少为 width * height
+     * @param width  图像宽度，与传感器方向一致
+     * @param height 图像高度
+     * @param out    检测结果，以分析图像的像素坐标写入，调用前已清空
+     */
+    void analyze(byte[] luma, int width, int height, FaceFrame out);
+}
@@ -3,16 +3,13 @@ package com.ljm.scanfaceview;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.PointF;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
-import android.graphics.RectF;
-
-import java.util.ArrayList;
-import java.util.List;
 
 /**
+ * 人脸框的四个直角
+ * <p>
+ * 所有人脸的直角线段写入同一个预分配的 float 数组，确认的人脸从数组头部向后写，未确认的人脸从尾部向前写，
+ * 每种画笔只调用一次 drawLines，绘制开销不随人脸数量增加而增加调用次数。线段在设置人脸时计算好，绘制时不再计算。
+ *
  * @author: ljm
  * 创建日期:2022/8/9
  */
@@ -22,80 +19,127 @@ public class FaceBox {
      * 直角边长度
      */
     public static final int CORNERS_LENGTH = 20;
+    // 每个人脸 4 个直角共 8 条线段，每条线段 4 个 float
+    static final int LINES_PER_FACE = 8 * 4;
 
-    private Path leftTopPath;
-    private Path rightTopPath;
-    private Path leftBottomPath;
-    private Path rightBottomPath;
     private Paint mLinePaint;
-    private List<RectF> mFaces;
+    // 尚未确认或暂时丢失的人脸使用半透明的线
+    private Paint mPendingLinePaint;
+    private float[] mLines = new float[0];
+    private FaceGeometry mGeometry = new FaceGeometry(0);
+    // 确认的人脸占用 [0, mConfirmedEnd)，其余人脸占用 [mPendingStart, mLines.length)
+    private int mConfirmedEnd;
+    private int mPendingStart;
 
     public FaceBox() {
-        initPath();
         initLinePaint();
     }
 
-    private void initPath() {
-        leftTopPath = new Path();
-        rightTopPath = new Path();
-        leftBottomPath = new Path();
-        rightBottomPath = new Path();
-    }
-
     private void initLinePaint() {
         mLinePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mLinePaint.setDither(true);
         mLinePaint.setColor(Color.parseColor("#fa922c"));
         mLinePaint.setStrokeWidth(5);
         mLinePaint.setStyle(Paint.Style.STROKE);
-        mLinePaint.setStrokeJoin(Paint.Join.ROUND);
-        mLinePaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
+        // 两条线段在直角处相接，圆头效果与原来 Path 的圆角连接一致
+        mLinePaint.setStrokeCap(Paint.Cap.ROUND);
+        mPendingLinePaint = new Paint(mLinePaint);
+        mPendingLinePaint.setAlpha(0x60);
     }
 
-    public void setFaces(List<RectF> faces) {
-        this.mFaces = faces;
+    /**
+     * 计算所有人脸框的直角线段和每个人脸的中心点和尺寸，不持有 faces
+     */
+    public void setFaces(FaceFrame faces) {
+        // 只有容量变大时才重新分配，通常只在第一次设置时发生
+        if (faces != null && faces.getCapacity() > mGeometry.getCapacity()) {
+            mLines = new float[faces.getCapacity() * LINES_PER_FACE];
+            mGeometry = new FaceGeometry(faces.getCapacity());
+        }
+        mGeometry.reset();
+        if (faces == null || faces.getCount() == 0) {
+            mConfirmedEnd = 0;
+            mPendingStart = mLines.length;
+            return;
+        }
+        mConfirmedEnd = fillLines(faces, mLines, mGeometry);
+        mPendingStart = mLines.length - (faces.getCount() * LINES_PER_FACE - mConfirmedEnd);
     }
 
+    /**
+     * 获取最近一次设置的人脸的几何信息，容量变大时会换成新的实例
+     */
+    public FaceGeometry getGeometry() {
+        return mGeometry;
+    }
 
-    public PointF drawFaceBox(Canvas canvas) {
-        PointF point = null;
-        if (mFaces != null && mFaces.size() > 0) {
-            int length = mFaces.size();
-            for (int i = 0; i < length; i++) {
-                RectF rectF = mFaces.get(i);
-                float realLeft = rectF.left;
-                float realTop = rectF.top;
-                float realRight = rectF.right;
-                float realBottom = rectF.bottom;
-
-                leftTopPath.moveTo(realLeft + CORNERS_LENGTH, realTop);
-                leftTopPath.lineTo(realLeft, realTop);
-                leftTopPath.lineTo(realLeft, realTop + CORNERS_LENGTH);
-                canvas.drawPath(leftTopPath, mLinePaint);
-                leftTopPath.reset();
-
-
-                rightTopPath.moveTo(realRight - CORNERS_LENGTH, realTop);
-                rightTopPath.lineTo(realRight, realTop);
-                rightTopPath.lineTo(realRight, realTop + CORNERS_LENGTH);
-                canvas.drawPath(rightTopPath, mLinePaint);
-                rightTopPath.reset();
-
-                leftBottomPath.moveTo(realLeft + CORNERS_LENGTH, realBottom);
-                leftBottomPath.lineTo(realLeft, realBottom);
-                leftBottomPath.lineTo(realLeft, realBottom - CORNERS_LENGTH);
-                canvas.drawPath(leftBottomPath, mLinePaint);
-                leftBottomPath.reset();
-
+    /**
+     * 画出最近一次设置的所有人脸框的直角
+     */
+    public void drawFaceBox(Canvas canvas) {
+        if (mConfirmedEnd > 0) {
+            canvas.drawLines(mLines, 0, mConfirmedEnd, mLinePaint);
+        }
+        if (mPendingStart < mLines.length) {
+            canvas.drawLines(mLines, mPendingStart, mLines.length - mPendingStart, mPendingLinePaint);
+        }
+    }
 
-                rightBottomPath.moveTo(realRight - CORNERS_LENGTH, realBottom);
-                rightBottomPath.lineTo(realRight, realBottom);
-                rightBottomPath.lineTo(realRight, realBottom - CORNERS_LENGTH);
-                canvas.drawPath(rightBottomPath, mLinePaint);
-                rightBottomPath.reset();
-                point = new PointF(realLeft + ((realRight - realLeft) / 2.0f), realTop + ((realBottom - realTop) / 2.0f));
+    /**
+     * 把所有人脸框的直角线段写入 lines，确认的人脸从头部向后写，其余从尾部向前写，同时把几何信息加入 geometry
+     *
+     * @param lines 长度至少为人脸数量 * {@link #LINES_PER_FACE}
+     * @return 确认的人脸占用的 float 个数
+     */
+    static int fillLines(FaceFrame faces, float[] lines, FaceGeometry geometry) {
+        int length = faces.getCount();
+        int confirmedEnd = 0;
+        int pendingStart = lines.length;
+        for (int i = 0; i < length; i++) {
+            float realLeft = faces.getLeft(i);
+            float realTop = faces.getTop(i);
+            float realRight = faces.getRight(i);
+            float realBottom = faces.getBottom(i);
+            int state = faces.getState(i);
+            int offset;
+            if (state == FaceTracker.STATE_CONFIRMED) {
+                offset = confirmedEnd;
+                confirmedEnd += LINES_PER_FACE;
+            } else {
+                pendingStart -= LINES_PER_FACE;
+                offset = pendingStart;
             }
+            putCorners(lines, offset, realLeft, realTop, realRight, realBottom);
+            geometry.add(realLeft + ((realRight - realLeft) / 2.0f), realTop + ((realBottom - realTop) / 2.0f),
+                    realRight - realLeft, realBottom - realTop, faces.getId(i), state);
         }
-        return point;
+        return confirmedEnd;
+    }
+
+    /**
+     * 把一个人脸框四个直角的 8 条线段写入 lines
+     */
+    static void putCorners(float[] lines, int offset, float left, float top, float right, float bottom) {
+        int i = offset;
+        // 左上
+        i = putLine(lines, i, left + CORNERS_LENGTH, top, left, top);
+        i = putLine(lines, i, left, top, left, top + CORNERS_LENGTH);
+        // 右上
+        i = putLine(lines, i, right - CORNERS_LENGTH, top, right, top);
+        i = putLine(lines, i, right, top, right, top + CORNERS_LENGTH);
+        // 左下
+        i = putLine(lines, i, left + CORNERS_LENGTH, bottom, left, bottom);
+        i = putLine(lines, i, left, bottom, left, bottom - CORNERS_LENGTH);
+        // 右下
+        i = putLine(lines, i, right - CORNERS_LENGTH, bottom, right, bottom);
+        putLine(lines, i, right, bottom, right, bottom - CORNERS_LENGTH);
+    }
+
+    private static int putLine(float[] lines, int i, float startX, float startY, float stopX, float stopY) {
+        lines[i] = startX;
+        lines[i + 1] = startY;
+        lines[i + 2] = stopX;
+        lines[i + 3] = stopY;
+        return i + 4;
     }
 }
@@ -0,0 +1,287 @@
+package com.ljm.scanfaceview;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+/**
+ * LBP 级联分类器模型，数据全部保存在基本类型数组中
+ * <p>
+ * 模型不随应用发布。OpenCV 的 data/lbpcascades/lbpcascade_frontalface_improved.xml(BSD 许可)可以直接放到
+ * app/src/main/assets 目录下，由 {@link #loadOpenCvXml(InputStream)} 解析；也可以在开发机上解析后用
+ * {@link #write(OutputStream)} 转换成下面的二进制格式，保存为 assets/face_cascade.bin，加载更快。
+ * <p>
+ * 二进制格式(大端序):
+ * <pre>
+ * int   magic            0x53464343 ("SFCC")
+ * short version          1
+ * short windowWidth, windowHeight
+ * int   featureCount
+ *       short x, y, width, height        每个特征 3x3 网格左上角和单个格子的尺寸
+ * int   stageCount
+ *       float threshold
+ *       short weakCount
+ *             short featureIndex
+ *             int[8] subset              256 位 LBP 编码查找表
+ *             float leftValue, rightValue
+ * </pre>
+ *
+ * @author: ljm
+ * 创建日期:2022/11/18
+ */
+public final class FaceCascade {
+    private static final int MAGIC = 0x53464343;
+    private static final int VERSION = 1;
+    /**
+     * 每个弱分类器查找表占用的 int 个数
+     */
+    static final int SUBSET_SIZE = 8;
+
+    final int windowWidth;
+    final int windowHeight;
+    // 特征: x, y, width, height
+    final int[] features;
+    final float[] stageThresholds;
+    // 每个阶段弱分类器的个数
+    final int[] stageWeakCounts;
+    final int[] weakFeatures;
+    final int[] weakSubsets;
+    final float[] weakLeftValues;
+    final float[] weakRightValues;
+
+    FaceCascade(int windowWidth, int windowHeight, int[] features, float[] stageThresholds, int[] stageWeakCounts,
+                int[] weakFeatures, int[] weakSubsets, float[] weakLeftValues, float[] weakRightValues) {
+        this.windowWidth = windowWidth;
+        this.windowHeight = windowHeight;
+        this.features = features;
+        this.stageThresholds = stageThresholds;
+        this.stageWeakCounts = stageWeakCounts;
+        this.weakFeatures = weakFeatures;
+        this.weakSubsets = weakSubsets;
+        this.weakLeftValues = weakLeftValues;
+        this.weakRightValues = weakRightValues;
+    }
+
+    public int getWindowWidth() {
+        return windowWidth;
+    }
+
+    public int getWindowHeight() {
+        return windowHeight;
+    }
+
+    public int getFeatureCount() {
+        return features.length / 4;
+    }
+
+    public int getStageCount() {
+        return stageThresholds.length;
+    }
+
+    public int getWeakCount() {
+        return weakFeatures.length;
+    }
+
+    /**
+     * 从二进制数据加载级联分类器，不会关闭输入流
+     */
+    public static FaceCascade load(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是人脸级联分类器文件");
+        }
+        int version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("不支持的级联分类器版本: " + version);
+        }
+        int windowWidth = in.readShort();
+        int windowHeight = in.readShort();
+        int featureCount = in.readInt();
+        int[] features = new int[featureCount * 4];
+        for (int i = 0; i < features.length; i++) {
+            features[i] = in.readShort();
+        }
+        int stageCount = in.readInt();
+        float[] stageThresholds = new float[stageCount];
+        int[] stageWeakCounts = new int[stageCount];
+        // 弱分类器总数要读完才知道，先读到可扩容的临时数组中
+        int capacity = 256;
+        int[] weakFeatures = new int[capacity];
+        int[] weakSubsets = new int[capacity * SUBSET_SIZE];
+        float[] weakLeftValues = new float[capacity];
+        float[] weakRightValues = new float[capacity];
+        int weakCount = 0;
+        for (int stage = 0; stage < stageCount; stage++) {
+            stageThresholds[stage] = in.readFloat();
+            stageWeakCounts[stage] = in.readShort();
+            for (int i = 0; i < stageWeakCounts[stage]; i++) {
+                if (weakCount == capacity) {
+                    capacity *= 2;
+                    weakFeatures = Arrays.copyOf(weakFeatures, capacity);
+                    weakSubsets = Arrays.copyOf(weakSubsets, capacity * SUBSET_SIZE);
+                    weakLeftValues = Arrays.copyOf(weakLeftValues, capacity);
+                    weakRightValues = Arrays.copyOf(weakRightValues, capacity);
+                }
+                int featureIndex = in.readShort();
+                if (featureIndex < 0 || featureIndex >= featureCount) {
+                    throw new IOException("特征下标越界: " + featureIndex);
+                }
+                weakFeatures[weakCount] = featureIndex;
+                for (int j = 0; j < SUBSET_SIZE; j++) {
+                    weakSubsets[weakCount * SUBSET_SIZE + j] = in.readInt();
+                }
+                weakLeftValues[weakCount] = in.readFloat();
+                weakRightValues[weakCount] = in.readFloat();
+                weakCount++;
+            }
+        }
+        return new FaceCascade(windowWidth, windowHeight, features, stageThresholds, stageWeakCounts,
+                Arrays.copyOf(weakFeatures, weakCount),
+                Arrays.copyOf(weakSubsets, weakCount * SUBSET_SIZE),
+                Arrays.copyOf(weakLeftValues, weakCount),
+                Arrays.copyOf(weakRightValues, weakCount));
+    }
+
+    /**
+     * 从 OpenCV traincascade 格式的 XML 加载级联分类器，只支持 LBP 特征和单节点(stump)的弱分类器
+     * <p>
+     * 弱分类器的 internalNodes 为 "0 -1 特征下标 8 个查找表"，leafValues 为 "左值 右值"，
+     * 查找表中对应位为 1 时取左值，与 {@link CascadeFaceDetector} 的约定一致。
+     */
+    public static FaceCascade loadOpenCvXml(InputStream inputStream) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(inputStream);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("无法解析级联分类器 XML", e);
+        }
+        try {
+            Element cascade = child(document.getDocumentElement(), "cascade");
+            String featureType = child(cascade, "featureType").getTextContent().trim();
+            if (!"LBP".equals(featureType)) {
+                throw new IOException("不支持的特征类型: " + featureType);
+            }
+            int windowWidth = Integer.parseInt(child(cascade, "width").getTextContent().trim());
+            int windowHeight = Integer.parseInt(child(cascade, "height").getTextContent().trim());
+
+            List<Element> featureNodes = items(child(cascade, "features"));
+            int featureCount = featureNodes.size();
+            int[] features = new int[featureCount * 4];
+            for (int i = 0; i < featureCount; i++) {
+                String[] rect = tokens(featureNodes.get(i), "rect");
+                for (int k = 0; k < 4; k++) {
+                    features[i * 4 + k] = Integer.parseInt(rect[k]);
+                }
+            }
+
+            List<Element> stageNodes = items(child(cascade, "stages"));
+            int stageCount = stageNodes.size();
+            float[] stageThresholds = new float[stageCount];
+            int[] stageWeakCounts = new int[stageCount];
+            List<Element> weakNodes = new ArrayList<>();
+            for (int stage = 0; stage < stageCount; stage++) {
+                Element stageNode = stageNodes.get(stage);
+                stageThresholds[stage] = Float.parseFloat(child(stageNode, "stageThreshold").getTextContent().trim());
+                List<Element> weak = items(child(stageNode, "weakClassifiers"));
+                stageWeakCounts[stage] = weak.size();
+                weakNodes.addAll(weak);
+            }
+            int weakCount = weakNodes.size();
+            int[] weakFeatures = new int[weakCount];
+            int[] weakSubsets = new int[weakCount * SUBSET_SIZE];
+            float[] weakLeftValues = new float[weakCount];
+            float[] weakRightValues = new float[weakCount];
+            for (int i = 0; i < weakCount; i++) {
+                String[] nodes = tokens(weakNodes.get(i), "internalNodes");
+                if (nodes.length != 3 + SUBSET_SIZE) {
+                    throw new IOException("只支持单节点的弱分类器");
+                }
+                int featureIndex = Integer.parseInt(nodes[2]);
+                if (featureIndex < 0 || featureIndex >= featureCount) {
+                    throw new IOException("特征下标越界: " + featureIndex);
+                }
+                weakFeatures[i] = featureIndex;
+                for (int j = 0; j < SUBSET_SIZE; j++) {
+                    weakSubsets[i * SUBSET_SIZE + j] = Integer.parseInt(nodes[3 + j]);
+                }
+                String[] leaves = tokens(weakNodes.get(i), "leafValues");
+                weakLeftValues[i] = Float.parseFloat(leaves[0]);
+                weakRightValues[i] = Float.parseFloat(leaves[1]);
+            }
+            return new FaceCascade(windowWidth, windowHeight, features, stageThresholds, stageWeakCounts,
+                    weakFeatures, weakSubsets, weakLeftValues, weakRightValues);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("级联分类器 XML 数据格式错误", e);
+        }
+    }
+
+    private static Element child(Element parent, String name) throws IOException {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName())) {
+                return (Element) node;
+            }
+        }
+        throw new IOException("级联分类器 XML 缺少节点: " + name);
+    }
+
+    /**
+     * OpenCV 用名为 "_" 的子节点表示序列中的元素
+     */
+    private static List<Element> items(Element parent) {
+        List<Element> items = new ArrayList<>();
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE && "_".equals(node.getNodeName())) {
+                items.add((Element) node);
+            }
+        }
+        return items;
+    }
+
+    private static String[] tokens(Element parent, String name) throws IOException {
+        return child(parent, name).getTextContent().trim().split("\\s+");
+    }
+
+    /**
+     * 按 {@link #load(InputStream)} 的格式写出，用于模型转换工具
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(windowWidth);
+        out.writeShort(windowHeight);
+        out.writeInt(features.length / 4);
+        for (int value : features) {
+            out.writeShort(value);
+        }
+        out.writeInt(stageThresholds.length);
+        int weak = 0;
+        for (int stage = 0; stage < stageThresholds.length; stage++) {
+            out.writeFloat(stageThresholds[stage]);
+            out.writeShort(stageWeakCounts[stage]);
+            for (int i = 0; i < stageWeakCounts[stage]; i++, weak++) {
+                out.writeShort(weakFeatures[weak]);
+                for (int j = 0; j < SUBSET_SIZE; j++) {
+                    out.writeInt(weakSubsets[weak * SUBSET_SIZE + j]);
+                }
+                out.writeFloat(weakLeftValues[weak]);
+                out.writeFloat(weakRightValues[weak]);
+            }
+        }
+        out.flush();
+    }
+}
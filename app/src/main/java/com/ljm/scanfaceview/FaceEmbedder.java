@@ -0,0 +1,571 @@
+package com.ljm.scanfaceview;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 纯 Java 的 int8 卷积网络推理，把人脸区域转换成 {@link FaceEmbeddingModel} 输出的特征向量
+ * <p>
+ * 创建时按张量的生存期规划 arena: 不再被后续层读取的张量所占的缓冲区留给后面的层复用，
+ * 所有张量、每层的重量化系数和每个任务的 im2col、累加缓冲区都在创建时分配。每层的输出按行切成条带，
+ * 由 {@link ForkJoinPool} 并行计算，任务对象通过 {@link ForkJoinTask#reinitialize()} 复用，推理不产生对象分配。
+ * <p>
+ * 卷积累加在 int 中完成，再乘以 weightScale * 输入缩放系数 / 输出缩放系数 转换到输出张量，
+ * 激活函数在转换时应用。只能在一个线程中调用 {@link #setInput}、{@link #setInputFromLuma} 和 {@link #run}。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/12
+ */
+public class FaceEmbedder {
+    // 每个并行线程平均分到的条带个数，用于负载均衡
+    private static final int TASKS_PER_THREAD = 4;
+
+    private final FaceEmbeddingModel mModel;
+    private final ForkJoinPool mPool;
+    // 每个张量所在的 arena 缓冲区，多个生存期不重叠的张量共用一个缓冲区
+    private final byte[][] mTensors;
+    // 每层每个输出通道的重量化系数，相加层为两个输入各自的系数
+    private final float[][] mMultipliers;
+    // 每层每个输出通道负半轴的斜率，见 getNegativeSlopes
+    private final float[][] mNegativeSlopes;
+    private final LayerTask[][] mLayerTasks;
+    // 最近一次推理每层的耗时
+    private final long[] mLayerNanos;
+    private final RootTask mRootTask = new RootTask();
+
+    public FaceEmbedder(FaceEmbeddingModel model) {
+        this(model, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism 并行线程数
+     */
+    public FaceEmbedder(FaceEmbeddingModel model, int parallelism) {
+        mModel = model;
+        mPool = new ForkJoinPool(Math.max(1, parallelism));
+        FaceEmbeddingModel.Layer[] layers = model.layers;
+        mTensors = planArena(model);
+        mMultipliers = new float[layers.length][];
+        mNegativeSlopes = new float[layers.length][];
+        mLayerTasks = new LayerTask[layers.length][];
+        mLayerNanos = new long[layers.length];
+        int maxTasks = Math.max(1, parallelism) * TASKS_PER_THREAD;
+        for (int i = 0; i < layers.length; i++) {
+            FaceEmbeddingModel.Layer layer = layers[i];
+            float inputScale = model.tensorScales[layer.input];
+            float[] multipliers;
+            if (layer.type == FaceEmbeddingModel.LAYER_ADD) {
+                multipliers = new float[]{inputScale / layer.outputScale,
+                        model.tensorScales[layer.input2] / layer.outputScale};
+            } else {
+                multipliers = new float[layer.outChannels];
+                for (int c = 0; c < layer.outChannels; c++) {
+                    multipliers[c] = layer.weightScales[c] * inputScale / layer.outputScale;
+                }
+            }
+            mMultipliers[i] = multipliers;
+            mNegativeSlopes[i] = getNegativeSlopes(layer);
+            // 按输出行切分，行数少于任务数时每行一个任务
+            int rows = model.tensorHeights[i + 1];
+            int taskCount = Math.min(rows, maxTasks);
+            LayerTask[] tasks = new LayerTask[taskCount];
+            for (int t = 0; t < taskCount; t++) {
+                tasks[t] = new LayerTask(i, rows * t / taskCount, rows * (t + 1) / taskCount);
+            }
+            mLayerTasks[i] = tasks;
+        }
+    }
+
+    /**
+     * 按张量的最后一次读取位置分配缓冲区: 第 i 层的输出可以放进在第 i 层之前已经读完的张量的缓冲区，
+     * 不能与本层的输入共用
+     */
+    private static byte[][] planArena(FaceEmbeddingModel model) {
+        FaceEmbeddingModel.Layer[] layers = model.layers;
+        int tensorCount = layers.length + 1;
+        int[] lastUse = new int[tensorCount];
+        for (int i = 0; i < layers.length; i++) {
+            lastUse[layers[i].input] = i;
+            if (layers[i].input2 >= 0) {
+                lastUse[layers[i].input2] = i;
+            }
+        }
+        // 最后一层的输出在推理结束后读取
+        lastUse[layers.length] = layers.length;
+        int[] slots = new int[tensorCount];
+        int[] slotSizes = new int[tensorCount];
+        // 每个缓冲区最近放入的张量，它的最后一次读取在当前层之前时缓冲区空闲
+        int[] slotTensors = new int[tensorCount];
+        int slotCount = 0;
+        for (int t = 0; t < tensorCount; t++) {
+            int size = model.tensorWidths[t] * model.tensorHeights[t] * model.tensorChannels[t];
+            // 生产这个张量的层的下标，输入张量视为 -1
+            int producer = t - 1;
+            // 优先选已经足够大的空闲缓冲区中最小的，没有时选最大的再扩大
+            int fit = -1;
+            int largest = -1;
+            for (int s = 0; s < slotCount; s++) {
+                if (lastUse[slotTensors[s]] >= producer) {
+                    continue;
+                }
+                if (slotSizes[s] >= size && (fit < 0 || slotSizes[s] < slotSizes[fit])) {
+                    fit = s;
+                }
+                if (largest < 0 || slotSizes[s] > slotSizes[largest]) {
+                    largest = s;
+                }
+            }
+            int best = fit >= 0 ? fit : largest;
+            if (best < 0) {
+                best = slotCount++;
+            }
+            slots[t] = best;
+            slotTensors[best] = t;
+            slotSizes[best] = Math.max(slotSizes[best], size);
+        }
+        byte[][] buffers = new byte[slotCount][];
+        for (int s = 0; s < slotCount; s++) {
+            buffers[s] = new byte[slotSizes[s]];
+        }
+        byte[][] tensors = new byte[tensorCount][];
+        for (int t = 0; t < tensorCount; t++) {
+            tensors[t] = buffers[slots[t]];
+        }
+        return tensors;
+    }
+
+    public FaceEmbeddingModel getModel() {
+        return mModel;
+    }
+
+    /**
+     * arena 的总字节数
+     */
+    public int getArenaSize() {
+        int size = 0;
+        for (int t = 0; t < mTensors.length; t++) {
+            boolean counted = false;
+            for (int p = 0; p < t && !counted; p++) {
+                counted = mTensors[p] == mTensors[t];
+            }
+            if (!counted) {
+                size += mTensors[t].length;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 设置输入图像
+     *
+     * @param pixels 按 HWC 排列的输入尺寸图像，通道数与模型一致
+     */
+    public void setInput(byte[] pixels) {
+        byte[] input = mTensors[0];
+        int size = mModel.inputWidth * mModel.inputHeight * mModel.inputChannels;
+        for (int i = 0; i < size; i++) {
+            input[i] = (byte) ((pixels[i] & 0xff) - 128);
+        }
+    }
+
+    /**
+     * 从分析图像的亮度平面中截取人脸区域，双线性缩放到输入尺寸，多通道模型的每个通道使用相同的亮度
+     *
+     * @param left            人脸区域，分析图像坐标，一般是稍大于人脸框的正方形
+     * @param rotationDegrees 分析图像顺时针旋转到正立方向的角度，见 {@link FaceTransform#getRotationDegrees}
+     */
+    public void setInputFromLuma(byte[] luma, int width, int height, float left, float top, float right,
+                                 float bottom, int rotationDegrees) {
+        byte[] input = mTensors[0];
+        int inputWidth = mModel.inputWidth;
+        int inputHeight = mModel.inputHeight;
+        int channels = mModel.inputChannels;
+        float centerX = (left + right) / 2;
+        float centerY = (top + bottom) / 2;
+        // 输入图像右移一个像素、下移一个像素时在分析图像中移动的距离
+        float boxWidth = right - left;
+        float boxHeight = bottom - top;
+        boolean swap = rotationDegrees == 90 || rotationDegrees == 270;
+        float uStep = (swap ? boxHeight : boxWidth) / inputWidth;
+        float vStep = (swap ? boxWidth : boxHeight) / inputHeight;
+        float uX;
+        float uY;
+        float vX;
+        float vY;
+        switch (rotationDegrees) {
+            case 90:
+                uX = 0;
+                uY = -uStep;
+                vX = vStep;
+                vY = 0;
+                break;
+            case 180:
+                uX = -uStep;
+                uY = 0;
+                vX = 0;
+                vY = -vStep;
+                break;
+            case 270:
+                uX = 0;
+                uY = uStep;
+                vX = -vStep;
+                vY = 0;
+                break;
+            default:
+                uX = uStep;
+                uY = 0;
+                vX = 0;
+                vY = vStep;
+                break;
+        }
+        // 像素中心对齐，坐标减 0.5 后落在采样像素的左上角
+        float originX = centerX - (uX * inputWidth + vX * inputHeight) / 2 + (uX + vX) / 2 - 0.5f;
+        float originY = centerY - (uY * inputWidth + vY * inputHeight) / 2 + (uY + vY) / 2 - 0.5f;
+        int o = 0;
+        for (int v = 0; v < inputHeight; v++) {
+            float rowX = originX + vX * v;
+            float rowY = originY + vY * v;
+            for (int u = 0; u < inputWidth; u++) {
+                float x = Math.max(0, Math.min(width - 1, rowX + uX * u));
+                float y = Math.max(0, Math.min(height - 1, rowY + uY * u));
+                int x0 = (int) x;
+                int y0 = (int) y;
+                int x1 = Math.min(x0 + 1, width - 1);
+                int y1 = Math.min(y0 + 1, height - 1);
+                float fx = x - x0;
+                float fy = y - y0;
+                float top0 = (luma[y0 * width + x0] & 0xff) * (1 - fx) + (luma[y0 * width + x1] & 0xff) * fx;
+                float bottom0 = (luma[y1 * width + x0] & 0xff) * (1 - fx) + (luma[y1 * width + x1] & 0xff) * fx;
+                byte value = (byte) ((int) (top0 * (1 - fy) + bottom0 * fy + 0.5f) - 128);
+                for (int c = 0; c < channels; c++) {
+                    input[o++] = value;
+                }
+            }
+        }
+    }
+
+    /**
+     * 对已设置的输入执行推理
+     *
+     * @param embedding 至少 {@link FaceEmbeddingModel#getEmbeddingSize()} 个元素，写入反量化后的特征，未归一化
+     */
+    public void run(float[] embedding) {
+        mRootTask.reinitialize();
+        mPool.invoke(mRootTask);
+        int last = mModel.layers.length;
+        byte[] output = mTensors[last];
+        float scale = mModel.tensorScales[last];
+        int size = mModel.getEmbeddingSize();
+        for (int i = 0; i < size; i++) {
+            embedding[i] = output[i] * scale;
+        }
+    }
+
+    /**
+     * 最近一次推理每层的耗时，纳秒
+     */
+    public void getLayerNanos(long[] out) {
+        System.arraycopy(mLayerNanos, 0, out, 0, mLayerNanos.length);
+    }
+
+    /**
+     * 释放并行线程，之后不能再使用
+     */
+    public void release() {
+        mPool.shutdown();
+    }
+
+    /**
+     * 激活函数统一表示为每个通道负半轴的斜率: 无激活为 1，ReLU 为 0，PReLU 为模型中的斜率
+     */
+    static float[] getNegativeSlopes(FaceEmbeddingModel.Layer layer) {
+        if (layer.activation == FaceEmbeddingModel.ACTIVATION_PRELU) {
+            return layer.slopes;
+        }
+        float[] slopes = new float[layer.outChannels];
+        Arrays.fill(slopes, layer.activation == FaceEmbeddingModel.ACTIVATION_RELU ? 0 : 1);
+        return slopes;
+    }
+
+    /**
+     * 把 int 累加值或两个输入的加权和转换到输出张量，应用激活函数后四舍五入并截断到 [-128, 127]
+     * <p>
+     * 输出的正负随机，分支几乎每次都预测失败，这里用绝对值拆出正负部分，加 128.5 后截断取整再限制范围，全程没有分支
+     */
+    static byte quantize(float value, float negativeSlope) {
+        float abs = Math.abs(value);
+        float activated = (value + abs) * 0.5f + (value - abs) * 0.5f * negativeSlope;
+        return (byte) (Math.min(255, Math.max(0, (int) (activated + 128.5f))) - 128);
+    }
+
+    /**
+     * 普通卷积: 每个输出像素先把感受野复制到 patch(越界部分补 0)，再与每个输出通道的权重做点积
+     */
+    private void conv(FaceEmbeddingModel.Layer layer, int index, int rowStart, int rowEnd, byte[] patch) {
+        byte[] in = mTensors[layer.input];
+        byte[] out = mTensors[index + 1];
+        int inWidth = mModel.tensorWidths[layer.input];
+        int inHeight = mModel.tensorHeights[layer.input];
+        int inChannels = mModel.tensorChannels[layer.input];
+        int outWidth = mModel.tensorWidths[index + 1];
+        int outChannels = layer.outChannels;
+        int kernel = layer.kernel;
+        int patchSize = kernel * kernel * inChannels;
+        byte[] weights = layer.weights;
+        int[] bias = layer.bias;
+        float[] multipliers = mMultipliers[index];
+        float[] slopes = mNegativeSlopes[index];
+        for (int oy = rowStart; oy < rowEnd; oy++) {
+            for (int ox = 0; ox < outWidth; ox++) {
+                int n = 0;
+                for (int ky = 0; ky < kernel; ky++) {
+                    int iy = oy * layer.stride - layer.padding + ky;
+                    for (int kx = 0; kx < kernel; kx++, n += inChannels) {
+                        int ix = ox * layer.stride - layer.padding + kx;
+                        if (iy < 0 || iy >= inHeight || ix < 0 || ix >= inWidth) {
+                            Arrays.fill(patch, n, n + inChannels, (byte) 0);
+                        } else {
+                            System.arraycopy(in, (iy * inWidth + ix) * inChannels, patch, n, inChannels);
+                        }
+                    }
+                }
+                int o = (oy * outWidth + ox) * outChannels;
+                for (int oc = 0; oc < outChannels; oc++) {
+                    int w = oc * patchSize;
+                    int sum = bias[oc];
+                    for (int j = 0; j < patchSize; j++) {
+                        sum += weights[w + j] * patch[j];
+                    }
+                    out[o + oc] = quantize(sum * multipliers[oc], slopes[oc]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 深度卷积: 每个输出像素按通道累加到 accumulators，HWC 排列下最内层循环遍历连续的通道
+     */
+    private void depthwise(FaceEmbeddingModel.Layer layer, int index, int rowStart, int rowEnd, int[] accumulators) {
+        byte[] in = mTensors[layer.input];
+        byte[] out = mTensors[index + 1];
+        int inWidth = mModel.tensorWidths[layer.input];
+        int inHeight = mModel.tensorHeights[layer.input];
+        int outWidth = mModel.tensorWidths[index + 1];
+        int channels = layer.outChannels;
+        int kernel = layer.kernel;
+        byte[] weights = layer.weights;
+        float[] multipliers = mMultipliers[index];
+        float[] slopes = mNegativeSlopes[index];
+        for (int oy = rowStart; oy < rowEnd; oy++) {
+            for (int ox = 0; ox < outWidth; ox++) {
+                System.arraycopy(layer.bias, 0, accumulators, 0, channels);
+                for (int ky = 0; ky < kernel; ky++) {
+                    int iy = oy * layer.stride - layer.padding + ky;
+                    if (iy < 0 || iy >= inHeight) {
+                        continue;
+                    }
+                    for (int kx = 0; kx < kernel; kx++) {
+                        int ix = ox * layer.stride - layer.padding + kx;
+                        if (ix < 0 || ix >= inWidth) {
+                            continue;
+                        }
+                        int x = (iy * inWidth + ix) * channels;
+                        int w = (ky * kernel + kx) * channels;
+                        for (int c = 0; c < channels; c++) {
+                            accumulators[c] += in[x + c] * weights[w + c];
+                        }
+                    }
+                }
+                int o = (oy * outWidth + ox) * channels;
+                for (int c = 0; c < channels; c++) {
+                    out[o + c] = quantize(accumulators[c] * multipliers[c], slopes[c]);
+                }
+            }
+        }
+    }
+
+    /**
+     * 逐点卷积: 一次计算相邻两个像素的四个输出通道，每次读取的权重和输入各用两次和四次
+     */
+    private void pointwise(FaceEmbeddingModel.Layer layer, int index, int rowStart, int rowEnd) {
+        byte[] in = mTensors[layer.input];
+        byte[] out = mTensors[index + 1];
+        int inWidth = mModel.tensorWidths[layer.input];
+        int inChannels = mModel.tensorChannels[layer.input];
+        int outWidth = mModel.tensorWidths[index + 1];
+        int outChannels = layer.outChannels;
+        int stride = layer.stride;
+        for (int oy = rowStart; oy < rowEnd; oy++) {
+            int ox = 0;
+            for (; ox + 1 < outWidth; ox += 2) {
+                pointwisePair(layer, index, in, (oy * stride * inWidth + ox * stride) * inChannels,
+                        stride * inChannels, out, (oy * outWidth + ox) * outChannels);
+            }
+            if (ox < outWidth) {
+                pointwiseSingle(layer, index, in, (oy * stride * inWidth + ox * stride) * inChannels,
+                        out, (oy * outWidth + ox) * outChannels);
+            }
+        }
+    }
+
+    private void pointwisePair(FaceEmbeddingModel.Layer layer, int index, byte[] in, int x, int xStep, byte[] out,
+                               int o) {
+        int inChannels = mModel.tensorChannels[layer.input];
+        int outChannels = layer.outChannels;
+        byte[] weights = layer.weights;
+        int[] bias = layer.bias;
+        float[] multipliers = mMultipliers[index];
+        float[] slopes = mNegativeSlopes[index];
+        int y = x + xStep;
+        int o2 = o + outChannels;
+        int oc = 0;
+        for (; oc + 3 < outChannels; oc += 4) {
+            int w0 = oc * inChannels;
+            int w1 = w0 + inChannels;
+            int w2 = w1 + inChannels;
+            int w3 = w2 + inChannels;
+            int a0 = bias[oc];
+            int a1 = bias[oc + 1];
+            int a2 = bias[oc + 2];
+            int a3 = bias[oc + 3];
+            int b0 = a0;
+            int b1 = a1;
+            int b2 = a2;
+            int b3 = a3;
+            for (int j = 0; j < inChannels; j++) {
+                int p = in[x + j];
+                int q = in[y + j];
+                int v0 = weights[w0 + j];
+                int v1 = weights[w1 + j];
+                int v2 = weights[w2 + j];
+                int v3 = weights[w3 + j];
+                a0 += v0 * p;
+                a1 += v1 * p;
+                a2 += v2 * p;
+                a3 += v3 * p;
+                b0 += v0 * q;
+                b1 += v1 * q;
+                b2 += v2 * q;
+                b3 += v3 * q;
+            }
+            out[o + oc] = quantize(a0 * multipliers[oc], slopes[oc]);
+            out[o + oc + 1] = quantize(a1 * multipliers[oc + 1], slopes[oc + 1]);
+            out[o + oc + 2] = quantize(a2 * multipliers[oc + 2], slopes[oc + 2]);
+            out[o + oc + 3] = quantize(a3 * multipliers[oc + 3], slopes[oc + 3]);
+            out[o2 + oc] = quantize(b0 * multipliers[oc], slopes[oc]);
+            out[o2 + oc + 1] = quantize(b1 * multipliers[oc + 1], slopes[oc + 1]);
+            out[o2 + oc + 2] = quantize(b2 * multipliers[oc + 2], slopes[oc + 2]);
+            out[o2 + oc + 3] = quantize(b3 * multipliers[oc + 3], slopes[oc + 3]);
+        }
+        for (; oc < outChannels; oc++) {
+            int w = oc * inChannels;
+            int a = bias[oc];
+            int b = a;
+            for (int j = 0; j < inChannels; j++) {
+                a += weights[w + j] * in[x + j];
+                b += weights[w + j] * in[y + j];
+            }
+            out[o + oc] = quantize(a * multipliers[oc], slopes[oc]);
+            out[o2 + oc] = quantize(b * multipliers[oc], slopes[oc]);
+        }
+    }
+
+    /**
+     * 行末剩下的单个像素，以及只有一个像素的输出(全局深度卷积之后的线性层)
+     */
+    private void pointwiseSingle(FaceEmbeddingModel.Layer layer, int index, byte[] in, int x, byte[] out, int o) {
+        int inChannels = mModel.tensorChannels[layer.input];
+        byte[] weights = layer.weights;
+        int[] bias = layer.bias;
+        float[] multipliers = mMultipliers[index];
+        float[] slopes = mNegativeSlopes[index];
+        for (int oc = 0; oc < layer.outChannels; oc++) {
+            int w = oc * inChannels;
+            int sum = bias[oc];
+            for (int j = 0; j < inChannels; j++) {
+                sum += weights[w + j] * in[x + j];
+            }
+            out[o + oc] = quantize(sum * multipliers[oc], slopes[oc]);
+        }
+    }
+
+    private void add(FaceEmbeddingModel.Layer layer, int index, int rowStart, int rowEnd) {
+        byte[] a = mTensors[layer.input];
+        byte[] b = mTensors[layer.input2];
+        byte[] out = mTensors[index + 1];
+        int rowSize = mModel.tensorWidths[index + 1] * layer.outChannels;
+        float multiplierA = mMultipliers[index][0];
+        float multiplierB = mMultipliers[index][1];
+        for (int i = rowStart * rowSize, end = rowEnd * rowSize; i < end; i++) {
+            out[i] = quantize(a[i] * multiplierA + b[i] * multiplierB, 1);
+        }
+    }
+
+    /**
+     * 一层输出的一个行条带，im2col 和累加缓冲区按本层尺寸分配
+     */
+    private final class LayerTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        final int layerIndex;
+        final int rowStart;
+        final int rowEnd;
+        final byte[] patch;
+        final int[] accumulators;
+
+        LayerTask(int layerIndex, int rowStart, int rowEnd) {
+            this.layerIndex = layerIndex;
+            this.rowStart = rowStart;
+            this.rowEnd = rowEnd;
+            FaceEmbeddingModel.Layer layer = mModel.layers[layerIndex];
+            patch = layer.type == FaceEmbeddingModel.LAYER_CONV
+                    ? new byte[layer.kernel * layer.kernel * mModel.tensorChannels[layer.input]] : null;
+            accumulators = layer.type == FaceEmbeddingModel.LAYER_DEPTHWISE ? new int[layer.outChannels] : null;
+        }
+
+        @Override
+        protected void compute() {
+            FaceEmbeddingModel.Layer layer = mModel.layers[layerIndex];
+            switch (layer.type) {
+                case FaceEmbeddingModel.LAYER_CONV:
+                    conv(layer, layerIndex, rowStart, rowEnd, patch);
+                    break;
+                case FaceEmbeddingModel.LAYER_DEPTHWISE:
+                    depthwise(layer, layerIndex, rowStart, rowEnd, accumulators);
+                    break;
+                case FaceEmbeddingModel.LAYER_POINTWISE:
+                    pointwise(layer, layerIndex, rowStart, rowEnd);
+                    break;
+                default:
+                    add(layer, layerIndex, rowStart, rowEnd);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * 逐层执行，每层的条带并行计算完后再进入下一层
+     */
+    private final class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < mLayerTasks.length; i++) {
+                long start = System.nanoTime();
+                LayerTask[] tasks = mLayerTasks[i];
+                if (tasks.length == 1) {
+                    tasks[0].compute();
+                } else {
+                    for (LayerTask task : tasks) {
+                        task.reinitialize();
+                    }
+                    ForkJoinTask.invokeAll(tasks);
+                }
+                mLayerNanos[i] = System.nanoTime() - start;
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+package com.ljm.scanfaceview;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * 提取人脸特征的 int8 量化卷积网络，MobileFaceNet 一类的小模型，由 {@link FaceEmbedder} 执行
+ * <p>
+ * 张量按 HWC 排列，对称量化(零点为 0)，每个张量一个缩放系数，卷积权重每个输出通道一个缩放系数。
+ * 张量 0 是输入，张量 i + 1 是第 i 层的输出，最后一层的输出就是人脸特征。输入像素 p 量化为 p - 128。
+ * <p>
+ * 二进制格式(大端序)，由训练框架导出的量化模型转换得到:
+ * <pre>
+ * int   magic            0x53464645 ("SFFE")
+ * short version          1
+ * short inputWidth, inputHeight, inputChannels
+ * float inputScale       输入张量的缩放系数，一般为 1/128
+ * int   layerCount
+ *       byte  type                     {@link #LAYER_CONV}、{@link #LAYER_DEPTHWISE}、{@link #LAYER_POINTWISE} 或 {@link #LAYER_ADD}
+ *       byte  activation               {@link #ACTIVATION_NONE}、{@link #ACTIVATION_RELU} 或 {@link #ACTIVATION_PRELU}
+ *       short input, input2            输入张量，input2 只用于 {@link #LAYER_ADD}，其他层为 -1
+ *       short outChannels
+ *       byte  kernel, stride, padding
+ *       float outputScale
+ *       卷积层:
+ *       float[outChannels] weightScales
+ *       int[outChannels]   bias        缩放系数为 weightScale * 输入张量的缩放系数
+ *       byte[]             weights     普通卷积 [out][ky][kx][in]，深度卷积 [ky][kx][channel]，逐点卷积 [out][in]
+ *       PReLU:
+ *       float[outChannels] slopes
+ * </pre>
+ *
+ * @author: ljm
+ * 创建日期:2022/12/12
+ */
+public final class FaceEmbeddingModel {
+    private static final int MAGIC = 0x53464645;
+    private static final int VERSION = 1;
+
+    static final int LAYER_CONV = 0;
+    static final int LAYER_DEPTHWISE = 1;
+    static final int LAYER_POINTWISE = 2;
+    // 两个相同形状张量逐元素相加，用于残差连接
+    static final int LAYER_ADD = 3;
+
+    static final int ACTIVATION_NONE = 0;
+    static final int ACTIVATION_RELU = 1;
+    static final int ACTIVATION_PRELU = 2;
+
+    final int inputWidth;
+    final int inputHeight;
+    final int inputChannels;
+    final float inputScale;
+    final Layer[] layers;
+    // 每个张量的形状和缩放系数，下标为张量编号
+    final int[] tensorWidths;
+    final int[] tensorHeights;
+    final int[] tensorChannels;
+    final float[] tensorScales;
+
+    /**
+     * @throws IllegalArgumentException 层的输入或权重数量与形状不一致
+     */
+    FaceEmbeddingModel(int inputWidth, int inputHeight, int inputChannels, float inputScale, Layer[] layers) {
+        if (inputWidth <= 0 || inputHeight <= 0 || inputChannels <= 0 || layers.length == 0) {
+            throw new IllegalArgumentException("Empty model.");
+        }
+        this.inputWidth = inputWidth;
+        this.inputHeight = inputHeight;
+        this.inputChannels = inputChannels;
+        this.inputScale = inputScale;
+        this.layers = layers;
+        int tensorCount = layers.length + 1;
+        tensorWidths = new int[tensorCount];
+        tensorHeights = new int[tensorCount];
+        tensorChannels = new int[tensorCount];
+        tensorScales = new float[tensorCount];
+        tensorWidths[0] = inputWidth;
+        tensorHeights[0] = inputHeight;
+        tensorChannels[0] = inputChannels;
+        tensorScales[0] = inputScale;
+        for (int i = 0; i < layers.length; i++) {
+            Layer layer = layers[i];
+            checkInput(i, layer.input);
+            int inChannels = tensorChannels[layer.input];
+            int width;
+            int height;
+            if (layer.type == LAYER_ADD) {
+                checkInput(i, layer.input2);
+                if (tensorWidths[layer.input2] != tensorWidths[layer.input]
+                        || tensorHeights[layer.input2] != tensorHeights[layer.input]
+                        || tensorChannels[layer.input2] != inChannels || layer.outChannels != inChannels) {
+                    throw new IllegalArgumentException("Layer " + i + ": add inputs have different shapes.");
+                }
+                width = tensorWidths[layer.input];
+                height = tensorHeights[layer.input];
+            } else {
+                if (layer.kernel <= 0 || layer.stride <= 0 || layer.padding < 0) {
+                    throw new IllegalArgumentException("Layer " + i + ": invalid kernel, stride or padding.");
+                }
+                width = (tensorWidths[layer.input] + layer.padding * 2 - layer.kernel) / layer.stride + 1;
+                height = (tensorHeights[layer.input] + layer.padding * 2 - layer.kernel) / layer.stride + 1;
+                if (width <= 0 || height <= 0) {
+                    throw new IllegalArgumentException("Layer " + i + ": kernel larger than input.");
+                }
+                if (layer.type == LAYER_DEPTHWISE && layer.outChannels != inChannels) {
+                    throw new IllegalArgumentException("Layer " + i + ": depthwise channels " + layer.outChannels
+                            + " != " + inChannels);
+                }
+                if (layer.type == LAYER_POINTWISE && layer.kernel != 1) {
+                    throw new IllegalArgumentException("Layer " + i + ": pointwise kernel must be 1.");
+                }
+                if (layer.weights.length != getWeightCount(layer.type, layer.kernel, inChannels, layer.outChannels)
+                        || layer.weightScales.length != layer.outChannels || layer.bias.length != layer.outChannels) {
+                    throw new IllegalArgumentException("Layer " + i + ": weight count does not match its shape.");
+                }
+            }
+            if (layer.activation < ACTIVATION_NONE || layer.activation > ACTIVATION_PRELU) {
+                throw new IllegalArgumentException("Layer " + i + ": unknown activation " + layer.activation);
+            }
+            if (layer.activation == ACTIVATION_PRELU
+                    && (layer.slopes == null || layer.slopes.length != layer.outChannels)) {
+                throw new IllegalArgumentException("Layer " + i + ": missing PReLU slopes.");
+            }
+            tensorWidths[i + 1] = width;
+            tensorHeights[i + 1] = height;
+            tensorChannels[i + 1] = layer.outChannels;
+            tensorScales[i + 1] = layer.outputScale;
+        }
+    }
+
+    private static void checkInput(int layerIndex, int input) {
+        // 只能引用模型输入和前面层的输出
+        if (input < 0 || input > layerIndex) {
+            throw new IllegalArgumentException("Layer " + layerIndex + ": invalid input tensor " + input);
+        }
+    }
+
+    private static int getWeightCount(int type, int kernel, int inChannels, int outChannels) {
+        switch (type) {
+            case LAYER_CONV:
+                return outChannels * kernel * kernel * inChannels;
+            case LAYER_DEPTHWISE:
+                return kernel * kernel * outChannels;
+            case LAYER_POINTWISE:
+                return outChannels * inChannels;
+            default:
+                throw new IllegalArgumentException("Unknown layer type: " + type);
+        }
+    }
+
+    public int getInputWidth() {
+        return inputWidth;
+    }
+
+    public int getInputHeight() {
+        return inputHeight;
+    }
+
+    public int getLayerCount() {
+        return layers.length;
+    }
+
+    /**
+     * 人脸特征的维数，即最后一层输出的元素个数
+     */
+    public int getEmbeddingSize() {
+        int last = layers.length;
+        return tensorWidths[last] * tensorHeights[last] * tensorChannels[last];
+    }
+
+    /**
+     * 第 index 层的乘加次数，用于估算耗时
+     */
+    long getMacs(int index) {
+        Layer layer = layers[index];
+        long outputs = (long) tensorWidths[index + 1] * tensorHeights[index + 1] * layer.outChannels;
+        switch (layer.type) {
+            case LAYER_CONV:
+                return outputs * layer.kernel * layer.kernel * tensorChannels[layer.input];
+            case LAYER_DEPTHWISE:
+                return outputs * layer.kernel * layer.kernel;
+            case LAYER_POINTWISE:
+                return outputs * tensorChannels[layer.input];
+            default:
+                return outputs;
+        }
+    }
+
+    /**
+     * 从二进制数据加载模型，不会关闭输入流
+     */
+    public static FaceEmbeddingModel load(InputStream inputStream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(inputStream));
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是人脸特征模型文件");
+        }
+        int version = in.readShort();
+        if (version != VERSION) {
+            throw new IOException("不支持的人脸特征模型版本: " + version);
+        }
+        int inputWidth = in.readShort();
+        int inputHeight = in.readShort();
+        int inputChannels = in.readShort();
+        float inputScale = in.readFloat();
+        int layerCount = in.readInt();
+        if (layerCount <= 0 || layerCount > Short.MAX_VALUE) {
+            throw new IOException("模型层数错误: " + layerCount);
+        }
+        // 读权重前先推算输入通道数，避免按损坏的数据分配过大的数组
+        int[] channels = new int[layerCount + 1];
+        channels[0] = inputChannels;
+        Layer[] layers = new Layer[layerCount];
+        for (int i = 0; i < layerCount; i++) {
+            int type = in.readByte();
+            int activation = in.readByte();
+            int input = in.readShort();
+            int input2 = in.readShort();
+            int outChannels = in.readShort();
+            int kernel = in.readByte();
+            int stride = in.readByte();
+            int padding = in.readByte();
+            float outputScale = in.readFloat();
+            if (input < 0 || input > i || outChannels <= 0) {
+                throw new IOException("第 " + i + " 层结构错误");
+            }
+            channels[i + 1] = outChannels;
+            if (type == LAYER_ADD) {
+                if (activation != ACTIVATION_NONE) {
+                    throw new IOException("第 " + i + " 层不支持激活函数");
+                }
+                layers[i] = new Layer(input, input2, outChannels, outputScale);
+                continue;
+            }
+            int weightCount;
+            try {
+                weightCount = getWeightCount(type, kernel, channels[input], outChannels);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("第 " + i + " 层类型错误: " + type);
+            }
+            float[] weightScales = new float[outChannels];
+            for (int c = 0; c < outChannels; c++) {
+                weightScales[c] = in.readFloat();
+            }
+            int[] bias = new int[outChannels];
+            for (int c = 0; c < outChannels; c++) {
+                bias[c] = in.readInt();
+            }
+            byte[] weights = new byte[weightCount];
+            in.readFully(weights);
+            float[] slopes = null;
+            if (activation == ACTIVATION_PRELU) {
+                slopes = new float[outChannels];
+                for (int c = 0; c < outChannels; c++) {
+                    slopes[c] = in.readFloat();
+                }
+            }
+            layers[i] = new Layer(type, activation, input, outChannels, kernel, stride, padding, outputScale,
+                    weightScales, bias, weights, slopes);
+        }
+        try {
+            return new FaceEmbeddingModel(inputWidth, inputHeight, inputChannels, inputScale, layers);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("人脸特征模型结构错误: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 按 {@link #load(InputStream)} 的格式写出，用于模型转换工具
+     */
+    public void write(OutputStream outputStream) throws IOException {
+        DataOutputStream out = new DataOutputStream(outputStream);
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(inputWidth);
+        out.writeShort(inputHeight);
+        out.writeShort(inputChannels);
+        out.writeFloat(inputScale);
+        out.writeInt(layers.length);
+        for (Layer layer : layers) {
+            out.writeByte(layer.type);
+            out.writeByte(layer.activation);
+            out.writeShort(layer.input);
+            out.writeShort(layer.input2);
+            out.writeShort(layer.outChannels);
+            out.writeByte(layer.kernel);
+            out.writeByte(layer.stride);
+            out.writeByte(layer.padding);
+            out.writeFloat(layer.outputScale);
+            if (layer.type == LAYER_ADD) {
+                continue;
+            }
+            for (float scale : layer.weightScales) {
+                out.writeFloat(scale);
+            }
+            for (int bias : layer.bias) {
+                out.writeInt(bias);
+            }
+            out.write(layer.weights);
+            if (layer.activation == ACTIVATION_PRELU) {
+                for (float slope : layer.slopes) {
+                    out.writeFloat(slope);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * 网络的一层，卷积层的参数见类注释中的二进制格式
+     */
+    static final class Layer {
+        final int type;
+        final int activation;
+        final int input;
+        final int input2;
+        final int outChannels;
+        final int kernel;
+        final int stride;
+        final int padding;
+        final float outputScale;
+        final float[] weightScales;
+        final int[] bias;
+        final byte[] weights;
+        final float[] slopes;
+
+        /**
+         * 卷积层，slopes 只在 {@link #ACTIVATION_PRELU} 时使用
+         */
+        Layer(int type, int activation, int input, int outChannels, int kernel, int stride, int padding,
+              float outputScale, float[] weightScales, int[] bias, byte[] weights, float[] slopes) {
+            this.type = type;
+            this.activation = activation;
+            this.input = input;
+            this.input2 = -1;
+            this.outChannels = outChannels;
+            this.kernel = kernel;
+            this.stride = stride;
+            this.padding = padding;
+            this.outputScale = outputScale;
+            this.weightScales = weightScales;
+            this.bias = bias;
+            this.weights = weights;
+            this.slopes = slopes;
+        }
+
+        /**
+         * 残差相加层
+         */
+        Layer(int input, int input2, int channels, float outputScale) {
+            this.type = LAYER_ADD;
+            this.activation = ACTIVATION_NONE;
+            this.input = input;
+            this.input2 = input2;
+            this.outChannels = channels;
+            this.kernel = 1;
+            this.stride = 1;
+            this.padding = 0;
+            this.outputScale = outputScale;
+            this.weightScales = null;
+            this.bias = null;
+            this.weights = null;
+            this.slopes = null;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package com.ljm.scanfaceview;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 人脸检测结果的发布/订阅流，界面以外的多个消费者(日志、质量评估、识别等)各自选择回调线程和背压策略
+ * <p>
+ * 发布线程把每一帧检测结果复制到池化的 {@link Event} 中，按每个订阅的策略放入它自己的队列，再把取数据的任务交给订阅的
+ * {@link Executor}，从不等待订阅者。处理慢的订阅者只会丢掉自己的数据，不会拖慢相机线程、UI 线程或其他订阅者。
+ * 背压策略:
+ * {@link #POLICY_LATEST} 只保留最新一帧，来不及处理的被覆盖；
+ * {@link #POLICY_BUFFER} 最多缓存 n 帧，满时丢弃最旧的一帧；
+ * {@link #POLICY_EVERY_NTH} 每 n 帧取一帧，来不及处理时同样只保留最新一帧。
+ * 同一帧的 Event 由所有订阅者共享，只能读取；回调返回后回收，需要在回调之外使用时先 {@link Event#retain()}，用完
+ * {@link Event#release()}。稳态下发布和分发不产生对象分配(Executor 自身的分配除外)。只允许一个发布线程。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/14
+ */
+public final class FaceEventStream {
+    /**
+     * 只保留最新一帧
+     */
+    public static final int POLICY_LATEST = 0;
+    /**
+     * 最多缓存 n 帧，满时丢弃最旧的一帧
+     */
+    public static final int POLICY_BUFFER = 1;
+    /**
+     * 每 n 帧取一帧，只保留最新一帧
+     */
+    public static final int POLICY_EVERY_NTH = 2;
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final int mCapacity;
+    // 写时复制，发布线程遍历时不分配迭代器
+    private volatile Subscription[] mSubscriptions = NO_SUBSCRIPTIONS;
+    // 空闲 Event 组成的栈，只有发布线程取出，任意线程放回，因此没有 ABA 问题
+    private final AtomicReference<Event> mFreeEvents = new AtomicReference<>();
+    // 发布的帧数，只在发布线程写入
+    private volatile long mPublishedCount;
+    // 第一次发布时记录的发布线程，之后从其他线程发布直接抛出异常
+    private final AtomicReference<Thread> mPublisher = new AtomicReference<>();
+
+    /**
+     * @param capacity 每帧最多的人脸数量
+     */
+    FaceEventStream(int capacity) {
+        mCapacity = capacity;
+    }
+
+    /**
+     * 订阅最新一帧，在 executor 上回调
+     */
+    public Subscription subscribe(Executor executor, Subscriber subscriber) {
+        return subscribe(executor, POLICY_LATEST, 1, subscriber);
+    }
+
+    /**
+     * 订阅检测结果，可以在任意线程调用
+     *
+     * @param executor 回调所在的线程，同一个订阅的回调不会并发；在发布线程直接执行的 Executor 会拖慢发布线程
+     * @param policy   POLICY_*
+     * @param n        POLICY_BUFFER 的缓存帧数或 POLICY_EVERY_NTH 的间隔，POLICY_LATEST 时忽略
+     */
+    public Subscription subscribe(Executor executor, int policy, int n, Subscriber subscriber) {
+        if (policy < POLICY_LATEST || policy > POLICY_EVERY_NTH) {
+            throw new IllegalArgumentException("Unknown policy: " + policy);
+        }
+        if (n < 1) {
+            throw new IllegalArgumentException("n must be positive.");
+        }
+        Subscription subscription = new Subscription(executor, policy, n, subscriber);
+        synchronized (this) {
+            Subscription[] old = mSubscriptions;
+            Subscription[] subscriptions = new Subscription[old.length + 1];
+            System.arraycopy(old, 0, subscriptions, 0, old.length);
+            subscriptions[old.length] = subscription;
+            mSubscriptions = subscriptions;
+        }
+        return subscription;
+    }
+
+    private synchronized void remove(Subscription subscription) {
+        Subscription[] old = mSubscriptions;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == subscription) {
+                Subscription[] subscriptions = old.length == 1 ? NO_SUBSCRIPTIONS : new Subscription[old.length - 1];
+                System.arraycopy(old, 0, subscriptions, 0, i);
+                System.arraycopy(old, i + 1, subscriptions, i, old.length - i - 1);
+                mSubscriptions = subscriptions;
+                return;
+            }
+        }
+    }
+
+    boolean hasSubscribers() {
+        return mSubscriptions.length > 0;
+    }
+
+    /**
+     * 发布线程复制 faceFrame 并交给所有订阅，没有订阅时不做任何事
+     * <p>
+     * Event 池的取出和发布计数都只允许一个线程，第一次调用的线程就是发布线程，之后在其他线程调用抛出
+     * {@link IllegalStateException}。
+     */
+    void publish(FaceFrame faceFrame) {
+        Thread current = Thread.currentThread();
+        if (mPublisher.get() != current && !mPublisher.compareAndSet(null, current)) {
+            throw new IllegalStateException("Published from " + current.getName()
+                    + ", but the publisher thread is " + mPublisher.get().getName() + ".");
+        }
+        Subscription[] subscriptions = mSubscriptions;
+        if (subscriptions.length == 0) {
+            return;
+        }
+        Event event = obtainEvent();
+        event.mFaceFrame.copyFrom(faceFrame);
+        // 发布线程先持有一个引用，分发完再释放，避免第一个订阅处理完时就被回收
+        event.mRefCount.set(1);
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+        event.release();
+        mPublishedCount++;
+    }
+
+    private Event obtainEvent() {
+        while (true) {
+            Event head = mFreeEvents.get();
+            if (head == null) {
+                // 池中没有空闲的 Event 时创建，数量达到稳态后不再分配
+                return new Event(this, mCapacity);
+            }
+            if (mFreeEvents.compareAndSet(head, head.mNextFree)) {
+                head.mNextFree = null;
+                return head;
+            }
+        }
+    }
+
+    private void recycle(Event event) {
+        Event head;
+        do {
+            head = mFreeEvents.get();
+            event.mNextFree = head;
+        } while (!mFreeEvents.compareAndSet(head, event));
+    }
+
+    long getPublishedCount() {
+        return mPublishedCount;
+    }
+
+    /**
+     * 一帧检测结果，所有订阅共享，引用计数归零后回收复用
+     */
+    public static final class Event {
+        private final FaceEventStream mStream;
+        private final FaceFrame mFaceFrame;
+        private final AtomicInteger mRefCount = new AtomicInteger();
+        private Event mNextFree;
+
+        private Event(FaceEventStream stream, int capacity) {
+            mStream = stream;
+            mFaceFrame = new FaceFrame(capacity);
+        }
+
+        /**
+         * 预览坐标的人脸，只能读取
+         */
+        public FaceFrame getFaceFrame() {
+            return mFaceFrame;
+        }
+
+        /**
+         * 检测结果产生的时间，System.nanoTime 基准
+         */
+        public long getTimestampNs() {
+            return mFaceFrame.getTimestampNs();
+        }
+
+        public long getFrameNumber() {
+            return mFaceFrame.getFrameNumber();
+        }
+
+        /**
+         * 在回调之外继续使用前调用，用完后调用 {@link #release()}
+         */
+        public void retain() {
+            mRefCount.incrementAndGet();
+        }
+
+        public void release() {
+            int refCount = mRefCount.decrementAndGet();
+            if (refCount == 0) {
+                mStream.recycle(this);
+            } else if (refCount < 0) {
+                throw new IllegalStateException("Event released too many times.");
+            }
+        }
+    }
+
+    /**
+     * 一个订阅，发布线程按策略放入数据，订阅的 Executor 取出回调
+     */
+    public final class Subscription {
+        private final Executor mExecutor;
+        private final int mPolicy;
+        private final int mN;
+        private final Subscriber mSubscriber;
+        // POLICY_LATEST 和 POLICY_EVERY_NTH 等待回调的一帧
+        private final AtomicReference<Event> mLatest = new AtomicReference<>();
+        // POLICY_BUFFER 等待回调的数据
+        private final ArrayBlockingQueue<Event> mQueue;
+        // 是否已经把取数据的任务交给 Executor
+        private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+        private final Runnable mDrainTask = this::drain;
+        private volatile boolean mCancelled;
+        // POLICY_EVERY_NTH 距上次取帧后跳过的帧数，只在发布线程访问
+        private int mSkipped;
+        // 来不及回调而丢弃的帧数，只在发布线程写入
+        private volatile long mDroppedCount;
+        // 回调的帧数，只在回调线程写入
+        private volatile long mDeliveredCount;
+
+        private Subscription(Executor executor, int policy, int n, Subscriber subscriber) {
+            mExecutor = executor;
+            mPolicy = policy;
+            mN = n;
+            mSubscriber = subscriber;
+            mQueue = policy == POLICY_BUFFER ? new ArrayBlockingQueue<>(n) : null;
+        }
+
+        /**
+         * 发布线程放入一帧，不等待回调
+         */
+        private void offer(Event event) {
+            if (mCancelled) {
+                return;
+            }
+            if (mPolicy == POLICY_EVERY_NTH) {
+                boolean take = mSkipped == 0;
+                mSkipped = (mSkipped + 1) % mN;
+                if (!take) {
+                    return;
+                }
+            }
+            event.retain();
+            if (mPolicy == POLICY_BUFFER) {
+                if (!mQueue.offer(event)) {
+                    Event oldest = mQueue.poll();
+                    if (oldest != null) {
+                        oldest.release();
+                        mDroppedCount++;
+                    }
+                    // 只有回调线程和取消时会取出数据，这里一定有空位
+                    if (!mQueue.offer(event)) {
+                        event.release();
+                        mDroppedCount++;
+                    }
+                }
+            } else {
+                Event old = mLatest.getAndSet(event);
+                if (old != null) {
+                    old.release();
+                    mDroppedCount++;
+                }
+            }
+            if (mScheduled.compareAndSet(false, true)) {
+                try {
+                    mExecutor.execute(mDrainTask);
+                } catch (RejectedExecutionException e) {
+                    // Executor 已经关闭，不会再有回调
+                    mScheduled.set(false);
+                    cancel();
+                }
+            }
+        }
+
+        private Event take() {
+            return mQueue != null ? mQueue.poll() : mLatest.getAndSet(null);
+        }
+
+        private boolean hasPending() {
+            return mQueue != null ? !mQueue.isEmpty() : mLatest.get() != null;
+        }
+
+        private void drain() {
+            do {
+                Event event;
+                while ((event = take()) != null) {
+                    try {
+                        if (!mCancelled) {
+                            mDeliveredCount++;
+                            mSubscriber.onFaceEvent(event);
+                        }
+                    } finally {
+                        event.release();
+                    }
+                }
+                mScheduled.set(false);
+                // 清除标记后放入的数据由发布线程重新提交任务，清除前放入、还没取走的数据在这里继续处理
+            } while (hasPending() && mScheduled.compareAndSet(false, true));
+        }
+
+        /**
+         * 取消订阅，可以在任意线程调用；已经开始的回调会执行完，之后不再回调
+         */
+        public void cancel() {
+            mCancelled = true;
+            remove(this);
+            Event event;
+            while ((event = take()) != null) {
+                event.release();
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+
+        public long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        /**
+         * 来不及回调而被覆盖或挤出缓存的帧数，POLICY_EVERY_NTH 按间隔跳过的帧不计入
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        @Override
+        public String toString() {
+            return "policy=" + mPolicy + " n=" + mN + " delivered=" + mDeliveredCount + " dropped=" + mDroppedCount;
+        }
+    }
+
+    public interface Subscriber {
+        /**
+         * 在订阅时指定的 Executor 上回调，event 在回调返回后回收，需要保留时先调用 {@link Event#retain()}
+         */
+        void onFaceEvent(Event event);
+    }
+}
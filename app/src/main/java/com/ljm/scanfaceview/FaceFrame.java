@@ -0,0 +1,165 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 一帧人脸检测结果的快照
+ * <p>
+ * 人脸框以 left, top, right, bottom 顺序紧凑存放在 float 数组中，容量在创建时固定，
+ * 由 {@link FaceFrameBuffer} 循环复用，稳态下不产生任何对象分配。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/14
+ */
+public final class FaceFrame {
+    /**
+     * 每个人脸框占用的 float 个数
+     */
+    public static final int RECT_STRIDE = 4;
+    /**
+     * 没有跟踪 id 的人脸
+     */
+    public static final int NO_ID = -1;
+
+    private final float[] mRects;
+    private final float[] mScores;
+    private final int[] mIds;
+    private final int[] mStates;
+    private int mCount;
+    private long mTimestampNs;
+    private long mFrameNumber;
+
+    public FaceFrame(int capacity) {
+        mRects = new float[capacity * RECT_STRIDE];
+        mScores = new float[capacity];
+        mIds = new int[capacity];
+        mStates = new int[capacity];
+    }
+
+    public int getCapacity() {
+        return mScores.length;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    public float getLeft(int index) {
+        return mRects[index * RECT_STRIDE];
+    }
+
+    public float getTop(int index) {
+        return mRects[index * RECT_STRIDE + 1];
+    }
+
+    public float getRight(int index) {
+        return mRects[index * RECT_STRIDE + 2];
+    }
+
+    public float getBottom(int index) {
+        return mRects[index * RECT_STRIDE + 3];
+    }
+
+    public float getCenterX(int index) {
+        return (getLeft(index) + getRight(index)) / 2.0f;
+    }
+
+    public float getCenterY(int index) {
+        return (getTop(index) + getBottom(index)) / 2.0f;
+    }
+
+    public float getScore(int index) {
+        return mScores[index];
+    }
+
+    /**
+     * 获取人脸的跟踪 id，未经过 {@link FaceTracker} 时为 {@link #NO_ID}
+     */
+    public int getId(int index) {
+        return mIds[index];
+    }
+
+    /**
+     * 获取人脸的跟踪状态，见 {@link FaceTracker#STATE_CONFIRMED} 等
+     */
+    public int getState(int index) {
+        return mStates[index];
+    }
+
+    /**
+     * 获取帧的时间戳，单位纳秒，与 {@link System#nanoTime()} 同一时基
+     */
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    public long getFrameNumber() {
+        return mFrameNumber;
+    }
+
+    /**
+     * 人脸框数组，left, top, right, bottom 紧凑存放，只读
+     */
+    float[] getRectArray() {
+        return mRects;
+    }
+
+    /**
+     * 人脸分数数组，只读
+     */
+    float[] getScoreArray() {
+        return mScores;
+    }
+
+    /**
+     * 开始写入新的一帧，清空之前的人脸
+     */
+    void reset(long frameNumber, long timestampNs) {
+        mCount = 0;
+        mFrameNumber = frameNumber;
+        mTimestampNs = timestampNs;
+    }
+
+    /**
+     * 追加一个人脸框，超出容量时丢弃
+     *
+     * @return 是否添加成功
+     */
+    public boolean add(float left, float top, float right, float bottom, float score) {
+        return add(left, top, right, bottom, score, NO_ID, FaceTracker.STATE_CONFIRMED);
+    }
+
+    /**
+     * 追加一个带跟踪信息的人脸框，超出容量时丢弃
+     *
+     * @return 是否添加成功
+     */
+    boolean add(float left, float top, float right, float bottom, float score, int id, int state) {
+        if (mCount >= mScores.length) {
+            return false;
+        }
+        int offset = mCount * RECT_STRIDE;
+        mRects[offset] = left;
+        mRects[offset + 1] = top;
+        mRects[offset + 2] = right;
+        mRects[offset + 3] = bottom;
+        mScores[mCount] = score;
+        mIds[mCount] = id;
+        mStates[mCount] = state;
+        mCount++;
+        return true;
+    }
+
+    void copyFrom(FaceFrame other) {
+        int count = Math.min(other.mCount, mScores.length);
+        System.arraycopy(other.mRects, 0, mRects, 0, count * RECT_STRIDE);
+        System.arraycopy(other.mScores, 0, mScores, 0, count);
+        System.arraycopy(other.mIds, 0, mIds, 0, count);
+        System.arraycopy(other.mStates, 0, mStates, 0, count);
+        mCount = count;
+        mFrameNumber = other.mFrameNumber;
+        mTimestampNs = other.mTimestampNs;
+    }
+}
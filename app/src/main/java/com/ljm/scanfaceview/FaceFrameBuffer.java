@@ -0,0 +1,70 @@
+package com.ljm.scanfaceview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 无锁三缓冲，用于相机线程向 UI 线程传递人脸结果
+ * <p>
+ * 三个 {@link FaceFrame} 分别作为写缓冲(仅写线程访问)、读缓冲(仅读线程访问)和中间缓冲，
+ * 发布和读取时只交换中间缓冲的下标，因此读线程拿到的快照在下一次 {@link #acquire()} 之前不会被改写。
+ * 只允许一个写线程和一个读线程。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/14
+ */
+final class FaceFrameBuffer {
+    private static final int INDEX_MASK = 0x3;
+    // 中间缓冲中有读线程尚未取走的新数据
+    private static final int DIRTY = 0x4;
+
+    private final FaceFrame[] mSlots = new FaceFrame[3];
+    private final AtomicInteger mMiddle = new AtomicInteger(2);
+    // 写缓冲下标，只在写线程访问
+    private int mBack = 0;
+    // 读缓冲下标，只在读线程访问
+    private int mFront = 1;
+
+    FaceFrameBuffer(int capacity) {
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new FaceFrame(capacity);
+        }
+    }
+
+    /**
+     * 写线程获取可写入的缓冲，写完后调用 {@link #publish()}
+     */
+    FaceFrame obtain() {
+        return mSlots[mBack];
+    }
+
+    /**
+     * 写线程发布已写好的缓冲
+     *
+     * @return 是否覆盖了一帧读线程还没取走的数据
+     */
+    boolean publish() {
+        int previous = mMiddle.getAndSet(mBack | DIRTY);
+        mBack = previous & INDEX_MASK;
+        return (previous & DIRTY) != 0;
+    }
+
+    /**
+     * 读线程取最新发布的一帧
+     *
+     * @return 最新的一帧，自上次读取后没有新数据时返回 null
+     */
+    FaceFrame acquire() {
+        if ((mMiddle.get() & DIRTY) == 0) {
+            return null;
+        }
+        mFront = mMiddle.getAndSet(mFront) & INDEX_MASK;
+        return mSlots[mFront];
+    }
+
+    /**
+     * 读线程当前持有的一帧
+     */
+    FaceFrame current() {
+        return mSlots[mFront];
+    }
+}
@@ -0,0 +1,740 @@
+package com.ljm.scanfaceview;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 本地人脸库，在内存映射的定长记录文件中保存人脸特征，按余弦相似度做 1:N 检索
+ * <p>
+ * 文件格式(小端):
+ * <ul>
+ * <li>文件头 {@link #HEADER_SIZE} 字节: magic、版本、特征维数、存储类型，其余保留</li>
+ * <li>之后是定长记录: 人员 id(int)、缩放系数(float)、特征，float32 或 int8，按 4 字节对齐</li>
+ * </ul>
+ * 记录数量由文件长度得出，录入只在文件末尾追加，不改写已有内容，追加中断留下的半条记录在打开时截掉。
+ * 特征在录入和检索时归一化，余弦相似度即点积；int8 按每条特征的最大绝对值量化到 [-127, 127]。
+ * <p>
+ * 检索时把记录按处理器核数分段并行计算，每个线程用自己的基本类型数组保留前 K 个结果后合并；
+ * 记录很多时可以调用 {@link #buildIndex} 建立粗分区索引，检索只扫描离查询最近的几个分区和建立索引后新录入的记录。
+ * 检索和建立索引都在调用线程阻塞，不能在 UI 线程调用。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/11
+ */
+final class FaceGallery implements Closeable {
+    static final int TYPE_FLOAT32 = 0;
+    static final int TYPE_INT8 = 1;
+    // 建议建立粗分区索引的记录数量
+    static final int INDEX_MIN_ENTRIES = 100_000;
+
+    static final int HEADER_SIZE = 32;
+    private static final int MAGIC = 0x4C474653;
+    private static final int VERSION = 1;
+    // 记录中特征之前的人员 id 和缩放系数
+    private static final int RECORD_HEADER_SIZE = 8;
+    // 连续扫描时每次批量复制到数组的记录数量
+    private static final int SCAN_BLOCK_ENTRIES = 64;
+    // 记录少于这个数量时在调用线程检索，不值得分发到多个线程
+    private static final int PARALLEL_MIN_ENTRIES = 4096;
+    // 粗分区 k-means 每个分区的采样数量和迭代次数
+    private static final int INDEX_SAMPLES_PER_PARTITION = 32;
+    private static final int INDEX_ITERATIONS = 8;
+    // 建立索引后新录入的记录超过已索引数量的这个比例时建议重建
+    private static final float INDEX_STALE_RATIO = 0.1f;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final int mDimension;
+    private final int mType;
+    private final int mStride;
+    // 追加写入的一条记录，只在持有 mWriteLock 时访问
+    private final ByteBuffer mRecord;
+    private final float[] mNormalized;
+    private final Object mWriteLock = new Object();
+    // 文件中完整记录的数量，录入后增加
+    private volatile int mCount;
+    // 当前映射和索引，检索时发现记录数量变化后重新映射
+    private volatile Snapshot mSnapshot;
+    private final ExecutorService mExecutor;
+    private final Worker[] mWorkers;
+    // 检索时归一化后的查询
+    private final float[] mQuery;
+
+    private FaceGallery(File file, FileChannel channel, int dimension, int type, int count) {
+        mFile = file;
+        mChannel = channel;
+        mDimension = dimension;
+        mType = type;
+        mStride = getStride(dimension, type);
+        mRecord = ByteBuffer.allocate(mStride).order(ByteOrder.LITTLE_ENDIAN);
+        mNormalized = new float[dimension];
+        mQuery = new float[dimension];
+        mCount = count;
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors());
+        mWorkers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            mWorkers[i] = new Worker();
+        }
+        mExecutor = threads > 1 ? Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "FaceGalleryWorker");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * 打开人脸库文件，不存在时按 dimension 和 type 创建；已存在时维数和存储类型必须一致
+     *
+     * @param type {@link #TYPE_FLOAT32} 或 {@link #TYPE_INT8}
+     */
+    static FaceGallery open(File file, int dimension, int type) throws IOException {
+        if (dimension <= 0) {
+            throw new IllegalArgumentException("Dimension must be positive.");
+        }
+        if (type != TYPE_FLOAT32 && type != TYPE_INT8) {
+            throw new IllegalArgumentException("Unknown storage type: " + type);
+        }
+        FileChannel channel = new RandomAccessFile(file, "rw").getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long size = channel.size();
+            if (size == 0) {
+                header.putInt(MAGIC).putInt(VERSION).putInt(dimension).putInt(type);
+                header.clear();
+                writeFully(channel, header, 0);
+                channel.force(true);
+                size = HEADER_SIZE;
+            } else {
+                if (size < HEADER_SIZE || readFully(channel, header, 0) < HEADER_SIZE
+                        || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("不是人脸库文件: " + file);
+                }
+                if (header.getInt(8) != dimension || header.getInt(12) != type) {
+                    throw new IOException("人脸库特征维数或存储类型不一致: " + file);
+                }
+            }
+            int stride = getStride(dimension, type);
+            long count = (size - HEADER_SIZE) / stride;
+            if (HEADER_SIZE + (count + 1) * stride > Integer.MAX_VALUE) {
+                throw new IOException("人脸库文件过大: " + file);
+            }
+            // 截掉追加中断留下的半条记录
+            if (size != HEADER_SIZE + count * stride) {
+                channel.truncate(HEADER_SIZE + count * stride);
+            }
+            FaceGallery gallery = new FaceGallery(file, channel, dimension, type, (int) count);
+            gallery.remap(null);
+            return gallery;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    int getDimension() {
+        return mDimension;
+    }
+
+    int getType() {
+        return mType;
+    }
+
+    int size() {
+        return mCount;
+    }
+
+    /**
+     * 在文件末尾追加一条特征，下一次检索时可见
+     *
+     * @param sync 是否等待写入存储设备，批量录入时只在最后一条设置
+     * @return 新记录的序号
+     */
+    int enroll(int personId, float[] embedding, boolean sync) throws IOException {
+        if (embedding.length != mDimension) {
+            throw new IllegalArgumentException("Embedding dimension " + embedding.length + " != " + mDimension);
+        }
+        synchronized (mWriteLock) {
+            if ((long) HEADER_SIZE + (long) (mCount + 2) * mStride > Integer.MAX_VALUE) {
+                throw new IOException("人脸库文件过大: " + mFile);
+            }
+            normalize(embedding, mNormalized);
+            mRecord.clear();
+            mRecord.putInt(personId);
+            if (mType == TYPE_FLOAT32) {
+                mRecord.putFloat(1);
+                for (float value : mNormalized) {
+                    mRecord.putFloat(value);
+                }
+            } else {
+                float maxAbs = 0;
+                for (float value : mNormalized) {
+                    maxAbs = Math.max(maxAbs, Math.abs(value));
+                }
+                float scale = maxAbs > 0 ? maxAbs / 127 : 1;
+                mRecord.putFloat(scale);
+                for (float value : mNormalized) {
+                    mRecord.put((byte) Math.round(value / scale));
+                }
+            }
+            mRecord.clear();
+            int index = mCount;
+            writeFully(mChannel, mRecord, HEADER_SIZE + (long) index * mStride);
+            if (sync) {
+                mChannel.force(false);
+            }
+            mCount = index + 1;
+            return index;
+        }
+    }
+
+    /**
+     * 检索与 query 余弦相似度最高的 k 条记录，同一个人录入多条特征时可能出现多次
+     *
+     * @param outPersonIds 至少 k 个元素，按相似度从高到低写入人员 id
+     * @param outScores    至少 k 个元素，对应的余弦相似度
+     * @return 结果数量，记录少于 k 条时小于 k
+     */
+    synchronized int search(float[] query, int k, int[] outPersonIds, float[] outScores) {
+        if (query.length != mDimension) {
+            throw new IllegalArgumentException("Query dimension " + query.length + " != " + mDimension);
+        }
+        if (k <= 0) {
+            throw new IllegalArgumentException("K must be positive.");
+        }
+        Snapshot snapshot = mSnapshot;
+        if (snapshot.count != mCount) {
+            snapshot = remap(snapshot.index);
+        }
+        normalize(query, mQuery);
+        Worker first = mWorkers[0];
+        first.begin(snapshot, mQuery, k);
+        Index index = snapshot.index;
+        if (index != null) {
+            index.search(first, mQuery);
+            // 建立索引后录入的记录逐条比较
+            first.scan(index.indexedCount, snapshot.count);
+            return first.copyTo(outPersonIds, outScores);
+        }
+        int count = snapshot.count;
+        int workers = mExecutor == null || count < PARALLEL_MIN_ENTRIES ? 1 : mWorkers.length;
+        if (workers == 1) {
+            first.scan(0, count);
+            return first.copyTo(outPersonIds, outScores);
+        }
+        CountDownLatch latch = new CountDownLatch(workers - 1);
+        for (int i = 1; i < workers; i++) {
+            Worker worker = mWorkers[i];
+            worker.begin(snapshot, mQuery, k);
+            int start = (int) ((long) count * i / workers);
+            int end = (int) ((long) count * (i + 1) / workers);
+            mExecutor.execute(() -> {
+                try {
+                    worker.scan(start, end);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        first.scan(0, (int) ((long) count / workers));
+        awaitUninterruptibly(latch);
+        for (int i = 1; i < workers; i++) {
+            Worker worker = mWorkers[i];
+            for (int j = 0; j < worker.resultCount; j++) {
+                first.offer(worker.resultIds[j], worker.resultScores[j]);
+            }
+        }
+        return first.copyTo(outPersonIds, outScores);
+    }
+
+    /**
+     * 等待所有分段扫描完成再合并，分段很短，被中断时继续等待，返回前恢复中断标记；
+     * 提前返回会合并不完整的结果，而且下一次检索会与还在运行的分段共用 {@link Worker}
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 记录数量达到 {@link #INDEX_MIN_ENTRIES} 且还没有索引，或索引后新录入的记录较多时返回 true
+     */
+    boolean needsIndex() {
+        int count = mCount;
+        if (count < INDEX_MIN_ENTRIES) {
+            return false;
+        }
+        Index index = mSnapshot.index;
+        return index == null || count - index.indexedCount > index.indexedCount * INDEX_STALE_RATIO;
+    }
+
+    /**
+     * 用 k-means 把当前所有记录分到 sqrt(N) 个分区，之后的检索只扫描 probes 个最近分区，耗时较长，在后台线程调用
+     * <p>
+     * 调用线程被中断时放弃建立，保留原来的索引(或继续暴力检索)并保留中断标记。
+     *
+     * @param probes 检索时扫描的分区数量，越大召回率越高
+     * @return 是否建立并启用了新索引，没有记录或被中断时为 false
+     */
+    boolean buildIndex(int probes) {
+        if (probes <= 0) {
+            throw new IllegalArgumentException("Probes must be positive.");
+        }
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = mSnapshot.count == mCount ? mSnapshot : remap(mSnapshot.index);
+        }
+        int count = snapshot.count;
+        if (count == 0) {
+            return false;
+        }
+        int partitions = Math.max(1, (int) Math.sqrt(count));
+        Index index = new Index(snapshot, partitions, Math.min(probes, partitions));
+        index.train();
+        if (!index.assign(mExecutor, mWorkers.length)) {
+            // 只分配了部分记录的索引会漏掉其余记录，不能启用
+            return false;
+        }
+        synchronized (this) {
+            // 建立索引期间可能有新录入，映射沿用最新的
+            mSnapshot = new Snapshot(mSnapshot.buffer, mSnapshot.count, index);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+        mChannel.close();
+    }
+
+    private synchronized Snapshot remap(Index index) {
+        int count = mCount;
+        try {
+            ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) count * mStride)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            mSnapshot = new Snapshot(buffer, count, index);
+        } catch (IOException e) {
+            // 映射失败时继续使用旧的映射，新录入的记录暂时检索不到
+            TraceLog.w("FaceGallery", "映射人脸库失败");
+        }
+        return mSnapshot;
+    }
+
+    private static int getStride(int dimension, int type) {
+        int vectorSize = type == TYPE_FLOAT32 ? dimension * 4 : (dimension + 3) & ~3;
+        return RECORD_HEADER_SIZE + vectorSize;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | (bytes[offset + 1] & 0xff) << 8 | (bytes[offset + 2] & 0xff) << 16
+                | bytes[offset + 3] << 24;
+    }
+
+    private static void normalize(float[] src, float[] dst) {
+        double sum = 0;
+        for (float value : src) {
+            sum += value * value;
+        }
+        float inverse = sum > 0 ? (float) (1 / Math.sqrt(sum)) : 0;
+        for (int i = 0; i < src.length; i++) {
+            dst[i] = src[i] * inverse;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * 某一时刻的映射和索引，不可变，检索期间录入不影响正在进行的检索
+     */
+    private final class Snapshot {
+        final ByteBuffer buffer;
+        final int count;
+        final Index index;
+
+        Snapshot(ByteBuffer buffer, int count, Index index) {
+            this.buffer = buffer;
+            this.count = count;
+            this.index = index;
+        }
+    }
+
+    /**
+     * 一个线程的检索状态和前 K 个结果，数组在创建时分配
+     */
+    private final class Worker {
+        // 一批记录的原始内容，float32 按 float 读取，int8 按字节读取
+        private final float[] mBlockFloats;
+        private final byte[] mBlockBytes;
+        private ByteBuffer mBuffer;
+        // 各线程自己的视图，批量读取时移动 position 不影响其他线程
+        private ByteBuffer mByteView;
+        private FloatBuffer mFloatBuffer;
+        private float[] mQueryRef;
+        private int mK;
+        int[] resultIds = new int[16];
+        float[] resultScores = new float[16];
+        int resultCount;
+
+        Worker() {
+            mBlockFloats = mType == TYPE_FLOAT32 ? new float[SCAN_BLOCK_ENTRIES * mStride / 4] : null;
+            mBlockBytes = mType == TYPE_INT8 ? new byte[SCAN_BLOCK_ENTRIES * mStride] : null;
+        }
+
+        void begin(Snapshot snapshot, float[] query, int k) {
+            if (mBuffer != snapshot.buffer) {
+                mBuffer = snapshot.buffer;
+                mByteView = snapshot.buffer.duplicate();
+                mFloatBuffer = mType == TYPE_FLOAT32
+                        ? snapshot.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer() : null;
+            }
+            mQueryRef = query;
+            mK = k;
+            if (resultIds.length < k) {
+                resultIds = new int[k];
+                resultScores = new float[k];
+            }
+            resultCount = 0;
+        }
+
+        /**
+         * 计算 [start, end) 记录与查询的点积，每次批量复制 {@link #SCAN_BLOCK_ENTRIES} 条记录到数组再计算
+         */
+        void scan(int start, int end) {
+            for (int block = start; block < end; block += SCAN_BLOCK_ENTRIES) {
+                int count = Math.min(SCAN_BLOCK_ENTRIES, end - block);
+                read(block, count);
+                for (int i = 0; i < count; i++) {
+                    scoreBlock(i);
+                }
+            }
+        }
+
+        /**
+         * 计算单条记录，粗分区索引按分区访问不连续的记录时使用
+         */
+        void score(int entry) {
+            read(entry, 1);
+            scoreBlock(0);
+        }
+
+        private void read(int entry, int count) {
+            int base = HEADER_SIZE + entry * mStride;
+            if (mType == TYPE_FLOAT32) {
+                mFloatBuffer.position(base / 4);
+                mFloatBuffer.get(mBlockFloats, 0, count * mStride / 4);
+            } else {
+                mByteView.position(base);
+                mByteView.get(mBlockBytes, 0, count * mStride);
+            }
+        }
+
+        private void scoreBlock(int index) {
+            if (mType == TYPE_FLOAT32) {
+                float[] values = mBlockFloats;
+                int offset = index * (mStride / 4);
+                offer(Float.floatToRawIntBits(values[offset]), dotFloat(values, offset + RECORD_HEADER_SIZE / 4));
+            } else {
+                byte[] values = mBlockBytes;
+                int offset = index * mStride;
+                float scale = Float.intBitsToFloat(readInt(values, offset + 4));
+                offer(readInt(values, offset), dotInt8(values, offset + RECORD_HEADER_SIZE) * scale);
+            }
+        }
+
+        private float dotFloat(float[] values, int offset) {
+            float[] query = mQueryRef;
+            float sum = 0;
+            for (int j = 0; j < mDimension; j++) {
+                sum += values[offset + j] * query[j];
+            }
+            return sum;
+        }
+
+        /**
+         * 四路累加减少浮点加法的依赖链，字节转浮点的开销可以被并行的乘加掩盖
+         */
+        private float dotInt8(byte[] values, int offset) {
+            float[] query = mQueryRef;
+            int dimension = mDimension;
+            float sum0 = 0;
+            float sum1 = 0;
+            float sum2 = 0;
+            float sum3 = 0;
+            int j = 0;
+            for (; j + 3 < dimension; j += 4) {
+                sum0 += values[offset + j] * query[j];
+                sum1 += values[offset + j + 1] * query[j + 1];
+                sum2 += values[offset + j + 2] * query[j + 2];
+                sum3 += values[offset + j + 3] * query[j + 3];
+            }
+            for (; j < dimension; j++) {
+                sum0 += values[offset + j] * query[j];
+            }
+            return sum0 + sum1 + sum2 + sum3;
+        }
+
+        /**
+         * 按分数从高到低插入，已有 k 个结果且不高于最低分时直接丢弃
+         */
+        void offer(int personId, float score) {
+            if (resultCount == mK && score <= resultScores[resultCount - 1]) {
+                return;
+            }
+            int i = resultCount == mK ? resultCount - 1 : resultCount++;
+            while (i > 0 && resultScores[i - 1] < score) {
+                resultIds[i] = resultIds[i - 1];
+                resultScores[i] = resultScores[i - 1];
+                i--;
+            }
+            resultIds[i] = personId;
+            resultScores[i] = score;
+        }
+
+        int copyTo(int[] outPersonIds, float[] outScores) {
+            System.arraycopy(resultIds, 0, outPersonIds, 0, resultCount);
+            System.arraycopy(resultScores, 0, outScores, 0, resultCount);
+            return resultCount;
+        }
+    }
+
+    /**
+     * 粗分区索引: 分区中心和按分区排列的记录序号，只覆盖建立时的前 indexedCount 条记录
+     */
+    private final class Index {
+        final int indexedCount;
+        private final Snapshot mSnapshot;
+        private final int mPartitions;
+        private final int mProbes;
+        private final float[] mCentroids;
+        // 按分区排列的记录序号，分区 p 的记录是 mEntries[mOffsets[p], mOffsets[p + 1])
+        private final int[] mEntries;
+        private final int[] mOffsets;
+        private final int[] mAssignments;
+        // 检索时每个分区与查询的点积和选出的分区，只在持有 FaceGallery 锁时访问
+        private final float[] mCentroidScores;
+        private final int[] mProbeList;
+
+        Index(Snapshot snapshot, int partitions, int probes) {
+            indexedCount = snapshot.count;
+            mSnapshot = snapshot;
+            mPartitions = partitions;
+            mProbes = probes;
+            mCentroids = new float[partitions * mDimension];
+            mEntries = new int[indexedCount];
+            mOffsets = new int[partitions + 1];
+            mAssignments = new int[indexedCount];
+            mCentroidScores = new float[partitions];
+            mProbeList = new int[probes];
+        }
+
+        /**
+         * 在均匀采样的记录上做球面 k-means，中心保持单位长度
+         */
+        void train() {
+            int samples = Math.min(indexedCount, mPartitions * INDEX_SAMPLES_PER_PARTITION);
+            float[] vectors = new float[samples * mDimension];
+            for (int s = 0; s < samples; s++) {
+                readVector((int) ((long) s * indexedCount / samples), vectors, s * mDimension);
+            }
+            for (int p = 0; p < mPartitions; p++) {
+                System.arraycopy(vectors, (int) ((long) p * samples / mPartitions) * mDimension, mCentroids, p * mDimension, mDimension);
+            }
+            int[] labels = new int[samples];
+            int[] sizes = new int[mPartitions];
+            float[] sums = new float[mPartitions * mDimension];
+            for (int iteration = 0; iteration < INDEX_ITERATIONS; iteration++) {
+                for (int s = 0; s < samples; s++) {
+                    labels[s] = nearest(vectors, s * mDimension);
+                }
+                Arrays.fill(sums, 0);
+                Arrays.fill(sizes, 0);
+                for (int s = 0; s < samples; s++) {
+                    int offset = labels[s] * mDimension;
+                    for (int j = 0; j < mDimension; j++) {
+                        sums[offset + j] += vectors[s * mDimension + j];
+                    }
+                    sizes[labels[s]]++;
+                }
+                for (int p = 0; p < mPartitions; p++) {
+                    if (sizes[p] == 0) {
+                        // 空分区保留原中心
+                        continue;
+                    }
+                    double norm = 0;
+                    for (int j = 0; j < mDimension; j++) {
+                        norm += sums[p * mDimension + j] * sums[p * mDimension + j];
+                    }
+                    float inverse = norm > 0 ? (float) (1 / Math.sqrt(norm)) : 0;
+                    for (int j = 0; j < mDimension; j++) {
+                        mCentroids[p * mDimension + j] = sums[p * mDimension + j] * inverse;
+                    }
+                }
+            }
+        }
+
+        /**
+         * 把所有记录分到最近的分区，按线程数分段并行，再按分区计数排序
+         *
+         * @return 调用线程被中断时取消剩余分段并返回 false，索引不完整
+         */
+        boolean assign(ExecutorService executor, int threads) {
+            if (executor == null || threads == 1) {
+                assignRange(0, indexedCount);
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+            } else {
+                List<Future<?>> futures = new ArrayList<>(threads);
+                for (int t = 0; t < threads; t++) {
+                    int start = (int) ((long) indexedCount * t / threads);
+                    int end = (int) ((long) indexedCount * (t + 1) / threads);
+                    futures.add(executor.submit((Callable<Void>) () -> {
+                        assignRange(start, end);
+                        return null;
+                    }));
+                }
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (InterruptedException e) {
+                        for (Future<?> pending : futures) {
+                            pending.cancel(true);
+                        }
+                        Thread.currentThread().interrupt();
+                        return false;
+                    } catch (ExecutionException e) {
+                        throw new IllegalStateException(e.getCause());
+                    }
+                }
+            }
+            for (int assignment : mAssignments) {
+                mOffsets[assignment + 1]++;
+            }
+            for (int p = 0; p < mPartitions; p++) {
+                mOffsets[p + 1] += mOffsets[p];
+            }
+            int[] next = mOffsets.clone();
+            for (int i = 0; i < indexedCount; i++) {
+                mEntries[next[mAssignments[i]]++] = i;
+            }
+            return true;
+        }
+
+        private void assignRange(int start, int end) {
+            float[] vector = new float[mDimension];
+            for (int i = start; i < end; i++) {
+                readVector(i, vector, 0);
+                mAssignments[i] = nearest(vector, 0);
+            }
+        }
+
+        /**
+         * 扫描与查询最近的 {@link #mProbes} 个分区
+         */
+        void search(Worker worker, float[] query) {
+            for (int p = 0; p < mPartitions; p++) {
+                float sum = 0;
+                int offset = p * mDimension;
+                for (int j = 0; j < mDimension; j++) {
+                    sum += mCentroids[offset + j] * query[j];
+                }
+                mCentroidScores[p] = sum;
+            }
+            // 分区不多，逐个挑选最高分
+            for (int n = 0; n < mProbes; n++) {
+                int best = -1;
+                for (int p = 0; p < mPartitions; p++) {
+                    if (mCentroidScores[p] != Float.NEGATIVE_INFINITY && (best < 0 || mCentroidScores[p] > mCentroidScores[best])) {
+                        best = p;
+                    }
+                }
+                mProbeList[n] = best;
+                mCentroidScores[best] = Float.NEGATIVE_INFINITY;
+            }
+            for (int n = 0; n < mProbes; n++) {
+                int p = mProbeList[n];
+                for (int i = mOffsets[p]; i < mOffsets[p + 1]; i++) {
+                    worker.score(mEntries[i]);
+                }
+            }
+        }
+
+        private int nearest(float[] vectors, int offset) {
+            int best = 0;
+            float bestScore = Float.NEGATIVE_INFINITY;
+            for (int p = 0; p < mPartitions; p++) {
+                float sum = 0;
+                int centroid = p * mDimension;
+                for (int j = 0; j < mDimension; j++) {
+                    sum += mCentroids[centroid + j] * vectors[offset + j];
+                }
+                if (sum > bestScore) {
+                    best = p;
+                    bestScore = sum;
+                }
+            }
+            return best;
+        }
+
+        /**
+         * 读出一条记录还原后的特征
+         */
+        private void readVector(int entry, float[] out, int offset) {
+            int base = HEADER_SIZE + entry * mStride;
+            ByteBuffer buffer = mSnapshot.buffer;
+            if (mType == TYPE_FLOAT32) {
+                for (int j = 0; j < mDimension; j++) {
+                    out[offset + j] = buffer.getFloat(base + RECORD_HEADER_SIZE + j * 4);
+                }
+            } else {
+                float scale = buffer.getFloat(base + 4);
+                for (int j = 0; j < mDimension; j++) {
+                    out[offset + j] = buffer.get(base + RECORD_HEADER_SIZE + j) * scale;
+                }
+            }
+        }
+    }
+}
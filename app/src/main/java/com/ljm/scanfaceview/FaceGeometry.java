@@ -0,0 +1,133 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 一次绘制中所有人脸框的几何信息
+ * <p>
+ * 由 {@link FaceBox#drawFaceBox} 填写中心点和尺寸，{@link ScanFaceView} 再填写是否在扫描框内以及到扫描框中心的距离，
+ * 提示和引导逻辑据此选择合适的人脸。实例在绘制之间复用，不产生对象分配，只能在 UI 线程访问。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/25
+ */
+public final class FaceGeometry {
+    /**
+     * 没有合适的人脸
+     */
+    public static final int NO_INDEX = -1;
+
+    private final float[] mCenterX;
+    private final float[] mCenterY;
+    private final float[] mWidth;
+    private final float[] mHeight;
+    private final int[] mIds;
+    private final int[] mStates;
+    private final boolean[] mInMask;
+    // 人脸中心到扫描框中心的距离
+    private final float[] mDistance;
+    private int mCount;
+
+    public FaceGeometry(int capacity) {
+        mCenterX = new float[capacity];
+        mCenterY = new float[capacity];
+        mWidth = new float[capacity];
+        mHeight = new float[capacity];
+        mIds = new int[capacity];
+        mStates = new int[capacity];
+        mInMask = new boolean[capacity];
+        mDistance = new float[capacity];
+    }
+
+    public int getCapacity() {
+        return mCenterX.length;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    public float getCenterX(int index) {
+        return mCenterX[index];
+    }
+
+    public float getCenterY(int index) {
+        return mCenterY[index];
+    }
+
+    public float getWidth(int index) {
+        return mWidth[index];
+    }
+
+    public float getHeight(int index) {
+        return mHeight[index];
+    }
+
+    /**
+     * 对应 {@link FaceFrame#getId(int)}
+     */
+    public int getId(int index) {
+        return mIds[index];
+    }
+
+    /**
+     * 对应 {@link FaceFrame#getState(int)}
+     */
+    public int getState(int index) {
+        return mStates[index];
+    }
+
+    /**
+     * 人脸中心是否在扫描框内，即至少有一半人脸在扫描框内
+     */
+    public boolean isInMask(int index) {
+        return mInMask[index];
+    }
+
+    public float getDistance(int index) {
+        return mDistance[index];
+    }
+
+    /**
+     * 获取中心在扫描框内、离扫描框中心最近的人脸
+     *
+     * @return 人脸序号，没有人脸在扫描框内时返回 {@link #NO_INDEX}
+     */
+    public int getNearestInMask() {
+        int nearest = NO_INDEX;
+        for (int i = 0; i < mCount; i++) {
+            if (mInMask[i] && (nearest == NO_INDEX || mDistance[i] < mDistance[nearest])) {
+                nearest = i;
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * @return 两点之间的直线距离
+     */
+    static float getDistance(float x1, float y1, float x2, float y2) {
+        double dx = Math.pow(x2 - x1, 2);
+        double dy = Math.pow(y2 - y1, 2);
+        return (float) Math.sqrt(dx + dy);
+    }
+
+    void reset() {
+        mCount = 0;
+    }
+
+    void add(float centerX, float centerY, float width, float height, int id, int state) {
+        int i = mCount++;
+        mCenterX[i] = centerX;
+        mCenterY[i] = centerY;
+        mWidth[i] = width;
+        mHeight[i] = height;
+        mIds[i] = id;
+        mStates[i] = state;
+        mInMask[i] = false;
+        mDistance[i] = Float.MAX_VALUE;
+    }
+
+    void setMask(int index, boolean inMask, float distance) {
+        mInMask[index] = inMask;
+        mDistance[index] = distance;
+    }
+}
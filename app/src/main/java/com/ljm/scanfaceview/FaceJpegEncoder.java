@@ -0,0 +1,147 @@
+package com.ljm.scanfaceview;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.media.Image;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * 零延迟拍照中评估人脸清晰度，并把 YUV_420_888 图像中的人脸区域裁剪、旋转后编码为 JPEG
+ * <p>
+ * 只在拍照线程使用，每次拍照分配一次输出缓冲区，预览期间不参与逐帧路径。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/8
+ */
+final class FaceJpegEncoder {
+    // 裁剪区域相对人脸框放大的倍数，留出头发和下巴
+    private static final float CROP_SCALE = 1.6f;
+    // 计算清晰度时的采样间隔，单位像素
+    private static final int SHARPNESS_STEP = 2;
+
+    private FaceJpegEncoder() {
+    }
+
+    /**
+     * 人脸区域亮度的平均梯度，越大越清晰，运动模糊和失焦时明显变小
+     *
+     * @param luma      亮度平面，position 不影响结果
+     * @param rowStride 亮度平面的行间隔
+     */
+    static float sharpness(ByteBuffer luma, int rowStride, int left, int top, int right, int bottom) {
+        long sum = 0;
+        int count = 0;
+        for (int y = top; y + SHARPNESS_STEP < bottom; y += SHARPNESS_STEP) {
+            int row = y * rowStride;
+            for (int x = left; x + SHARPNESS_STEP < right; x += SHARPNESS_STEP) {
+                int center = luma.get(row + x) & 0xff;
+                int dx = (luma.get(row + x + SHARPNESS_STEP) & 0xff) - center;
+                int dy = (luma.get(row + SHARPNESS_STEP * rowStride + x) & 0xff) - center;
+                sum += Math.abs(dx) + Math.abs(dy);
+                count++;
+            }
+        }
+        return count == 0 ? 0 : sum / (float) count;
+    }
+
+    /**
+     * 计算人脸框放大后的裁剪区域，限制在图像内，左上角和宽高都是偶数，保证色度平面对齐
+     *
+     * @param out 依次写入 left, top, right, bottom
+     */
+    static void getCropRect(float left, float top, float right, float bottom, int imageWidth, int imageHeight, int[] out) {
+        float centerX = (left + right) / 2;
+        float centerY = (top + bottom) / 2;
+        float halfSize = Math.max(right - left, bottom - top) * CROP_SCALE / 2;
+        int cropLeft = Math.max(0, (int) (centerX - halfSize)) & ~1;
+        int cropTop = Math.max(0, (int) (centerY - halfSize)) & ~1;
+        int cropRight = Math.min(imageWidth, (int) (centerX + halfSize)) & ~1;
+        int cropBottom = Math.min(imageHeight, (int) (centerY + halfSize)) & ~1;
+        out[0] = cropLeft;
+        out[1] = cropTop;
+        out[2] = Math.max(cropLeft + 2, cropRight);
+        out[3] = Math.max(cropTop + 2, cropBottom);
+    }
+
+    /**
+     * 裁剪 image 中的区域，顺时针旋转 degrees 后编码为 JPEG
+     *
+     * @param crop    left, top, right, bottom，见 {@link #getCropRect}
+     * @param degrees 0、90、180、270
+     */
+    static byte[] encode(Image image, int[] crop, int degrees, int quality) {
+        int cropWidth = crop[2] - crop[0];
+        int cropHeight = crop[3] - crop[1];
+        boolean exchange = degrees == 90 || degrees == 270;
+        int outWidth = exchange ? cropHeight : cropWidth;
+        int outHeight = exchange ? cropWidth : cropHeight;
+        byte[] nv21 = new byte[outWidth * outHeight * 3 / 2];
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yBuffer = planes[0].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        for (int oy = 0; oy < outHeight; oy++) {
+            int outRow = oy * outWidth;
+            for (int ox = 0; ox < outWidth; ox++) {
+                int sx = sourceX(ox, oy, cropWidth, cropHeight, degrees) + crop[0];
+                int sy = sourceY(ox, oy, cropWidth, cropHeight, degrees) + crop[1];
+                nv21[outRow + ox] = yBuffer.get(sy * yRowStride + sx);
+            }
+        }
+        // 色度平面宽高各为一半，NV21 按 V、U 交替存放
+        ByteBuffer uBuffer = planes[1].getBuffer();
+        ByteBuffer vBuffer = planes[2].getBuffer();
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        int chromaOffset = outWidth * outHeight;
+        int chromaWidth = cropWidth / 2;
+        int chromaHeight = cropHeight / 2;
+        for (int oy = 0; oy < outHeight / 2; oy++) {
+            int outRow = chromaOffset + oy * outWidth;
+            for (int ox = 0; ox < outWidth / 2; ox++) {
+                int sx = sourceX(ox, oy, chromaWidth, chromaHeight, degrees) + crop[0] / 2;
+                int sy = sourceY(ox, oy, chromaWidth, chromaHeight, degrees) + crop[1] / 2;
+                int index = sy * uvRowStride + sx * uvPixelStride;
+                nv21[outRow + ox * 2] = vBuffer.get(index);
+                nv21[outRow + ox * 2 + 1] = uBuffer.get(index);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(outWidth * outHeight / 4);
+        new YuvImage(nv21, ImageFormat.NV21, outWidth, outHeight, null)
+                .compressToJpeg(new Rect(0, 0, outWidth, outHeight), quality, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 输出图像 (x, y) 在旋转前的横坐标，width 和 height 是旋转前的尺寸
+     */
+    private static int sourceX(int x, int y, int width, int height, int degrees) {
+        switch (degrees) {
+            case 90:
+                return y;
+            case 180:
+                return width - 1 - x;
+            case 270:
+                return width - 1 - y;
+            case 0:
+            default:
+                return x;
+        }
+    }
+
+    private static int sourceY(int x, int y, int width, int height, int degrees) {
+        switch (degrees) {
+            case 90:
+                return height - 1 - x;
+            case 180:
+                return height - 1 - y;
+            case 270:
+                return x;
+            case 0:
+            default:
+                return y;
+        }
+    }
+}
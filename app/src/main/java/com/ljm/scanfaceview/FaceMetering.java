@@ -0,0 +1,216 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 根据检测到的人脸计算自动曝光和自动对焦的测光区域
+ * <p>
+ * 预览请求默认按整个画面测光，明亮的背景前人脸会欠曝一秒以上。检测到人脸后把最大的人脸框从预览坐标转换回成像区域坐标，
+ * 适当放大后作为 CONTROL_AE_REGIONS 和 CONTROL_AF_REGIONS。为了不频繁调用 setRepeatingRequest，
+ * 人脸出现时立即设置，之后只有人脸移动或大小变化超过阈值、且距上次更新超过最小间隔时才更新，人脸消失一段时间后才恢复整个画面测光。
+ * <p>
+ * 同时统计人脸出现到使用人脸测光区域的帧 AE 收敛的耗时。{@link #onFaces} 由发布人脸结果的线程调用(相机线程或分析线程)，
+ * 其余方法只在相机线程调用。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/13
+ */
+final class FaceMetering {
+    // AE 状态，与 CaptureResult.CONTROL_AE_STATE_* 的取值一致
+    private static final int AE_STATE_CONVERGED = 2;
+    private static final int AE_STATE_FLASH_REQUIRED = 4;
+
+    // 测光区域相对人脸框每边放大的比例，包含额头和下巴
+    private static final float REGION_MARGIN = 0.15f;
+    // 人脸中心移动或宽高变化超过当前区域宽高的该比例时更新
+    private static final float UPDATE_THRESHOLD = 0.2f;
+    // 两次更新重复请求的最小间隔
+    private static final long MIN_UPDATE_INTERVAL_NS = 500_000_000L;
+    // 人脸消失多久后恢复整个画面测光，短暂漏检不改变测光
+    private static final long FACE_LOST_HOLD_NS = 1_000_000_000L;
+
+    // 预览坐标到成像区域坐标的转换和成像区域尺寸，相机线程设置
+    private volatile FaceTransform mSensorTransform;
+    private volatile int mActiveWidth;
+    private volatile int mActiveHeight;
+    private volatile boolean mEnabled;
+
+    // 以下字段在 this 上同步
+    // 最近一次人脸的目标区域，成像区域坐标
+    private final float[] mTarget = new float[4];
+    private boolean mTargetValid;
+    private long mLastFaceNs;
+    // 这次人脸出现的时间
+    private long mFaceAppearedNs;
+    // 当前设置的测光区域，left, top, right, bottom
+    private final int[] mRegion = new int[4];
+    private boolean mRegionSet;
+    private long mLastUpdateNs;
+    // 是否在等待 AE 收敛，以及统计的起始时间
+    private boolean mMeasuring;
+    private long mConvergenceStartNs;
+
+    /**
+     * 切换相机后设置成像区域尺寸和是否支持测光区域
+     */
+    void configure(int activeWidth, int activeHeight, boolean enabled) {
+        mActiveWidth = activeWidth;
+        mActiveHeight = activeHeight;
+        mEnabled = enabled && activeWidth > 0 && activeHeight > 0;
+        reset();
+    }
+
+    /**
+     * 人脸坐标转换变化时设置新的反向转换
+     */
+    void setSensorTransform(FaceTransform sensorTransform) {
+        mSensorTransform = sensorTransform;
+    }
+
+    boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * 新的预览会话使用整个画面测光，清除区域和统计
+     */
+    synchronized void reset() {
+        mTargetValid = false;
+        mRegionSet = false;
+        mLastUpdateNs = 0;
+        mMeasuring = false;
+    }
+
+    /**
+     * 记录预览坐标人脸中最大的一个，没有人脸时不改变目标区域
+     */
+    void onFaces(FaceFrame faceFrame, long nowNs) {
+        FaceTransform transform = mSensorTransform;
+        if (!mEnabled || transform == null) {
+            return;
+        }
+        int largest = -1;
+        float largestArea = 0;
+        for (int i = 0; i < faceFrame.getCount(); i++) {
+            float area = (faceFrame.getRight(i) - faceFrame.getLeft(i)) * (faceFrame.getBottom(i) - faceFrame.getTop(i));
+            if (area > largestArea) {
+                largest = i;
+                largestArea = area;
+            }
+        }
+        if (largest < 0) {
+            return;
+        }
+        synchronized (this) {
+            float[] target = mTarget;
+            target[0] = faceFrame.getLeft(largest);
+            target[1] = faceFrame.getTop(largest);
+            target[2] = faceFrame.getRight(largest);
+            target[3] = faceFrame.getBottom(largest);
+            transform.mapPoints(target, 2);
+            if (!mTargetValid) {
+                mFaceAppearedNs = nowNs;
+            }
+            mTargetValid = true;
+            mLastFaceNs = nowNs;
+        }
+    }
+
+    /**
+     * 每帧在相机线程调用，按最小间隔和变化阈值决定是否更新测光区域
+     *
+     * @return 测光区域是否变化，变化时需要更新重复请求
+     */
+    synchronized boolean onFrame(long nowNs) {
+        if (!mEnabled) {
+            return false;
+        }
+        if (mTargetValid && nowNs - mLastFaceNs > FACE_LOST_HOLD_NS) {
+            mTargetValid = false;
+        }
+        if (!mTargetValid) {
+            if (!mRegionSet) {
+                return false;
+            }
+            mRegionSet = false;
+            mMeasuring = false;
+            mLastUpdateNs = nowNs;
+            return true;
+        }
+        // 转换后两个对角的顺序可能交换
+        float[] target = mTarget;
+        float left = Math.min(target[0], target[2]);
+        float top = Math.min(target[1], target[3]);
+        float right = Math.max(target[0], target[2]);
+        float bottom = Math.max(target[1], target[3]);
+        float marginX = (right - left) * REGION_MARGIN;
+        float marginY = (bottom - top) * REGION_MARGIN;
+        int newLeft = clamp(left - marginX, mActiveWidth - 1);
+        int newTop = clamp(top - marginY, mActiveHeight - 1);
+        int newRight = clamp(right + marginX, mActiveWidth);
+        int newBottom = clamp(bottom + marginY, mActiveHeight);
+        if (newRight <= newLeft || newBottom <= newTop) {
+            return false;
+        }
+        int[] region = mRegion;
+        if (mRegionSet) {
+            if (nowNs - mLastUpdateNs < MIN_UPDATE_INTERVAL_NS) {
+                return false;
+            }
+            float width = region[2] - region[0];
+            float height = region[3] - region[1];
+            boolean changed = Math.abs(newLeft + newRight - region[0] - region[2]) / 2f > width * UPDATE_THRESHOLD
+                    || Math.abs(newTop + newBottom - region[1] - region[3]) / 2f > height * UPDATE_THRESHOLD
+                    || Math.abs(newRight - newLeft - width) > width * UPDATE_THRESHOLD
+                    || Math.abs(newBottom - newTop - height) > height * UPDATE_THRESHOLD;
+            if (!changed) {
+                return false;
+            }
+        } else {
+            mMeasuring = true;
+            mConvergenceStartNs = mFaceAppearedNs;
+        }
+        region[0] = newLeft;
+        region[1] = newTop;
+        region[2] = newRight;
+        region[3] = newBottom;
+        mRegionSet = true;
+        mLastUpdateNs = nowNs;
+        return true;
+    }
+
+    private static int clamp(float value, int max) {
+        return Math.max(0, Math.min(max, Math.round(value)));
+    }
+
+    synchronized boolean hasRegion() {
+        return mRegionSet;
+    }
+
+    /**
+     * 复制当前测光区域到 out: left, top, right, bottom，成像区域坐标
+     */
+    synchronized void getRegion(int[] out) {
+        System.arraycopy(mRegion, 0, out, 0, 4);
+    }
+
+    /**
+     * 是否在等待 AE 收敛，为 false 时不需要读取 AE 状态
+     */
+    synchronized boolean isMeasuring() {
+        return mMeasuring;
+    }
+
+    /**
+     * 相机线程收到使用人脸测光区域的请求的结果时调用
+     *
+     * @param aeState CONTROL_AE_STATE
+     * @return 人脸出现到 AE 收敛的耗时，还没有收敛或不在统计时返回 -1
+     */
+    synchronized long onMeteredResult(int aeState, long nowNs) {
+        if (!mMeasuring || (aeState != AE_STATE_CONVERGED && aeState != AE_STATE_FLASH_REQUIRED)) {
+            return -1;
+        }
+        mMeasuring = false;
+        long latencyNs = nowNs - mConvergenceStartNs;
+        return latencyNs;
+    }
+}
@@ -0,0 +1,411 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 在分析图像的亮度平面上逐帧评估人脸质量，并在滑动窗口中挑选最好的一帧交给后续的识别
+ * <p>
+ * 每个人脸在缩小到 {@link #GRID_SIZE} x {@link #GRID_SIZE} 的采样网格上计算:
+ * <ul>
+ * <li>清晰度: 拉普拉斯算子响应的方差，运动模糊和失焦时明显变小</li>
+ * <li>曝光和对比度: 亮度的均值和标准差</li>
+ * <li>大小: 人脸边长占图像的比例相对扫描圆圈占屏幕的比例，与旋转无关</li>
+ * <li>姿态: 有眼睛和嘴巴位置时(硬件 FULL 模式)估计左右转头和歪头角度，没有时不限制</li>
+ * </ul>
+ * 所有阈值都满足的人脸才能成为候选，候选在之后 windowSize 帧内没有被更好的人脸替换时通过 {@link Listener} 交出，
+ * 模糊、过暗或侧脸的帧不会到达识别。所有缓冲区在创建时分配，只在分析线程调用 {@link #process}。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/9
+ */
+final class FaceQuality {
+    // 采样网格的边长
+    static final int GRID_SIZE = 32;
+    // 每个人脸的关键点: 左眼 x, y，右眼 x, y，嘴巴 x, y，分析图像坐标，没有时为 NaN
+    static final int LANDMARK_STRIDE = 6;
+    // 清晰度达到这个值记满分，低于 MIN_SHARPNESS 不通过
+    private static final float GOOD_SHARPNESS = 400;
+    private static final float MIN_SHARPNESS = 60;
+    // 亮度均值的合理范围和最佳值
+    private static final float MIN_BRIGHTNESS = 50;
+    private static final float MAX_BRIGHTNESS = 210;
+    private static final float GOOD_BRIGHTNESS = 128;
+    private static final float MIN_CONTRAST = 16;
+    // 人脸相对扫描圆圈的最小比例
+    private static final float MIN_SIZE = 0.5f;
+    private static final float MAX_YAW_DEGREES = 25;
+    private static final float MAX_ROLL_DEGREES = 20;
+
+    private final int mWindowSize;
+    // 采样网格
+    private final int[] mGrid = new int[GRID_SIZE * GRID_SIZE];
+    // 扫描圆圈边长占屏幕的比例，见 setTargetSize
+    private volatile float mTargetSize = 0.5f;
+    // 分析图像顺时针旋转到屏幕方向的角度，用于把歪头角度换算到屏幕方向
+    private volatile int mRotationDegrees;
+    private volatile Listener mListener;
+
+    // 当前人脸的各项指标
+    private float mSharpness;
+    private float mBrightness;
+    private float mContrast;
+    private float mSize;
+    private float mYaw;
+    private float mRoll;
+
+    // 窗口内最好的候选，亮度平面复制一份
+    private final byte[] mBestLuma;
+    private final Result mBest = new Result();
+    private boolean mHasBest;
+    // 候选之后经过的帧数
+    private int mBestAge;
+
+    /**
+     * @param lumaCapacity 分析图像的最大像素数
+     * @param windowSize   滑动窗口的帧数，候选最多延迟这么多帧交出
+     */
+    FaceQuality(int lumaCapacity, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive.");
+        }
+        mBestLuma = new byte[lumaCapacity];
+        mWindowSize = windowSize;
+    }
+
+    int getLumaCapacity() {
+        return mBestLuma.length;
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 设置扫描圆圈的大小，即圆圈边长与屏幕宽高几何平均的比值
+     */
+    void setTargetSize(float targetSize) {
+        if (targetSize <= 0) {
+            throw new IllegalArgumentException("Target size must be positive.");
+        }
+        mTargetSize = targetSize;
+    }
+
+    /**
+     * 设置分析图像顺时针旋转到屏幕方向的角度，见 {@link FaceTransform#getRotationDegrees}
+     */
+    void setRotationDegrees(int degrees) {
+        mRotationDegrees = degrees;
+    }
+
+    /**
+     * 评估一帧的所有人脸，更新窗口内的候选，候选到期时回调 {@link Listener}
+     *
+     * @param luma      按行紧密排列的亮度平面
+     * @param faces     分析图像坐标的人脸
+     * @param landmarks 每个人脸 {@link #LANDMARK_STRIDE} 个值，为 null 时不估计姿态
+     * @return 当前帧最好的人脸是否成为候选
+     */
+    boolean process(byte[] luma, int width, int height, long timestampNs, FaceFrame faces, float[] landmarks) {
+        int best = -1;
+        float bestQuality = 0;
+        for (int i = 0; i < faces.getCount(); i++) {
+            float quality = score(luma, width, height, faces, i, landmarks);
+            if (quality > bestQuality) {
+                best = i;
+                bestQuality = quality;
+            }
+        }
+        boolean candidate = false;
+        if (best >= 0 && (!mHasBest || bestQuality > mBest.quality)) {
+            // 重新计算一次最好人脸的指标写入候选
+            score(luma, width, height, faces, best, landmarks);
+            System.arraycopy(luma, 0, mBestLuma, 0, width * height);
+            mBest.set(faces, best, timestampNs, width, height, bestQuality,
+                    mSharpness, mBrightness, mContrast, mSize, mYaw, mRoll, mRotationDegrees);
+            mHasBest = true;
+            mBestAge = 0;
+            candidate = true;
+        } else if (mHasBest) {
+            mBestAge++;
+        }
+        if (mHasBest && mBestAge >= mWindowSize) {
+            mHasBest = false;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onBestFace(mBestLuma, mBest);
+            }
+        }
+        return candidate;
+    }
+
+    /**
+     * 清空窗口，人脸消失或切换摄像头时调用
+     */
+    void reset() {
+        mHasBest = false;
+        mBestAge = 0;
+    }
+
+    /**
+     * 计算一个人脸的各项指标
+     *
+     * @return 综合质量，0 到 1，有任何一项不通过时为 0
+     */
+    float score(byte[] luma, int width, int height, FaceFrame faces, int index, float[] landmarks) {
+        int left = clamp((int) faces.getLeft(index), 0, width - 1);
+        int top = clamp((int) faces.getTop(index), 0, height - 1);
+        int right = clamp((int) faces.getRight(index), left + 1, width);
+        int bottom = clamp((int) faces.getBottom(index), top + 1, height);
+        sample(luma, width, left, top, right - left, bottom - top);
+        measureGrid();
+        mSize = (float) Math.sqrt((right - left) * (float) (bottom - top) / ((float) width * height)) / mTargetSize;
+        measurePose(landmarks, index);
+        if (mSharpness < MIN_SHARPNESS || mBrightness < MIN_BRIGHTNESS || mBrightness > MAX_BRIGHTNESS
+                || mContrast < MIN_CONTRAST || mSize < MIN_SIZE
+                || Math.abs(mYaw) > MAX_YAW_DEGREES || Math.abs(mRoll) > MAX_ROLL_DEGREES) {
+            return 0;
+        }
+        float sharpness = Math.min(1, mSharpness / GOOD_SHARPNESS);
+        float exposure = 1 - Math.abs(mBrightness - GOOD_BRIGHTNESS) / GOOD_BRIGHTNESS;
+        float size = Math.min(1, mSize);
+        float pose = (1 - Math.abs(mYaw) / 90) * (1 - Math.abs(mRoll) / 90);
+        return sharpness * exposure * size * pose;
+    }
+
+    float getSharpness() {
+        return mSharpness;
+    }
+
+    float getBrightness() {
+        return mBrightness;
+    }
+
+    float getContrast() {
+        return mContrast;
+    }
+
+    float getSize() {
+        return mSize;
+    }
+
+    float getYaw() {
+        return mYaw;
+    }
+
+    float getRoll() {
+        return mRoll;
+    }
+
+    /**
+     * 把人脸区域最近邻缩放到采样网格
+     */
+    private void sample(byte[] luma, int stride, int left, int top, int width, int height) {
+        for (int gy = 0; gy < GRID_SIZE; gy++) {
+            int row = (top + gy * height / GRID_SIZE) * stride + left;
+            int gridRow = gy * GRID_SIZE;
+            for (int gx = 0; gx < GRID_SIZE; gx++) {
+                mGrid[gridRow + gx] = luma[row + gx * width / GRID_SIZE] & 0xff;
+            }
+        }
+    }
+
+    /**
+     * 网格的亮度均值、标准差和拉普拉斯响应的方差
+     */
+    private void measureGrid() {
+        long sum = 0;
+        long sumSquares = 0;
+        for (int value : mGrid) {
+            sum += value;
+            sumSquares += value * value;
+        }
+        int count = mGrid.length;
+        float mean = sum / (float) count;
+        mBrightness = mean;
+        mContrast = (float) Math.sqrt(Math.max(0, sumSquares / (float) count - mean * mean));
+        long lapSum = 0;
+        long lapSquares = 0;
+        for (int y = 1; y < GRID_SIZE - 1; y++) {
+            int row = y * GRID_SIZE;
+            for (int x = 1; x < GRID_SIZE - 1; x++) {
+                int i = row + x;
+                int laplacian = mGrid[i - 1] + mGrid[i + 1] + mGrid[i - GRID_SIZE] + mGrid[i + GRID_SIZE] - 4 * mGrid[i];
+                lapSum += laplacian;
+                lapSquares += laplacian * laplacian;
+            }
+        }
+        int lapCount = (GRID_SIZE - 2) * (GRID_SIZE - 2);
+        float lapMean = lapSum / (float) lapCount;
+        mSharpness = lapSquares / (float) lapCount - lapMean * lapMean;
+    }
+
+    /**
+     * 由眼睛连线的角度估计歪头，由嘴巴偏离两眼中垂线的距离与眼距之比估计转头，都是粗略值
+     */
+    private void measurePose(float[] landmarks, int index) {
+        mYaw = 0;
+        mRoll = 0;
+        if (landmarks == null || !hasLandmarks(landmarks, index * LANDMARK_STRIDE)) {
+            return;
+        }
+        int offset = index * LANDMARK_STRIDE;
+        float eyeX = landmarks[offset + 2] - landmarks[offset];
+        float eyeY = landmarks[offset + 3] - landmarks[offset + 1];
+        if (eyeX * eyeX + eyeY * eyeY < 1) {
+            return;
+        }
+        // 图像顺时针旋转到屏幕方向，镜像时两眼左右互换，只关心偏离水平线的角度
+        double roll = (Math.toDegrees(Math.atan2(eyeY, eyeX)) + mRotationDegrees) % 180;
+        if (roll > 90) {
+            roll -= 180;
+        } else if (roll < -90) {
+            roll += 180;
+        }
+        mRoll = (float) roll;
+        mYaw = estimateYaw(landmarks, offset);
+    }
+
+    /**
+     * 眼睛和嘴巴三个点是否都有
+     */
+    static boolean hasLandmarks(float[] landmarks, int offset) {
+        return !Float.isNaN(landmarks[offset]) && !Float.isNaN(landmarks[offset + 2]) && !Float.isNaN(landmarks[offset + 4]);
+    }
+
+    /**
+     * 嘴巴相对两眼中点沿眼睛连线方向的偏移与眼距之比，换算为转头角度，与图像旋转无关，镜像时符号相反
+     */
+    static float estimateYaw(float[] landmarks, int offset) {
+        float leftEyeX = landmarks[offset];
+        float leftEyeY = landmarks[offset + 1];
+        float rightEyeX = landmarks[offset + 2];
+        float rightEyeY = landmarks[offset + 3];
+        float eyeX = rightEyeX - leftEyeX;
+        float eyeY = rightEyeY - leftEyeY;
+        float squaredDistance = eyeX * eyeX + eyeY * eyeY;
+        if (squaredDistance < 1) {
+            return 0;
+        }
+        float lateral = (landmarks[offset + 4] - (leftEyeX + rightEyeX) / 2) * eyeX
+                + (landmarks[offset + 5] - (leftEyeY + rightEyeY) / 2) * eyeY;
+        return (float) Math.toDegrees(Math.asin(Math.max(-1, Math.min(1, lateral / squaredDistance))));
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * 窗口内最好人脸的指标，只在回调期间有效
+     */
+    static final class Result {
+        long timestampNs;
+        int width;
+        int height;
+        float left;
+        float top;
+        float right;
+        float bottom;
+        float quality;
+        float sharpness;
+        float brightness;
+        float contrast;
+        float size;
+        float yaw;
+        float roll;
+        // 分析图像顺时针旋转到屏幕方向的角度，截取人脸时用于转正
+        int rotationDegrees;
+
+        private void set(FaceFrame faces, int index, long timestampNs, int width, int height, float quality,
+                         float sharpness, float brightness, float contrast, float size, float yaw, float roll,
+                         int rotationDegrees) {
+            this.timestampNs = timestampNs;
+            this.width = width;
+            this.height = height;
+            this.left = faces.getLeft(index);
+            this.top = faces.getTop(index);
+            this.right = faces.getRight(index);
+            this.bottom = faces.getBottom(index);
+            this.quality = quality;
+            this.sharpness = sharpness;
+            this.brightness = brightness;
+            this.contrast = contrast;
+            this.size = size;
+            this.yaw = yaw;
+            this.roll = roll;
+            this.rotationDegrees = rotationDegrees;
+        }
+    }
+
+    /**
+     * 硬件人脸检测时，相机线程按传感器时间戳写入的分析图像坐标的人脸和关键点，分析线程按图像时间戳取出
+     * <p>
+     * 图像和结果到达的先后顺序不固定，优先取时间戳相同的一帧，没有时取不晚于图像且相差不超过
+     * maxAgeNs 的最近一帧，一帧之间人脸位置变化很小。
+     */
+    static final class PendingFaces {
+        private final long mMaxAgeNs;
+        private final long[] mTimestamps;
+        private final FaceFrame[] mFaces;
+        private final float[][] mLandmarks;
+        private int mNext;
+
+        PendingFaces(int capacity, int maxFaceCount, long maxAgeNs) {
+            mMaxAgeNs = maxAgeNs;
+            mTimestamps = new long[capacity];
+            mFaces = new FaceFrame[capacity];
+            mLandmarks = new float[capacity][maxFaceCount * LANDMARK_STRIDE];
+            for (int i = 0; i < capacity; i++) {
+                mFaces[i] = new FaceFrame(maxFaceCount);
+            }
+        }
+
+        /**
+         * @param landmarks 每个人脸 {@link #LANDMARK_STRIDE} 个值，没有的点为 NaN
+         */
+        synchronized void put(long sensorTimestampNs, FaceFrame faces, float[] landmarks) {
+            int i = mNext;
+            mNext = (mNext + 1) % mTimestamps.length;
+            mTimestamps[i] = sensorTimestampNs;
+            mFaces[i].copyFrom(faces);
+            System.arraycopy(landmarks, 0, mLandmarks[i], 0, mFaces[i].getCount() * LANDMARK_STRIDE);
+        }
+
+        /**
+         * 取出与图像对应的人脸复制到 out 和 landmarksOut
+         *
+         * @return 没有对应的人脸时返回 false
+         */
+        synchronized boolean take(long sensorTimestampNs, FaceFrame out, float[] landmarksOut) {
+            int found = -1;
+            for (int i = 0; i < mTimestamps.length; i++) {
+                long timestamp = mTimestamps[i];
+                if (timestamp == 0 || timestamp > sensorTimestampNs || sensorTimestampNs - timestamp > mMaxAgeNs) {
+                    continue;
+                }
+                if (found < 0 || timestamp > mTimestamps[found]) {
+                    found = i;
+                }
+            }
+            if (found < 0) {
+                return false;
+            }
+            out.copyFrom(mFaces[found]);
+            System.arraycopy(mLandmarks[found], 0, landmarksOut, 0, out.getCount() * LANDMARK_STRIDE);
+            return true;
+        }
+
+        synchronized void clear() {
+            for (int i = 0; i < mTimestamps.length; i++) {
+                mTimestamps[i] = 0;
+            }
+        }
+    }
+
+    interface Listener {
+        /**
+         * 在分析线程回调，luma 和 result 在下一次 {@link #process} 后被覆盖，需要保留时复制
+         *
+         * @param luma 人脸所在帧的亮度平面，result.width * result.height 按行紧密排列
+         */
+        void onBestFace(byte[] luma, Result result);
+    }
+}
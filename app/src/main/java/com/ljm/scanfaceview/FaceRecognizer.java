@@ -0,0 +1,154 @@
+package com.ljm.scanfaceview;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 人脸识别: {@link FaceQuality} 交出的最好人脸在单独的线程由 {@link FaceEmbedder} 提取特征，在 {@link FaceGallery} 中检索，
+ * 相似度达到 {@link #MATCH_THRESHOLD} 时回调识别结果，否则作为新的人员录入
+ * <p>
+ * 分析线程只复制亮度平面和人脸框，上一张人脸还在识别时丢弃新的人脸，不阻塞分析线程。
+ * 复制用的缓冲区只在分析尺寸变大时重新分配，特征和检索结果数组在创建时分配。
+ * 人脸库的记录足够多时在识别线程建立粗分区索引。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/13
+ */
+final class FaceRecognizer implements FaceQuality.Listener {
+    private static final String TAG = "FaceRecognizer";
+    // 余弦相似度达到这个值认为是同一个人
+    static final float MATCH_THRESHOLD = 0.6f;
+    // 截取的正方形边长与人脸框长边之比，留出额头和下巴
+    private static final float CROP_SCALE = 1.2f;
+    // 使用粗分区索引检索时扫描的分区数
+    private static final int INDEX_PROBES = 8;
+
+    private final FaceEmbedder mEmbedder;
+    private final FaceGallery mGallery;
+    private final Listener mListener;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    // 正在识别时为 true，分析线程置为 true 后交给识别线程，识别线程处理完置为 false
+    private final AtomicBoolean mBusy = new AtomicBoolean();
+    private final float[] mEmbedding;
+    private final int[] mPersonIds = new int[1];
+    private final float[] mScores = new float[1];
+    private final Runnable mRecognizeRunnable = this::recognize;
+
+    // 以下由分析线程在 mBusy 为 false 时写入，提交任务后只由识别线程读取
+    private byte[] mLuma = new byte[0];
+    private int mWidth;
+    private int mHeight;
+    private float mLeft;
+    private float mTop;
+    private float mRight;
+    private float mBottom;
+    private int mRotationDegrees;
+
+    /**
+     * @param gallery 特征维数与 embedder 的模型一致，之后由识别线程使用和关闭
+     * @param listener 在识别线程回调
+     */
+    FaceRecognizer(FaceEmbedder embedder, FaceGallery gallery, Listener listener) {
+        int embeddingSize = embedder.getModel().getEmbeddingSize();
+        if (gallery.getDimension() != embeddingSize) {
+            throw new IllegalArgumentException("Gallery dimension " + gallery.getDimension()
+                    + " != embedding size " + embeddingSize);
+        }
+        mEmbedder = embedder;
+        mGallery = gallery;
+        mListener = listener;
+        mEmbedding = new float[embeddingSize];
+    }
+
+    /**
+     * 在分析线程回调，复制人脸后交给识别线程
+     */
+    @Override
+    public void onBestFace(byte[] luma, FaceQuality.Result result) {
+        if (!mBusy.compareAndSet(false, true)) {
+            TraceLog.d(TAG, "上一张人脸还在识别，丢弃");
+            return;
+        }
+        int size = result.width * result.height;
+        if (mLuma.length < size) {
+            mLuma = new byte[size];
+        }
+        System.arraycopy(luma, 0, mLuma, 0, size);
+        mWidth = result.width;
+        mHeight = result.height;
+        mLeft = result.left;
+        mTop = result.top;
+        mRight = result.right;
+        mBottom = result.bottom;
+        mRotationDegrees = result.rotationDegrees;
+        try {
+            mExecutor.execute(mRecognizeRunnable);
+        } catch (RejectedExecutionException e) {
+            // 已经释放
+            mBusy.set(false);
+        }
+    }
+
+    private void recognize() {
+        try {
+            float half = Math.max(mRight - mLeft, mBottom - mTop) * CROP_SCALE / 2;
+            float centerX = (mLeft + mRight) / 2;
+            float centerY = (mTop + mBottom) / 2;
+            mEmbedder.setInputFromLuma(mLuma, mWidth, mHeight, centerX - half, centerY - half,
+                    centerX + half, centerY + half, mRotationDegrees);
+            mEmbedder.run(mEmbedding);
+            if (mGallery.search(mEmbedding, 1, mPersonIds, mScores) > 0 && mScores[0] >= MATCH_THRESHOLD) {
+                mListener.onFaceRecognized(mPersonIds[0], mScores[0]);
+                return;
+            }
+            // 每个自动录入的人员只有一条记录，记录数量就是下一个人员 id
+            int personId = mGallery.size();
+            mGallery.enroll(personId, mEmbedding, true);
+            mListener.onFaceEnrolled(personId);
+            if (mGallery.needsIndex()) {
+                mGallery.buildIndex(INDEX_PROBES);
+            }
+        } catch (IOException e) {
+            TraceLog.w(TAG, "录入人脸失败");
+        } finally {
+            mBusy.set(false);
+        }
+    }
+
+    /**
+     * 等正在进行的识别结束后释放特征提取线程并关闭人脸库，之后丢弃新的人脸
+     */
+    void release() {
+        try {
+            mExecutor.execute(() -> {
+                mEmbedder.release();
+                try {
+                    mGallery.close();
+                } catch (IOException e) {
+                    TraceLog.w(TAG, "关闭人脸库失败");
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 已经释放
+            return;
+        }
+        mExecutor.shutdown();
+    }
+
+    interface Listener {
+        /**
+         * 在识别线程回调
+         *
+         * @param score 与人脸库中最相似记录的余弦相似度
+         */
+        void onFaceRecognized(int personId, float score);
+
+        /**
+         * 人脸库中没有相似的人脸，已作为新的人员录入，在识别线程回调
+         */
+        void onFaceEnrolled(int personId);
+    }
+}
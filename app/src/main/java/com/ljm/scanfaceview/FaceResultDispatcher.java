@@ -0,0 +1,230 @@
+package com.ljm.scanfaceview;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 人脸结果分发器，只保留最新结果并按 Choreographer 帧回调交给 UI 线程
+ * <p>
+ * 相机线程通过 {@link #obtain()} 写入、{@link #publish()} 发布，UI 线程来不及处理的结果被新结果覆盖(合并)。
+ * UI 线程在帧回调中用每个新结果更新 {@link FaceTracker}(静止的人脸也要连续命中才能确认轨迹)，并把轨迹外推到当前帧的时间，
+ * 与上一次回调相比移动超过 {@link #setMotionEpsilon(float)} 时才回调监听者，
+ * 有轨迹在移动时逐帧回调，使两次检测之间人脸框也能按屏幕刷新率平滑移动。
+ * 默认使用主线程的 Choreographer，必须在主线程创建；回放时由 {@link FrameClock} 模拟帧回调。
+ * 所有发布的结果同时交给 {@link FaceEventStream}，供界面以外的订阅者按各自的线程和背压策略消费。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/15
+ */
+final class FaceResultDispatcher implements Choreographer.FrameCallback {
+    // 默认的人脸移动阈值，单位像素
+    static final float DEFAULT_MOTION_EPSILON = 2.0f;
+
+    private final FrameClock mClock;
+    private final PipelineMetrics mMetrics;
+    private final FaceFrameBuffer mBuffer;
+    private final FaceEventStream mEventStream;
+    // 人脸跟踪，只在 UI 线程访问
+    private final FaceTracker mTracker;
+    // 外推到当前帧的人脸，交给监听者显示，只在 UI 线程访问
+    private final FaceFrame mDisplayFrame;
+    // 上一次交给监听者时的人脸，只在 UI 线程访问
+    private final FaceFrame mLastDelivered;
+    private long mLastFrameNumber;
+    // 是否已经注册了下一帧的回调
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    // 相机线程请求清空所有轨迹，在下一次帧回调中处理
+    private final AtomicBoolean mClearRequested = new AtomicBoolean(false);
+    private volatile float mMotionEpsilon = DEFAULT_MOTION_EPSILON;
+    private volatile FrameSource.FaceDetectListener mListener;
+
+    // 相机线程产生的结果数量
+    private volatile long mOfferedCount;
+    // 新结果与上一次回调相比变化太小而没有回调监听者的数量，只在 UI 线程写入
+    private volatile long mDroppedCount;
+    // 还没被 UI 取走就被新结果覆盖的数量
+    private volatile long mCoalescedCount;
+    // 实际交给监听者的数量
+    private volatile long mDeliveredCount;
+
+    FaceResultDispatcher(int capacity, PipelineMetrics metrics) {
+        this(capacity, metrics, new ChoreographerClock());
+    }
+
+    FaceResultDispatcher(int capacity, PipelineMetrics metrics, FrameClock clock) {
+        mClock = clock;
+        mMetrics = metrics;
+        mBuffer = new FaceFrameBuffer(capacity);
+        mEventStream = new FaceEventStream(capacity);
+        mTracker = new FaceTracker(capacity);
+        mDisplayFrame = new FaceFrame(capacity);
+        mLastDelivered = new FaceFrame(capacity);
+    }
+
+    void setListener(FrameSource.FaceDetectListener listener) {
+        mListener = listener;
+    }
+
+    FaceEventStream getEventStream() {
+        return mEventStream;
+    }
+
+    /**
+     * 设置人脸移动阈值，所有人脸框的各条边移动都小于该值时视为没有变化
+     */
+    void setMotionEpsilon(float epsilon) {
+        mMotionEpsilon = epsilon;
+    }
+
+    /**
+     * 相机线程获取待写入的一帧
+     */
+    FaceFrame obtain() {
+        return mBuffer.obtain();
+    }
+
+    /**
+     * 相机线程发布 {@link #obtain()} 写好的一帧
+     * <p>
+     * 三缓冲和事件流都只允许一个写入线程，由 {@link FaceEventStream#publish} 检查，在另一个线程发布时抛出
+     * {@link IllegalStateException}。
+     */
+    void publish() {
+        mOfferedCount++;
+        FaceFrame faceFrame = mBuffer.obtain();
+        mEventStream.publish(faceFrame);
+        if (mBuffer.publish()) {
+            mCoalescedCount++;
+        }
+        if (mScheduled.compareAndSet(false, true)) {
+            mClock.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * 相机线程请求丢弃所有轨迹和尚未取走的结果，用于切换摄像头等坐标系变化的情况，界面在下一帧清空人脸框
+     */
+    void clear() {
+        mClearRequested.set(true);
+        if (mScheduled.compareAndSet(false, true)) {
+            mClock.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // 先清除标记再取数据，保证此后发布的结果一定会注册新的回调
+        mScheduled.set(false);
+        if (mClearRequested.getAndSet(false)) {
+            mTracker.clear();
+            mBuffer.acquire();
+        }
+        FaceFrame faceFrame = mBuffer.acquire();
+        if (faceFrame != null) {
+            mTracker.update(faceFrame);
+            mLastFrameNumber = faceFrame.getFrameNumber();
+            mMetrics.recordCallbackToUi(mClock.nanoTime() - faceFrame.getTimestampNs());
+        }
+        mDisplayFrame.reset(mLastFrameNumber, frameTimeNanos);
+        mTracker.predict(frameTimeNanos, mDisplayFrame);
+        FrameSource.FaceDetectListener listener = mListener;
+        if (listener != null) {
+            if (hasMoved(mLastDelivered, mDisplayFrame, mMotionEpsilon)) {
+                mLastDelivered.copyFrom(mDisplayFrame);
+                mDeliveredCount++;
+                listener.onFaceDetect(mDisplayFrame);
+            } else if (faceFrame != null) {
+                mDroppedCount++;
+            }
+        }
+        // 还有轨迹在移动时继续逐帧外推
+        if (mTracker.isAnimating(frameTimeNanos) && mScheduled.compareAndSet(false, true)) {
+            mClock.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * 取消尚未执行的帧回调
+     */
+    void cancel() {
+        mClock.removeFrameCallback(this);
+        mScheduled.set(false);
+    }
+
+    private static boolean hasMoved(FaceFrame last, FaceFrame current, float epsilon) {
+        int count = current.getCount();
+        if (count != last.getCount()) {
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            if (current.getId(i) != last.getId(i) || current.getState(i) != last.getState(i)) {
+                return true;
+            }
+            if (Math.abs(current.getLeft(i) - last.getLeft(i)) >= epsilon
+                    || Math.abs(current.getTop(i) - last.getTop(i)) >= epsilon
+                    || Math.abs(current.getRight(i) - last.getRight(i)) >= epsilon
+                    || Math.abs(current.getBottom(i) - last.getBottom(i)) >= epsilon) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    long getOfferedCount() {
+        return mOfferedCount;
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    long getDeliveredCount() {
+        return mDeliveredCount;
+    }
+
+    /**
+     * 帧回调和时间的来源
+     */
+    interface FrameClock {
+        void postFrameCallback(Choreographer.FrameCallback callback);
+
+        void removeFrameCallback(Choreographer.FrameCallback callback);
+
+        /**
+         * 与人脸结果时间戳同一基准的当前时间
+         */
+        long nanoTime();
+    }
+
+    private static final class ChoreographerClock implements FrameClock {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+
+        @Override
+        public void postFrameCallback(Choreographer.FrameCallback callback) {
+            mChoreographer.postFrameCallback(callback);
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            mChoreographer.removeFrameCallback(callback);
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "offered=" + mOfferedCount
+                + " dropped=" + mDroppedCount
+                + " coalesced=" + mCoalescedCount
+                + " delivered=" + mDeliveredCount;
+    }
+}
@@ -0,0 +1,284 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 帧间人脸跟踪
+ * <p>
+ * 按 IoU 把检测结果与已有轨迹贪心匹配，为每个人脸分配稳定的 id，并用固定增益的 α-β 滤波(常速度卡尔曼滤波的稳态形式)
+ * 估计人脸中心的速度，使界面可以在两次检测之间按屏幕刷新率外推人脸框位置。
+ * 所有状态保存在预分配的基本类型数组中，只能在一个线程中使用。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/21
+ */
+final class FaceTracker {
+    /**
+     * 新出现、尚未连续命中足够次数的轨迹
+     */
+    public static final int STATE_TENTATIVE = 0;
+    /**
+     * 稳定跟踪中的轨迹
+     */
+    public static final int STATE_CONFIRMED = 1;
+    /**
+     * 最近一次检测没有匹配上、正在按速度外推的轨迹
+     */
+    public static final int STATE_COASTING = 2;
+
+    // 匹配所需的最小 IoU
+    private static final float MIN_IOU = 0.3f;
+    // 连续命中多少次后确认轨迹
+    private static final int MIN_HITS = 2;
+    // 轨迹丢失后最多保留的时间
+    private static final long MAX_COAST_NS = 300_000_000L;
+    // 最多外推的时间，避免检测停止后人脸框飞出
+    private static final long MAX_EXTRAPOLATION_NS = 100_000_000L;
+    // α-β 滤波的位置和速度增益
+    private static final float ALPHA = 0.6f;
+    private static final float BETA = 0.2f;
+    // 检测框中心与上一次检测相比移动小于该值(像素)时视为静止，速度清零，避免按过时的速度外推
+    private static final float STILL_EPSILON = 1.0f;
+
+    private final int mCapacity;
+    private int mCount;
+    private int mNextId = 1;
+    private final int[] mIds;
+    private final float[] mCenterX;
+    private final float[] mCenterY;
+    private final float[] mWidth;
+    private final float[] mHeight;
+    // 速度，单位像素每秒
+    private final float[] mVelocityX;
+    private final float[] mVelocityY;
+    // 上一次匹配的检测框中心，用于判断人脸是否静止
+    private final float[] mMeasuredX;
+    private final float[] mMeasuredY;
+    private final float[] mScores;
+    private final long[] mUpdatedNs;
+    private final int[] mHits;
+    private final int[] mMisses;
+
+    // 匹配用的临时数组
+    private final float[] mIou;
+    private final int[] mTrackMatch;
+    private final boolean[] mDetectionMatched;
+
+    FaceTracker(int capacity) {
+        mCapacity = capacity;
+        mIds = new int[capacity];
+        mCenterX = new float[capacity];
+        mCenterY = new float[capacity];
+        mWidth = new float[capacity];
+        mHeight = new float[capacity];
+        mVelocityX = new float[capacity];
+        mVelocityY = new float[capacity];
+        mMeasuredX = new float[capacity];
+        mMeasuredY = new float[capacity];
+        mScores = new float[capacity];
+        mUpdatedNs = new long[capacity];
+        mHits = new int[capacity];
+        mMisses = new int[capacity];
+        mIou = new float[capacity * capacity];
+        mTrackMatch = new int[capacity];
+        mDetectionMatched = new boolean[capacity];
+    }
+
+    /**
+     * 用一帧检测结果更新轨迹
+     */
+    void update(FaceFrame detections) {
+        long timestampNs = detections.getTimestampNs();
+        int detectionCount = Math.min(detections.getCount(), mCapacity);
+
+        // 计算每条轨迹外推到本帧时与各检测框的 IoU
+        for (int t = 0; t < mCount; t++) {
+            float dt = Math.max(0, timestampNs - mUpdatedNs[t]) / 1e9f;
+            float cx = mCenterX[t] + mVelocityX[t] * dt;
+            float cy = mCenterY[t] + mVelocityY[t] * dt;
+            float halfWidth = mWidth[t] / 2;
+            float halfHeight = mHeight[t] / 2;
+            for (int d = 0; d < detectionCount; d++) {
+                mIou[t * mCapacity + d] = iou(cx - halfWidth, cy - halfHeight, cx + halfWidth, cy + halfHeight,
+                        detections.getLeft(d), detections.getTop(d), detections.getRight(d), detections.getBottom(d));
+            }
+            mTrackMatch[t] = -1;
+        }
+        for (int d = 0; d < detectionCount; d++) {
+            mDetectionMatched[d] = false;
+        }
+
+        // 贪心匹配: 每次取剩余中 IoU 最大的一对
+        while (true) {
+            int bestTrack = -1;
+            int bestDetection = -1;
+            float bestIou = MIN_IOU;
+            for (int t = 0; t < mCount; t++) {
+                if (mTrackMatch[t] >= 0) {
+                    continue;
+                }
+                for (int d = 0; d < detectionCount; d++) {
+                    if (!mDetectionMatched[d] && mIou[t * mCapacity + d] >= bestIou) {
+                        bestIou = mIou[t * mCapacity + d];
+                        bestTrack = t;
+                        bestDetection = d;
+                    }
+                }
+            }
+            if (bestTrack < 0) {
+                break;
+            }
+            mTrackMatch[bestTrack] = bestDetection;
+            mDetectionMatched[bestDetection] = true;
+        }
+
+        for (int t = mCount - 1; t >= 0; t--) {
+            int d = mTrackMatch[t];
+            if (d >= 0) {
+                correct(t, detections, d, timestampNs);
+            } else {
+                mMisses[t]++;
+                if (timestampNs - mUpdatedNs[t] > MAX_COAST_NS) {
+                    remove(t);
+                }
+            }
+        }
+        for (int d = 0; d < detectionCount && mCount < mCapacity; d++) {
+            if (!mDetectionMatched[d]) {
+                create(detections, d, timestampNs);
+            }
+        }
+    }
+
+    /**
+     * 把所有轨迹外推到指定时间并写入 out，同时移除丢失太久的轨迹
+     */
+    void predict(long timeNs, FaceFrame out) {
+        for (int t = mCount - 1; t >= 0; t--) {
+            if (mMisses[t] > 0 && timeNs - mUpdatedNs[t] > MAX_COAST_NS) {
+                remove(t);
+            }
+        }
+        for (int t = 0; t < mCount; t++) {
+            float dt = Math.min(MAX_EXTRAPOLATION_NS, Math.max(0, timeNs - mUpdatedNs[t])) / 1e9f;
+            float cx = mCenterX[t] + mVelocityX[t] * dt;
+            float cy = mCenterY[t] + mVelocityY[t] * dt;
+            float halfWidth = mWidth[t] / 2;
+            float halfHeight = mHeight[t] / 2;
+            int state;
+            if (mMisses[t] > 0) {
+                state = STATE_COASTING;
+            } else if (mHits[t] >= MIN_HITS) {
+                state = STATE_CONFIRMED;
+            } else {
+                state = STATE_TENTATIVE;
+            }
+            out.add(cx - halfWidth, cy - halfHeight, cx + halfWidth, cy + halfHeight, mScores[t], mIds[t], state);
+        }
+    }
+
+    /**
+     * 在指定时间是否还需要继续逐帧外推: 有轨迹在外推时间内移动，或有丢失的轨迹等待移除
+     */
+    boolean isAnimating(long timeNs) {
+        for (int t = 0; t < mCount; t++) {
+            if (mMisses[t] > 0) {
+                return true;
+            }
+            if ((mVelocityX[t] != 0 || mVelocityY[t] != 0) && timeNs - mUpdatedNs[t] < MAX_EXTRAPOLATION_NS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int getTrackCount() {
+        return mCount;
+    }
+
+    void clear() {
+        mCount = 0;
+    }
+
+    private void correct(int t, FaceFrame detections, int d, long timestampNs) {
+        float dt = Math.max(0, timestampNs - mUpdatedNs[t]) / 1e9f;
+        float predictedX = mCenterX[t] + mVelocityX[t] * dt;
+        float predictedY = mCenterY[t] + mVelocityY[t] * dt;
+        float measuredX = detections.getCenterX(d);
+        float measuredY = detections.getCenterY(d);
+        if (Math.abs(measuredX - mMeasuredX[t]) < STILL_EPSILON && Math.abs(measuredY - mMeasuredY[t]) < STILL_EPSILON) {
+            // 人脸没有移动，不再外推，位置向检测结果收敛
+            mVelocityX[t] = 0;
+            mVelocityY[t] = 0;
+            mCenterX[t] += ALPHA * (measuredX - mCenterX[t]);
+            mCenterY[t] += ALPHA * (measuredY - mCenterY[t]);
+        } else {
+            float residualX = measuredX - predictedX;
+            float residualY = measuredY - predictedY;
+            mCenterX[t] = predictedX + ALPHA * residualX;
+            mCenterY[t] = predictedY + ALPHA * residualY;
+            if (dt > 0) {
+                mVelocityX[t] += BETA * residualX / dt;
+                mVelocityY[t] += BETA * residualY / dt;
+            }
+        }
+        mMeasuredX[t] = measuredX;
+        mMeasuredY[t] = measuredY;
+        mWidth[t] += ALPHA * (detections.getRight(d) - detections.getLeft(d) - mWidth[t]);
+        mHeight[t] += ALPHA * (detections.getBottom(d) - detections.getTop(d) - mHeight[t]);
+        mScores[t] = detections.getScore(d);
+        mUpdatedNs[t] = timestampNs;
+        mHits[t]++;
+        mMisses[t] = 0;
+    }
+
+    private void create(FaceFrame detections, int d, long timestampNs) {
+        int t = mCount++;
+        mIds[t] = mNextId++;
+        mCenterX[t] = detections.getCenterX(d);
+        mCenterY[t] = detections.getCenterY(d);
+        mMeasuredX[t] = mCenterX[t];
+        mMeasuredY[t] = mCenterY[t];
+        mWidth[t] = detections.getRight(d) - detections.getLeft(d);
+        mHeight[t] = detections.getBottom(d) - detections.getTop(d);
+        mVelocityX[t] = 0;
+        mVelocityY[t] = 0;
+        mScores[t] = detections.getScore(d);
+        mUpdatedNs[t] = timestampNs;
+        mHits[t] = 1;
+        mMisses[t] = 0;
+    }
+
+    /**
+     * 用最后一条轨迹覆盖第 t 条
+     */
+    private void remove(int t) {
+        int last = --mCount;
+        if (t == last) {
+            return;
+        }
+        mIds[t] = mIds[last];
+        mCenterX[t] = mCenterX[last];
+        mCenterY[t] = mCenterY[last];
+        mWidth[t] = mWidth[last];
+        mHeight[t] = mHeight[last];
+        mVelocityX[t] = mVelocityX[last];
+        mVelocityY[t] = mVelocityY[last];
+        mMeasuredX[t] = mMeasuredX[last];
+        mMeasuredY[t] = mMeasuredY[last];
+        mScores[t] = mScores[last];
+        mUpdatedNs[t] = mUpdatedNs[last];
+        mHits[t] = mHits[last];
+        mMisses[t] = mMisses[last];
+    }
+
+    static float iou(float left1, float top1, float right1, float bottom1,
+                     float left2, float top2, float right2, float bottom2) {
+        float width = Math.min(right1, right2) - Math.max(left1, left2);
+        float height = Math.min(bottom1, bottom2) - Math.max(top1, top2);
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        float intersection = width * height;
+        float union = (right1 - left1) * (bottom1 - top1) + (right2 - left2) * (bottom2 - top2) - intersection;
+        return union <= 0 ? 0 : intersection / union;
+    }
+}
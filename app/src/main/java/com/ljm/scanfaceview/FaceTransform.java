@@ -0,0 +1,308 @@
+package com.ljm.scanfaceview;
+
+import android.view.Surface;
+
+/**
+ * 人脸坐标从传感器坐标到预览的仿射变换，硬件人脸检测、软件人脸检测和回放共用
+ * <p>
+ * 变换保存在 float[6] 中: x' = m[0] * x + m[1] * y + m[2]，y' = m[3] * x + m[4] * y + m[5]。
+ * 先把源区域归一化到 [0, 1]，再按传感器方向和屏幕方向旋转(前置摄像头再水平镜像)，最后缩放到屏幕方向的预览尺寸。
+ * 对硬件人脸，源区域是 SCALER_CROP_REGION 按预览宽高比居中裁剪后的区域，数码变焦时人脸框仍与画面对齐。
+ * 只依赖基本类型，创建后不再修改，可以在相机线程和分析线程同时使用，也可以脱离设备在 JVM 上运行；
+ * 屏幕方向、摄像头朝向、预览尺寸或裁剪区域变化时创建新的实例。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/5
+ */
+final class FaceTransform {
+    private static final int MATRIX_SIZE = 6;
+
+    private final float[] mMatrix = new float[MATRIX_SIZE];
+    // 创建时的参数，用于判断是否需要重建
+    private final int mSensorOrientation;
+    private final boolean mMirror;
+    private final int mDisplayRotation;
+    private final int mCropLeft;
+    private final int mCropTop;
+    private final int mCropRight;
+    private final int mCropBottom;
+    private final int mPreviewWidth;
+    private final int mPreviewHeight;
+
+    private FaceTransform(int sensorOrientation, boolean mirror, int displayRotation,
+                          int cropLeft, int cropTop, int cropRight, int cropBottom,
+                          int previewWidth, int previewHeight) {
+        mSensorOrientation = sensorOrientation;
+        mMirror = mirror;
+        mDisplayRotation = displayRotation;
+        mCropLeft = cropLeft;
+        mCropTop = cropTop;
+        mCropRight = cropRight;
+        mCropBottom = cropBottom;
+        mPreviewWidth = previewWidth;
+        mPreviewHeight = previewHeight;
+    }
+
+    /**
+     * 硬件人脸的变换，人脸坐标与裁剪区域都以成像区域(SENSOR_INFO_ACTIVE_ARRAY_SIZE)左上角为原点
+     *
+     * @param sensorOrientation 传感器方向，0、90、180、270
+     * @param mirror            是否水平镜像，前置摄像头为 true
+     * @param displayRotation   屏幕方向，Surface.ROTATION_*
+     * @param cropLeft          SCALER_CROP_REGION，没有变焦时为整个成像区域
+     * @param previewWidth      预览尺寸，与传感器方向一致
+     */
+    static FaceTransform forCropRegion(int sensorOrientation, boolean mirror, int displayRotation,
+                                       int cropLeft, int cropTop, int cropRight, int cropBottom,
+                                       int previewWidth, int previewHeight) {
+        FaceTransform transform = new FaceTransform(sensorOrientation, mirror, displayRotation,
+                cropLeft, cropTop, cropRight, cropBottom, previewWidth, previewHeight);
+        // 输出流在裁剪区域内按自己的宽高比居中裁剪
+        float left = cropLeft;
+        float top = cropTop;
+        float width = cropRight - cropLeft;
+        float height = cropBottom - cropTop;
+        float previewRatio = previewWidth / (float) previewHeight;
+        if (width / height > previewRatio) {
+            float visibleWidth = height * previewRatio;
+            left += (width - visibleWidth) / 2;
+            width = visibleWidth;
+        } else {
+            float visibleHeight = width / previewRatio;
+            top += (height - visibleHeight) / 2;
+            height = visibleHeight;
+        }
+        transform.set(left, top, width, height);
+        return transform;
+    }
+
+    /**
+     * 软件人脸的变换，分析图像与预览宽高比一致、视野相同，直接从分析图像坐标转换
+     */
+    static FaceTransform forAnalysis(int sensorOrientation, boolean mirror, int displayRotation,
+                                     int analysisWidth, int analysisHeight, int previewWidth, int previewHeight) {
+        FaceTransform transform = new FaceTransform(sensorOrientation, mirror, displayRotation,
+                0, 0, analysisWidth, analysisHeight, previewWidth, previewHeight);
+        transform.set(0, 0, analysisWidth, analysisHeight);
+        return transform;
+    }
+
+    /**
+     * 参数是否与创建时相同，相同时不需要重建
+     */
+    boolean matches(int sensorOrientation, boolean mirror, int displayRotation,
+                    int cropLeft, int cropTop, int cropRight, int cropBottom,
+                    int previewWidth, int previewHeight) {
+        return mSensorOrientation == sensorOrientation && mMirror == mirror && mDisplayRotation == displayRotation
+                && mCropLeft == cropLeft && mCropTop == cropTop && mCropRight == cropRight && mCropBottom == cropBottom
+                && mPreviewWidth == previewWidth && mPreviewHeight == previewHeight;
+    }
+
+    int getCropLeft() {
+        return mCropLeft;
+    }
+
+    int getCropTop() {
+        return mCropTop;
+    }
+
+    int getCropRight() {
+        return mCropRight;
+    }
+
+    int getCropBottom() {
+        return mCropBottom;
+    }
+
+    /**
+     * 根据屏幕方向和相机方向返回是否需要交换宽高
+     */
+    static boolean exchangeWidthAndHeight(int displayRotation, int sensorOrientation) {
+        switch (displayRotation) {
+            case Surface.ROTATION_0:
+            case Surface.ROTATION_180:
+                return sensorOrientation == 90 || sensorOrientation == 270;
+            case Surface.ROTATION_90:
+            case Surface.ROTATION_270:
+                return sensorOrientation == 0 || sensorOrientation == 180;
+            default:
+                return false;
+        }
+    }
+
+    private static int getDisplayDegrees(int displayRotation) {
+        switch (displayRotation) {
+            case Surface.ROTATION_90:
+                return 90;
+            case Surface.ROTATION_180:
+                return 180;
+            case Surface.ROTATION_270:
+                return 270;
+            case Surface.ROTATION_0:
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 传感器画面在屏幕上正向显示需要顺时针旋转的角度，前置摄像头先镜像再旋转，方向与后置相反
+     */
+    static int getRotationDegrees(int sensorOrientation, boolean mirror, int displayRotation) {
+        int displayDegrees = getDisplayDegrees(displayRotation);
+        return mirror
+                ? (sensorOrientation + displayDegrees) % 360
+                : (sensorOrientation - displayDegrees + 360) % 360;
+    }
+
+    /**
+     * 计算把源区域映射到整个预览的变换
+     */
+    private void set(float srcLeft, float srcTop, float srcWidth, float srcHeight) {
+        int degrees = getRotationDegrees(mSensorOrientation, mMirror, mDisplayRotation);
+        // 归一化坐标 (u, v) 顺时针旋转后的 (u', v') = (a * u + b * v + c, d * u + e * v + f)
+        float a;
+        float b;
+        float c;
+        float d;
+        float e;
+        float f;
+        switch (degrees) {
+            case 90:
+                a = 0;
+                b = -1;
+                c = 1;
+                d = 1;
+                e = 0;
+                f = 0;
+                break;
+            case 180:
+                a = -1;
+                b = 0;
+                c = 1;
+                d = 0;
+                e = -1;
+                f = 1;
+                break;
+            case 270:
+                a = 0;
+                b = 1;
+                c = 0;
+                d = -1;
+                e = 0;
+                f = 1;
+                break;
+            case 0:
+            default:
+                a = 1;
+                b = 0;
+                c = 0;
+                d = 0;
+                e = 1;
+                f = 0;
+                break;
+        }
+        if (mMirror) {
+            a = -a;
+            b = -b;
+            c = 1 - c;
+        }
+        // 旋转 90 度或 270 度时屏幕方向的预览宽高与传感器方向相反
+        boolean exchange = degrees == 90 || degrees == 270;
+        float outWidth = exchange ? mPreviewHeight : mPreviewWidth;
+        float outHeight = exchange ? mPreviewWidth : mPreviewHeight;
+        // 合并归一化 u = (x - srcLeft) / srcWidth、v = (y - srcTop) / srcHeight 和缩放到预览尺寸
+        float[] m = mMatrix;
+        m[0] = a / srcWidth * outWidth;
+        m[1] = b / srcHeight * outWidth;
+        m[2] = (c - a * srcLeft / srcWidth - b * srcTop / srcHeight) * outWidth;
+        m[3] = d / srcWidth * outHeight;
+        m[4] = e / srcHeight * outHeight;
+        m[5] = (f - d * srcLeft / srcWidth - e * srcTop / srcHeight) * outHeight;
+    }
+
+    /**
+     * 一次转换一帧的所有人脸框并依次加入 out
+     * <p>
+     * 变换只包含 90 度整数倍的旋转、镜像和缩放，矩形的两个对角转换后仍是对角，只需转换两个点。
+     *
+     * @param rects  left, top, right, bottom 紧凑存放的人脸框
+     * @param scores 每个人脸的分数
+     * @param count  人脸数量
+     * @return 加入 out 的人脸数量，out 已满时小于 count
+     */
+    int mapFaces(float[] rects, float[] scores, int count, FaceFrame out) {
+        float[] m = mMatrix;
+        float m0 = m[0];
+        float m1 = m[1];
+        float m2 = m[2];
+        float m3 = m[3];
+        float m4 = m[4];
+        float m5 = m[5];
+        for (int i = 0; i < count; i++) {
+            int offset = i * FaceFrame.RECT_STRIDE;
+            float left = rects[offset];
+            float top = rects[offset + 1];
+            float right = rects[offset + 2];
+            float bottom = rects[offset + 3];
+            float x0 = m0 * left + m1 * top + m2;
+            float y0 = m3 * left + m4 * top + m5;
+            float x1 = m0 * right + m1 * bottom + m2;
+            float y1 = m3 * right + m4 * bottom + m5;
+            if (!out.add(Math.min(x0, x1), Math.min(y0, y1), Math.max(x0, x1), Math.max(y0, y1), scores[i])) {
+                return i;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 一次转换 src 的所有人脸框并依次加入 out
+     *
+     * @return 加入 out 的人脸数量
+     */
+    int mapFaces(FaceFrame src, FaceFrame out) {
+        return mapFaces(src.getRectArray(), src.getScoreArray(), src.getCount(), out);
+    }
+
+    /**
+     * 原地转换 x, y 紧凑存放的点，NaN 表示没有这个点，转换后仍是 NaN
+     *
+     * @param count 点的数量
+     */
+    void mapPoints(float[] points, int count) {
+        float[] m = mMatrix;
+        for (int i = 0; i < count; i++) {
+            float x = points[i * 2];
+            float y = points[i * 2 + 1];
+            points[i * 2] = m[0] * x + m[1] * y + m[2];
+            points[i * 2 + 1] = m[3] * x + m[4] * y + m[5];
+        }
+    }
+
+    /**
+     * 反向变换，把预览坐标转换回源坐标，例如把人脸框转换回成像区域坐标设置测光区域。
+     * 创建参数与原变换相同，{@link #matches} 只用于原变换
+     */
+    FaceTransform invert() {
+        FaceTransform inverse = new FaceTransform(mSensorOrientation, mMirror, mDisplayRotation,
+                mCropLeft, mCropTop, mCropRight, mCropBottom, mPreviewWidth, mPreviewHeight);
+        float[] m = mMatrix;
+        float[] r = inverse.mMatrix;
+        // 只有旋转、镜像和缩放，行列式不为 0
+        float det = m[0] * m[4] - m[1] * m[3];
+        r[0] = m[4] / det;
+        r[1] = -m[1] / det;
+        r[3] = -m[3] / det;
+        r[4] = m[0] / det;
+        r[2] = -(r[0] * m[2] + r[1] * m[5]);
+        r[5] = -(r[3] * m[2] + r[4] * m[5]);
+        return inverse;
+    }
+
+    /**
+     * 复制变换系数到 out，长度至少为 6
+     */
+    void getValues(float[] out) {
+        System.arraycopy(mMatrix, 0, out, 0, MATRIX_SIZE);
+    }
+}
@@ -0,0 +1,177 @@
+package com.ljm.scanfaceview;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * 人脸数据录制文件的格式，由 {@link CameraHelper#startRecording} 写入，{@link ReplayFrameSource} 读取
+ * <p>
+ * 二进制格式(大端序):
+ * <pre>
+ * int   magic            0x53465250 ("SFRP")
+ * short version          1
+ * short sensorOrientation
+ * byte  mirror           前置摄像头为 1
+ * byte  displayRotation  Surface.ROTATION_*
+ * int   activeWidth, activeHeight     传感器成像区域尺寸
+ * int   previewWidth, previewHeight
+ * short lumaWidth, lumaHeight         亮度图像尺寸，没有亮度图像时为 0
+ * 之后每条记录:
+ * byte  type             1 人脸，2 亮度图像
+ * long  timestampNs
+ *       type 1: byte count
+ *               short left, top, right, bottom    传感器坐标，无符号
+ *               byte  score                       1 到 100
+ *       type 2: byte[lumaWidth * lumaHeight]      按行紧密排列
+ * </pre>
+ *
+ * @author: ljm
+ * 创建日期:2022/12/5
+ */
+public final class FrameRecording {
+    private static final int MAGIC = 0x53465250;
+    private static final int VERSION = 1;
+    static final int RECORD_FACES = 1;
+    static final int RECORD_LUMA = 2;
+
+    final int sensorOrientation;
+    final boolean mirror;
+    final int displayRotation;
+    final int activeWidth;
+    final int activeHeight;
+    final int previewWidth;
+    final int previewHeight;
+    final int lumaWidth;
+    final int lumaHeight;
+
+    public FrameRecording(int sensorOrientation, boolean mirror, int displayRotation, int activeWidth, int activeHeight,
+                          int previewWidth, int previewHeight, int lumaWidth, int lumaHeight) {
+        this.sensorOrientation = sensorOrientation;
+        this.mirror = mirror;
+        this.displayRotation = displayRotation;
+        this.activeWidth = activeWidth;
+        this.activeHeight = activeHeight;
+        this.previewWidth = previewWidth;
+        this.previewHeight = previewHeight;
+        this.lumaWidth = lumaWidth;
+        this.lumaHeight = lumaHeight;
+    }
+
+    /**
+     * 按录制时的相机参数创建人脸记录的坐标转换，录制文件不包含裁剪区域，按没有变焦转换
+     */
+    FaceTransform createTransform() {
+        return FaceTransform.forCropRegion(sensorOrientation, mirror, displayRotation,
+                0, 0, activeWidth, activeHeight, previewWidth, previewHeight);
+    }
+
+    /**
+     * 按录制时的相机参数创建亮度图像检测结果的坐标转换，没有亮度图像时返回 null
+     */
+    FaceTransform createAnalysisTransform() {
+        if (lumaWidth == 0 || lumaHeight == 0) {
+            return null;
+        }
+        return FaceTransform.forAnalysis(sensorOrientation, mirror, displayRotation,
+                lumaWidth, lumaHeight, previewWidth, previewHeight);
+    }
+
+    static FrameRecording readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("不是人脸录制文件");
+        }
+        int version = in.readUnsignedShort();
+        if (version != VERSION) {
+            throw new IOException("不支持的录制文件版本: " + version);
+        }
+        int sensorOrientation = in.readUnsignedShort();
+        boolean mirror = in.readByte() != 0;
+        int displayRotation = in.readUnsignedByte();
+        int activeWidth = in.readInt();
+        int activeHeight = in.readInt();
+        int previewWidth = in.readInt();
+        int previewHeight = in.readInt();
+        int lumaWidth = in.readUnsignedShort();
+        int lumaHeight = in.readUnsignedShort();
+        if (activeWidth <= 0 || activeHeight <= 0 || previewWidth <= 0 || previewHeight <= 0) {
+            throw new IOException("录制文件尺寸无效");
+        }
+        return new FrameRecording(sensorOrientation, mirror, displayRotation, activeWidth, activeHeight,
+                previewWidth, previewHeight, lumaWidth, lumaHeight);
+    }
+
+    /**
+     * 顺序写入录制文件，不是线程安全的
+     */
+    public static final class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private final FrameRecording mHeader;
+        private int mRemainingFaces;
+
+        public Writer(OutputStream outputStream, FrameRecording header) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(outputStream));
+            mHeader = header;
+            mOut.writeInt(MAGIC);
+            mOut.writeShort(VERSION);
+            mOut.writeShort(header.sensorOrientation);
+            mOut.writeByte(header.mirror ? 1 : 0);
+            mOut.writeByte(header.displayRotation);
+            mOut.writeInt(header.activeWidth);
+            mOut.writeInt(header.activeHeight);
+            mOut.writeInt(header.previewWidth);
+            mOut.writeInt(header.previewHeight);
+            mOut.writeShort(header.lumaWidth);
+            mOut.writeShort(header.lumaHeight);
+        }
+
+        /**
+         * 开始一条人脸记录，之后调用 count 次 {@link #writeFace}
+         */
+        public void beginFaces(long timestampNs, int count) throws IOException {
+            if (mRemainingFaces != 0) {
+                throw new IllegalStateException("上一条人脸记录还有 " + mRemainingFaces + " 个人脸没有写入");
+            }
+            if (count < 0 || count > 0xff) {
+                throw new IllegalArgumentException("Face count out of range: " + count);
+            }
+            mOut.writeByte(RECORD_FACES);
+            mOut.writeLong(timestampNs);
+            mOut.writeByte(count);
+            mRemainingFaces = count;
+        }
+
+        public void writeFace(int left, int top, int right, int bottom, int score) throws IOException {
+            if (mRemainingFaces == 0) {
+                throw new IllegalStateException("没有待写入的人脸");
+            }
+            mOut.writeShort(left);
+            mOut.writeShort(top);
+            mOut.writeShort(right);
+            mOut.writeShort(bottom);
+            mOut.writeByte(score);
+            mRemainingFaces--;
+        }
+
+        /**
+         * 写入一帧亮度图像，长度至少为 lumaWidth * lumaHeight
+         */
+        public void writeLuma(long timestampNs, byte[] luma) throws IOException {
+            int length = mHeader.lumaWidth * mHeader.lumaHeight;
+            if (length == 0) {
+                throw new IllegalStateException("录制文件没有亮度图像");
+            }
+            mOut.writeByte(RECORD_LUMA);
+            mOut.writeLong(timestampNs);
+            mOut.write(luma, 0, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            mOut.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 人脸数据的来源
+ * <p>
+ * {@link CameraHelper} 从相机读取，{@link ReplayFrameSource} 从录制文件读取。两者都把传感器坐标的人脸经过
+ * {@link FaceTransform} 转换、{@link FaceResultDispatcher} 跟踪和分发后交给 {@link FaceDetectListener}，
+ * 同时发布到 {@link FaceEventStream} 供多个订阅者消费。下游代码只依赖这个接口，可以脱离设备测量耗时。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/5
+ */
+public interface FrameSource {
+
+    /**
+     * 设置显示人脸框的监听者，在分发线程(相机来源为 UI 线程)按屏幕刷新回调跟踪外推后的人脸
+     */
+    void setFaceDetectListener(FaceDetectListener listener);
+
+    /**
+     * 检测结果的发布/订阅流，日志、质量评估、识别等消费者在自己的线程按各自的背压策略订阅
+     */
+    FaceEventStream getFaceEventStream();
+
+    /**
+     * 设置软件人脸检测，来源没有人脸数据而有亮度图像时使用
+     */
+    void setFaceAnalyzer(FaceAnalyzer analyzer);
+
+    /**
+     * 设置每隔多少帧检测一次人脸，其余帧由跟踪外推
+     */
+    void setFaceDetectInterval(int interval);
+
+    /**
+     * 设置人脸移动阈值，单位像素
+     */
+    void setFaceMotionEpsilon(float epsilon);
+
+    PipelineMetrics getPipelineMetrics();
+
+    /**
+     * 把当前指标和人脸结果分发统计复制到 out
+     */
+    PipelineMetrics.Snapshot getMetricsSnapshot(PipelineMetrics.Snapshot out);
+
+    /**
+     * 停止产生数据并释放资源，之后不能再使用
+     */
+    void release();
+
+    interface FaceDetectListener {
+        /**
+         * 在分发线程回调，faceFrame 在下一次回调之前保持不变，不要在回调之外持有
+         */
+        void onFaceDetect(FaceFrame faceFrame);
+    }
+}
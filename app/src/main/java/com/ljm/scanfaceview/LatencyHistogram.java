@@ -0,0 +1,144 @@
+package com.ljm.scanfaceview;
+
+import java.util.Arrays;
+
+/**
+ * 固定内存的耗时直方图
+ * <p>
+ * 与 HdrHistogram 相同的对数线性分桶: 每个 2 的幂区间再均分为 16 个子桶，相对误差不超过 1/16，
+ * 记录范围 0 到 {@link #MAX_VALUE} 微秒(约 67 秒)，超出部分记在最后一个桶中。
+ * 所有计数保存在创建时分配的 long 数组中，记录不产生对象分配。
+ * 只能有一个线程记录；其他线程通过 {@link #copyTo(LatencyHistogram)} 读取的快照可能与正在进行的记录相差一两次计数。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/1
+ */
+public final class LatencyHistogram {
+    // 每个 2 的幂区间的子桶数量为 2^(SUB_BUCKET_BITS - 1)
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2;
+    private static final int MAX_MAGNITUDE = 26 - SUB_BUCKET_BITS + 1;
+    /**
+     * 可以区分的最大值，单位微秒
+     */
+    public static final long MAX_VALUE = (1L << 26) - 1;
+    private static final int BUCKET_COUNT = (MAX_MAGNITUDE + 1) * SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mSum;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax;
+
+    /**
+     * 记录一次耗时，单位微秒，负数按 0 记录
+     */
+    public void record(long valueUs) {
+        long value = Math.max(0, Math.min(valueUs, MAX_VALUE));
+        mCounts[indexOf(value)]++;
+        mTotalCount++;
+        mSum += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * 记录一次耗时，单位纳秒
+     */
+    public void recordNanos(long valueNs) {
+        record(valueNs / 1000);
+    }
+
+    public long getCount() {
+        return mTotalCount;
+    }
+
+    public long getMin() {
+        return mTotalCount == 0 ? 0 : mMin;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return mTotalCount == 0 ? 0 : (double) mSum / mTotalCount;
+    }
+
+    /**
+     * 获取百分位数，返回所在桶能表示的最大值，单位微秒
+     *
+     * @param percentile 0 到 100
+     */
+    public long getPercentile(double percentile) {
+        if (mTotalCount == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100 * mTotalCount));
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            cumulative += mCounts[i];
+            if (cumulative >= target) {
+                return Math.min(highestValueOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * 把当前数据复制到另一个直方图，不产生对象分配
+     */
+    public void copyTo(LatencyHistogram target) {
+        System.arraycopy(mCounts, 0, target.mCounts, 0, BUCKET_COUNT);
+        target.mTotalCount = mTotalCount;
+        target.mSum = mSum;
+        target.mMin = mMin;
+        target.mMax = mMax;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return magnitude * SUB_BUCKET_HALF_COUNT + (int) (value >>> magnitude);
+    }
+
+    static long lowestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKET_HALF_COUNT - 1;
+        return (long) (index - magnitude * SUB_BUCKET_HALF_COUNT) << magnitude;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKET_HALF_COUNT - 1;
+        return lowestValueOf(index) + (1L << magnitude) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + mTotalCount
+                + " p50=" + getPercentile(50) + "us"
+                + " p90=" + getPercentile(90) + "us"
+                + " p99=" + getPercentile(99) + "us"
+                + " max=" + mMax + "us";
+    }
+}
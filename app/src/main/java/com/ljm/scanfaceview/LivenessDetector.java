@@ -0,0 +1,431 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 按眨眼、转头、张嘴的动作序列做简单的活体检测，在分析线程逐帧更新
+ * <p>
+ * 每个跟踪的人脸保存最近 {@link #HISTORY_SIZE} 帧的眼睛和嘴巴信号的环形缓冲和滑动和，每帧只加入一个值、
+ * 与滑动平均比较，不随历史长度增加计算量，所有缓冲区在创建时分配:
+ * <ul>
+ * <li>眨眼: 两眼附近亮度的标准差，闭眼时瞳孔和眼白消失，明显低于平均后恢复算一次眨眼</li>
+ * <li>张嘴: 有关键点时为嘴巴到两眼连线的距离与眼距之比，张嘴时嘴巴中心下移；没有时为嘴巴附近亮度的标准差</li>
+ * <li>转头: 先正对再转头超过 {@link #TURN_DEGREES}，只能由关键点估计，没有关键点的人脸跳过这个动作</li>
+ * </ul>
+ * 硬件人脸检测 FULL 模式提供眼睛和嘴巴的位置，其余情况按人脸框内的典型比例推算眼睛和嘴巴的位置。
+ * 只对每帧最大的人脸回调 {@link Listener}，当前动作或结果变化时才回调。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/10
+ */
+final class LivenessDetector {
+    static final int CHALLENGE_NONE = 0;
+    static final int CHALLENGE_BLINK = 1;
+    static final int CHALLENGE_TURN_HEAD = 2;
+    static final int CHALLENGE_OPEN_MOUTH = 3;
+
+    // 同时跟踪的人脸数量
+    private static final int MAX_TRACKED_FACES = 4;
+    // 信号的历史帧数，至少积累 WARMUP_FRAMES 帧后才开始判断
+    private static final int HISTORY_SIZE = 16;
+    private static final int WARMUP_FRAMES = 8;
+    // 眼睛和嘴巴附近采样的网格边长
+    private static final int PATCH_GRID = 8;
+    // 眼睛、嘴巴采样区域的半径与眼距之比
+    private static final float EYE_PATCH_RADIUS = 0.2f;
+    private static final float MOUTH_PATCH_RADIUS = 0.35f;
+    // 眼睛信号低于平均的这个比例算闭眼，回到这个比例以上算睁开
+    private static final float BLINK_CLOSE_RATIO = 0.6f;
+    private static final float BLINK_OPEN_RATIO = 0.85f;
+    // 张嘴时嘴巴信号超过平均的比例，关键点和亮度两种信号分别设置
+    private static final float MOUTH_OPEN_RATIO_LANDMARK = 1.12f;
+    private static final float MOUTH_OPEN_RATIO_LUMA = 1.4f;
+    // 转头前需要正对的角度和转头需要超过的角度
+    private static final float FRONTAL_DEGREES = 10;
+    private static final float TURN_DEGREES = 20;
+    // 一个动作最多等待的帧数，超过算失败
+    private static final int CHALLENGE_TIMEOUT_FRAMES = 150;
+    // 人脸中心与上一帧距离小于人脸边长的这个比例算同一个人脸
+    private static final float MATCH_DISTANCE = 0.5f;
+    // 人脸消失超过这么多帧后释放跟踪
+    private static final int TRACK_TIMEOUT_FRAMES = 15;
+    // 没有关键点时眼睛和嘴巴在人脸框中的位置，屏幕方向，0 到 1
+    private static final float EYE_X = 0.3f;
+    private static final float EYE_Y = 0.4f;
+    private static final float MOUTH_Y = 0.78f;
+
+    private final int[] mChallenges;
+    private final Track[] mTracks = new Track[MAX_TRACKED_FACES];
+    // 当前人脸的眼睛和嘴巴位置，分析图像坐标
+    private final float[] mPoints = new float[FaceQuality.LANDMARK_STRIDE];
+    private volatile int mRotationDegrees;
+    private volatile Listener mListener;
+    private long mFrameNumber;
+    // 最近一次回调的跟踪、动作和结果
+    private Track mPublishedTrack;
+    private int mPublishedChallenge = CHALLENGE_NONE;
+    private int mPublishedResult = Track.RESULT_PENDING;
+
+    /**
+     * @param challenges 依次要求完成的动作，{@link #CHALLENGE_BLINK}、{@link #CHALLENGE_TURN_HEAD} 或 {@link #CHALLENGE_OPEN_MOUTH}
+     */
+    LivenessDetector(int[] challenges) {
+        if (challenges.length == 0) {
+            throw new IllegalArgumentException("At least one challenge is required.");
+        }
+        for (int challenge : challenges) {
+            if (challenge < CHALLENGE_BLINK || challenge > CHALLENGE_OPEN_MOUTH) {
+                throw new IllegalArgumentException("Unknown challenge: " + challenge);
+            }
+        }
+        mChallenges = challenges.clone();
+        for (int i = 0; i < MAX_TRACKED_FACES; i++) {
+            mTracks[i] = new Track();
+        }
+    }
+
+    void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 设置分析图像顺时针旋转到屏幕方向的角度，见 {@link FaceTransform#getRotationDegrees}，用于推算没有关键点时眼睛的位置
+     */
+    void setRotationDegrees(int degrees) {
+        mRotationDegrees = degrees;
+    }
+
+    /**
+     * 用一帧的人脸更新各自的动作进度
+     *
+     * @param luma      按行紧密排列的亮度平面
+     * @param faces     分析图像坐标的人脸
+     * @param landmarks 每个人脸 {@link FaceQuality#LANDMARK_STRIDE} 个值，分析图像坐标，为 null 或 NaN 时按人脸框推算
+     */
+    void process(byte[] luma, int width, int height, FaceFrame faces, float[] landmarks) {
+        mFrameNumber++;
+        Track primary = null;
+        float primaryArea = 0;
+        for (int i = 0; i < faces.getCount(); i++) {
+            float faceWidth = faces.getRight(i) - faces.getLeft(i);
+            float faceHeight = faces.getBottom(i) - faces.getTop(i);
+            Track track = findTrack(faces.getCenterX(i), faces.getCenterY(i), Math.max(faceWidth, faceHeight));
+            if (track == null) {
+                // 人脸数量超过跟踪数量，这一帧不处理
+                continue;
+            }
+            boolean hasLandmarks = landmarks != null && FaceQuality.hasLandmarks(landmarks, i * FaceQuality.LANDMARK_STRIDE);
+            if (hasLandmarks) {
+                System.arraycopy(landmarks, i * FaceQuality.LANDMARK_STRIDE, mPoints, 0, FaceQuality.LANDMARK_STRIDE);
+            } else {
+                estimateLandmarks(faces.getLeft(i), faces.getTop(i), faceWidth, faceHeight);
+            }
+            measure(track, luma, width, height, hasLandmarks);
+            if (faceWidth * faceHeight > primaryArea) {
+                primary = track;
+                primaryArea = faceWidth * faceHeight;
+            }
+        }
+        for (Track track : mTracks) {
+            if (track.active && mFrameNumber - track.lastSeenFrame > TRACK_TIMEOUT_FRAMES) {
+                track.active = false;
+            }
+        }
+        publish(primary);
+    }
+
+    /**
+     * 清空所有跟踪，切换摄像头时调用
+     */
+    void reset() {
+        for (Track track : mTracks) {
+            track.active = false;
+        }
+        publish(null);
+    }
+
+    /**
+     * 找到同一个人脸的跟踪，没有时占用空闲或最久没出现的跟踪并从第一个动作开始
+     *
+     * @return 所有跟踪都已被这一帧的其他人脸占用时返回 null
+     */
+    private Track findTrack(float centerX, float centerY, float size) {
+        Track nearest = null;
+        float nearestDistance = size * MATCH_DISTANCE;
+        Track oldest = mTracks[0];
+        for (Track track : mTracks) {
+            if (!track.active) {
+                if (oldest.active) {
+                    oldest = track;
+                }
+                continue;
+            }
+            float distance = FaceGeometry.getDistance(track.centerX, track.centerY, centerX, centerY);
+            if (distance < nearestDistance && track.lastSeenFrame != mFrameNumber) {
+                nearest = track;
+                nearestDistance = distance;
+            }
+            if (oldest.active && track.lastSeenFrame < oldest.lastSeenFrame) {
+                oldest = track;
+            }
+        }
+        if (nearest == null) {
+            if (oldest.active && oldest.lastSeenFrame == mFrameNumber) {
+                return null;
+            }
+            nearest = oldest;
+            nearest.start();
+        }
+        nearest.centerX = centerX;
+        nearest.centerY = centerY;
+        nearest.lastSeenFrame = mFrameNumber;
+        return nearest;
+    }
+
+    /**
+     * 按屏幕方向人脸框内的典型比例推算两眼和嘴巴在分析图像中的位置
+     */
+    private void estimateLandmarks(float left, float top, float width, float height) {
+        setPoint(0, left, top, width, height, EYE_X, EYE_Y);
+        setPoint(2, left, top, width, height, 1 - EYE_X, EYE_Y);
+        setPoint(4, left, top, width, height, 0.5f, MOUTH_Y);
+    }
+
+    /**
+     * 屏幕方向的比例 (u, v) 逆旋转到分析图像方向
+     */
+    private void setPoint(int offset, float left, float top, float width, float height, float u, float v) {
+        float x;
+        float y;
+        switch (mRotationDegrees) {
+            case 90:
+                x = v;
+                y = 1 - u;
+                break;
+            case 180:
+                x = 1 - u;
+                y = 1 - v;
+                break;
+            case 270:
+                x = 1 - v;
+                y = u;
+                break;
+            case 0:
+            default:
+                x = u;
+                y = v;
+                break;
+        }
+        mPoints[offset] = left + x * width;
+        mPoints[offset + 1] = top + y * height;
+    }
+
+    private void measure(Track track, byte[] luma, int width, int height, boolean hasLandmarks) {
+        float eyeX = mPoints[2] - mPoints[0];
+        float eyeY = mPoints[3] - mPoints[1];
+        float eyeDistance = (float) Math.sqrt(eyeX * eyeX + eyeY * eyeY);
+        if (eyeDistance < 2) {
+            return;
+        }
+        float eyeRadius = eyeDistance * EYE_PATCH_RADIUS;
+        float eye = (patchDeviation(luma, width, height, mPoints[0], mPoints[1], eyeRadius)
+                + patchDeviation(luma, width, height, mPoints[2], mPoints[3], eyeRadius)) / 2;
+        float mouth;
+        if (hasLandmarks) {
+            // 嘴巴到两眼连线的垂直距离
+            float cross = (mPoints[4] - mPoints[0]) * eyeY - (mPoints[5] - mPoints[1]) * eyeX;
+            mouth = Math.abs(cross) / (eyeDistance * eyeDistance);
+        } else {
+            mouth = patchDeviation(luma, width, height, mPoints[4], mPoints[5], eyeDistance * MOUTH_PATCH_RADIUS);
+        }
+        float yaw = hasLandmarks ? FaceQuality.estimateYaw(mPoints, 0) : Float.NaN;
+        track.update(mChallenges, eye, mouth, yaw, hasLandmarks);
+    }
+
+    /**
+     * 以 (centerX, centerY) 为中心、radius 为半径的正方形内亮度的标准差，区域超出图像的部分截掉
+     */
+    private float patchDeviation(byte[] luma, int width, int height, float centerX, float centerY, float radius) {
+        int left = Math.max(0, (int) (centerX - radius));
+        int top = Math.max(0, (int) (centerY - radius));
+        int right = Math.min(width, (int) (centerX + radius) + 1);
+        int bottom = Math.min(height, (int) (centerY + radius) + 1);
+        if (right <= left || bottom <= top) {
+            return 0;
+        }
+        int patchWidth = right - left;
+        int patchHeight = bottom - top;
+        long sum = 0;
+        long sumSquares = 0;
+        for (int gy = 0; gy < PATCH_GRID; gy++) {
+            int row = (top + gy * patchHeight / PATCH_GRID) * width + left;
+            for (int gx = 0; gx < PATCH_GRID; gx++) {
+                int value = luma[row + gx * patchWidth / PATCH_GRID] & 0xff;
+                sum += value;
+                sumSquares += value * value;
+            }
+        }
+        int count = PATCH_GRID * PATCH_GRID;
+        float mean = sum / (float) count;
+        return (float) Math.sqrt(Math.max(0, sumSquares / (float) count - mean * mean));
+    }
+
+    /**
+     * 最大人脸的动作或结果变化时回调，人脸消失时回调 {@link #CHALLENGE_NONE}
+     */
+    private void publish(Track primary) {
+        int challenge = primary == null || primary.result != Track.RESULT_PENDING
+                ? CHALLENGE_NONE : primary.getChallenge(mChallenges);
+        int result = primary == null ? Track.RESULT_PENDING : primary.result;
+        if (primary == mPublishedTrack && challenge == mPublishedChallenge && result == mPublishedResult) {
+            return;
+        }
+        boolean resultChanged = result != mPublishedResult || primary != mPublishedTrack;
+        mPublishedTrack = primary;
+        mPublishedChallenge = challenge;
+        mPublishedResult = result;
+        Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        if (result != Track.RESULT_PENDING && resultChanged) {
+            listener.onLivenessResult(result == Track.RESULT_PASSED);
+        } else {
+            listener.onLivenessChallenge(challenge);
+        }
+    }
+
+    /**
+     * 一个人脸的信号历史和动作进度
+     */
+    private static final class Track {
+        static final int RESULT_PENDING = 0;
+        static final int RESULT_PASSED = 1;
+        static final int RESULT_FAILED = 2;
+
+        boolean active;
+        float centerX;
+        float centerY;
+        long lastSeenFrame;
+        // 眼睛和嘴巴信号的环形缓冲和滑动和
+        private final float[] mEyes = new float[HISTORY_SIZE];
+        private final float[] mMouths = new float[HISTORY_SIZE];
+        private float mEyeSum;
+        private float mMouthSum;
+        private int mNext;
+        private int mCount;
+        // 嘴巴信号是否来自关键点，来源变化时清空嘴巴历史
+        private boolean mMouthFromLandmarks;
+        // 当前动作在序列中的序号、已经等待的帧数和是否已经触发前半段(闭眼或正对)
+        private int mChallengeIndex;
+        private int mChallengeFrames;
+        private boolean mTriggered;
+        int result;
+
+        void start() {
+            active = true;
+            mEyeSum = 0;
+            mMouthSum = 0;
+            mNext = 0;
+            mCount = 0;
+            mChallengeIndex = 0;
+            mChallengeFrames = 0;
+            mTriggered = false;
+            result = RESULT_PENDING;
+        }
+
+        int getChallenge(int[] challenges) {
+            return challenges[mChallengeIndex];
+        }
+
+        void update(int[] challenges, float eye, float mouth, float yaw, boolean hasLandmarks) {
+            if (hasLandmarks != mMouthFromLandmarks) {
+                mMouthFromLandmarks = hasLandmarks;
+                mMouthSum = 0;
+                for (int i = 0; i < mCount; i++) {
+                    mMouths[i] = mouth;
+                    mMouthSum += mouth;
+                }
+            }
+            float eyeMean = mCount == 0 ? eye : mEyeSum / mCount;
+            float mouthMean = mCount == 0 ? mouth : mMouthSum / mCount;
+            boolean warm = mCount >= WARMUP_FRAMES;
+            push(eye, mouth);
+            if (result != RESULT_PENDING || !warm) {
+                return;
+            }
+            int challenge = challenges[mChallengeIndex];
+            if (challenge == CHALLENGE_TURN_HEAD && !hasLandmarks && !mTriggered) {
+                // 没有关键点无法估计转头，跳过这个动作
+                nextChallenge(challenges, false);
+                return;
+            }
+            boolean done = false;
+            switch (challenge) {
+                case CHALLENGE_BLINK:
+                    if (!mTriggered) {
+                        mTriggered = eye < eyeMean * BLINK_CLOSE_RATIO;
+                    } else {
+                        done = eye > eyeMean * BLINK_OPEN_RATIO;
+                    }
+                    break;
+                case CHALLENGE_OPEN_MOUTH:
+                    done = mouth > mouthMean * (hasLandmarks ? MOUTH_OPEN_RATIO_LANDMARK : MOUTH_OPEN_RATIO_LUMA);
+                    break;
+                case CHALLENGE_TURN_HEAD:
+                    if (Float.isNaN(yaw)) {
+                        break;
+                    }
+                    if (!mTriggered) {
+                        mTriggered = Math.abs(yaw) < FRONTAL_DEGREES;
+                    } else {
+                        done = Math.abs(yaw) > TURN_DEGREES;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (done) {
+                nextChallenge(challenges, hasLandmarks);
+            } else if (++mChallengeFrames > CHALLENGE_TIMEOUT_FRAMES) {
+                result = RESULT_FAILED;
+            }
+        }
+
+        /**
+         * 进入下一个动作，没有关键点时跳过转头
+         */
+        private void nextChallenge(int[] challenges, boolean hasLandmarks) {
+            mChallengeFrames = 0;
+            mTriggered = false;
+            do {
+                if (++mChallengeIndex == challenges.length) {
+                    mChallengeIndex = challenges.length - 1;
+                    result = RESULT_PASSED;
+                    return;
+                }
+            } while (challenges[mChallengeIndex] == CHALLENGE_TURN_HEAD && !hasLandmarks);
+        }
+
+        private void push(float eye, float mouth) {
+            if (mCount == HISTORY_SIZE) {
+                mEyeSum -= mEyes[mNext];
+                mMouthSum -= mMouths[mNext];
+            } else {
+                mCount++;
+            }
+            mEyes[mNext] = eye;
+            mMouths[mNext] = mouth;
+            mEyeSum += eye;
+            mMouthSum += mouth;
+            mNext = (mNext + 1) % HISTORY_SIZE;
+        }
+    }
+
+    interface Listener {
+        /**
+         * 最大人脸需要完成的动作变化，{@link #CHALLENGE_NONE} 表示没有人脸
+         */
+        void onLivenessChallenge(int challenge);
+
+        void onLivenessResult(boolean passed);
+    }
+}
@@ -38,23 +38,45 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 
-public class MainActivity extends AppCompatActivity implements CameraHelper.FaceDetectListener {
+public class MainActivity extends AppCompatActivity implements FrameSource.FaceDetectListener,
+        CameraHelper.FaceCaptureListener, FaceRecognizer.Listener {
     private static final String TAG = "MainActivity";
 
     private static final int REQUEST_CAMERA_PERMISSION = 100;
+    // 软件人脸检测模型，放在 assets 目录下，优先加载转换好的二进制文件，没有时解析 OpenCV 的 XML，见 FaceCascade
+    private static final String FACE_CASCADE_ASSET = "face_cascade.bin";
+    private static final String FACE_CASCADE_XML_ASSET = "lbpcascade_frontalface_improved.xml";
+    // 人脸特征模型，放在 assets 目录下，格式见 FaceEmbeddingModel；人脸库保存在应用私有目录
+    private static final String FACE_EMBEDDING_ASSET = "face_embedding.bin";
+    private static final String FACE_GALLERY_FILE = "face_gallery.bin";
+    // 定期输出流水线指标的间隔
+    private static final long METRICS_EXPORT_PERIOD_MS = 10_000;
+    // 每隔多少帧检测结果写一次日志
+    private static final int FACE_LOG_INTERVAL = 30;
 
     private CustomTextureView mTextureView;
 
     private ScanFaceView mScanFaceView;
     private CameraHelper mCameraHelper;
+    private CascadeFaceDetector mFaceDetector;
+    // 在加载线程创建好后由 UI 线程赋值，分析线程读取
+    private volatile FaceRecognizer mFaceRecognizer;
+    private ExecutorService mFaceRecognizerLoader;
+    private ExecutorService mFaceLogExecutor;
+    private FaceEventStream.Subscription mFaceLogSubscription;
 
 
     @RequiresApi(api = Build.VERSION_CODES.M)
@@ -72,17 +94,177 @@ public class MainActivity extends AppCompatActivity implements CameraHelper.Face
         }
         mCameraHelper = new CameraHelper(this, mTextureView);
         mCameraHelper.setFaceDetectListener(this);
+        // 检测结果在单独的线程按间隔写日志，不占用 UI 线程
+        mFaceLogExecutor = Executors.newSingleThreadExecutor();
+        mFaceLogSubscription = mCameraHelper.getFaceEventStream().subscribe(mFaceLogExecutor,
+                FaceEventStream.POLICY_EVERY_NTH, FACE_LOG_INTERVAL,
+                event -> TraceLog.d(TAG, "人脸数量, 帧:", event.getFaceFrame().getCount(), event.getFrameNumber()));
+        // 人脸在圆圈内稳定后直接从最近几帧中取照片
+        mCameraHelper.setZslCaptureEnabled(true);
+        mScanFaceView.setOnFaceStableListener(() -> mCameraHelper.captureBestFace(this));
+        // 只有清晰、曝光正常、大小合适的正脸才交给识别，识别模型和人脸库加载好之前的人脸不识别
+        mCameraHelper.setFaceQualityListener((luma, result) -> {
+            TraceLog.i(TAG, "人脸质量合格, 清晰度, 亮度, 转头:", result.quality, result.sharpness,
+                    result.brightness, result.yaw);
+            FaceRecognizer recognizer = mFaceRecognizer;
+            if (recognizer != null) {
+                recognizer.onBestFace(luma, result);
+            }
+        });
+        mCameraHelper.setLivenessListener(new LivenessDetector.Listener() {
+            @Override
+            public void onLivenessChallenge(int challenge) {
+                mScanFaceView.setLivenessChallenge(challenge);
+            }
+
+            @Override
+            public void onLivenessResult(boolean passed) {
+                Log.i(TAG, "活体检测结果: " + passed);
+                mScanFaceView.setLivenessResult(passed);
+            }
+        });
+        mScanFaceView.addOnLayoutChangeListener((v, left, top, right, bottom, oldLeft, oldTop, oldRight, oldBottom) -> {
+            float targetSize = mScanFaceView.getMaskRelativeSize();
+            if (targetSize > 0) {
+                mCameraHelper.setFaceQualityTargetSize(targetSize);
+            }
+        });
+        mScanFaceView.setPipelineMetrics(mCameraHelper.getPipelineMetrics());
+        mCameraHelper.setMetricsListener(snapshot -> Log.i(TAG, "流水线指标: " + snapshot), METRICS_EXPORT_PERIOD_MS);
+        initFaceAnalyzer();
+        loadFaceRecognizer();
+        // 零延迟拍照、人脸质量、活体检测和软件人脸检测都设置好后再打开相机
+        mCameraHelper.start();
+    }
+
+    /**
+     * 加载软件人脸检测模型，相机硬件不支持人脸检测时使用，没有模型时只使用硬件人脸检测
+     */
+    private void initFaceAnalyzer() {
+        FaceCascade cascade;
+        try (InputStream inputStream = getAssets().open(FACE_CASCADE_ASSET)) {
+            cascade = FaceCascade.load(inputStream);
+        } catch (IOException e) {
+            try (InputStream inputStream = getAssets().open(FACE_CASCADE_XML_ASSET)) {
+                cascade = FaceCascade.loadOpenCvXml(inputStream);
+            } catch (IOException xmlException) {
+                Log.i(TAG, "未加载软件人脸检测模型: " + xmlException.getMessage());
+                return;
+            }
+        }
+        mFaceDetector = new CascadeFaceDetector(cascade);
+        mCameraHelper.setFaceAnalyzer(mFaceDetector);
+    }
+
+    /**
+     * 在单独的线程解析人脸特征模型、打开人脸库，不阻塞界面启动；加载好时界面已经销毁则直接释放
+     */
+    private void loadFaceRecognizer() {
+        mFaceRecognizerLoader = Executors.newSingleThreadExecutor();
+        mFaceRecognizerLoader.execute(() -> {
+            FaceRecognizer recognizer = createFaceRecognizer();
+            if (recognizer == null) {
+                return;
+            }
+            runOnUiThread(() -> {
+                if (isDestroyed()) {
+                    recognizer.release();
+                } else {
+                    mFaceRecognizer = recognizer;
+                }
+            });
+        });
+    }
+
+    /**
+     * 加载人脸特征模型并打开人脸库，没有模型或人脸库打不开时不做识别，返回 null，在加载线程调用
+     */
+    private FaceRecognizer createFaceRecognizer() {
+        FaceEmbeddingModel model;
+        try (InputStream inputStream = getAssets().open(FACE_EMBEDDING_ASSET)) {
+            model = FaceEmbeddingModel.load(inputStream);
+        } catch (IOException e) {
+            Log.i(TAG, "未加载人脸特征模型: " + e.getMessage());
+            return null;
+        }
+        FaceGallery gallery;
+        try {
+            gallery = FaceGallery.open(new File(getFilesDir(), FACE_GALLERY_FILE), model.getEmbeddingSize(),
+                    FaceGallery.TYPE_INT8);
+        } catch (IOException e) {
+            Log.w(TAG, "打开人脸库失败", e);
+            return null;
+        }
+        Log.i(TAG, "人脸库记录数: " + gallery.size());
+        return new FaceRecognizer(new FaceEmbedder(model), gallery, this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        // 先在相机线程开始打开相机，与界面恢复并行
+        if (mCameraHelper != null) {
+            mCameraHelper.resume();
+        }
+        mScanFaceView.setPaused(false);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mScanFaceView.setPaused(true);
+        if (mCameraHelper != null) {
+            mCameraHelper.pause();
+        }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mCameraHelper.releaseCamera();
-        mCameraHelper.releaseThread();
+        // 等待权限时 onCreate 提前返回，相机和日志订阅都还没有创建
+        if (mCameraHelper != null) {
+            mCameraHelper.release();
+        }
+        if (mFaceLogSubscription != null) {
+            mFaceLogSubscription.cancel();
+        }
+        if (mFaceLogExecutor != null) {
+            mFaceLogExecutor.shutdown();
+        }
+        if (mFaceDetector != null) {
+            mFaceDetector.release();
+        }
+        if (mFaceRecognizerLoader != null) {
+            mFaceRecognizerLoader.shutdown();
+        }
+        if (mFaceRecognizer != null) {
+            mFaceRecognizer.release();
+        }
+    }
+
+    @Override
+    public void onFaceDetect(FaceFrame faceFrame) {
+        mScanFaceView.setFaces(faceFrame);
+    }
+
+    @Override
+    public void onFaceCaptured(byte[] jpeg) {
+        Log.i(TAG, "人脸照片大小: " + jpeg.length);
+        Toast.makeText(this, "已拍摄人脸照片", Toast.LENGTH_SHORT).show();
+    }
+
+    @Override
+    public void onFaceCaptureFailed() {
+        Log.i(TAG, "人脸照片拍摄失败");
+    }
+
+    @Override
+    public void onFaceRecognized(int personId, float score) {
+        Log.i(TAG, "识别到人员: " + personId + ", 相似度: " + score);
     }
 
     @Override
-    public void onFaceDetect(List<RectF> facesRect) {
-        mScanFaceView.setFaces(facesRect);
+    public void onFaceEnrolled(int personId) {
+        Log.i(TAG, "录入新人员: " + personId);
     }
 }
\ No newline at end of file
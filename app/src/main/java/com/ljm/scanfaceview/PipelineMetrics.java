@@ -0,0 +1,230 @@
+package com.ljm.scanfaceview;
+
+import java.util.Locale;
+
+/**
+ * 相机到界面整条流水线的逐帧指标
+ * <p>
+ * 每个直方图和计数只由一个线程写入: 传感器到回调延迟、人脸到 AE 收敛耗时、预览帧数和采集失败数在相机线程，回调到界面分发延迟和绘制耗时在 UI 线程，
+ * 软件检测耗时和分析帧数在分析线程。记录不产生对象分配。
+ * 任意线程都可以通过 {@link #snapshot(Snapshot)} 把当前数据复制到复用的 {@link Snapshot} 中，用于导出和对比不同机型。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/1
+ */
+public final class PipelineMetrics {
+    private final LatencyHistogram mSensorToCallback = new LatencyHistogram();
+    private final LatencyHistogram mCallbackToUi = new LatencyHistogram();
+    private final LatencyHistogram mDrawDuration = new LatencyHistogram();
+    private final LatencyHistogram mAnalysisDuration = new LatencyHistogram();
+    private final LatencyHistogram mFaceToAeConverged = new LatencyHistogram();
+    private final long mStartNs = System.nanoTime();
+    private volatile long mPreviewFrameCount;
+    private volatile long mAnalysisFrameCount;
+    private volatile long mAnalysisDroppedCount;
+    private volatile long mCaptureFailedCount;
+
+    /**
+     * 相机线程: 传感器曝光开始到 onCaptureCompleted 的延迟
+     */
+    void recordSensorToCallback(long latencyNs) {
+        mSensorToCallback.recordNanos(latencyNs);
+    }
+
+    /**
+     * 相机线程: 人脸出现到按人脸测光的帧 AE 收敛的耗时
+     */
+    void recordFaceToAeConverged(long latencyNs) {
+        mFaceToAeConverged.recordNanos(latencyNs);
+    }
+
+    /**
+     * 相机线程: 收到一帧预览结果
+     */
+    void onPreviewFrame() {
+        mPreviewFrameCount++;
+    }
+
+    /**
+     * 相机线程: onCaptureFailed
+     */
+    void onCaptureFailed() {
+        mCaptureFailedCount++;
+    }
+
+    /**
+     * 相机线程: 分析线程忙而丢弃一帧分析图像
+     */
+    void onAnalysisDropped() {
+        mAnalysisDroppedCount++;
+    }
+
+    /**
+     * 分析线程: 完成一帧软件人脸检测
+     */
+    void recordAnalysis(long durationNs) {
+        mAnalysisDuration.recordNanos(durationNs);
+        mAnalysisFrameCount++;
+    }
+
+    /**
+     * UI 线程: 检测结果产生到交给监听者的延迟
+     */
+    void recordCallbackToUi(long latencyNs) {
+        mCallbackToUi.recordNanos(latencyNs);
+    }
+
+    /**
+     * UI 线程: 一次人脸遮罩绘制的耗时
+     */
+    public void recordDraw(long durationNs) {
+        mDrawDuration.recordNanos(durationNs);
+    }
+
+    /**
+     * 把当前数据复制到 out，帧率按 out 上一次填充到现在的时间计算，第一次填充时从开始记录算起
+     */
+    public void snapshot(Snapshot out) {
+        long nowNs = System.nanoTime();
+        long previewFrames = mPreviewFrameCount;
+        long analysisFrames = mAnalysisFrameCount;
+        long sinceNs = out.mTimeNs == 0 ? mStartNs : out.mTimeNs;
+        double seconds = Math.max(1, nowNs - sinceNs) / 1e9;
+        out.mPreviewFps = (previewFrames - out.mPreviewFrameCount) / seconds;
+        out.mAnalysisFps = (analysisFrames - out.mAnalysisFrameCount) / seconds;
+        out.mTimeNs = nowNs;
+        out.mPreviewFrameCount = previewFrames;
+        out.mAnalysisFrameCount = analysisFrames;
+        out.mAnalysisDroppedCount = mAnalysisDroppedCount;
+        out.mCaptureFailedCount = mCaptureFailedCount;
+        mSensorToCallback.copyTo(out.mSensorToCallback);
+        mCallbackToUi.copyTo(out.mCallbackToUi);
+        mDrawDuration.copyTo(out.mDrawDuration);
+        mAnalysisDuration.copyTo(out.mAnalysisDuration);
+        mFaceToAeConverged.copyTo(out.mFaceToAeConverged);
+    }
+
+    /**
+     * 某一时刻的指标快照，可以反复填充复用
+     */
+    public static final class Snapshot {
+        private final LatencyHistogram mSensorToCallback = new LatencyHistogram();
+        private final LatencyHistogram mCallbackToUi = new LatencyHistogram();
+        private final LatencyHistogram mDrawDuration = new LatencyHistogram();
+        private final LatencyHistogram mAnalysisDuration = new LatencyHistogram();
+        private final LatencyHistogram mFaceToAeConverged = new LatencyHistogram();
+        private long mTimeNs;
+        private double mPreviewFps;
+        private double mAnalysisFps;
+        private long mPreviewFrameCount;
+        private long mAnalysisFrameCount;
+        private long mAnalysisDroppedCount;
+        private long mCaptureFailedCount;
+        // 人脸结果分发的统计，由 CameraHelper 填充
+        long mOfferedCount;
+        long mDroppedCount;
+        long mCoalescedCount;
+        long mDeliveredCount;
+
+        /**
+         * 传感器曝光开始到 onCaptureCompleted 的延迟，单位微秒
+         */
+        public LatencyHistogram getSensorToCallback() {
+            return mSensorToCallback;
+        }
+
+        /**
+         * 检测结果产生到交给界面的延迟，单位微秒
+         */
+        public LatencyHistogram getCallbackToUi() {
+            return mCallbackToUi;
+        }
+
+        /**
+         * 人脸遮罩绘制耗时，单位微秒
+         */
+        public LatencyHistogram getDrawDuration() {
+            return mDrawDuration;
+        }
+
+        /**
+         * 软件人脸检测耗时，单位微秒
+         */
+        public LatencyHistogram getAnalysisDuration() {
+            return mAnalysisDuration;
+        }
+
+        /**
+         * 人脸出现到按人脸测光的帧 AE 收敛的耗时，单位微秒
+         */
+        public LatencyHistogram getFaceToAeConverged() {
+            return mFaceToAeConverged;
+        }
+
+        public long getTimeNs() {
+            return mTimeNs;
+        }
+
+        public double getPreviewFps() {
+            return mPreviewFps;
+        }
+
+        public double getAnalysisFps() {
+            return mAnalysisFps;
+        }
+
+        public long getPreviewFrameCount() {
+            return mPreviewFrameCount;
+        }
+
+        public long getAnalysisFrameCount() {
+            return mAnalysisFrameCount;
+        }
+
+        public long getAnalysisDroppedCount() {
+            return mAnalysisDroppedCount;
+        }
+
+        public long getCaptureFailedCount() {
+            return mCaptureFailedCount;
+        }
+
+        public long getOfferedCount() {
+            return mOfferedCount;
+        }
+
+        /**
+         * 与上一次相比变化太小而丢弃的人脸结果数量
+         */
+        public long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        /**
+         * 还没被界面取走就被新结果覆盖的人脸结果数量
+         */
+        public long getCoalescedCount() {
+            return mCoalescedCount;
+        }
+
+        public long getDeliveredCount() {
+            return mDeliveredCount;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "previewFps=%.1f analysisFps=%.1f", mPreviewFps, mAnalysisFps)
+                    + " captureFailed=" + mCaptureFailedCount
+                    + " analysisDropped=" + mAnalysisDroppedCount
+                    + " offered=" + mOfferedCount
+                    + " dropped=" + mDroppedCount
+                    + " coalesced=" + mCoalescedCount
+                    + " delivered=" + mDeliveredCount
+                    + " sensorToCallback[" + mSensorToCallback + "]"
+                    + " callbackToUi[" + mCallbackToUi + "]"
+                    + " draw[" + mDrawDuration + "]"
+                    + " analysis[" + mAnalysisDuration + "]"
+                    + " faceToAe[" + mFaceToAeConverged + "]";
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.ljm.scanfaceview;
+
+import android.view.Choreographer;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 从 {@link FrameRecording} 录制文件回放人脸数据，不依赖相机和界面，可以在 JVM 上运行
+ * <p>
+ * 人脸记录和 {@link CameraHelper} 一样经过 {@link FaceTransform} 一次转换整帧后交给 {@link FaceResultDispatcher}；
+ * 亮度图像记录在设置了 {@link FaceAnalyzer} 时检测后按分析流的方式转换。
+ * 所有工作都在回放线程进行，帧回调按 60Hz 的垂直同步模拟，监听者也在回放线程回调。
+ * 按录制速度回放时使用真实时间；按最快速度回放时使用由录制时间戳推进的虚拟时间，跟踪和分发的结果与按录制速度回放一致。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/5
+ */
+public final class ReplayFrameSource implements FrameSource {
+    private static final String TAG = "ReplayFrameSource";
+    // 模拟的垂直同步周期
+    private static final long VSYNC_NS = 16_666_667L;
+    // 数据结束后轨迹最多继续外推的时间
+    private static final long DRAIN_NS = 1_000_000_000L;
+    private static final int MAX_FACE_COUNT = 10;
+
+    private final DataInputStream mIn;
+    private final FrameRecording mRecording;
+    private final FaceTransform mTransform;
+    private final FaceTransform mAnalysisTransform;
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private final ReplayClock mClock;
+    private final FaceResultDispatcher mFaceResultDispatcher;
+    // 软件检测结果，亮度图像坐标
+    private final FaceFrame mAnalysisFaces = new FaceFrame(MAX_FACE_COUNT);
+    // 一条人脸记录的传感器坐标和分数
+    private final float[] mSensorRects = new float[MAX_FACE_COUNT * FaceFrame.RECT_STRIDE];
+    private final float[] mSensorScores = new float[MAX_FACE_COUNT];
+    private final byte[] mLuma;
+    private volatile FaceAnalyzer mFaceAnalyzer;
+    private volatile int mFaceDetectInterval = 1;
+    private long mDetectFrameCounter;
+    private long mFaceFrameNumber;
+    // 下一次模拟垂直同步的时间
+    private long mNextVsyncNs;
+    private volatile boolean mReleased;
+    private Thread mThread;
+
+    /**
+     * @param realtime true 按录制时的间隔回放，false 按最快速度回放
+     */
+    public ReplayFrameSource(InputStream inputStream, boolean realtime) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(inputStream));
+        mRecording = FrameRecording.readHeader(mIn);
+        mTransform = mRecording.createTransform();
+        mAnalysisTransform = mRecording.createAnalysisTransform();
+        mClock = new ReplayClock(realtime);
+        mFaceResultDispatcher = new FaceResultDispatcher(MAX_FACE_COUNT, mMetrics, mClock);
+        mLuma = new byte[mRecording.lumaWidth * mRecording.lumaHeight];
+    }
+
+    /**
+     * 在新线程中回放，结束或出错后线程退出
+     */
+    public void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Replay already started.");
+        }
+        mThread = new Thread(() -> {
+            try {
+                run();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "ReplayThread");
+        mThread.start();
+    }
+
+    /**
+     * 在当前线程回放全部记录，返回时数据已经读完或已经 {@link #release()}
+     *
+     * @return 回放的记录数量
+     */
+    public int run() throws IOException {
+        int recordCount = 0;
+        long baseNs = mClock.nanoTime();
+        long firstTimestampNs = 0;
+        long lastEventNs = baseNs;
+        mNextVsyncNs = baseNs + VSYNC_NS;
+        while (!mReleased) {
+            int type = mIn.read();
+            if (type < 0) {
+                break;
+            }
+            long timestampNs = mIn.readLong();
+            if (recordCount == 0) {
+                firstTimestampNs = timestampNs;
+            }
+            lastEventNs = baseNs + (timestampNs - firstTimestampNs);
+            advanceTo(lastEventNs);
+            if (type == FrameRecording.RECORD_FACES) {
+                readFaces();
+            } else if (type == FrameRecording.RECORD_LUMA) {
+                readLuma();
+            } else {
+                throw new IOException("未知的记录类型: " + type);
+            }
+            recordCount++;
+        }
+        drain(lastEventNs + DRAIN_NS);
+        return recordCount;
+    }
+
+    private void readFaces() throws IOException {
+        mMetrics.onPreviewFrame();
+        int count = mIn.readUnsignedByte();
+        int kept = Math.min(count, MAX_FACE_COUNT);
+        for (int i = 0; i < count; i++) {
+            int left = mIn.readUnsignedShort();
+            int top = mIn.readUnsignedShort();
+            int right = mIn.readUnsignedShort();
+            int bottom = mIn.readUnsignedShort();
+            int score = mIn.readUnsignedByte();
+            if (i >= kept) {
+                // 超出容量的人脸丢弃，但仍要读完这条记录
+                continue;
+            }
+            int offset = i * FaceFrame.RECT_STRIDE;
+            mSensorRects[offset] = left;
+            mSensorRects[offset + 1] = top;
+            mSensorRects[offset + 2] = right;
+            mSensorRects[offset + 3] = bottom;
+            mSensorScores[i] = score;
+        }
+        if (!shouldDetectFaces()) {
+            return;
+        }
+        FaceFrame faceFrame = mFaceResultDispatcher.obtain();
+        faceFrame.reset(mFaceFrameNumber++, mClock.nanoTime());
+        mTransform.mapFaces(mSensorRects, mSensorScores, kept, faceFrame);
+        mFaceResultDispatcher.publish();
+    }
+
+    private void readLuma() throws IOException {
+        if (mLuma.length == 0) {
+            throw new IOException("录制文件头没有亮度图像尺寸");
+        }
+        mIn.readFully(mLuma);
+        FaceAnalyzer analyzer = mFaceAnalyzer;
+        if (analyzer == null || !shouldDetectFaces()) {
+            return;
+        }
+        int width = mRecording.lumaWidth;
+        int height = mRecording.lumaHeight;
+        mAnalysisFaces.reset(mFaceFrameNumber, mClock.nanoTime());
+        long startNs = System.nanoTime();
+        analyzer.analyze(mLuma, width, height, mAnalysisFaces);
+        mMetrics.recordAnalysis(System.nanoTime() - startNs);
+        FaceFrame faceFrame = mFaceResultDispatcher.obtain();
+        faceFrame.reset(mFaceFrameNumber++, mAnalysisFaces.getTimestampNs());
+        mAnalysisTransform.mapFaces(mAnalysisFaces, faceFrame);
+        mFaceResultDispatcher.publish();
+    }
+
+    private boolean shouldDetectFaces() {
+        return mDetectFrameCounter++ % mFaceDetectInterval == 0;
+    }
+
+    /**
+     * 执行 timeNs 之前的所有模拟垂直同步，再等待到 timeNs
+     */
+    private void advanceTo(long timeNs) {
+        while (mNextVsyncNs <= timeNs) {
+            Choreographer.FrameCallback callback = mClock.takeFrameCallback();
+            if (callback == null) {
+                // 没有等待的帧回调，直接跳到 timeNs 之后的第一个垂直同步
+                mNextVsyncNs += ((timeNs - mNextVsyncNs) / VSYNC_NS + 1) * VSYNC_NS;
+                break;
+            }
+            mClock.waitUntil(mNextVsyncNs);
+            callback.doFrame(mNextVsyncNs);
+            mNextVsyncNs += VSYNC_NS;
+        }
+        mClock.waitUntil(timeNs);
+    }
+
+    /**
+     * 数据结束后继续执行帧回调，直到轨迹停止外推或到达 endNs
+     */
+    private void drain(long endNs) {
+        while (!mReleased && mNextVsyncNs <= endNs) {
+            Choreographer.FrameCallback callback = mClock.takeFrameCallback();
+            if (callback == null) {
+                return;
+            }
+            mClock.waitUntil(mNextVsyncNs);
+            callback.doFrame(mNextVsyncNs);
+            mNextVsyncNs += VSYNC_NS;
+        }
+    }
+
+    @Override
+    public void setFaceDetectListener(FaceDetectListener listener) {
+        mFaceResultDispatcher.setListener(listener);
+    }
+
+    @Override
+    public FaceEventStream getFaceEventStream() {
+        return mFaceResultDispatcher.getEventStream();
+    }
+
+    /**
+     * 设置后回放亮度图像记录时检测人脸，需要在回放开始前设置
+     */
+    @Override
+    public void setFaceAnalyzer(FaceAnalyzer analyzer) {
+        mFaceAnalyzer = analyzer;
+    }
+
+    @Override
+    public void setFaceDetectInterval(int interval) {
+        if (interval < 1) {
+            throw new IllegalArgumentException("Interval must be positive.");
+        }
+        mFaceDetectInterval = interval;
+    }
+
+    @Override
+    public void setFaceMotionEpsilon(float epsilon) {
+        mFaceResultDispatcher.setMotionEpsilon(epsilon);
+    }
+
+    @Override
+    public PipelineMetrics getPipelineMetrics() {
+        return mMetrics;
+    }
+
+    @Override
+    public PipelineMetrics.Snapshot getMetricsSnapshot(PipelineMetrics.Snapshot out) {
+        mMetrics.snapshot(out);
+        out.mOfferedCount = mFaceResultDispatcher.getOfferedCount();
+        out.mDroppedCount = mFaceResultDispatcher.getDroppedCount();
+        out.mCoalescedCount = mFaceResultDispatcher.getCoalescedCount();
+        out.mDeliveredCount = mFaceResultDispatcher.getDeliveredCount();
+        return out;
+    }
+
+    /**
+     * 停止回放并关闭输入流，由 {@link #start()} 启动时等待回放线程退出
+     */
+    @Override
+    public void release() {
+        mReleased = true;
+        Thread thread = mThread;
+        if (thread != null && thread != Thread.currentThread()) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        try {
+            mIn.close();
+        } catch (IOException e) {
+            TraceLog.w(TAG, "关闭录制文件失败");
+        }
+    }
+
+    /**
+     * 回放线程的时间和帧回调，只在回放线程访问
+     */
+    private final class ReplayClock implements FaceResultDispatcher.FrameClock {
+        private final boolean mRealtime;
+        private long mVirtualNs;
+        private Choreographer.FrameCallback mFrameCallback;
+
+        ReplayClock(boolean realtime) {
+            mRealtime = realtime;
+            mVirtualNs = System.nanoTime();
+        }
+
+        @Override
+        public void postFrameCallback(Choreographer.FrameCallback callback) {
+            mFrameCallback = callback;
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            if (mFrameCallback == callback) {
+                mFrameCallback = null;
+            }
+        }
+
+        @Override
+        public long nanoTime() {
+            return mRealtime ? System.nanoTime() : mVirtualNs;
+        }
+
+        Choreographer.FrameCallback takeFrameCallback() {
+            Choreographer.FrameCallback callback = mFrameCallback;
+            mFrameCallback = null;
+            return callback;
+        }
+
+        void waitUntil(long timeNs) {
+            if (!mRealtime) {
+                mVirtualNs = Math.max(mVirtualNs, timeNs);
+                return;
+            }
+            long remainingNs;
+            while (!mReleased && (remainingNs = timeNs - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remainingNs);
+            }
+        }
+    }
+}
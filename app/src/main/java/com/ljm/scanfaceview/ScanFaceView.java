@@ -1,5 +1,6 @@
 package com.ljm.scanfaceview;
 
+import android.animation.ObjectAnimator;
 import android.animation.ValueAnimator;
 import android.content.Context;
 import android.content.res.TypedArray;
@@ -9,26 +10,58 @@ import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PointF;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import android.graphics.Path;
 import android.graphics.Rect;
 import android.graphics.RectF;
+import android.graphics.drawable.AnimatedVectorDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
 import android.util.AttributeSet;
-import android.util.Log;
 import android.view.View;
-
-import java.util.List;
+import android.widget.FrameLayout;
 
 
 /**
+ * 人脸扫描遮罩
+ * <p>
+ * 白色背景、镂空、外圈和底部文字只在尺寸变化时生成一次 {@link Path}，绘制时不再创建对象、不再解析颜色，
+ * 镂空形状可以是圆形、椭圆或圆角矩形。
+ * 扫描线是镂空区域内单独的子 View，只有人脸变化时才重绘遮罩，遮罩只是绘制缓存好的路径，整体重绘的开销很小。
+ * API 25 及以上使用默认扫描图片和时长时，
+ * 扫描线是 {@link AnimatedVectorDrawable}，动画在 RenderThread 上播放，UI 线程每帧不执行任何代码，UI 线程卡顿时扫描线也不停顿；
+ * 其他情况用属性动画改变子 View 的 translationY，UI 线程每帧只更新它的 RenderNode 属性，不会重新执行绘制。扫描线在下、人脸框在中、遮罩在上，遮罩挡住镂空以外的部分，不再需要混合模式和离屏图层。
+ * View 不可见或所在窗口不可见时自动停止动画。
+ *
  * @author: ljm
  * 创建日期:2022/7/28
  */
-public class ScanFaceView extends View {
+public class ScanFaceView extends FrameLayout {
     private static final String TAG = "ScanFaceView";
     // 默认扫描圆圈的半径
     private static final int DEFAULT_CIRCLE_RADIUS = 270;
+    /**
+     * 镂空形状，与 attrs.xml 中 mask_shape 的取值一致
+     */
+    public static final int MASK_SHAPE_CIRCLE = 0;
+    public static final int MASK_SHAPE_OVAL = 1;
+    public static final int MASK_SHAPE_ROUND_RECT = 2;
+    // 椭圆和圆角矩形默认的高宽比
+    private static final float DEFAULT_MASK_RATIO = 1.25f;
+    // 外圈与镂空边缘的间距
+    private static final float RING_GAP = 10;
+    // 底部文字基线与镂空底部的距离
+    private static final float CENTER_TEXT_MARGIN = 150;
+    private static final String DEFAULT_CENTER_TEXT = "正在进行人脸识别";
+    private static final String INNER_HINT_TEXT = "请保持不动";
+    private static final String BLINK_HINT_TEXT = "请眨眨眼";
+    private static final String TURN_HEAD_HINT_TEXT = "请缓慢转头";
+    private static final String OPEN_MOUTH_HINT_TEXT = "请张张嘴";
+    private static final String LIVENESS_PASSED_TEXT = "活体检测通过";
+    private static final String LIVENESS_FAILED_TEXT = "活体检测未通过";
+    // 人脸在镂空区域内保持多久算稳定
+    private static final long FACE_STABLE_DURATION_MS = 500;
+    // 稳定期间人脸中心允许移动的距离，占扫描圆圈半径的比例
+    private static final float FACE_STABLE_TOLERANCE = 0.1f;
     private Context mContext;
     /**
      * 自身的宽高
@@ -39,17 +72,22 @@ public class ScanFaceView extends View {
 
     private Paint mTextPaint;
 
+    private Paint mHintPaint;
+
     private Paint mCirclePaint;
 
     private float circleCenterX;
 
     private float circleCenterY;
 
-    private Paint mRectPaint;
-    private ValueAnimator mValueAnimator;
-    private Bitmap scanBitmap;
-
-    private Matrix bitmapMatrix = new Matrix();
+    private ObjectAnimator mValueAnimator;
+    // 在 RenderThread 上播放的扫描线，为 null 时使用 mValueAnimator
+    private AnimatedVectorDrawable mScanLineDrawable;
+    // 所在界面是否暂停，暂停期间尺寸或可见性变化也不开始动画
+    private boolean mPaused;
+    // 裁剪到镂空区域的容器和在其中移动的扫描线
+    private FrameLayout mScanLineContainer;
+    private ScanLineView mScanLineView;
     private boolean mIsHorizontal;
     private boolean mIsVertical;
     private float mCircle_radius;
@@ -57,7 +95,42 @@ public class ScanFaceView extends View {
     private float mCircle_marginTop;
     private int mAnim_duration;
     private int mScan_img_resource_id;
+    private int mMask_shape;
+    private float mMask_corner_radius;
+    private float mMask_ratio;
+    private int mMask_color;
+    private String mCenter_text;
     private FaceBox mFaceBox;
+    // 最近一次设置的所有人脸的几何信息
+    private FaceGeometry mFaceGeometry;
+    // 记录绘制耗时，为 null 时不记录
+    private PipelineMetrics mPipelineMetrics;
+    private OnFaceStableListener mOnFaceStableListener;
+    // 活体检测的动作提示或结果，为 null 时提示保持不动
+    private String mLivenessHint;
+    // 正在判断是否稳定的人脸，离镂空中心最近的已确认人脸
+    private int mStableFaceId = FaceFrame.NO_ID;
+    private float mStableCenterX;
+    private float mStableCenterY;
+    // 人脸保持稳定到时后在 UI 线程回调，不在绘制过程中回调
+    private final Runnable mFaceStableRunnable = () -> {
+        if (mOnFaceStableListener != null) {
+            mOnFaceStableListener.onFaceStable();
+        }
+    };
+
+    // 以下在 onSizeChanged 中计算，onDraw 只读取
+    // 背景减去镂空区域(EVEN_ODD)
+    private final Path mMaskPath = new Path();
+    // 镂空外圈
+    private final Path mRingPath = new Path();
+    // 镂空区域
+    private final RectF mMaskRect = new RectF();
+    private final RectF mRingRect = new RectF();
+    // 镂空区域取整后的范围，扫描线容器放在这里
+    private final Rect mMaskBounds = new Rect();
+    private float mCenterTextY;
+    private float mHintY;
 
     public ScanFaceView(Context context) {
         this(context, null);
@@ -75,35 +148,47 @@ public class ScanFaceView extends View {
         mCircle_radius = typedArray.getDimension(R.styleable.ScanFaceView_circle_radius, DEFAULT_CIRCLE_RADIUS);
         mInner_circle_color = typedArray.getColor(R.styleable.ScanFaceView_inner_circle_color, Color.parseColor("#008ED6"));
         mCircle_marginTop = typedArray.getDimension(R.styleable.ScanFaceView_circle_marginTop, 0);
-        mAnim_duration = typedArray.getInteger(R.styleable.ScanFaceView_anim_duration, 1500);
+        mAnim_duration = typedArray.getInteger(R.styleable.ScanFaceView_anim_duration,
+                getResources().getInteger(R.integer.scan_line_duration));
         mScan_img_resource_id = typedArray.getResourceId(R.styleable.ScanFaceView_unit_scan_img, R.mipmap.icon_scan_line);
-        Log.i(TAG, "ScanFaceView: isHorizontal=" + mIsHorizontal
-                + "//isVertical=" + mIsVertical
-                + "//circle_radius=" + mCircle_radius
-                + "//inner_circle_color=" + mInner_circle_color
-                + "//circle_marginTop=" + mCircle_marginTop
-                + "//anim_duration=" + mAnim_duration
-                + "//scan_img_resource_id=" + mScan_img_resource_id);
+        mMask_shape = typedArray.getInt(R.styleable.ScanFaceView_mask_shape, MASK_SHAPE_CIRCLE);
+        mMask_corner_radius = typedArray.getDimension(R.styleable.ScanFaceView_mask_corner_radius, 0);
+        mMask_ratio = typedArray.getFloat(R.styleable.ScanFaceView_mask_oval_ratio,
+                mMask_shape == MASK_SHAPE_CIRCLE ? 1.0f : DEFAULT_MASK_RATIO);
+        mMask_color = typedArray.getColor(R.styleable.ScanFaceView_mask_color, Color.WHITE);
+        mCenter_text = typedArray.getString(R.styleable.ScanFaceView_center_text);
+        if (mCenter_text == null) {
+            mCenter_text = DEFAULT_CENTER_TEXT;
+        }
+        typedArray.recycle();
+        TraceLog.d(TAG, "ScanFaceView: circle_radius, mask_shape:", mCircle_radius, mMask_shape);
         init(context);
     }
 
     private void init(Context context) {
-        // 禁用硬件加速
-        setWillNotDraw(false);
-        setLayerType(LAYER_TYPE_HARDWARE, null);
         this.mContext = context;
-        Log.i(TAG, "init: ");
+        TraceLog.d(TAG, "init");
         mFaceBox = new FaceBox();
+        mFaceGeometry = mFaceBox.getGeometry();
         initBgPaint();
         initTextPaint();
         initCirclePaint();
-        initRectPaint();
+        initScanLine(context);
     }
 
-    private void initRectPaint() {
-        mRectPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        mRectPaint.setStyle(Paint.Style.FILL);
-        mRectPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_OVER));
+    private void initScanLine(Context context) {
+        mScanLineContainer = new FrameLayout(context);
+        mScanLineView = new ScanLineView(context);
+        mScanLineContainer.addView(mScanLineView,
+                new LayoutParams(LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+        addView(mScanLineContainer, new LayoutParams(0, 0));
+        // 矢量扫描线的颜色和时长写在资源中，自定义扫描图片或时长时只能用属性动画
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N_MR1
+                && mScan_img_resource_id == R.mipmap.icon_scan_line
+                && mAnim_duration == getResources().getInteger(R.integer.scan_line_duration)) {
+            mScanLineDrawable = (AnimatedVectorDrawable) context.getDrawable(R.drawable.scan_line_sweep);
+            mScanLineView.setDrawable(mScanLineDrawable);
+        }
     }
 
     private void initCirclePaint() {
@@ -115,41 +200,117 @@ public class ScanFaceView extends View {
 
     private void initTextPaint() {
         mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        mTextPaint.setTextSize(24);
-        mTextPaint.setColor(Color.parseColor("#0000ff"));
         mTextPaint.setTextAlign(Paint.Align.CENTER);
         mTextPaint.setLetterSpacing(0.1f);
+        mTextPaint.setColor(Color.BLACK);
+        mTextPaint.setTextSize(60);
+        mTextPaint.setFakeBoldText(true);
+
+        mHintPaint = new Paint(mTextPaint);
+        mHintPaint.setColor(Color.WHITE);
+        mHintPaint.setTextSize(50);
     }
 
     private void initBgPaint() {
         mBgPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         mBgPaint.setStyle(Paint.Style.FILL);
-        mBgPaint.setColor(Color.WHITE);
+        mBgPaint.setColor(mMask_color);
+    }
+
+    /**
+     * 根据尺寸生成背景、镂空和外圈的路径，只在尺寸变化时调用
+     */
+    private void initMaskPath() {
+        float halfWidth = mCircle_radius;
+        float halfHeight = mCircle_radius * mMask_ratio;
+        mMaskRect.set(circleCenterX - halfWidth, circleCenterY - halfHeight,
+                circleCenterX + halfWidth, circleCenterY + halfHeight);
+        mRingRect.set(mMaskRect.left - RING_GAP, mMaskRect.top - RING_GAP,
+                mMaskRect.right + RING_GAP, mMaskRect.bottom + RING_GAP);
+
+        mMaskPath.reset();
+        mMaskPath.setFillType(Path.FillType.EVEN_ODD);
+        mMaskPath.addRect(0, 0, mWidth, mHeight, Path.Direction.CW);
+        mRingPath.reset();
+        switch (mMask_shape) {
+            case MASK_SHAPE_OVAL:
+                mMaskPath.addOval(mMaskRect, Path.Direction.CW);
+                mRingPath.addOval(mRingRect, Path.Direction.CW);
+                break;
+            case MASK_SHAPE_ROUND_RECT:
+                mMaskPath.addRoundRect(mMaskRect, mMask_corner_radius, mMask_corner_radius, Path.Direction.CW);
+                mRingPath.addRoundRect(mRingRect, mMask_corner_radius + RING_GAP, mMask_corner_radius + RING_GAP,
+                        Path.Direction.CW);
+                break;
+            case MASK_SHAPE_CIRCLE:
+            default:
+                mMaskPath.addCircle(circleCenterX, circleCenterY, mCircle_radius, Path.Direction.CW);
+                mRingPath.addCircle(circleCenterX, circleCenterY, mCircle_radius + RING_GAP, Path.Direction.CW);
+                break;
+        }
+        mMaskRect.roundOut(mMaskBounds);
+        mCenterTextY = mMaskRect.bottom + CENTER_TEXT_MARGIN;
+        mHintY = circleCenterY - halfHeight / 2;
     }
 
     private void drawCircleMask(Canvas canvas) {
-        canvas.save();
-        canvas.drawRect(new Rect(0, 0, mWidth, mHeight), mBgPaint);
-        //设置混合模式
-        mBgPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-        //源图Src，重叠区域右下角部分
-        canvas.drawCircle(circleCenterX, circleCenterY, mCircle_radius, mBgPaint);
-        canvas.drawCircle(circleCenterX, circleCenterY, mCircle_radius + 10, mCirclePaint);
-        //清除混合模式
-        mBgPaint.setXfermode(null);
-        canvas.restore();
+        // 背景路径不包含镂空区域
+        canvas.drawPath(mMaskPath, mBgPaint);
+        canvas.drawPath(mRingPath, mCirclePaint);
     }
 
 
-    public void setFaces(List<RectF> faces) {
+    /**
+     * 在 UI 线程设置人脸，同时判断人脸是否在镂空区域内、是否保持稳定，绘制时只画出结果
+     */
+    public void setFaces(FaceFrame faces) {
         mFaceBox.setFaces(faces);
+        mFaceGeometry = mFaceBox.getGeometry();
+        for (int i = 0; i < mFaceGeometry.getCount(); i++) {
+            // 人脸矩形中心点在扫描框内则证明最少有一半人脸在扫描框内
+            float centerX = mFaceGeometry.getCenterX(i);
+            float centerY = mFaceGeometry.getCenterY(i);
+            mFaceGeometry.setMask(i, isInMask(centerX, centerY),
+                    FaceGeometry.getDistance(circleCenterX, circleCenterY, centerX, centerY));
+        }
+        updateStableFace(mFaceGeometry.getNearestInMask());
+        invalidate();
+    }
+
+    /**
+     * 显示活体检测需要完成的动作，{@link LivenessDetector#CHALLENGE_NONE} 时恢复提示保持不动
+     */
+    public void setLivenessChallenge(int challenge) {
+        switch (challenge) {
+            case LivenessDetector.CHALLENGE_BLINK:
+                mLivenessHint = BLINK_HINT_TEXT;
+                break;
+            case LivenessDetector.CHALLENGE_TURN_HEAD:
+                mLivenessHint = TURN_HEAD_HINT_TEXT;
+                break;
+            case LivenessDetector.CHALLENGE_OPEN_MOUTH:
+                mLivenessHint = OPEN_MOUTH_HINT_TEXT;
+                break;
+            case LivenessDetector.CHALLENGE_NONE:
+            default:
+                mLivenessHint = null;
+                break;
+        }
+        invalidate();
+    }
+
+    /**
+     * 显示活体检测的结果，直到下一次 {@link #setLivenessChallenge}
+     */
+    public void setLivenessResult(boolean passed) {
+        mLivenessHint = passed ? LIVENESS_PASSED_TEXT : LIVENESS_FAILED_TEXT;
         invalidate();
     }
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-        Log.i(TAG, "onSizeChanged: ");
+        TraceLog.d(TAG, "onSizeChanged");
         mWidth = w;
         mHeight = h;
         if (mIsHorizontal) {
@@ -158,105 +319,294 @@ public class ScanFaceView extends View {
         if (mIsVertical) {
             circleCenterY = mHeight / 2.0f;
         } else {
-            circleCenterY = mCircle_marginTop + mCircle_radius;
+            circleCenterY = mCircle_marginTop + mCircle_radius * mMask_ratio;
         }
+        initMaskPath();
         setScanBitmap();
-        startAnimator();
+        // 尺寸变化后动画的范围也变了，重新开始
+        stopAnimator();
+        updateAnimator();
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int left, int top, int right, int bottom) {
+        super.onLayout(changed, left, top, right, bottom);
+        // 扫描线容器固定在镂空区域，超出部分被容器裁剪
+        mScanLineContainer.measure(MeasureSpec.makeMeasureSpec(mMaskBounds.width(), MeasureSpec.EXACTLY),
+                MeasureSpec.makeMeasureSpec(mMaskBounds.height(), MeasureSpec.EXACTLY));
+        mScanLineContainer.layout(mMaskBounds.left, mMaskBounds.top, mMaskBounds.right, mMaskBounds.bottom);
     }
 
+    /**
+     * 开始扫描动画，已经在运行时不做任何事
+     */
     public void startAnimator() {
-        mValueAnimator = ValueAnimator.ofFloat(circleCenterY - mCircle_radius, circleCenterY + mCircle_radius);
+        if (isAnimatorStarted()) {
+            return;
+        }
+        if (mMaskBounds.isEmpty()) {
+            // 还没有确定尺寸，onSizeChanged 后再开始
+            return;
+        }
+        if (mScanLineDrawable != null) {
+            // 矢量图内部的平移动画与属性动画相同，扫描线视图固定覆盖镂空区域
+            mScanLineDrawable.start();
+            return;
+        }
+        float height = mMaskBounds.height();
+        // 扫描线从镂空区域上方移到刚好覆盖镂空区域，再反向移回
+        mValueAnimator = ObjectAnimator.ofFloat(mScanLineView, View.TRANSLATION_Y, -height, 0);
         mValueAnimator.setDuration(mAnim_duration);
-        mValueAnimator.setRepeatCount(-1);
+        mValueAnimator.setRepeatCount(ValueAnimator.INFINITE);
         mValueAnimator.setRepeatMode(ValueAnimator.REVERSE);
-        mValueAnimator.addUpdateListener(valueAnimator -> {
-            float value = (float) valueAnimator.getAnimatedValue();
-            bitmapMatrix.setTranslate(circleCenterX - mCircle_radius, value);
-            bitmapMatrix.preScale(1.0f, -1.0f);
-            invalidate();
-        });
         mValueAnimator.start();
     }
 
-    private void stopAnimator() {
-        if (mValueAnimator != null && mValueAnimator.isRunning()) {
+    /**
+     * 停止扫描动画，扫描线回到镂空区域上方
+     */
+    public void stopAnimator() {
+        if (!isAnimatorStarted()) {
+            return;
+        }
+        if (mScanLineDrawable != null) {
+            mScanLineDrawable.stop();
+        } else {
             mValueAnimator.cancel();
-            reset(true);
+        }
+        reset();
+    }
+
+    private boolean isAnimatorStarted() {
+        if (mScanLineDrawable != null) {
+            return mScanLineDrawable.isRunning();
+        }
+        return mValueAnimator != null && mValueAnimator.isStarted();
+    }
+
+    /**
+     * 所在界面暂停时停止扫描动画，恢复后如果可见再开始
+     */
+    public void setPaused(boolean paused) {
+        mPaused = paused;
+        updateAnimator();
+    }
+
+    /**
+     * 根据界面是否暂停、自身和窗口是否可见开始或停止动画
+     */
+    private void updateAnimator() {
+        if (!mPaused && isAttachedToWindow() && isShown() && getWindowVisibility() == VISIBLE) {
+            startAnimator();
+        } else {
+            stopAnimator();
         }
     }
 
     private void setScanBitmap() {
+        if (mScanLineDrawable != null) {
+            // 矢量图随扫描线视图的尺寸缩放，不需要位图
+            return;
+        }
         Bitmap scanLineBitmap = BitmapFactory.decodeResource(getResources(), mScan_img_resource_id);
-        scanBitmap = Bitmap.createScaledBitmap(scanLineBitmap, (int) mCircle_radius * 2, (int) mCircle_radius * 2, true);
-        reset(false);
+        mScanLineView.setBitmap(Bitmap.createScaledBitmap(scanLineBitmap,
+                mMaskBounds.width(), mMaskBounds.height(), true));
+        reset();
     }
 
-    private void reset(boolean isInvalidate) {
-        bitmapMatrix.reset();
-        bitmapMatrix.setTranslate(circleCenterX, circleCenterY - mCircle_radius);
-        bitmapMatrix.preScale(1.0f, -1.0f);
-        if (isInvalidate) {
-            invalidate();
+    private void reset() {
+        if (mScanLineDrawable != null) {
+            mScanLineDrawable.reset();
+        } else {
+            mScanLineView.setTranslationY(-mMaskBounds.height());
         }
     }
 
+    /**
+     * 设置后每次绘制的耗时记录到 metrics 中
+     */
+    public void setPipelineMetrics(PipelineMetrics metrics) {
+        mPipelineMetrics = metrics;
+    }
+
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-        // 画白色背景背景和圆形遮罩
-        drawCircleMask(canvas);
+    protected void dispatchDraw(Canvas canvas) {
+        long startNs = System.nanoTime();
+        // 先画扫描线
+        super.dispatchDraw(canvas);
         // 画人脸附近的方框
-        PointF pointF = mFaceBox.drawFaceBox(canvas);
-        if (pointF != null) {
-            // 获取人脸矩形中心点和扫描框中心点直线距离，小于或等于扫描框半径则证明最少有一半人脸在扫描框内，可以提示保持不动
-            float distance = getDistance(circleCenterX, circleCenterY, pointF.x, pointF.y);
-            if (distance <= mCircle_radius) {
-                drawInnerHint(canvas);
-            }
+        mFaceBox.drawFaceBox(canvas);
+        // 画白色背景背景和圆形遮罩，挡住镂空以外的扫描线和人脸框
+        drawCircleMask(canvas);
+        // 有人脸在扫描框内，可以提示保持不动
+        if (mFaceGeometry.getNearestInMask() != FaceGeometry.NO_INDEX) {
+            drawInnerHint(canvas);
         }
         drawCenterText(canvas);
-        if (scanBitmap != null) {
-            canvas.drawBitmap(scanBitmap, bitmapMatrix, mRectPaint);
+        if (mPipelineMetrics != null) {
+            mPipelineMetrics.recordDraw(System.nanoTime() - startNs);
         }
     }
 
     /**
-     * @param circleCenterX 扫描框中心点x轴座标
-     * @param circleCenterY 扫描框中心点y轴座标
-     * @param faceCenterX   人脸框中心点x轴座标
-     * @param faceCenterY   人脸框中心点y轴座标
-     * @return 两个中心点座标的直线距离
+     * 镂空区域边长与控件宽高几何平均的比值，用于按人脸相对镂空区域的大小评估质量，还没有确定尺寸时为 0
      */
-    private float getDistance(float circleCenterX, float circleCenterY, float faceCenterX, float faceCenterY) {
-        double dx = Math.pow(faceCenterX - circleCenterX, 2);
-        double dy = Math.pow(faceCenterY - circleCenterY, 2);
-        return (float) Math.sqrt(dx + dy);
+    public float getMaskRelativeSize() {
+        if (mWidth == 0 || mHeight == 0) {
+            return 0;
+        }
+        return (float) Math.sqrt(mMaskRect.width() * mMaskRect.height() / ((float) mWidth * mHeight));
+    }
+
+    /**
+     * 设置人脸在镂空区域内保持稳定时的回调，同一个人脸只回调一次，离开镂空区域或明显移动后重新计时
+     */
+    public void setOnFaceStableListener(OnFaceStableListener listener) {
+        mOnFaceStableListener = listener;
+    }
+
+    /**
+     * 跟踪离镂空中心最近的已确认人脸，在 {@link #FACE_STABLE_DURATION_MS} 内移动不超过
+     * {@link #FACE_STABLE_TOLERANCE} 倍半径时回调
+     */
+    private void updateStableFace(int index) {
+        if (index == FaceGeometry.NO_INDEX || mFaceGeometry.getState(index) != FaceTracker.STATE_CONFIRMED) {
+            mStableFaceId = FaceFrame.NO_ID;
+            removeCallbacks(mFaceStableRunnable);
+            return;
+        }
+        float centerX = mFaceGeometry.getCenterX(index);
+        float centerY = mFaceGeometry.getCenterY(index);
+        int id = mFaceGeometry.getId(index);
+        if (id != mStableFaceId || FaceGeometry.getDistance(mStableCenterX, mStableCenterY, centerX, centerY)
+                > mCircle_radius * FACE_STABLE_TOLERANCE) {
+            mStableFaceId = id;
+            mStableCenterX = centerX;
+            mStableCenterY = centerY;
+            // 人脸不动时结果会被合并不再设置，到时间后由消息回调，同一个人脸只回调一次
+            removeCallbacks(mFaceStableRunnable);
+            postDelayed(mFaceStableRunnable, FACE_STABLE_DURATION_MS);
+        }
+    }
+
+    /**
+     * 获取最近一次设置的所有人脸的几何信息，只能在 UI 线程访问，下一次设置人脸时会被覆盖
+     */
+    public FaceGeometry getFaceGeometry() {
+        return mFaceGeometry;
+    }
+
+    /**
+     * 点是否在镂空区域内，圆角矩形忽略圆角
+     */
+    private boolean isInMask(float x, float y) {
+        switch (mMask_shape) {
+            case MASK_SHAPE_OVAL:
+                float dx = (x - circleCenterX) / (mMaskRect.width() / 2);
+                float dy = (y - circleCenterY) / (mMaskRect.height() / 2);
+                return dx * dx + dy * dy <= 1.0f;
+            case MASK_SHAPE_ROUND_RECT:
+                return x >= mMaskRect.left && x <= mMaskRect.right && y >= mMaskRect.top && y <= mMaskRect.bottom;
+            case MASK_SHAPE_CIRCLE:
+            default:
+                return FaceGeometry.getDistance(circleCenterX, circleCenterY, x, y) <= mCircle_radius;
+        }
     }
 
     private void drawCenterText(Canvas canvas) {
-        mTextPaint.setColor(Color.parseColor("#000000"));
-        mTextPaint.setTextSize(60);
-        mTextPaint.setFakeBoldText(true);
-        canvas.drawText("正在进行人脸识别", circleCenterX, circleCenterY + mCircle_radius + 150, mTextPaint);
+        canvas.drawText(mCenter_text, circleCenterX, mCenterTextY, mTextPaint);
     }
 
     private void drawInnerHint(Canvas canvas) {
-        mTextPaint.setColor(Color.parseColor("#ffffff"));
-        mTextPaint.setTextSize(50);
-        canvas.drawText("请保持不动", circleCenterX, circleCenterY - (mCircle_radius / 2), mTextPaint);
+        canvas.drawText(mLivenessHint != null ? mLivenessHint : INNER_HINT_TEXT, circleCenterX, mHintY, mHintPaint);
     }
 
 
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
-        Log.i(TAG, "onAttachedToWindow: ");
+        TraceLog.d(TAG, "onAttachedToWindow");
+        updateAnimator();
+    }
+
+    @Override
+    protected void onVisibilityChanged(View changedView, int visibility) {
+        super.onVisibilityChanged(changedView, visibility);
+        updateAnimator();
+    }
+
+    @Override
+    protected void onWindowVisibilityChanged(int visibility) {
+        super.onWindowVisibilityChanged(visibility);
+        updateAnimator();
     }
 
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        Log.i(TAG, "onDetachedFromWindow: ");
+        TraceLog.d(TAG, "onDetachedFromWindow");
         stopAnimator();
+        mStableFaceId = FaceFrame.NO_ID;
+        removeCallbacks(mFaceStableRunnable);
+    }
+
+    public interface OnFaceStableListener {
+        /**
+         * 在 UI 线程回调，不在绘制过程中
+         */
+        void onFaceStable();
+    }
+
+    /**
+     * 扫描线，位图内容只在尺寸变化时绘制一次，移动只改变 translationY；
+     * 设置了矢量图时绘制矢量图，移动由矢量图自己的动画完成
+     */
+    private static class ScanLineView extends View {
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        private final Matrix mMatrix = new Matrix();
+        private Bitmap mBitmap;
+        private Drawable mDrawable;
+
+        ScanLineView(Context context) {
+            super(context);
+        }
+
+        void setBitmap(Bitmap bitmap) {
+            mBitmap = bitmap;
+            // 上下翻转，扫描线的亮边朝下
+            mMatrix.setScale(1.0f, -1.0f);
+            mMatrix.postTranslate(0, bitmap.getHeight());
+            invalidate();
+        }
+
+        void setDrawable(Drawable drawable) {
+            mDrawable = drawable;
+            drawable.setCallback(this);
+            drawable.setBounds(0, 0, getWidth(), getHeight());
+            invalidate();
+        }
+
+        @Override
+        protected boolean verifyDrawable(Drawable who) {
+            return who == mDrawable || super.verifyDrawable(who);
+        }
+
+        @Override
+        protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+            super.onSizeChanged(w, h, oldw, oldh);
+            if (mDrawable != null) {
+                mDrawable.setBounds(0, 0, w, h);
+            }
+        }
+
+        @Override
+        protected void onDraw(Canvas canvas) {
+            if (mDrawable != null) {
+                // 在硬件加速的画布上绘制时，动画交给 RenderThread
+                mDrawable.draw(canvas);
+            } else if (mBitmap != null) {
+                canvas.drawBitmap(mBitmap, mMatrix, mPaint);
+            }
+        }
     }
 }
@@ -0,0 +1,119 @@
+package com.ljm.scanfaceview;
+
+/**
+ * 从相机支持的输出尺寸中选择尺寸
+ * <p>
+ * 尺寸以宽、高交替紧凑存放在 int 数组中，不依赖 android.util.Size，选择过程不产生对象分配，可以在 JVM 上测试和测量。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/6
+ */
+final class SizeSelector {
+    // 宽高比相对误差不超过 1% 时认为一致，如 1920x1088 与 16:9
+    private static final float ASPECT_TOLERANCE = 0.01f;
+
+    private SizeSelector() {
+    }
+
+    /**
+     * 同 {@link #getBestSize(int, int, int, int, int[], long[], long)}，不限制最小帧间隔
+     */
+    static int getBestSize(int targetWidth, int targetHeight, int maxWidth, int maxHeight, int[] sizes) {
+        return getBestSize(targetWidth, targetHeight, maxWidth, maxHeight, sizes, null, 0);
+    }
+
+    /**
+     * 在宽高不超过最大值、最小帧间隔不超过 maxFrameDurationNs 且宽高比与目标一致的尺寸中，
+     * 优先选择不小于目标尺寸的最小尺寸，都比目标小时选择最大的尺寸；
+     * 没有宽高比一致的尺寸时选择满足限制的尺寸中宽高比最接近的，都不满足限制时选择面积最小的尺寸
+     *
+     * @param sizes             宽、高交替存放的尺寸列表，不能为空
+     * @param minFrameDurations 每个尺寸的最小帧间隔，单位纳秒，0 表示未知；为 null 时不限制
+     * @return 选中尺寸的序号，宽为 sizes[2 * index]，高为 sizes[2 * index + 1]
+     */
+    static int getBestSize(int targetWidth, int targetHeight, int maxWidth, int maxHeight, int[] sizes,
+                           long[] minFrameDurations, long maxFrameDurationNs) {
+        float targetRatio = targetWidth / (float) targetHeight;
+        // 比指定宽高大的尺寸中面积最小的
+        int bigEnough = -1;
+        long bigEnoughArea = Long.MAX_VALUE;
+        // 比指定宽高小的尺寸中面积最大的
+        int notBigEnough = -1;
+        long notBigEnoughArea = -1;
+        // 宽高比不一致的尺寸中最接近的，误差相同时面积最大的
+        int closest = -1;
+        float closestError = Float.MAX_VALUE;
+        long closestArea = -1;
+        // 所有尺寸中面积最小的
+        int smallest = 0;
+        long smallestArea = Long.MAX_VALUE;
+        int count = sizes.length / 2;
+        for (int i = 0; i < count; i++) {
+            int width = sizes[i * 2];
+            int height = sizes[i * 2 + 1];
+            long area = (long) width * height;
+            if (area < smallestArea) {
+                smallest = i;
+                smallestArea = area;
+            }
+            if (width > maxWidth || height > maxHeight) {
+                continue;
+            }
+            if (minFrameDurations != null && minFrameDurations[i] > maxFrameDurationNs) {
+                continue;
+            }
+            float error = Math.abs(width / (float) height - targetRatio) / targetRatio;
+            if (error > ASPECT_TOLERANCE) {
+                if (error < closestError || (error == closestError && area > closestArea)) {
+                    closest = i;
+                    closestError = error;
+                    closestArea = area;
+                }
+                continue;
+            }
+            if (width >= targetWidth && height >= targetHeight) {
+                if (area < bigEnoughArea) {
+                    bigEnough = i;
+                    bigEnoughArea = area;
+                }
+            } else if (area > notBigEnoughArea) {
+                notBigEnough = i;
+                notBigEnoughArea = area;
+            }
+        }
+        if (bigEnough >= 0) {
+            return bigEnough;
+        } else if (notBigEnough >= 0) {
+            return notBigEnough;
+        } else if (closest >= 0) {
+            return closest;
+        } else {
+            return smallest;
+        }
+    }
+
+    /**
+     * 选择最小帧间隔不超过 maxFrameDurationNs 且宽高比与目标一致的最大尺寸，没有时返回 -1
+     *
+     * @param minFrameDurations 每个尺寸的最小帧间隔，单位纳秒，0 表示未知
+     */
+    static int getLargestSize(int targetWidth, int targetHeight, int[] sizes,
+                              long[] minFrameDurations, long maxFrameDurationNs) {
+        float targetRatio = targetWidth / (float) targetHeight;
+        int largest = -1;
+        long largestArea = -1;
+        int count = sizes.length / 2;
+        for (int i = 0; i < count; i++) {
+            int width = sizes[i * 2];
+            int height = sizes[i * 2 + 1];
+            long area = (long) width * height;
+            if (area <= largestArea || minFrameDurations[i] > maxFrameDurationNs
+                    || Math.abs(width / (float) height - targetRatio) / targetRatio > ASPECT_TOLERANCE) {
+                continue;
+            }
+            largest = i;
+            largestArea = area;
+        }
+        return largest;
+    }
+}
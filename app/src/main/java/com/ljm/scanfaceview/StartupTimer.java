@@ -0,0 +1,99 @@
+package com.ljm.scanfaceview;
+
+import android.os.Build;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录从开始打开相机到各个阶段完成的耗时
+ * <p>
+ * 每个阶段只记录第一次到达的时间，通过 {@link TraceLog} 输出，日志中带上机型，便于按机型对比启动耗时。
+ * 可以在任意线程调用。
+ *
+ * @author: ljm
+ * 创建日期:2022/11/28
+ */
+final class StartupTimer {
+    private static final String TAG = "StartupTimer";
+    /**
+     * 相机打开
+     */
+    static final int MARK_CAMERA_OPENED = 0;
+    /**
+     * 第一帧预览画面显示
+     */
+    static final int MARK_FIRST_PREVIEW_FRAME = 1;
+    /**
+     * 第一次检测到人脸
+     */
+    static final int MARK_FIRST_FACE = 2;
+    private static final String[] MARK_NAMES = {"camera_open", "first_preview_frame", "first_face"};
+
+    private final String mName;
+    // 每个阶段的日志消息，带上名称和机型，构造时生成，记录时不拼接字符串
+    private final String[] mMarkMessages = new String[MARK_NAMES.length];
+    private volatile long mStartNs;
+    // 各阶段距开始的耗时，0 表示还没到达
+    private final AtomicLongArray mElapsedNs = new AtomicLongArray(MARK_NAMES.length);
+
+    StartupTimer(String name) {
+        mName = name;
+        for (int i = 0; i < MARK_NAMES.length; i++) {
+            mMarkMessages[i] = name + " " + MARK_NAMES[i] + "(ms) model=" + Build.MODEL + ":";
+        }
+    }
+
+    /**
+     * 重新开始计时，清除所有阶段
+     */
+    void start(long nowNs) {
+        for (int i = 0; i < MARK_NAMES.length; i++) {
+            mElapsedNs.set(i, 0);
+        }
+        mStartNs = nowNs;
+    }
+
+    /**
+     * 记录到达某个阶段，只有第一次到达有效
+     *
+     * @return 是否是第一次到达
+     */
+    boolean mark(int mark, long nowNs) {
+        long startNs = mStartNs;
+        if (startNs == 0 || mElapsedNs.get(mark) != 0) {
+            return false;
+        }
+        long elapsedNs = Math.max(1, nowNs - startNs);
+        if (!mElapsedNs.compareAndSet(mark, 0, elapsedNs)) {
+            return false;
+        }
+        TraceLog.i(TAG, mMarkMessages[mark], elapsedNs / 1_000_000);
+        return true;
+    }
+
+    /**
+     * 把各阶段耗时写入 {@link TraceLog}，还没到达的阶段为 -1
+     */
+    void log() {
+        for (int i = 0; i < MARK_NAMES.length; i++) {
+            TraceLog.i(TAG, mMarkMessages[i], getElapsedMillis(i));
+        }
+    }
+
+    /**
+     * 获取某个阶段的耗时(毫秒)，还没到达时返回 -1
+     */
+    long getElapsedMillis(int mark) {
+        long elapsedNs = mElapsedNs.get(mark);
+        return elapsedNs == 0 ? -1 : elapsedNs / 1_000_000;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(mName);
+        for (int i = 0; i < MARK_NAMES.length; i++) {
+            builder.append(' ').append(MARK_NAMES[i]).append('=').append(getElapsedMillis(i)).append("ms");
+        }
+        return builder.append(" model=").append(Build.MODEL).toString();
+    }
+}
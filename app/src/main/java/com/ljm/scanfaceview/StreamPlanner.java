@@ -0,0 +1,245 @@
+package com.ljm.scanfaceview;
+
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.util.Size;
+
+/**
+ * 按相机的硬件级别为预览、软件人脸检测分析流和拍照选择一组能同时输出的尺寸
+ * <p>
+ * 只选择 CameraDevice#createCaptureSession 文档中对该硬件级别保证支持的组合，记 PREVIEW 为屏幕尺寸与 1920x1080 中较小的:
+ * <ul>
+ * <li>所有级别都保证 PRIV PREVIEW + YUV PREVIEW + JPEG MAXIMUM，预览和分析流都不超过 PREVIEW，拍照可以用最大尺寸</li>
+ * <li>FULL 及以上不拍照时还保证 PRIV PREVIEW + YUV MAXIMUM，分析流不受 PREVIEW 限制</li>
+ * <li>零延迟拍照流是第二个 YUV 流，单独与预览组合时所有级别都保证 PRIV PREVIEW + YUV PREVIEW；
+ * 同时有分析流时只有 FULL 及以上保证 YUV VGA + PRIV PREVIEW + YUV MAXIMUM，要求分析流不超过 640x480</li>
+ * </ul>
+ * 预览、分析流和零延迟拍照流的最小帧间隔不能超过 {@link #MAX_STREAM_FRAME_DURATION_NS}，否则一起输出时帧率达不到 30fps。
+ * 分析流选择与预览宽高比一致、不小于需要尺寸的最小尺寸，避免把预览大小的图像送进 ISP 和分析线程。
+ * 尺寸在创建时复制到 int 数组，选择过程可以在 JVM 上运行。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/7
+ */
+final class StreamPlanner {
+    // 预览和分析流一起输出时需要达到的最长帧间隔，30fps
+    static final long MAX_STREAM_FRAME_DURATION_NS = 1_000_000_000L / 30;
+    // 拍照尺寸的最长帧间隔，超过时换较小的尺寸，避免拍照时预览明显卡顿
+    static final long MAX_STILL_FRAME_DURATION_NS = 1_000_000_000L / 10;
+    // 保证组合中 PREVIEW 的上限
+    private static final int PREVIEW_BOUND_LONG = 1920;
+    private static final int PREVIEW_BOUND_SHORT = 1080;
+    // 保证组合中 VGA 的尺寸
+    private static final int VGA_WIDTH = 640;
+    private static final int VGA_HEIGHT = 480;
+
+    private final int mHardwareLevel;
+    private final int[] mPreviewSizes;
+    private final long[] mPreviewDurations;
+    private final int[] mYuvSizes;
+    private final long[] mYuvDurations;
+    private final int[] mJpegSizes;
+    private final long[] mJpegDurations;
+
+    /**
+     * @param previewSizes SurfaceTexture 输出尺寸，宽、高交替存放，下同
+     * @param previewDurations 对应尺寸的最小帧间隔，单位纳秒，0 表示未知，下同
+     */
+    StreamPlanner(int hardwareLevel, int[] previewSizes, long[] previewDurations,
+                  int[] yuvSizes, long[] yuvDurations, int[] jpegSizes, long[] jpegDurations) {
+        if (previewSizes.length == 0) {
+            throw new IllegalArgumentException("Camera has no preview sizes.");
+        }
+        mHardwareLevel = hardwareLevel;
+        mPreviewSizes = previewSizes;
+        mPreviewDurations = previewDurations;
+        mYuvSizes = yuvSizes;
+        mYuvDurations = yuvDurations;
+        mJpegSizes = jpegSizes;
+        mJpegDurations = jpegDurations;
+    }
+
+    static StreamPlanner from(CameraCharacteristics characteristics) {
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        Integer hardwareLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+        Size[] previewSizes = map.getOutputSizes(SurfaceTexture.class);
+        Size[] yuvSizes = map.getOutputSizes(ImageFormat.YUV_420_888);
+        Size[] jpegSizes = map.getOutputSizes(ImageFormat.JPEG);
+        long[] previewDurations = new long[previewSizes.length];
+        for (int i = 0; i < previewSizes.length; i++) {
+            previewDurations[i] = map.getOutputMinFrameDuration(SurfaceTexture.class, previewSizes[i]);
+        }
+        return new StreamPlanner(
+                hardwareLevel == null ? CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY : hardwareLevel,
+                pack(previewSizes), previewDurations,
+                pack(yuvSizes), getMinFrameDurations(map, ImageFormat.YUV_420_888, yuvSizes),
+                pack(jpegSizes), getMinFrameDurations(map, ImageFormat.JPEG, jpegSizes));
+    }
+
+    private static int[] pack(Size[] sizeList) {
+        if (sizeList == null) {
+            return new int[0];
+        }
+        int[] sizes = new int[sizeList.length * 2];
+        for (int i = 0; i < sizeList.length; i++) {
+            sizes[i * 2] = sizeList[i].getWidth();
+            sizes[i * 2 + 1] = sizeList[i].getHeight();
+        }
+        return sizes;
+    }
+
+    private static long[] getMinFrameDurations(StreamConfigurationMap map, int format, Size[] sizeList) {
+        if (sizeList == null) {
+            return new long[0];
+        }
+        long[] durations = new long[sizeList.length];
+        for (int i = 0; i < sizeList.length; i++) {
+            durations[i] = map.getOutputMinFrameDuration(format, sizeList[i]);
+        }
+        return durations;
+    }
+
+    /**
+     * 选择预览尺寸，与目标宽高比一致且不小于目标的最小尺寸，见 {@link SizeSelector#getBestSize}
+     *
+     * @param maxWidth 屏幕宽度，与传感器方向一致，下同
+     * @return 尺寸序号，通过 {@link #getPreviewWidth(int)} 和 {@link #getPreviewHeight(int)} 获取
+     */
+    int choosePreviewSize(int targetWidth, int targetHeight, int maxWidth, int maxHeight) {
+        int boundWidth = Math.min(maxWidth, maxWidth >= maxHeight ? PREVIEW_BOUND_LONG : PREVIEW_BOUND_SHORT);
+        int boundHeight = Math.min(maxHeight, maxWidth >= maxHeight ? PREVIEW_BOUND_SHORT : PREVIEW_BOUND_LONG);
+        return SizeSelector.getBestSize(targetWidth, targetHeight, boundWidth, boundHeight,
+                mPreviewSizes, mPreviewDurations, MAX_STREAM_FRAME_DURATION_NS);
+    }
+
+    int getPreviewWidth(int index) {
+        return mPreviewSizes[index * 2];
+    }
+
+    int getPreviewHeight(int index) {
+        return mPreviewSizes[index * 2 + 1];
+    }
+
+    /**
+     * 为已经确定的预览尺寸选择分析流、零延迟拍照流和拍照尺寸
+     *
+     * @param analysisMinWidth 分析流需要的最小宽度，为 0 时不创建分析流
+     * @param zsl              是否需要零延迟拍照流，与预览宽高比一致、不超过预览尺寸且能达到 30fps
+     * @param still            是否需要拍照输出，需要时分析流限制在 PREVIEW 以内
+     */
+    Plan plan(int previewWidth, int previewHeight, int analysisMinWidth, int analysisMinHeight, boolean zsl,
+              boolean still) {
+        int analysisWidth = 0;
+        int analysisHeight = 0;
+        long minFrameDurationNs = getMinFrameDuration(mPreviewSizes, mPreviewDurations, previewWidth, previewHeight);
+        if (analysisMinWidth > 0 && mYuvSizes.length > 0) {
+            // 按预览宽高比放大到不小于需要的宽高
+            int targetWidth = Math.max(analysisMinWidth,
+                    (int) Math.ceil(analysisMinHeight * previewWidth / (double) previewHeight));
+            int targetHeight = (int) Math.ceil(targetWidth * previewHeight / (double) previewWidth);
+            boolean unbounded = !still && isFullOrBetter();
+            int index = SizeSelector.getBestSize(targetWidth, targetHeight,
+                    unbounded ? Integer.MAX_VALUE : Math.max(previewWidth, analysisMinWidth),
+                    unbounded ? Integer.MAX_VALUE : Math.max(previewHeight, analysisMinHeight),
+                    mYuvSizes, mYuvDurations, MAX_STREAM_FRAME_DURATION_NS);
+            analysisWidth = mYuvSizes[index * 2];
+            analysisHeight = mYuvSizes[index * 2 + 1];
+            minFrameDurationNs = Math.max(minFrameDurationNs, mYuvDurations[index]);
+        }
+        int captureWidth = 0;
+        int captureHeight = 0;
+        long captureDurationNs = 0;
+        if (zsl && mYuvSizes.length > 0) {
+            int index = SizeSelector.getBestSize(previewWidth, previewHeight, previewWidth, previewHeight,
+                    mYuvSizes, mYuvDurations, MAX_STREAM_FRAME_DURATION_NS);
+            captureWidth = mYuvSizes[index * 2];
+            captureHeight = mYuvSizes[index * 2 + 1];
+            captureDurationNs = mYuvDurations[index];
+        }
+        boolean captureWithAnalysis = captureWidth > 0 && isFullOrBetter()
+                && analysisWidth <= VGA_WIDTH && analysisHeight <= VGA_HEIGHT;
+        int stillWidth = 0;
+        int stillHeight = 0;
+        if (still && mJpegSizes.length > 0) {
+            int index = SizeSelector.getLargestSize(previewWidth, previewHeight, mJpegSizes, mJpegDurations,
+                    MAX_STILL_FRAME_DURATION_NS);
+            if (index < 0) {
+                // 没有宽高比一致的尺寸时使用面积最大的
+                index = 0;
+                for (int i = 1; i < mJpegSizes.length / 2; i++) {
+                    if ((long) mJpegSizes[i * 2] * mJpegSizes[i * 2 + 1]
+                            > (long) mJpegSizes[index * 2] * mJpegSizes[index * 2 + 1]) {
+                        index = i;
+                    }
+                }
+            }
+            stillWidth = mJpegSizes[index * 2];
+            stillHeight = mJpegSizes[index * 2 + 1];
+        }
+        return new Plan(previewWidth, previewHeight, analysisWidth, analysisHeight, captureWidth, captureHeight,
+                captureWithAnalysis, stillWidth, stillHeight, Math.max(minFrameDurationNs, captureDurationNs));
+    }
+
+    private boolean isFullOrBetter() {
+        // LEGACY 和 EXTERNAL 的数值不按能力排序，单独判断
+        return mHardwareLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL
+                || mHardwareLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3;
+    }
+
+    private static long getMinFrameDuration(int[] sizes, long[] durations, int width, int height) {
+        for (int i = 0; i < durations.length; i++) {
+            if (sizes[i * 2] == width && sizes[i * 2 + 1] == height) {
+                return durations[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 一组同时输出的尺寸，与传感器方向一致，不需要的输出宽高为 0
+     */
+    static final class Plan {
+        final int previewWidth;
+        final int previewHeight;
+        final int analysisWidth;
+        final int analysisHeight;
+        // 零延迟拍照流，YUV_420_888
+        final int captureWidth;
+        final int captureHeight;
+        // 零延迟拍照流能否与分析流同时输出
+        final boolean captureWithAnalysis;
+        final int stillWidth;
+        final int stillHeight;
+        // 预览、分析流和零延迟拍照流一起输出时的最小帧间隔，单位纳秒，0 表示未知
+        final long minFrameDurationNs;
+
+        Plan(int previewWidth, int previewHeight, int analysisWidth, int analysisHeight,
+             int captureWidth, int captureHeight, boolean captureWithAnalysis,
+             int stillWidth, int stillHeight, long minFrameDurationNs) {
+            this.previewWidth = previewWidth;
+            this.previewHeight = previewHeight;
+            this.analysisWidth = analysisWidth;
+            this.analysisHeight = analysisHeight;
+            this.captureWidth = captureWidth;
+            this.captureHeight = captureHeight;
+            this.captureWithAnalysis = captureWithAnalysis;
+            this.stillWidth = stillWidth;
+            this.stillHeight = stillHeight;
+            this.minFrameDurationNs = minFrameDurationNs;
+        }
+
+        boolean hasAnalysis() {
+            return analysisWidth > 0;
+        }
+
+        boolean hasCapture() {
+            return captureWidth > 0;
+        }
+
+        boolean hasStill() {
+            return stillWidth > 0;
+        }
+    }
+}
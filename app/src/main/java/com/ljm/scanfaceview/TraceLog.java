@@ -0,0 +1,261 @@
+package com.ljm.scanfaceview;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * 按级别开关的日志，替代热点路径上拼接字符串的 Log 调用
+ * <p>
+ * 消息必须是字符串常量，参数通过 int、long、float 重载传入，不装箱也不拼接。
+ * 每条日志先写入内存中的二进制环形缓冲区(只保存时间、级别、tag 和消息常量的引用以及原始参数)，
+ * 扫描失败时调用 {@link #dump(String)} 把最近的记录输出到 logcat；
+ * 只有 {@link #ENABLED} 为 true 且级别不低于 {@link #setLogcatLevel(int)} 时才格式化并立即输出到 logcat。
+ * 可以在任意线程调用，记录不产生对象分配。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/2
+ */
+public final class TraceLog {
+    private static final String TAG = "TraceLog";
+    /**
+     * 编译期开关，release 包中立即输出到 logcat 的分支会被去掉，只保留环形缓冲区
+     */
+    public static final boolean ENABLED = BuildConfig.DEBUG;
+
+    // 环形缓冲区的记录条数，必须是 2 的幂
+    private static final int CAPACITY = 512;
+    private static final int MAX_ARGS = 4;
+    // 每条记录: 时间、头部(级别、参数个数、参数类型)、参数
+    private static final int SLOT_SIZE = 2 + MAX_ARGS;
+    private static final int TYPE_INT = 0;
+    private static final int TYPE_LONG = 1;
+    private static final int TYPE_FLOAT = 2;
+    private static final int TYPE_BITS = 2;
+    // 前两个、前四个参数都是 float
+    private static final int TYPES_FLOAT_2 = TYPE_FLOAT | TYPE_FLOAT << TYPE_BITS;
+    private static final int TYPES_FLOAT_4 = TYPES_FLOAT_2 | TYPES_FLOAT_2 << (2 * TYPE_BITS);
+    // 前两个、前四个参数都是 long
+    private static final int TYPES_LONG_2 = TYPE_LONG | TYPE_LONG << TYPE_BITS;
+    private static final int TYPES_LONG_4 = TYPES_LONG_2 | TYPES_LONG_2 << (2 * TYPE_BITS);
+    // 第一个参数是 int，第二个是 long
+    private static final int TYPES_INT_LONG = TYPE_INT | TYPE_LONG << TYPE_BITS;
+
+    private static final long[] sRecords = new long[CAPACITY * SLOT_SIZE];
+    private static final String[] sTags = new String[CAPACITY];
+    private static final String[] sMessages = new String[CAPACITY];
+    private static final Object sLock = new Object();
+    // 已写入的记录总数，只在持有 sLock 时修改
+    private static long sWritten;
+
+    private static volatile int sLogcatLevel = Log.INFO;
+    private static volatile int sRecordLevel = Log.DEBUG;
+
+    private TraceLog() {
+    }
+
+    /**
+     * 设置立即输出到 logcat 的最低级别，{@link #ENABLED} 为 false 时无效
+     */
+    public static void setLogcatLevel(int level) {
+        sLogcatLevel = level;
+    }
+
+    /**
+     * 设置写入环形缓冲区的最低级别
+     */
+    public static void setRecordLevel(int level) {
+        sRecordLevel = level;
+    }
+
+    /**
+     * 该级别的日志是否会被记录或输出，调用方在需要额外计算参数时先判断
+     */
+    public static boolean isLoggable(int level) {
+        return level >= sRecordLevel || (ENABLED && level >= sLogcatLevel);
+    }
+
+    public static void v(String tag, String msg) {
+        log(Log.VERBOSE, tag, msg, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static void v(String tag, String msg, float a, float b, float c, float d) {
+        log(Log.VERBOSE, tag, msg, 4, TYPES_FLOAT_4, Float.floatToRawIntBits(a), Float.floatToRawIntBits(b),
+                Float.floatToRawIntBits(c), Float.floatToRawIntBits(d));
+    }
+
+    public static void d(String tag, String msg) {
+        log(Log.DEBUG, tag, msg, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static void d(String tag, String msg, int a) {
+        log(Log.DEBUG, tag, msg, 1, TYPE_INT, a, 0, 0, 0);
+    }
+
+    public static void d(String tag, String msg, int a, int b) {
+        log(Log.DEBUG, tag, msg, 2, TYPE_INT, a, b, 0, 0);
+    }
+
+    public static void d(String tag, String msg, int a, long b) {
+        log(Log.DEBUG, tag, msg, 2, TYPES_INT_LONG, a, b, 0, 0);
+    }
+
+    public static void d(String tag, String msg, float a, float b) {
+        log(Log.DEBUG, tag, msg, 2, TYPES_FLOAT_2, Float.floatToRawIntBits(a), Float.floatToRawIntBits(b), 0, 0);
+    }
+
+    public static void i(String tag, String msg) {
+        log(Log.INFO, tag, msg, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static void i(String tag, String msg, int a) {
+        log(Log.INFO, tag, msg, 1, TYPE_INT, a, 0, 0, 0);
+    }
+
+    public static void i(String tag, String msg, long a) {
+        log(Log.INFO, tag, msg, 1, TYPE_LONG, a, 0, 0, 0);
+    }
+
+    public static void i(String tag, String msg, int a, int b) {
+        log(Log.INFO, tag, msg, 2, TYPE_INT, a, b, 0, 0);
+    }
+
+    public static void i(String tag, String msg, int a, int b, int c, int d) {
+        log(Log.INFO, tag, msg, 4, TYPE_INT, a, b, c, d);
+    }
+
+    public static void i(String tag, String msg, float a, float b, float c, float d) {
+        log(Log.INFO, tag, msg, 4, TYPES_FLOAT_4, Float.floatToRawIntBits(a), Float.floatToRawIntBits(b),
+                Float.floatToRawIntBits(c), Float.floatToRawIntBits(d));
+    }
+
+    public static void i(String tag, String msg, long a, long b, long c, long d) {
+        log(Log.INFO, tag, msg, 4, TYPES_LONG_4, a, b, c, d);
+    }
+
+    public static void w(String tag, String msg) {
+        log(Log.WARN, tag, msg, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static void w(String tag, String msg, int a) {
+        log(Log.WARN, tag, msg, 1, TYPE_INT, a, 0, 0, 0);
+    }
+
+    public static void e(String tag, String msg) {
+        log(Log.ERROR, tag, msg, 0, 0, 0, 0, 0, 0);
+    }
+
+    public static void e(String tag, String msg, int a) {
+        log(Log.ERROR, tag, msg, 1, TYPE_INT, a, 0, 0, 0);
+    }
+
+    /**
+     * @param types 每个参数的类型占 {@link #TYPE_BITS} 位，第一个参数在最低位
+     */
+    private static void log(int level, String tag, String msg, int argCount, int types,
+                            long a, long b, long c, long d) {
+        if (level >= sRecordLevel) {
+            record(level, tag, msg, argCount, types, a, b, c, d);
+        }
+        if (ENABLED && level >= sLogcatLevel) {
+            Log.println(level, tag, format(msg, argCount, types, a, b, c, d));
+        }
+    }
+
+    private static void record(int level, String tag, String msg, int argCount, int types,
+                               long a, long b, long c, long d) {
+        long timeNs = System.nanoTime();
+        synchronized (sLock) {
+            int slot = (int) (sWritten & (CAPACITY - 1));
+            int i = slot * SLOT_SIZE;
+            sRecords[i] = timeNs;
+            sRecords[i + 1] = ((long) types << 16) | ((long) argCount << 8) | level;
+            sRecords[i + 2] = a;
+            sRecords[i + 3] = b;
+            sRecords[i + 4] = c;
+            sRecords[i + 5] = d;
+            sTags[slot] = tag;
+            sMessages[slot] = msg;
+            sWritten++;
+        }
+    }
+
+    /**
+     * 把环形缓冲区中的记录按时间顺序输出到 logcat，用于扫描失败时查看之前发生了什么
+     *
+     * @param reason 输出原因，写在第一行
+     */
+    public static void dump(String reason) {
+        StringBuilder builder = new StringBuilder();
+        long[] records = new long[CAPACITY * SLOT_SIZE];
+        String[] tags = new String[CAPACITY];
+        String[] messages = new String[CAPACITY];
+        long written;
+        synchronized (sLock) {
+            written = sWritten;
+            System.arraycopy(sRecords, 0, records, 0, records.length);
+            System.arraycopy(sTags, 0, tags, 0, CAPACITY);
+            System.arraycopy(sMessages, 0, messages, 0, CAPACITY);
+        }
+        long first = Math.max(0, written - CAPACITY);
+        Log.w(TAG, "dump " + reason + ": " + (written - first) + " of " + written + " records");
+        long lastNs = written == 0 ? 0 : records[(int) ((written - 1) & (CAPACITY - 1)) * SLOT_SIZE];
+        for (long n = first; n < written; n++) {
+            int slot = (int) (n & (CAPACITY - 1));
+            int i = slot * SLOT_SIZE;
+            long header = records[i + 1];
+            int level = (int) (header & 0xff);
+            int argCount = (int) ((header >>> 8) & 0xff);
+            int types = (int) (header >>> 16);
+            builder.setLength(0);
+            builder.append('-').append((lastNs - records[i]) / 1_000_000).append("ms ")
+                    .append(tags[slot]).append(": ")
+                    .append(format(messages[slot], argCount, types,
+                            records[i + 2], records[i + 3], records[i + 4], records[i + 5]));
+            Log.println(level, TAG, builder.toString());
+        }
+    }
+
+    /**
+     * 清空环形缓冲区
+     */
+    public static void clear() {
+        synchronized (sLock) {
+            sWritten = 0;
+            Arrays.fill(sTags, null);
+            Arrays.fill(sMessages, null);
+        }
+    }
+
+    private static String format(String msg, int argCount, int types, long a, long b, long c, long d) {
+        if (argCount == 0) {
+            return msg;
+        }
+        StringBuilder builder = new StringBuilder(msg);
+        appendArg(builder, types, 0, a);
+        if (argCount > 1) {
+            appendArg(builder, types, 1, b);
+        }
+        if (argCount > 2) {
+            appendArg(builder, types, 2, c);
+        }
+        if (argCount > 3) {
+            appendArg(builder, types, 3, d);
+        }
+        return builder.toString();
+    }
+
+    private static void appendArg(StringBuilder builder, int types, int index, long value) {
+        builder.append(' ');
+        switch ((types >>> (index * TYPE_BITS)) & 0x3) {
+            case TYPE_FLOAT:
+                builder.append(Float.intBitsToFloat((int) value));
+                break;
+            case TYPE_LONG:
+            case TYPE_INT:
+            default:
+                builder.append(value);
+                break;
+        }
+    }
+}
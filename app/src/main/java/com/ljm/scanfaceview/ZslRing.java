@@ -0,0 +1,207 @@
+package com.ljm.scanfaceview;
+
+import android.media.Image;
+
+/**
+ * 零延迟拍照的最近几帧图像和每帧最大人脸
+ * <p>
+ * 图像由相机线程从拍照流的 ImageReader 取出后直接保存，不复制像素，满了关闭最旧的一帧；
+ * 人脸由相机线程(硬件检测)或分析线程(软件检测)按传感器时间戳写入，与图像的先后顺序不固定，拍照时再按时间戳对应。
+ * 拍照时 {@link #drain()} 取出所有有人脸的图像交给拍照线程挑选，没有人脸的图像直接关闭。
+ *
+ * @author: ljm
+ * 创建日期:2022/12/8
+ */
+final class ZslRing {
+    // 人脸记录比图像多保留几帧，图像晚于结果到达时仍能对应
+    private static final int FACE_HISTORY_EXTRA = 4;
+
+    private final Image[] mImages;
+    private int mImageStart;
+    private int mImageCount;
+    private final long[] mFaceTimestamps;
+    private final float[] mFaceScores;
+    // 拍照流图像坐标，left, top, right, bottom 紧凑存放
+    private final float[] mFaceRects;
+    private int mFaceNext;
+
+    ZslRing(int capacity) {
+        mImages = new Image[capacity];
+        int faceCapacity = capacity + FACE_HISTORY_EXTRA;
+        mFaceTimestamps = new long[faceCapacity];
+        mFaceScores = new float[faceCapacity];
+        mFaceRects = new float[faceCapacity * FaceFrame.RECT_STRIDE];
+    }
+
+    /**
+     * 保存一帧图像，缓冲已满时关闭最旧的一帧
+     */
+    synchronized void addImage(Image image) {
+        if (mImageCount == mImages.length) {
+            mImages[mImageStart].close();
+            mImages[mImageStart] = null;
+            mImageStart = (mImageStart + 1) % mImages.length;
+            mImageCount--;
+        }
+        mImages[(mImageStart + mImageCount) % mImages.length] = image;
+        mImageCount++;
+    }
+
+    /**
+     * 记录一帧的最大人脸
+     *
+     * @param sensorTimestampNs 与 {@link Image#getTimestamp()} 相同的传感器时间戳
+     */
+    synchronized void putFace(long sensorTimestampNs, float score, float left, float top, float right, float bottom) {
+        int i = mFaceNext;
+        mFaceNext = (mFaceNext + 1) % mFaceTimestamps.length;
+        mFaceTimestamps[i] = sensorTimestampNs;
+        mFaceScores[i] = score;
+        int offset = i * FaceFrame.RECT_STRIDE;
+        mFaceRects[offset] = left;
+        mFaceRects[offset + 1] = top;
+        mFaceRects[offset + 2] = right;
+        mFaceRects[offset + 3] = bottom;
+    }
+
+    /**
+     * 取出所有图像，有人脸的交给返回的 {@link Batch}，其余关闭
+     *
+     * @return 没有任何一帧有人脸时返回 null
+     */
+    synchronized Batch drain() {
+        Batch batch = null;
+        for (int n = 0; n < mImageCount; n++) {
+            int slot = (mImageStart + n) % mImages.length;
+            Image image = mImages[slot];
+            mImages[slot] = null;
+            int face = findFace(image.getTimestamp());
+            if (face < 0) {
+                image.close();
+                continue;
+            }
+            if (batch == null) {
+                batch = new Batch(mImages.length);
+            }
+            int offset = face * FaceFrame.RECT_STRIDE;
+            batch.add(image, mFaceScores[face], mFaceRects[offset], mFaceRects[offset + 1],
+                    mFaceRects[offset + 2], mFaceRects[offset + 3]);
+        }
+        mImageStart = 0;
+        mImageCount = 0;
+        return batch;
+    }
+
+    /**
+     * 关闭所有图像并清空人脸记录，关闭相机或切换摄像头时调用
+     */
+    synchronized void clear() {
+        for (int n = 0; n < mImageCount; n++) {
+            int slot = (mImageStart + n) % mImages.length;
+            mImages[slot].close();
+            mImages[slot] = null;
+        }
+        mImageStart = 0;
+        mImageCount = 0;
+        for (int i = 0; i < mFaceTimestamps.length; i++) {
+            mFaceTimestamps[i] = 0;
+        }
+    }
+
+    private int findFace(long timestampNs) {
+        for (int i = 0; i < mFaceTimestamps.length; i++) {
+            if (mFaceTimestamps[i] == timestampNs && timestampNs != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 一次拍照的候选帧，只在拍照线程访问，用完后必须 {@link #close()}
+     */
+    static final class Batch {
+        private final Image[] mImages;
+        private final float[] mScores;
+        private final float[] mRects;
+        private int mCount;
+
+        private Batch(int capacity) {
+            mImages = new Image[capacity];
+            mScores = new float[capacity];
+            mRects = new float[capacity * FaceFrame.RECT_STRIDE];
+        }
+
+        private void add(Image image, float score, float left, float top, float right, float bottom) {
+            int i = mCount++;
+            mImages[i] = image;
+            mScores[i] = score;
+            int offset = i * FaceFrame.RECT_STRIDE;
+            mRects[offset] = left;
+            mRects[offset + 1] = top;
+            mRects[offset + 2] = right;
+            mRects[offset + 3] = bottom;
+        }
+
+        int getCount() {
+            return mCount;
+        }
+
+        Image getImage(int index) {
+            return mImages[index];
+        }
+
+        float getLeft(int index) {
+            return mRects[index * FaceFrame.RECT_STRIDE];
+        }
+
+        float getTop(int index) {
+            return mRects[index * FaceFrame.RECT_STRIDE + 1];
+        }
+
+        float getRight(int index) {
+            return mRects[index * FaceFrame.RECT_STRIDE + 2];
+        }
+
+        float getBottom(int index) {
+            return mRects[index * FaceFrame.RECT_STRIDE + 3];
+        }
+
+        /**
+         * 按人脸分数(相对本批最高分)乘以人脸区域清晰度挑选最好的一帧
+         *
+         * @return 候选帧序号
+         */
+        int selectBest() {
+            float maxScore = 0;
+            for (int i = 0; i < mCount; i++) {
+                maxScore = Math.max(maxScore, mScores[i]);
+            }
+            int best = 0;
+            float bestQuality = -1;
+            for (int i = 0; i < mCount; i++) {
+                Image image = mImages[i];
+                Image.Plane luma = image.getPlanes()[0];
+                int left = Math.max(0, (int) getLeft(i));
+                int top = Math.max(0, (int) getTop(i));
+                int right = Math.min(image.getWidth(), (int) getRight(i));
+                int bottom = Math.min(image.getHeight(), (int) getBottom(i));
+                float quality = FaceJpegEncoder.sharpness(luma.getBuffer(), luma.getRowStride(), left, top, right, bottom)
+                        * (maxScore > 0 ? mScores[i] / maxScore : 1);
+                if (quality > bestQuality) {
+                    best = i;
+                    bestQuality = quality;
+                }
+            }
+            return best;
+        }
+
+        void close() {
+            for (int i = 0; i < mCount; i++) {
+                mImages[i].close();
+                mImages[i] = null;
+            }
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 用手工构造的三特征级联检测合成人脸: 人脸位置和大小正确，多线程结果与单线程一致，空白图像没有人脸
+ */
+public class CascadeFaceDetectorTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int WINDOW = 24;
+    // 亮的背景、较暗的肤色和最暗的眼睛、嘴，只有眼睛和嘴比肤色暗
+    private static final int BACKGROUND = 230;
+    private static final int SKIN = 150;
+    private static final int DARK = 30;
+    // 合成人脸左上角和边长，边长为窗口的 2 倍
+    private static final int FACE_LEFT = 56;
+    private static final int FACE_TOP = 36;
+    private static final int FACE_SIZE = 48;
+
+    @Test
+    public void syntheticFace_detected() {
+        FaceFrame faces = detect(syntheticFace(), 1);
+        assertEquals(1, faces.getCount());
+        assertEquals(FACE_LEFT, faces.getLeft(0), 6);
+        assertEquals(FACE_TOP, faces.getTop(0), 6);
+        assertEquals(FACE_LEFT + FACE_SIZE, faces.getRight(0), 6);
+        assertEquals(FACE_TOP + FACE_SIZE, faces.getBottom(0), 6);
+        assertTrue(faces.getScore(0) >= CascadeFaceDetector.DEFAULT_MIN_NEIGHBORS);
+    }
+
+    @Test
+    public void parallel_sameAsSingleThread() {
+        byte[] luma = syntheticFace();
+        FaceFrame single = detect(luma, 1);
+        FaceFrame parallel = detect(luma, 4);
+        assertEquals(single.getCount(), parallel.getCount());
+        for (int i = 0; i < single.getCount(); i++) {
+            assertEquals(single.getLeft(i), parallel.getLeft(i), 0);
+            assertEquals(single.getTop(i), parallel.getTop(i), 0);
+            assertEquals(single.getRight(i), parallel.getRight(i), 0);
+            assertEquals(single.getBottom(i), parallel.getBottom(i), 0);
+        }
+    }
+
+    @Test
+    public void emptyImage_noFaces() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) BACKGROUND);
+        assertTrue(detect(luma, 1).isEmpty());
+        Arrays.fill(luma, (byte) 0);
+        assertTrue(detect(luma, 1).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void scaleFactor_mustBeGreaterThanOne() {
+        new CascadeFaceDetector(faceCascade(), 1.0f, 3, 40, 1);
+    }
+
+    private static FaceFrame detect(byte[] luma, int parallelism) {
+        CascadeFaceDetector detector = new CascadeFaceDetector(faceCascade(), CascadeFaceDetector.DEFAULT_SCALE_FACTOR,
+                CascadeFaceDetector.DEFAULT_MIN_NEIGHBORS, CascadeFaceDetector.DEFAULT_MIN_FACE_SIZE, parallelism);
+        try {
+            FaceFrame out = new FaceFrame(4);
+            out.reset(0, 0);
+            detector.analyze(luma, WIDTH, HEIGHT, out);
+            return out;
+        } finally {
+            detector.release();
+        }
+    }
+
+    /**
+     * 24x24 窗口坐标下: 肤色区域 x 4..20、y 2..24，两眼 x 6..10 和 14..18、y 8..10，嘴 x 9..15、y 18..20，其余为背景
+     */
+    static byte[] syntheticFace() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) BACKGROUND);
+        int scale = FACE_SIZE / WINDOW;
+        fill(luma, scale, 4, 2, 20, 24, SKIN);
+        fill(luma, scale, 6, 8, 10, 10, DARK);
+        fill(luma, scale, 14, 8, 18, 10, DARK);
+        fill(luma, scale, 9, 18, 15, 20, DARK);
+        return luma;
+    }
+
+    private static void fill(byte[] luma, int scale, int left, int top, int right, int bottom, int value) {
+        for (int y = FACE_TOP + top * scale; y < FACE_TOP + bottom * scale; y++) {
+            for (int x = FACE_LEFT + left * scale; x < FACE_LEFT + right * scale; x++) {
+                luma[y * WIDTH + x] = (byte) value;
+            }
+        }
+    }
+
+    /**
+     * 一个阶段三个弱分类器，都满足才通过:
+     * 特征 0 用 8x8 的格子覆盖整个窗口，四个角和左右两侧(背景)都不比中心(肤色)暗；
+     * 特征 1 用 4x3 的格子覆盖两眼之间，左上、右上(眼睛)都比中心(鼻梁)暗，下面一行(肤色)不比中心暗；
+     * 特征 2 用 2x2 的格子覆盖嘴的上方，下面一行(嘴)都比中心(人中)暗，上面一行(肤色)不比中心暗。
+     * 均匀图像的各格子相等，LBP 编码为 255，特征 1 和 2 都不满足。
+     */
+    static FaceCascade faceCascade() {
+        int[] features = {0, 0, 8, 8, 6, 7, 4, 3, 9, 14, 2, 2};
+        int[] weakSubsets = new int[3 * FaceCascade.SUBSET_SIZE];
+        // LBP 编码从左上角顺时针依次为 128、64、32、16、8、4、2、1，对应格子不比中心暗时为 1
+        int corners = 128 | 32 | 8 | 2;
+        setSubset(weakSubsets, 0, corners | 16 | 1, corners | 16 | 1);
+        setSubset(weakSubsets, 1, 128 | 32 | 8 | 4 | 2, 8 | 4 | 2);
+        setSubset(weakSubsets, 2, 128 | 64 | 32 | 8 | 4 | 2, 128 | 64 | 32);
+        return new FaceCascade(WINDOW, WINDOW, features, new float[]{2.5f}, new int[]{3},
+                new int[]{0, 1, 2}, weakSubsets, new float[]{1, 1, 1}, new float[]{-1, -1, -1});
+    }
+
+    /**
+     * 查找表中 (code & mask) == value 的编码取左值
+     */
+    private static void setSubset(int[] subsets, int weak, int mask, int value) {
+        for (int code = 0; code < 256; code++) {
+            if ((code & mask) == value) {
+                subsets[weak * FaceCascade.SUBSET_SIZE + (code >> 5)] |= 1 << (code & 31);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 检测调度按人脸静止时长降档、运动时立即恢复、温度限制档位，以及过热时定期探测
+ */
+public class DetectionSchedulerTest {
+    private static final int CAPACITY = 5;
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void stillFace_stepsDownThenRecoversOnMotion() {
+        DetectionScheduler scheduler = new DetectionScheduler(CAPACITY);
+        scheduler.reset(0);
+        FaceFrame faceFrame = new FaceFrame(CAPACITY);
+        face(faceFrame, 100);
+        scheduler.onFaces(faceFrame, 0);
+
+        assertFalse(scheduler.onFrame(500 * MS));
+        assertEquals(DetectionScheduler.LEVEL_ACTIVE, scheduler.getLevel());
+        assertEquals(1, scheduler.getDetectInterval());
+
+        // 人脸中心移动 2 像素，小于人脸宽度的 5%，仍视为静止
+        face(faceFrame, 102);
+        scheduler.onFaces(faceFrame, 900 * MS);
+        assertTrue(scheduler.onFrame(1000 * MS));
+        assertEquals(DetectionScheduler.LEVEL_STEADY, scheduler.getLevel());
+        assertEquals(2, scheduler.getDetectInterval());
+        assertFalse(scheduler.onFrame(2000 * MS));
+
+        assertTrue(scheduler.onFrame(5000 * MS));
+        assertEquals(DetectionScheduler.LEVEL_IDLE, scheduler.getLevel());
+        assertEquals(4, scheduler.getDetectInterval());
+        assertTrue(scheduler.isFaceDetectEnabled());
+
+        face(faceFrame, 150);
+        scheduler.onFaces(faceFrame, 6000 * MS);
+        assertTrue(scheduler.onFrame(6000 * MS));
+        assertEquals(DetectionScheduler.LEVEL_ACTIVE, scheduler.getLevel());
+    }
+
+    @Test
+    public void faceCountChange_isMotion() {
+        DetectionScheduler scheduler = new DetectionScheduler(CAPACITY);
+        scheduler.reset(0);
+        FaceFrame faceFrame = new FaceFrame(CAPACITY);
+        face(faceFrame, 100);
+        scheduler.onFaces(faceFrame, 0);
+        scheduler.onFrame(2000 * MS);
+        assertEquals(DetectionScheduler.LEVEL_STEADY, scheduler.getLevel());
+
+        faceFrame.reset(1, 0);
+        scheduler.onFaces(faceFrame, 2100 * MS);
+        scheduler.onFrame(2100 * MS);
+        assertEquals(DetectionScheduler.LEVEL_ACTIVE, scheduler.getLevel());
+    }
+
+    @Test
+    public void thermal_capsLevel() {
+        DetectionScheduler scheduler = new DetectionScheduler(CAPACITY);
+        scheduler.reset(0);
+        scheduler.setThermalStatus(2);
+        assertTrue(scheduler.onFrame(0));
+        assertEquals(DetectionScheduler.LEVEL_STEADY, scheduler.getLevel());
+        scheduler.setThermalStatus(3);
+        scheduler.onFrame(MS);
+        assertEquals(DetectionScheduler.LEVEL_IDLE, scheduler.getLevel());
+        scheduler.setThermalStatus(DetectionScheduler.THERMAL_STATUS_NONE);
+        scheduler.onFrame(2 * MS);
+        assertEquals(DetectionScheduler.LEVEL_ACTIVE, scheduler.getLevel());
+    }
+
+    @Test
+    public void critical_suspendsAndProbes() {
+        DetectionScheduler scheduler = new DetectionScheduler(CAPACITY);
+        scheduler.reset(0);
+        scheduler.setThermalStatus(4);
+        long start = 1000 * MS;
+        assertTrue(scheduler.onFrame(start));
+        assertEquals(DetectionScheduler.LEVEL_SUSPENDED, scheduler.getLevel());
+        assertFalse(scheduler.isFaceDetectEnabled());
+        // 探测窗口内按最低频率检测
+        assertEquals(4, scheduler.getDetectInterval());
+
+        // 每 2 秒的最后 300 毫秒打开人脸检测
+        assertFalse(scheduler.onFrame(start + 1600 * MS));
+        assertFalse(scheduler.isFaceDetectEnabled());
+        assertTrue(scheduler.onFrame(start + 1750 * MS));
+        assertTrue(scheduler.isFaceDetectEnabled());
+        assertTrue(scheduler.onFrame(start + 2050 * MS));
+        assertFalse(scheduler.isFaceDetectEnabled());
+
+        scheduler.reset(start + 2100 * MS);
+        scheduler.setThermalStatus(DetectionScheduler.THERMAL_STATUS_NONE);
+        scheduler.onFrame(start + 2100 * MS);
+        assertEquals(DetectionScheduler.LEVEL_ACTIVE, scheduler.getLevel());
+        assertTrue(scheduler.isFaceDetectEnabled());
+    }
+
+    /**
+     * 一个中心在 (centerX, 100)、边长 100 的人脸
+     */
+    private static void face(FaceFrame faceFrame, float centerX) {
+        faceFrame.reset(0, 0);
+        faceFrame.add(centerX - 50, 50, centerX + 50, 150, 0.9f);
+    }
+}
@@ -0,0 +1,111 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * 级联分类器从 OpenCV 的 XML 解析、二进制格式写出后读回，以及不支持的格式
+ */
+public class FaceCascadeTest {
+    // OpenCV traincascade 输出格式的最小 LBP 级联: 两个特征，两个阶段
+    private static final String XML = "<?xml version=\"1.0\"?>\n"
+            + "<opencv_storage>\n"
+            + "<cascade type_id=\"opencv-cascade-classifier\"><stageType>BOOST</stageType>\n"
+            + "  <featureType>LBP</featureType>\n"
+            + "  <height>24</height>\n"
+            + "  <width>20</width>\n"
+            + "  <stageNum>2</stageNum>\n"
+            + "  <stages>\n"
+            + "    <_>\n"
+            + "      <maxWeakCount>1</maxWeakCount>\n"
+            + "      <stageThreshold>-0.75</stageThreshold>\n"
+            + "      <weakClassifiers>\n"
+            + "        <_>\n"
+            + "          <internalNodes>\n"
+            + "            0 -1 1 -67130709 -21569 -1426120013 -1275125205 -21585 -16385 587145899 -24005</internalNodes>\n"
+            + "          <leafValues>\n"
+            + "            -0.6543210148811340 8.8888889551162720e-01</leafValues></_></weakClassifiers></_>\n"
+            + "    <_>\n"
+            + "      <maxWeakCount>2</maxWeakCount>\n"
+            + "      <stageThreshold>0.5</stageThreshold>\n"
+            + "      <weakClassifiers>\n"
+            + "        <_>\n"
+            + "          <internalNodes>\n"
+            + "            0 -1 0 1 2 3 4 5 6 7 8</internalNodes>\n"
+            + "          <leafValues>\n"
+            + "            0.25 -0.25</leafValues></_>\n"
+            + "        <_>\n"
+            + "          <internalNodes>\n"
+            + "            0 -1 1 -1 -1 -1 -1 -1 -1 -1 -1</internalNodes>\n"
+            + "          <leafValues>\n"
+            + "            1. -1.</leafValues></_></weakClassifiers></_></stages>\n"
+            + "  <features>\n"
+            + "    <_>\n"
+            + "      <rect>\n"
+            + "        0 0 3 5</rect></_>\n"
+            + "    <_>\n"
+            + "      <rect>\n"
+            + "        2 4 6 6</rect></_></features></cascade>\n"
+            + "</opencv_storage>\n";
+
+    @Test
+    public void openCvXml_parsed() throws IOException {
+        FaceCascade cascade = FaceCascade.loadOpenCvXml(stream(XML));
+        assertEquals(20, cascade.getWindowWidth());
+        assertEquals(24, cascade.getWindowHeight());
+        assertArrayEquals(new int[]{0, 0, 3, 5, 2, 4, 6, 6}, cascade.features);
+        assertArrayEquals(new int[]{1, 2}, cascade.stageWeakCounts);
+        assertEquals(-0.75f, cascade.stageThresholds[0], 0);
+        assertEquals(0.5f, cascade.stageThresholds[1], 0);
+        assertArrayEquals(new int[]{1, 0, 1}, cascade.weakFeatures);
+        assertEquals(-67130709, cascade.weakSubsets[0]);
+        assertEquals(-24005, cascade.weakSubsets[7]);
+        assertEquals(8, cascade.weakSubsets[FaceCascade.SUBSET_SIZE + 7]);
+        assertEquals(-0.654321f, cascade.weakLeftValues[0], 1e-6);
+        assertEquals(0.8888889f, cascade.weakRightValues[0], 1e-6);
+        assertEquals(1.0f, cascade.weakLeftValues[2], 0);
+        assertEquals(-1.0f, cascade.weakRightValues[2], 0);
+    }
+
+    @Test
+    public void binary_roundTrip() throws IOException {
+        FaceCascade cascade = FaceCascade.loadOpenCvXml(stream(XML));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cascade.write(out);
+        FaceCascade loaded = FaceCascade.load(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(cascade.windowWidth, loaded.windowWidth);
+        assertEquals(cascade.windowHeight, loaded.windowHeight);
+        assertArrayEquals(cascade.features, loaded.features);
+        assertArrayEquals(cascade.stageWeakCounts, loaded.stageWeakCounts);
+        assertArrayEquals(cascade.stageThresholds, loaded.stageThresholds, 0);
+        assertArrayEquals(cascade.weakFeatures, loaded.weakFeatures);
+        assertArrayEquals(cascade.weakSubsets, loaded.weakSubsets);
+        assertArrayEquals(cascade.weakLeftValues, loaded.weakLeftValues, 0);
+        assertArrayEquals(cascade.weakRightValues, loaded.weakRightValues, 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void haarXml_rejected() throws IOException {
+        FaceCascade.loadOpenCvXml(stream(XML.replace("<featureType>LBP</featureType>", "<featureType>HAAR</featureType>")));
+    }
+
+    @Test(expected = IOException.class)
+    public void featureIndexOutOfRange_rejected() throws IOException {
+        FaceCascade.loadOpenCvXml(stream(XML.replace("0 -1 0 1 2 3", "0 -1 2 1 2 3")));
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagic_rejected() throws IOException {
+        FaceCascade.load(new ByteArrayInputStream(new byte[16]));
+    }
+
+    private static ByteArrayInputStream stream(String text) {
+        return new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
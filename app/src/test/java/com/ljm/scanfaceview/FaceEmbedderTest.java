@@ -0,0 +1,255 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 手工构造的小模型与浮点参考实现的输出一致(单线程和多线程)，量化的四舍五入、截断和负半轴斜率，
+ * 逐点卷积成对像素和 4 个输出通道一组之外的剩余部分，以及 arena 复用缓冲区
+ * <p>
+ * 所有缩放系数和 PReLU 斜率都是 2 的幂，浮点参考实现的每一步都没有舍入误差，与 int 累加的结果应当完全相同。
+ */
+public class FaceEmbedderTest {
+    private static final float INPUT_SCALE = 1 / 128f;
+    private static final float TENSOR_SCALE = 1 / 32f;
+
+    @Test
+    public void run_tinyModel_matchesFloatReference() {
+        FaceEmbeddingModel model = tinyModel();
+        byte[] pixels = pixels(model);
+        float[] expected = reference(model, pixels);
+        for (int parallelism : new int[]{1, 3}) {
+            FaceEmbedder embedder = new FaceEmbedder(model, parallelism);
+            try {
+                float[] embedding = new float[model.getEmbeddingSize()];
+                embedder.setInput(pixels);
+                embedder.run(embedding);
+                assertArrayEquals(expected, embedding, 0);
+                // 第二次推理复用同一块 arena，结果不变
+                embedder.run(embedding);
+                assertArrayEquals(expected, embedding, 0);
+            } finally {
+                embedder.release();
+            }
+        }
+    }
+
+    @Test
+    public void quantize_roundsHalfUpAndSaturates() {
+        assertEquals(0, FaceEmbedder.quantize(0.49f, 1));
+        assertEquals(1, FaceEmbedder.quantize(0.5f, 1));
+        assertEquals(2, FaceEmbedder.quantize(1.5f, 1));
+        assertEquals(0, FaceEmbedder.quantize(-0.5f, 1));
+        assertEquals(-1, FaceEmbedder.quantize(-0.51f, 1));
+        assertEquals(-1, FaceEmbedder.quantize(-1.5f, 1));
+        assertEquals(127, FaceEmbedder.quantize(126.5f, 1));
+        assertEquals(127, FaceEmbedder.quantize(1000, 1));
+        assertEquals(-128, FaceEmbedder.quantize(-128.4f, 1));
+        assertEquals(-128, FaceEmbedder.quantize(-1000, 1));
+    }
+
+    @Test
+    public void quantize_appliesNegativeSlope() {
+        // ReLU
+        assertEquals(0, FaceEmbedder.quantize(-20, 0));
+        assertEquals(20, FaceEmbedder.quantize(20, 0));
+        // PReLU 只缩放负半轴
+        assertEquals(-5, FaceEmbedder.quantize(-20, 0.25f));
+        assertEquals(20, FaceEmbedder.quantize(20, 0.25f));
+        // -1.5 向正方向舍入
+        assertEquals(-1, FaceEmbedder.quantize(-6, 0.25f));
+        assertEquals(-128, FaceEmbedder.quantize(-1000, 0.5f));
+    }
+
+    @Test
+    public void pointwise_tailPaths_matchReference() {
+        // 宽 5: 两对像素加行末一个像素；7 个输出通道: 一组 4 个加剩余 3 个
+        assertPointwiseMatchesReference(5, 1);
+        // 步长 2: 宽 9 输出宽 5，成对的第二个像素隔一个输入像素
+        assertPointwiseMatchesReference(9, 2);
+        // 只有一个像素
+        assertPointwiseMatchesReference(1, 1);
+    }
+
+    @Test
+    public void arena_reusesBuffers() {
+        List<FaceEmbeddingModel.Layer> layers = new ArrayList<>();
+        int tensor = 0;
+        for (int i = 0; i < 5; i++) {
+            tensor = addConv(layers, FaceEmbeddingModel.LAYER_POINTWISE, tensor, 4, 4, 1, 1, 0,
+                    FaceEmbeddingModel.ACTIVATION_RELU, i);
+        }
+        FaceEmbeddingModel model = new FaceEmbeddingModel(4, 4, 4, INPUT_SCALE,
+                layers.toArray(new FaceEmbeddingModel.Layer[0]));
+        FaceEmbedder embedder = new FaceEmbedder(model, 1);
+        try {
+            // 顺序连接的层只需要两个缓冲区交替使用
+            assertEquals(2 * 4 * 4 * 4, embedder.getArenaSize());
+        } finally {
+            embedder.release();
+        }
+    }
+
+    private static void assertPointwiseMatchesReference(int width, int stride) {
+        List<FaceEmbeddingModel.Layer> layers = new ArrayList<>();
+        addConv(layers, FaceEmbeddingModel.LAYER_POINTWISE, 0, 3, 7, 1, stride, 0,
+                FaceEmbeddingModel.ACTIVATION_PRELU, width);
+        FaceEmbeddingModel model = new FaceEmbeddingModel(width, 2, 3, INPUT_SCALE,
+                layers.toArray(new FaceEmbeddingModel.Layer[0]));
+        byte[] pixels = pixels(model);
+        FaceEmbedder embedder = new FaceEmbedder(model, 1);
+        try {
+            float[] embedding = new float[model.getEmbeddingSize()];
+            embedder.setInput(pixels);
+            embedder.run(embedding);
+            assertArrayEquals(reference(model, pixels), embedding, 0);
+        } finally {
+            embedder.release();
+        }
+    }
+
+    /**
+     * 5x4x2 输入: 普通卷积、步长 2 的深度卷积、逐点卷积、残差相加、无填充的深度卷积和最后的线性层，
+     * 输出 2x1x5 的特征
+     */
+    private static FaceEmbeddingModel tinyModel() {
+        List<FaceEmbeddingModel.Layer> layers = new ArrayList<>();
+        // conv 3x3 -> 5x4x4
+        int tensor = addConv(layers, FaceEmbeddingModel.LAYER_CONV, 0, 2, 4, 3, 1, 1,
+                FaceEmbeddingModel.ACTIVATION_PRELU, 1);
+        // dw 3x3/2 -> 3x2x4
+        tensor = addConv(layers, FaceEmbeddingModel.LAYER_DEPTHWISE, tensor, 4, 4, 3, 2, 1,
+                FaceEmbeddingModel.ACTIVATION_RELU, 2);
+        // pw -> 3x2x6，再 pw -> 3x2x6 与之相加
+        int block = addConv(layers, FaceEmbeddingModel.LAYER_POINTWISE, tensor, 4, 6, 1, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_NONE, 3);
+        tensor = addConv(layers, FaceEmbeddingModel.LAYER_POINTWISE, block, 6, 6, 1, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_PRELU, 4);
+        layers.add(new FaceEmbeddingModel.Layer(block, tensor, 6, TENSOR_SCALE * 2));
+        tensor = layers.size();
+        // dw 2x2 -> 2x1x6, pw -> 2x1x5
+        tensor = addConv(layers, FaceEmbeddingModel.LAYER_DEPTHWISE, tensor, 6, 6, 2, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_NONE, 5);
+        addConv(layers, FaceEmbeddingModel.LAYER_POINTWISE, tensor, 6, 5, 1, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_NONE, 6);
+        FaceEmbeddingModel model = new FaceEmbeddingModel(5, 4, 2, INPUT_SCALE,
+                layers.toArray(new FaceEmbeddingModel.Layer[0]));
+        assertEquals(10, model.getEmbeddingSize());
+        return model;
+    }
+
+    /**
+     * 添加一个卷积层，权重、偏置和缩放系数由 seed 按固定公式生成，返回输出张量编号
+     */
+    private static int addConv(List<FaceEmbeddingModel.Layer> layers, int type, int input, int inChannels,
+                               int outChannels, int kernel, int stride, int padding, int activation, int seed) {
+        int fanIn = type == FaceEmbeddingModel.LAYER_DEPTHWISE ? kernel * kernel : kernel * kernel * inChannels;
+        byte[] weights = new byte[fanIn * outChannels];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (byte) ((i * 7 + seed * 5) % 17 - 8);
+        }
+        float[] weightScales = new float[outChannels];
+        int[] bias = new int[outChannels];
+        float[] slopes = activation == FaceEmbeddingModel.ACTIVATION_PRELU ? new float[outChannels] : null;
+        for (int c = 0; c < outChannels; c++) {
+            weightScales[c] = 1f / (32 << ((c + seed) % 3));
+            bias[c] = ((c * 5 + seed) % 7 - 3) * 64;
+            if (slopes != null) {
+                slopes[c] = c % 2 == 0 ? 0.25f : 0.5f;
+            }
+        }
+        layers.add(new FaceEmbeddingModel.Layer(type, activation, input, outChannels, kernel, stride, padding,
+                TENSOR_SCALE, weightScales, bias, weights, slopes));
+        return layers.size();
+    }
+
+    private static byte[] pixels(FaceEmbeddingModel model) {
+        byte[] pixels = new byte[model.inputWidth * model.inputHeight * model.inputChannels];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) (i * 53 % 256);
+        }
+        return pixels;
+    }
+
+    /**
+     * 在反量化后的实数上逐个输出元素按定义计算，每层输出再量化到输出张量的缩放系数
+     */
+    private static float[] reference(FaceEmbeddingModel model, byte[] pixels) {
+        int layerCount = model.getLayerCount();
+        float[][] tensors = new float[layerCount + 1][];
+        tensors[0] = new float[pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            tensors[0][i] = ((pixels[i] & 0xff) - 128) * model.inputScale;
+        }
+        int saturated = 0;
+        for (int l = 0; l < layerCount; l++) {
+            FaceEmbeddingModel.Layer layer = model.layers[l];
+            int inWidth = model.tensorWidths[layer.input];
+            int inHeight = model.tensorHeights[layer.input];
+            int inChannels = model.tensorChannels[layer.input];
+            int outWidth = model.tensorWidths[l + 1];
+            int outHeight = model.tensorHeights[l + 1];
+            float[] in = tensors[layer.input];
+            float[] out = new float[outWidth * outHeight * layer.outChannels];
+            float inputScale = model.tensorScales[layer.input];
+            for (int oy = 0; oy < outHeight; oy++) {
+                for (int ox = 0; ox < outWidth; ox++) {
+                    for (int oc = 0; oc < layer.outChannels; oc++) {
+                        int o = (oy * outWidth + ox) * layer.outChannels + oc;
+                        float value;
+                        if (layer.type == FaceEmbeddingModel.LAYER_ADD) {
+                            value = in[o] + tensors[layer.input2][o];
+                        } else {
+                            float weightScale = layer.weightScales[oc];
+                            value = layer.bias[oc] * weightScale * inputScale;
+                            for (int ky = 0; ky < layer.kernel; ky++) {
+                                for (int kx = 0; kx < layer.kernel; kx++) {
+                                    int iy = oy * layer.stride - layer.padding + ky;
+                                    int ix = ox * layer.stride - layer.padding + kx;
+                                    if (iy < 0 || iy >= inHeight || ix < 0 || ix >= inWidth) {
+                                        continue;
+                                    }
+                                    int x = (iy * inWidth + ix) * inChannels;
+                                    if (layer.type == FaceEmbeddingModel.LAYER_DEPTHWISE) {
+                                        value += in[x + oc]
+                                                * layer.weights[(ky * layer.kernel + kx) * inChannels + oc] * weightScale;
+                                    } else {
+                                        int w = ((oc * layer.kernel + ky) * layer.kernel + kx) * inChannels;
+                                        for (int ic = 0; ic < inChannels; ic++) {
+                                            value += in[x + ic] * layer.weights[w + ic] * weightScale;
+                                        }
+                                    }
+                                }
+                            }
+                            if (value < 0 && layer.activation == FaceEmbeddingModel.ACTIVATION_RELU) {
+                                value = 0;
+                            } else if (value < 0 && layer.activation == FaceEmbeddingModel.ACTIVATION_PRELU) {
+                                value *= layer.slopes[oc];
+                            }
+                        }
+                        float q = (float) Math.floor(value / layer.outputScale + 0.5);
+                        if (q > 127 || q < -128) {
+                            saturated++;
+                            q = Math.max(-128, Math.min(127, q));
+                        }
+                        out[o] = q * layer.outputScale;
+                    }
+                }
+            }
+            tensors[l + 1] = out;
+        }
+        // 权重和输入的范围合理时很少饱和，否则比较没有意义
+        assertTrue("saturated " + saturated, saturated <= 2);
+        float[] embedding = tensors[layerCount];
+        boolean nonZero = false;
+        for (float value : embedding) {
+            nonZero |= value != 0;
+        }
+        assertTrue(nonZero);
+        return embedding;
+    }
+}
@@ -0,0 +1,240 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸事件流的三种背压策略、保留和取消订阅后 Event 回到池中，以及只允许一个发布线程
+ * <p>
+ * 订阅者的 Executor 只在测试调用 {@link ManualExecutor#runAll()} 时执行，回调时机完全确定。
+ */
+public class FaceEventStreamTest {
+    private static final int CAPACITY = 5;
+    private static final int FACE_COUNT = 3;
+
+    @Test
+    public void latest_keepsOnlyNewestFrame() {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        ManualExecutor executor = new ManualExecutor();
+        List<Long> received = new ArrayList<>();
+        FaceEventStream.Subscription subscription = stream.subscribe(executor, event -> {
+            assertFrame(event);
+            received.add(event.getFrameNumber());
+        });
+        publish(stream, 0, 5);
+        // 回调还没有执行，只提交了一次取数据的任务
+        assertEquals(1, executor.runAll());
+        assertEquals(Collections.singletonList(4L), received);
+        assertEquals(1, subscription.getDeliveredCount());
+        assertEquals(4, subscription.getDroppedCount());
+
+        publish(stream, 5, 6);
+        executor.runAll();
+        assertEquals(5L, (long) received.get(1));
+        assertEquals(2, subscription.getDeliveredCount());
+    }
+
+    @Test
+    public void everyNth_takesEveryNthFrame() {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        ManualExecutor executor = new ManualExecutor();
+        List<Long> received = new ArrayList<>();
+        FaceEventStream.Subscription subscription = stream.subscribe(executor, FaceEventStream.POLICY_EVERY_NTH, 3,
+                event -> received.add(event.getFrameNumber()));
+        for (int i = 0; i < 10; i++) {
+            publish(stream, i, i + 1);
+            executor.runAll();
+        }
+        assertEquals(Arrays.asList(0L, 3L, 6L, 9L), received);
+        // 按间隔跳过的帧不算丢弃
+        assertEquals(0, subscription.getDroppedCount());
+
+        // 来不及回调时取到的帧中只保留最新一帧: 12、15 被 18 覆盖
+        received.clear();
+        publish(stream, 10, 20);
+        executor.runAll();
+        assertEquals(Collections.singletonList(18L), received);
+        assertEquals(2, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void buffer_dropsOldestWhenFull() {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        ManualExecutor executor = new ManualExecutor();
+        List<Long> received = new ArrayList<>();
+        FaceEventStream.Subscription subscription = stream.subscribe(executor, FaceEventStream.POLICY_BUFFER, 3,
+                event -> {
+                    assertFrame(event);
+                    received.add(event.getFrameNumber());
+                });
+        publish(stream, 0, 2);
+        executor.runAll();
+        assertEquals(Arrays.asList(0L, 1L), received);
+
+        received.clear();
+        publish(stream, 2, 8);
+        executor.runAll();
+        assertEquals(Arrays.asList(5L, 6L, 7L), received);
+        assertEquals(5, subscription.getDeliveredCount());
+        assertEquals(3, subscription.getDroppedCount());
+    }
+
+    @Test
+    public void cancelDuringDrain_returnsEventsToPool() {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        ManualExecutor executor = new ManualExecutor();
+        List<Long> received = new ArrayList<>();
+        AtomicReference<FaceEventStream.Subscription> buffered = new AtomicReference<>();
+        buffered.set(stream.subscribe(executor, FaceEventStream.POLICY_BUFFER, 4, event -> {
+            received.add(event.getFrameNumber());
+            // 第一帧回调时取消，缓存中剩下的三帧由 cancel 释放
+            buffered.get().cancel();
+        }));
+        // 另一个订阅记录每一帧的 Event，缓存的帧还没回调，每帧都是新的 Event
+        Set<FaceEventStream.Event> allocated = Collections.newSetFromMap(new IdentityHashMap<>());
+        FaceEventStream.Subscription recorder = stream.subscribe(Runnable::run, allocated::add);
+        publish(stream, 0, 4);
+        assertEquals(4, allocated.size());
+
+        executor.runAll();
+        assertEquals(Collections.singletonList(0L), received);
+        assertTrue(buffered.get().isCancelled());
+        recorder.cancel();
+
+        // 保留每一帧，池中必须有 4 个空闲的 Event 才不会分配新的
+        List<FaceEventStream.Event> retained = new ArrayList<>();
+        stream.subscribe(Runnable::run, event -> {
+            event.retain();
+            retained.add(event);
+        });
+        publish(stream, 4, 8);
+        assertEquals(4, retained.size());
+        for (FaceEventStream.Event event : retained) {
+            assertTrue(allocated.contains(event));
+            assertFrame(event);
+            event.release();
+        }
+    }
+
+    @Test
+    public void retainedEvent_notRecycled() {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        FaceEventStream.Event[] retained = new FaceEventStream.Event[1];
+        stream.subscribe(Runnable::run, event -> {
+            if (event.getFrameNumber() == 0) {
+                event.retain();
+                retained[0] = event;
+            }
+        });
+        publish(stream, 0, 100);
+        // 保留的一帧没有被后续发布覆盖
+        assertEquals(0, retained[0].getFrameNumber());
+        assertFrame(retained[0]);
+        retained[0].release();
+        try {
+            retained[0].release();
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void cancel_stopsDelivery() {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        int[] count = new int[1];
+        FaceEventStream.Subscription subscription = stream.subscribe(Runnable::run, event -> count[0]++);
+        publish(stream, 0, 1);
+        subscription.cancel();
+        publish(stream, 1, 2);
+        assertEquals(1, count[0]);
+        assertTrue(subscription.isCancelled());
+        assertFalse(stream.hasSubscribers());
+    }
+
+    @Test
+    public void publish_fromSecondThread_rejected() throws InterruptedException {
+        FaceEventStream stream = new FaceEventStream(CAPACITY);
+        long[] received = new long[1];
+        stream.subscribe(Runnable::run, event -> received[0]++);
+        FaceFrame faceFrame = new FaceFrame(CAPACITY);
+        faceFrame.reset(0, 0);
+        stream.publish(faceFrame);
+
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread other = new Thread(() -> {
+            try {
+                stream.publish(faceFrame);
+            } catch (Throwable t) {
+                error.set(t);
+            }
+        });
+        other.start();
+        other.join();
+        assertTrue(error.get() instanceof IllegalStateException);
+
+        // 发布线程不受影响
+        stream.publish(faceFrame);
+        assertEquals(2, received[0]);
+        assertEquals(2, stream.getPublishedCount());
+    }
+
+    /**
+     * 依次发布帧号 from 到 to - 1，人脸框由帧号生成，用于检查池化的 Event 没有被提前复用
+     */
+    private static void publish(FaceEventStream stream, long from, long to) {
+        FaceFrame faceFrame = new FaceFrame(CAPACITY);
+        for (long frameNumber = from; frameNumber < to; frameNumber++) {
+            faceFrame.reset(frameNumber, frameNumber * 33_333_333L);
+            for (int i = 0; i < FACE_COUNT; i++) {
+                float left = frameNumber % 1000 + i * 100;
+                faceFrame.add(left, i, left + 50, i + 50, 0.9f);
+            }
+            stream.publish(faceFrame);
+        }
+    }
+
+    private static void assertFrame(FaceEventStream.Event event) {
+        FaceFrame faceFrame = event.getFaceFrame();
+        assertEquals(FACE_COUNT, faceFrame.getCount());
+        assertEquals(event.getFrameNumber() * 33_333_333L, event.getTimestampNs());
+        for (int i = 0; i < FACE_COUNT; i++) {
+            assertEquals(event.getFrameNumber() % 1000 + i * 100, faceFrame.getLeft(i), 0);
+        }
+    }
+
+    /**
+     * 只在 {@link #runAll()} 时执行提交的任务
+     */
+    private static final class ManualExecutor implements Executor {
+        private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mTasks.add(command);
+        }
+
+        /**
+         * @return 执行的任务数
+         */
+        int runAll() {
+            int count = 0;
+            Runnable task;
+            while ((task = mTasks.poll()) != null) {
+                task.run();
+                count++;
+            }
+            return count;
+        }
+    }
+}
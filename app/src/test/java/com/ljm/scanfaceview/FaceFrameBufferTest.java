@@ -0,0 +1,87 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 三缓冲的最新值语义、合并计数、读快照不被改写，以及一个写线程和一个读线程并发时帧号单调不重复
+ */
+public class FaceFrameBufferTest {
+    private static final int CAPACITY = 5;
+
+    @Test
+    public void acquire_emptyReturnsNull() {
+        FaceFrameBuffer buffer = new FaceFrameBuffer(CAPACITY);
+        assertNull(buffer.acquire());
+    }
+
+    @Test
+    public void publish_latestWins() {
+        FaceFrameBuffer buffer = new FaceFrameBuffer(CAPACITY);
+        write(buffer, 1);
+        assertFalse(buffer.publish());
+        write(buffer, 2);
+        // 第一帧还没被取走就被覆盖
+        assertTrue(buffer.publish());
+
+        FaceFrame faceFrame = buffer.acquire();
+        assertNotNull(faceFrame);
+        assertEquals(2, faceFrame.getFrameNumber());
+        assertSame(faceFrame, buffer.current());
+        // 没有新数据
+        assertNull(buffer.acquire());
+    }
+
+    @Test
+    public void acquiredFrame_notOverwrittenByWriter() {
+        FaceFrameBuffer buffer = new FaceFrameBuffer(CAPACITY);
+        write(buffer, 1);
+        buffer.publish();
+        FaceFrame front = buffer.acquire();
+        // 写线程继续写入和发布多帧，读线程持有的一帧保持不变
+        for (int i = 2; i < 10; i++) {
+            FaceFrame back = buffer.obtain();
+            assertNotSame(front, back);
+            write(buffer, i);
+            buffer.publish();
+        }
+        assertEquals(1, front.getFrameNumber());
+        assertEquals(1, front.getCount());
+        assertEquals(1, front.getLeft(0), 0);
+        assertEquals(9, buffer.acquire().getFrameNumber());
+    }
+
+    @Test
+    public void concurrent_monotonicFrames() throws InterruptedException {
+        FaceFrameBuffer buffer = new FaceFrameBuffer(CAPACITY);
+        int frameCount = 200_000;
+        Thread writer = new Thread(() -> {
+            for (int i = 1; i <= frameCount; i++) {
+                write(buffer, i);
+                buffer.publish();
+            }
+        });
+        writer.start();
+        long last = 0;
+        while (last < frameCount) {
+            FaceFrame faceFrame = buffer.acquire();
+            if (faceFrame == null) {
+                continue;
+            }
+            long frameNumber = faceFrame.getFrameNumber();
+            assertTrue(frameNumber > last);
+            // 人脸框由帧号生成，写了一半的缓冲会不一致
+            assertEquals(frameNumber, (long) faceFrame.getLeft(0));
+            assertEquals(frameNumber, (long) faceFrame.getRight(0) - 10);
+            last = frameNumber;
+        }
+        writer.join();
+    }
+
+    private static void write(FaceFrameBuffer buffer, long frameNumber) {
+        FaceFrame faceFrame = buffer.obtain();
+        faceFrame.reset(frameNumber, frameNumber * 1000);
+        faceFrame.add(frameNumber, 0, frameNumber + 10, 10, 0.9f);
+    }
+}
@@ -0,0 +1,279 @@
+package com.ljm.scanfaceview;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸库检索与逐条计算的前 K 个结果一致(float32 和 int8)，截掉半条记录后恢复，粗分区索引的召回率，
+ * 以及检索和建立索引被中断时的处理
+ */
+public class FaceGalleryTest {
+    private static final int DIMENSION = 32;
+    private static final int TOP_K = 10;
+    // 超过并行检索的记录数量，多核机器上走分段合并
+    private static final int ENTRY_COUNT = 5000;
+    private static final int QUERY_COUNT = 20;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("gallery", ".bin");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void topK_float32_matchesBruteForce() throws IOException {
+        assertTopKMatchesBruteForce(FaceGallery.TYPE_FLOAT32);
+    }
+
+    @Test
+    public void topK_int8_matchesBruteForce() throws IOException {
+        assertTopKMatchesBruteForce(FaceGallery.TYPE_INT8);
+    }
+
+    @Test
+    public void reopen_truncatesPartialRecord() throws IOException {
+        Random random = new Random(3);
+        float[] embedding = randomEmbedding(random);
+        try (FaceGallery gallery = FaceGallery.open(mFile, DIMENSION, FaceGallery.TYPE_INT8)) {
+            gallery.enroll(7, embedding, false);
+            gallery.enroll(8, randomEmbedding(random), true);
+        }
+        // 模拟追加中断留下的半条记录
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(raf.length() + 10);
+        }
+        float[] next = randomEmbedding(random);
+        try (FaceGallery gallery = FaceGallery.open(mFile, DIMENSION, FaceGallery.TYPE_INT8)) {
+            assertEquals(2, gallery.size());
+            int[] ids = new int[1];
+            float[] scores = new float[1];
+            assertEquals(1, gallery.search(embedding, 1, ids, scores));
+            assertEquals(7, ids[0]);
+            assertEquals(1f, scores[0], 0.01f);
+            // 新记录紧接在完整记录之后
+            assertEquals(2, gallery.enroll(9, next, true));
+        }
+        assertEquals(FaceGallery.HEADER_SIZE + 3 * (8 + DIMENSION), mFile.length());
+        try (FaceGallery gallery = FaceGallery.open(mFile, DIMENSION, FaceGallery.TYPE_INT8)) {
+            int[] ids = new int[1];
+            gallery.search(next, 1, ids, new float[1]);
+            assertEquals(9, ids[0]);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void reopen_dimensionMismatch_rejected() throws IOException {
+        FaceGallery.open(mFile, DIMENSION, FaceGallery.TYPE_FLOAT32).close();
+        FaceGallery.open(mFile, DIMENSION * 2, FaceGallery.TYPE_FLOAT32).close();
+    }
+
+    @Test
+    public void index_recallAgainstFullScan() throws IOException {
+        Random random = new Random(4);
+        float[][] entries = clusteredEmbeddings(random, 64, ENTRY_COUNT);
+        try (FaceGallery gallery = FaceGallery.open(mFile, DIMENSION, FaceGallery.TYPE_FLOAT32)) {
+            for (int i = 0; i < entries.length; i++) {
+                gallery.enroll(i, entries[i], false);
+            }
+            float[][] queries = new float[QUERY_COUNT][];
+            int[] fullScan = new int[QUERY_COUNT];
+            int[] ids = new int[TOP_K];
+            float[] scores = new float[TOP_K];
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                queries[q] = addNoise(entries[random.nextInt(entries.length)], random, 0.05f);
+                gallery.search(queries[q], TOP_K, ids, scores);
+                fullScan[q] = ids[0];
+            }
+
+            assertTrue(gallery.buildIndex(8));
+            int hits = 0;
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                assertEquals(TOP_K, gallery.search(queries[q], TOP_K, ids, scores));
+                if (ids[0] == fullScan[q]) {
+                    hits++;
+                }
+            }
+            // 只扫描 8 个最近的分区，允许少量漏检
+            assertTrue("recall " + hits, hits >= QUERY_COUNT * 9 / 10);
+
+            // 建立索引后录入的记录逐条比较，一定能找到
+            float[] late = randomEmbedding(random);
+            gallery.enroll(ENTRY_COUNT, late, false);
+            gallery.search(late, 1, ids, scores);
+            assertEquals(ENTRY_COUNT, ids[0]);
+        }
+    }
+
+    @Test
+    public void interrupted_searchCompleteAndIndexNotInstalled() throws IOException {
+        Random random = new Random(5);
+        float[][] entries = new float[ENTRY_COUNT][];
+        try (FaceGallery gallery = FaceGallery.open(mFile, DIMENSION, FaceGallery.TYPE_FLOAT32)) {
+            for (int i = 0; i < ENTRY_COUNT; i++) {
+                entries[i] = randomEmbedding(random);
+                gallery.enroll(i, entries[i], false);
+            }
+            float[][] queries = new float[QUERY_COUNT][];
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                queries[q] = randomEmbedding(random);
+            }
+            int[] ids = new int[TOP_K];
+            float[] scores = new float[TOP_K];
+            // 先检索一次完成映射，中断的线程操作 FileChannel 会关闭它
+            gallery.search(queries[0], TOP_K, ids, scores);
+
+            Thread.currentThread().interrupt();
+            try {
+                for (float[] query : queries) {
+                    assertEquals(TOP_K, gallery.search(query, TOP_K, ids, scores));
+                    assertTopK(bruteForce(entries, query, FaceGallery.TYPE_FLOAT32), ids, scores);
+                }
+                assertTrue(Thread.currentThread().isInterrupted());
+                assertFalse(gallery.buildIndex(1));
+            } finally {
+                assertTrue(Thread.interrupted());
+            }
+            // 没有启用只分配了部分记录的索引，检索仍然是逐条计算
+            for (float[] query : queries) {
+                gallery.search(query, TOP_K, ids, scores);
+                assertTopK(bruteForce(entries, query, FaceGallery.TYPE_FLOAT32), ids, scores);
+            }
+        }
+    }
+
+    private void assertTopKMatchesBruteForce(int type) throws IOException {
+        Random random = new Random(type + 1);
+        float[][] entries = new float[ENTRY_COUNT][];
+        try (FaceGallery gallery = FaceGallery.open(mFile, DIMENSION, type)) {
+            for (int i = 0; i < ENTRY_COUNT; i++) {
+                entries[i] = randomEmbedding(random);
+                gallery.enroll(i, entries[i], i == ENTRY_COUNT - 1);
+            }
+            assertEquals(ENTRY_COUNT, gallery.size());
+            int[] ids = new int[TOP_K];
+            float[] scores = new float[TOP_K];
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                float[] query = randomEmbedding(random);
+                assertEquals(TOP_K, gallery.search(query, TOP_K, ids, scores));
+                assertTopK(bruteForce(entries, query, type), ids, scores);
+                if (type == FaceGallery.TYPE_INT8) {
+                    // 量化后的分数与 float 余弦相似度相差很小
+                    assertEquals(cosine(entries[ids[0]], query), scores[0], 0.02f);
+                }
+            }
+        }
+    }
+
+    private static void assertTopK(float[] expectedScores, int[] ids, float[] scores) {
+        float previous = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < TOP_K; i++) {
+            assertTrue(scores[i] <= previous);
+            previous = scores[i];
+            assertEquals(expectedScores[ids[i]], scores[i], 1e-5f);
+        }
+        // 没有返回的记录都不高于第 K 名
+        int better = 0;
+        for (float score : expectedScores) {
+            if (score > scores[TOP_K - 1] + 1e-5f) {
+                better++;
+            }
+        }
+        assertTrue(better < TOP_K);
+    }
+
+    /**
+     * 按与人脸库相同的归一化和量化逐条计算每条记录的分数
+     */
+    private static float[] bruteForce(float[][] entries, float[] query, int type) {
+        float[] normalizedQuery = normalize(query);
+        float[] scores = new float[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            float[] entry = normalize(entries[i]);
+            if (type == FaceGallery.TYPE_INT8) {
+                float maxAbs = 0;
+                for (float value : entry) {
+                    maxAbs = Math.max(maxAbs, Math.abs(value));
+                }
+                float scale = maxAbs / 127;
+                for (int j = 0; j < DIMENSION; j++) {
+                    entry[j] = Math.round(entry[j] / scale) * scale;
+                }
+            }
+            double sum = 0;
+            for (int j = 0; j < DIMENSION; j++) {
+                sum += entry[j] * normalizedQuery[j];
+            }
+            scores[i] = (float) sum;
+        }
+        return scores;
+    }
+
+    private static float cosine(float[] a, float[] b) {
+        float[] na = normalize(a);
+        float[] nb = normalize(b);
+        double sum = 0;
+        for (int j = 0; j < DIMENSION; j++) {
+            sum += na[j] * nb[j];
+        }
+        return (float) sum;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double sum = 0;
+        for (float value : vector) {
+            sum += value * value;
+        }
+        float inverse = (float) (1 / Math.sqrt(sum));
+        float[] normalized = new float[vector.length];
+        for (int j = 0; j < vector.length; j++) {
+            normalized[j] = vector[j] * inverse;
+        }
+        return normalized;
+    }
+
+    /**
+     * 围绕 clusters 个中心生成 count 条特征，模拟同一类人脸特征相近
+     */
+    private static float[][] clusteredEmbeddings(Random random, int clusters, int count) {
+        float[][] centers = new float[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            centers[c] = randomEmbedding(random);
+        }
+        float[][] embeddings = new float[count][];
+        for (int i = 0; i < count; i++) {
+            embeddings[i] = addNoise(centers[random.nextInt(clusters)], random, 0.3f);
+        }
+        return embeddings;
+    }
+
+    private static float[] randomEmbedding(Random random) {
+        float[] embedding = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            embedding[i] = (float) random.nextGaussian();
+        }
+        return embedding;
+    }
+
+    private static float[] addNoise(float[] embedding, Random random, float noise) {
+        float[] noisy = new float[DIMENSION];
+        for (int i = 0; i < DIMENSION; i++) {
+            noisy[i] = embedding[i] + (float) random.nextGaussian() * noise;
+        }
+        return noisy;
+    }
+}
@@ -0,0 +1,125 @@
+package com.ljm.scanfaceview;
+
+import android.view.Surface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 测光区域从预览坐标转换回成像区域并放大，按最小间隔和变化阈值更新，人脸消失一段时间后恢复，以及 AE 收敛耗时
+ */
+public class FaceMeteringTest {
+    private static final long MS = 1_000_000L;
+    // AE 状态，与 CaptureResult.CONTROL_AE_STATE_* 一致
+    private static final int AE_STATE_SEARCHING = 1;
+    private static final int AE_STATE_CONVERGED = 2;
+
+    @Test
+    public void disabled_noRegion() {
+        FaceMetering metering = metering();
+        metering.configure(4000, 3000, false);
+        metering.onFaces(face(100, 100, 200, 200), 0);
+        assertFalse(metering.onFrame(0));
+        assertFalse(metering.hasRegion());
+    }
+
+    @Test
+    public void faceAppears_regionSetImmediately() {
+        FaceMetering metering = metering();
+        metering.onFaces(face(100, 100, 200, 200), 0);
+        assertTrue(metering.onFrame(0));
+        assertTrue(metering.hasRegion());
+        // 预览 400x300 对应成像区域 4000x3000，每边放大 15%
+        assertRegion(metering, 850, 850, 2150, 2150);
+        assertFalse(metering.onFrame(MS));
+    }
+
+    @Test
+    public void region_clampedToActiveArray() {
+        FaceMetering metering = metering();
+        metering.onFaces(face(0, 0, 100, 100), 0);
+        assertTrue(metering.onFrame(0));
+        assertRegion(metering, 0, 0, 1150, 1150);
+    }
+
+    @Test
+    public void update_hysteresis() {
+        FaceMetering metering = metering();
+        metering.onFaces(face(100, 100, 200, 200), 0);
+        metering.onFrame(0);
+
+        // 移动超过阈值，但距上次更新不到 500 毫秒
+        metering.onFaces(face(150, 100, 250, 200), 100 * MS);
+        assertFalse(metering.onFrame(100 * MS));
+        assertTrue(metering.onFrame(500 * MS));
+        assertRegion(metering, 1350, 850, 2650, 2150);
+
+        // 移动小于区域宽度的 20%
+        metering.onFaces(face(160, 105, 260, 205), 1200 * MS);
+        assertFalse(metering.onFrame(1200 * MS));
+        assertRegion(metering, 1350, 850, 2650, 2150);
+
+        // 人脸变大超过阈值
+        metering.onFaces(face(130, 75, 280, 225), 1300 * MS);
+        assertTrue(metering.onFrame(1300 * MS));
+    }
+
+    @Test
+    public void faceLost_heldThenCleared() {
+        FaceMetering metering = metering();
+        metering.onFaces(face(100, 100, 200, 200), 0);
+        metering.onFrame(0);
+        // 没有人脸的帧不改变目标
+        metering.onFaces(new FaceFrame(1), 500 * MS);
+        assertFalse(metering.onFrame(900 * MS));
+        assertTrue(metering.hasRegion());
+        assertTrue(metering.onFrame(1100 * MS));
+        assertFalse(metering.hasRegion());
+        assertFalse(metering.onFrame(1200 * MS));
+    }
+
+    @Test
+    public void aeConvergence_measuredFromFaceAppearance() {
+        FaceMetering metering = metering();
+        metering.onFaces(face(100, 100, 200, 200), 10 * MS);
+        assertFalse(metering.isMeasuring());
+        metering.onFrame(40 * MS);
+        assertTrue(metering.isMeasuring());
+        assertEquals(-1, metering.onMeteredResult(AE_STATE_SEARCHING, 100 * MS));
+        assertEquals(290 * MS, metering.onMeteredResult(AE_STATE_CONVERGED, 300 * MS));
+        // 每次人脸出现只统计一次
+        assertFalse(metering.isMeasuring());
+        assertEquals(-1, metering.onMeteredResult(AE_STATE_CONVERGED, 400 * MS));
+
+        // reset 后重新开始，人脸在 t=0 出现也能统计
+        metering.reset();
+        metering.onFaces(face(100, 100, 200, 200), 0);
+        metering.onFrame(0);
+        assertEquals(50 * MS, metering.onMeteredResult(AE_STATE_CONVERGED, 50 * MS));
+    }
+
+    /**
+     * 预览 400x300、成像区域 4000x3000，不旋转，已支持测光区域
+     */
+    private static FaceMetering metering() {
+        FaceMetering metering = new FaceMetering();
+        metering.configure(4000, 3000, true);
+        metering.setSensorTransform(FaceTransform.forCropRegion(0, false, Surface.ROTATION_0,
+                0, 0, 4000, 3000, 400, 300).invert());
+        return metering;
+    }
+
+    private static FaceFrame face(float left, float top, float right, float bottom) {
+        FaceFrame faceFrame = new FaceFrame(1);
+        faceFrame.reset(0, 0);
+        faceFrame.add(left, top, right, bottom, 1);
+        return faceFrame;
+    }
+
+    private static void assertRegion(FaceMetering metering, int left, int top, int right, int bottom) {
+        int[] region = new int[4];
+        metering.getRegion(region);
+        assertArrayEquals(new int[]{left, top, right, bottom}, region);
+    }
+}
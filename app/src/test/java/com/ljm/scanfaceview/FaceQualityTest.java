@@ -0,0 +1,161 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸质量对清晰度、曝光、大小和姿态的判定，滑动窗口只交出最好的一帧，以及按时间戳配对硬件人脸
+ */
+public class FaceQualityTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final float NaN = Float.NaN;
+
+    @Test
+    public void texturedFace_passes() {
+        FaceQuality quality = new FaceQuality(WIDTH * HEIGHT, 3);
+        float score = quality.score(noise(new Random(1), 60, 200), WIDTH, HEIGHT, face(), 0, null);
+        assertTrue(score > 0.5f);
+        assertTrue(quality.getSharpness() > 400);
+        assertEquals(130, quality.getBrightness(), 10);
+        assertEquals(1.15f, quality.getSize(), 0.01f);
+    }
+
+    @Test
+    public void blurredFace_rejected() {
+        // 平滑的渐变有足够的对比度，但几乎没有拉普拉斯响应
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                luma[y * WIDTH + x] = (byte) (60 + x);
+            }
+        }
+        FaceQuality quality = new FaceQuality(WIDTH * HEIGHT, 3);
+        assertEquals(0, quality.score(luma, WIDTH, HEIGHT, face(), 0, null), 0);
+        assertTrue(quality.getSharpness() < 60);
+        assertTrue(quality.getContrast() > 16);
+    }
+
+    @Test
+    public void darkOrSmallFace_rejected() {
+        FaceQuality quality = new FaceQuality(WIDTH * HEIGHT, 3);
+        assertEquals(0, quality.score(noise(new Random(2), 0, 40), WIDTH, HEIGHT, face(), 0, null), 0);
+        assertTrue(quality.getBrightness() < 50);
+
+        FaceFrame small = new FaceFrame(1);
+        small.reset(0, 0);
+        small.add(40, 20, 60, 40, 1);
+        assertEquals(0, quality.score(noise(new Random(3), 60, 200), WIDTH, HEIGHT, small, 0, null), 0);
+        assertTrue(quality.getSize() < 0.5f);
+    }
+
+    @Test
+    public void pose_fromLandmarks() {
+        FaceQuality quality = new FaceQuality(WIDTH * HEIGHT, 3);
+        byte[] luma = noise(new Random(4), 60, 200);
+        // 两眼水平，嘴巴在两眼中垂线上
+        assertTrue(quality.score(luma, WIDTH, HEIGHT, face(), 0, new float[]{60, 50, 100, 50, 80, 85}) > 0);
+        assertEquals(0, quality.getYaw(), 1e-3);
+        assertEquals(0, quality.getRoll(), 1e-3);
+
+        // 嘴巴偏离中垂线半个眼距，约 30 度侧脸
+        assertEquals(0, quality.score(luma, WIDTH, HEIGHT, face(), 0, new float[]{60, 50, 100, 50, 100, 85}), 0);
+        assertEquals(30, quality.getYaw(), 0.5f);
+
+        // 两眼连线倾斜 45 度
+        assertEquals(0, quality.score(luma, WIDTH, HEIGHT, face(), 0, new float[]{60, 40, 90, 70, 60, 85}), 0);
+        assertEquals(45, quality.getRoll(), 0.5f);
+
+        // 图像旋转 90 度显示时，竖直的眼睛连线在屏幕上是水平的
+        quality.setRotationDegrees(90);
+        quality.score(luma, WIDTH, HEIGHT, face(), 0, new float[]{80, 40, 80, 80, 50, 60});
+        assertEquals(0, quality.getRoll(), 1e-3);
+
+        // 缺少关键点时不估计姿态
+        quality.score(luma, WIDTH, HEIGHT, face(), 0, new float[]{NaN, NaN, 100, 50, 100, 85});
+        assertEquals(0, quality.getYaw(), 0);
+    }
+
+    @Test
+    public void window_deliversBestFrameOnce() {
+        FaceQuality quality = new FaceQuality(WIDTH * HEIGHT, 3);
+        int[] calls = new int[1];
+        long[] timestamp = new long[1];
+        byte[] sharp = noise(new Random(5), 60, 200);
+        byte[] copy = new byte[WIDTH * HEIGHT];
+        quality.setListener((luma, result) -> {
+            calls[0]++;
+            timestamp[0] = result.timestampNs;
+            System.arraycopy(luma, 0, copy, 0, result.width * result.height);
+            assertEquals(40, result.left, 0);
+            assertTrue(result.quality > 0);
+        });
+        byte[] flat = new byte[WIDTH * HEIGHT];
+        Arrays.fill(flat, (byte) 128);
+
+        assertFalse(quality.process(flat, WIDTH, HEIGHT, 1, face(), null));
+        assertTrue(quality.process(sharp, WIDTH, HEIGHT, 2, face(), null));
+        // 之后的帧都不更好，窗口到期时交出第 2 帧
+        for (long t = 3; t <= 5; t++) {
+            assertFalse(quality.process(flat, WIDTH, HEIGHT, t, face(), null));
+        }
+        assertEquals(1, calls[0]);
+        assertEquals(2, timestamp[0]);
+        assertArrayEquals(sharp, copy);
+        quality.process(flat, WIDTH, HEIGHT, 6, face(), null);
+        assertEquals(1, calls[0]);
+    }
+
+    @Test
+    public void pendingFaces_matchByTimestamp() {
+        FaceQuality.PendingFaces pending = new FaceQuality.PendingFaces(4, 2, 10);
+        FaceFrame faces = new FaceFrame(2);
+        float[] landmarks = new float[2 * FaceQuality.LANDMARK_STRIDE];
+        for (long t = 100; t <= 130; t += 10) {
+            faces.reset(t, t);
+            faces.add(t, 0, t + 10, 10, 1);
+            landmarks[0] = t;
+            pending.put(t, faces, landmarks);
+        }
+        FaceFrame out = new FaceFrame(2);
+        float[] landmarksOut = new float[2 * FaceQuality.LANDMARK_STRIDE];
+        assertTrue(pending.take(120, out, landmarksOut));
+        assertEquals(120, out.getLeft(0), 0);
+        assertEquals(120, landmarksOut[0], 0);
+        // 不晚于图像的最近一帧
+        assertTrue(pending.take(125, out, landmarksOut));
+        assertEquals(120, out.getLeft(0), 0);
+        // 早于所有结果或相差超过 maxAgeNs
+        assertFalse(pending.take(95, out, landmarksOut));
+        assertFalse(pending.take(150, out, landmarksOut));
+        pending.clear();
+        assertFalse(pending.take(130, out, landmarksOut));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroWindow_rejected() {
+        new FaceQuality(WIDTH * HEIGHT, 0);
+    }
+
+    /**
+     * 80x80 的人脸，扫描圆圈默认占屏幕的一半
+     */
+    private static FaceFrame face() {
+        FaceFrame faceFrame = new FaceFrame(1);
+        faceFrame.reset(0, 0);
+        faceFrame.add(40, 20, 120, 100, 1);
+        return faceFrame;
+    }
+
+    private static byte[] noise(Random random, int min, int max) {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (min + random.nextInt(max - min + 1));
+        }
+        return luma;
+    }
+}
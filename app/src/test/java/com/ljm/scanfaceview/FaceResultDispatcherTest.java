@@ -0,0 +1,117 @@
+package com.ljm.scanfaceview;
+
+import android.view.Choreographer;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸结果分发器用手动帧时钟驱动: 位置不变的人脸也要交给跟踪器，轨迹得到确认；移动小于阈值时不重复回调
+ */
+public class FaceResultDispatcherTest {
+    private static final int CAPACITY = 5;
+    private static final long FRAME_NS = 33_333_333L;
+
+    @Test
+    public void stationaryFace_confirmed() {
+        ManualClock clock = new ManualClock();
+        FaceResultDispatcher dispatcher = new FaceResultDispatcher(CAPACITY, new PipelineMetrics(), clock);
+        FaceFrame[] delivered = new FaceFrame[1];
+        int[] deliveredCount = new int[1];
+        dispatcher.setListener(faceFrame -> {
+            delivered[0] = faceFrame;
+            deliveredCount[0]++;
+        });
+
+        for (int frame = 0; frame < 5; frame++) {
+            publish(dispatcher, frame, 100, 100);
+            clock.runFrame(frame * FRAME_NS);
+        }
+
+        assertNotNull(delivered[0]);
+        assertEquals(1, delivered[0].getCount());
+        assertEquals(FaceTracker.STATE_CONFIRMED, delivered[0].getState(0));
+        assertEquals(100, delivered[0].getCenterX(0), 1e-3);
+        // 第一帧出现、第二帧确认，之后位置不变不再回调
+        assertEquals(2, deliveredCount[0]);
+        assertEquals(5, dispatcher.getOfferedCount());
+        assertEquals(3, dispatcher.getDroppedCount());
+        // 静止的人脸没有速度，不需要继续逐帧外推
+        assertFalse(clock.hasPendingCallback());
+    }
+
+    @Test
+    public void coalescedResults_latestWins() {
+        ManualClock clock = new ManualClock();
+        FaceResultDispatcher dispatcher = new FaceResultDispatcher(CAPACITY, new PipelineMetrics(), clock);
+        FaceFrame[] delivered = new FaceFrame[1];
+        dispatcher.setListener(faceFrame -> delivered[0] = faceFrame);
+
+        publish(dispatcher, 0, 100, 100);
+        publish(dispatcher, 1, 200, 100);
+        clock.runFrame(FRAME_NS);
+
+        assertEquals(1, dispatcher.getCoalescedCount());
+        assertEquals(1, delivered[0].getFrameNumber());
+        assertEquals(200, delivered[0].getCenterX(0), 1e-3);
+    }
+
+    @Test
+    public void clear_removesFaces() {
+        ManualClock clock = new ManualClock();
+        FaceResultDispatcher dispatcher = new FaceResultDispatcher(CAPACITY, new PipelineMetrics(), clock);
+        FaceFrame[] delivered = new FaceFrame[1];
+        dispatcher.setListener(faceFrame -> delivered[0] = faceFrame);
+
+        publish(dispatcher, 0, 100, 100);
+        clock.runFrame(0);
+        assertEquals(1, delivered[0].getCount());
+        dispatcher.clear();
+        clock.runFrame(FRAME_NS);
+        assertEquals(0, delivered[0].getCount());
+    }
+
+    private static void publish(FaceResultDispatcher dispatcher, long frameNumber, float centerX, float centerY) {
+        FaceFrame faceFrame = dispatcher.obtain();
+        faceFrame.reset(frameNumber, frameNumber * FRAME_NS);
+        faceFrame.add(centerX - 50, centerY - 50, centerX + 50, centerY + 50, 0.9f);
+        dispatcher.publish();
+    }
+
+    /**
+     * 由测试决定何时执行帧回调
+     */
+    private static final class ManualClock implements FaceResultDispatcher.FrameClock {
+        private Choreographer.FrameCallback mCallback;
+        private long mNowNs;
+
+        @Override
+        public void postFrameCallback(Choreographer.FrameCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void removeFrameCallback(Choreographer.FrameCallback callback) {
+            mCallback = null;
+        }
+
+        @Override
+        public long nanoTime() {
+            return mNowNs;
+        }
+
+        boolean hasPendingCallback() {
+            return mCallback != null;
+        }
+
+        void runFrame(long frameTimeNs) {
+            mNowNs = frameTimeNs;
+            Choreographer.FrameCallback callback = mCallback;
+            mCallback = null;
+            if (callback != null) {
+                callback.doFrame(frameTimeNs);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸跟踪的轨迹确认、静止人脸不漂移、外推和丢失后移除
+ */
+public class FaceTrackerTest {
+    private static final int CAPACITY = 5;
+    private static final long FRAME_NS = 33_333_333L;
+
+    @Test
+    public void stationaryFace_confirmedOnSecondHit() {
+        FaceTracker tracker = new FaceTracker(CAPACITY);
+        FaceFrame out = new FaceFrame(CAPACITY);
+
+        tracker.update(frame(0, 100, 100));
+        predict(tracker, 0, out);
+        assertEquals(1, out.getCount());
+        assertEquals(FaceTracker.STATE_TENTATIVE, out.getState(0));
+
+        tracker.update(frame(1, 100, 100));
+        predict(tracker, FRAME_NS, out);
+        assertEquals(1, out.getCount());
+        assertEquals(FaceTracker.STATE_CONFIRMED, out.getState(0));
+        assertEquals(100, out.getCenterX(0), 1e-3);
+        assertEquals(100, out.getCenterY(0), 1e-3);
+        assertFalse(tracker.isAnimating(FRAME_NS));
+    }
+
+    @Test
+    public void faceStopsMoving_noOvershoot() {
+        FaceTracker tracker = new FaceTracker(CAPACITY);
+        FaceFrame out = new FaceFrame(CAPACITY);
+        // 每帧向右移动 10 像素，之后停在 140
+        int frame = 0;
+        for (; frame < 5; frame++) {
+            tracker.update(frame(frame, 100 + frame * 10, 100));
+        }
+        predict(tracker, (frame - 1) * FRAME_NS + FRAME_NS, out);
+        assertTrue(out.getCenterX(0) > 140);
+        for (int i = 0; i < 3; i++, frame++) {
+            tracker.update(frame(frame, 140, 100));
+        }
+        long lastNs = (frame - 1) * FRAME_NS;
+        assertFalse(tracker.isAnimating(lastNs));
+        // 外推到最长外推时间后仍停在人脸上，不按之前的速度继续移动
+        predict(tracker, lastNs + 100_000_000L, out);
+        assertEquals(FaceTracker.STATE_CONFIRMED, out.getState(0));
+        assertEquals(140, out.getCenterX(0), 1.5f);
+        assertEquals(100, out.getCenterY(0), 1e-3);
+    }
+
+    @Test
+    public void movingFace_extrapolatedUpToLimit() {
+        FaceTracker tracker = new FaceTracker(CAPACITY);
+        FaceFrame out = new FaceFrame(CAPACITY);
+        for (int frame = 0; frame < 10; frame++) {
+            tracker.update(frame(frame, 100 + frame * 10, 100));
+        }
+        long lastNs = 9 * FRAME_NS;
+        assertTrue(tracker.isAnimating(lastNs));
+        predict(tracker, lastNs + 50_000_000L, out);
+        float halfway = out.getCenterX(0);
+        predict(tracker, lastNs + 100_000_000L, out);
+        float limit = out.getCenterX(0);
+        predict(tracker, lastNs + 200_000_000L, out);
+        // 约 300 像素每秒，外推时间超过上限后不再移动
+        assertTrue(halfway > 190 && limit > halfway);
+        assertEquals(limit, out.getCenterX(0), 1e-3);
+        assertFalse(tracker.isAnimating(lastNs + 100_000_000L));
+    }
+
+    @Test
+    public void twoFaces_keepIds() {
+        FaceTracker tracker = new FaceTracker(CAPACITY);
+        FaceFrame out = new FaceFrame(CAPACITY);
+        FaceFrame detections = new FaceFrame(CAPACITY);
+        detections.reset(0, 0);
+        detections.add(50, 50, 150, 150, 0.9f);
+        detections.add(300, 50, 400, 150, 0.9f);
+        tracker.update(detections);
+        predict(tracker, 0, out);
+        int leftId = idAt(out, 100);
+        int rightId = idAt(out, 350);
+        assertNotEquals(leftId, rightId);
+
+        // 检测顺序交换后 id 仍跟随人脸
+        detections.reset(1, FRAME_NS);
+        detections.add(302, 50, 402, 150, 0.9f);
+        detections.add(52, 50, 152, 150, 0.9f);
+        tracker.update(detections);
+        predict(tracker, FRAME_NS, out);
+        assertEquals(leftId, idAt(out, 102));
+        assertEquals(rightId, idAt(out, 352));
+    }
+
+    @Test
+    public void lostFace_coastsThenRemoved() {
+        FaceTracker tracker = new FaceTracker(CAPACITY);
+        FaceFrame out = new FaceFrame(CAPACITY);
+        tracker.update(frame(0, 100, 100));
+        tracker.update(frame(1, 100, 100));
+        FaceFrame empty = new FaceFrame(CAPACITY);
+        empty.reset(2, 2 * FRAME_NS);
+        tracker.update(empty);
+        predict(tracker, 2 * FRAME_NS, out);
+        assertEquals(1, out.getCount());
+        assertEquals(FaceTracker.STATE_COASTING, out.getState(0));
+        assertTrue(tracker.isAnimating(2 * FRAME_NS));
+
+        predict(tracker, FRAME_NS + 400_000_000L, out);
+        assertEquals(0, out.getCount());
+        assertEquals(0, tracker.getTrackCount());
+    }
+
+    @Test
+    public void iou() {
+        assertEquals(1, FaceTracker.iou(0, 0, 10, 10, 0, 0, 10, 10), 1e-6);
+        assertEquals(0, FaceTracker.iou(0, 0, 10, 10, 10, 0, 20, 10), 1e-6);
+        assertEquals(1 / 3f, FaceTracker.iou(0, 0, 10, 10, 5, 0, 15, 10), 1e-6);
+    }
+
+    /**
+     * 一个中心在 (centerX, centerY)、边长 100 的人脸
+     */
+    private static FaceFrame frame(long frameNumber, float centerX, float centerY) {
+        FaceFrame faceFrame = new FaceFrame(CAPACITY);
+        faceFrame.reset(frameNumber, frameNumber * FRAME_NS);
+        faceFrame.add(centerX - 50, centerY - 50, centerX + 50, centerY + 50, 0.9f);
+        return faceFrame;
+    }
+
+    private static void predict(FaceTracker tracker, long timeNs, FaceFrame out) {
+        out.reset(0, timeNs);
+        tracker.predict(timeNs, out);
+    }
+
+    private static int idAt(FaceFrame faceFrame, float centerX) {
+        for (int i = 0; i < faceFrame.getCount(); i++) {
+            if (Math.abs(faceFrame.getCenterX(i) - centerX) < 5) {
+                return faceFrame.getId(i);
+            }
+        }
+        fail("No face at " + centerX);
+        return -1;
+    }
+}
@@ -0,0 +1,106 @@
+package com.ljm.scanfaceview;
+
+import android.view.Surface;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 人脸坐标变换在各传感器方向、镜像和裁剪区域下的角点位置，以及反向变换
+ */
+public class FaceTransformTest {
+    private static final float DELTA = 1e-3f;
+
+    @Test
+    public void analysis_noRotation_scales() {
+        FaceTransform transform = FaceTransform.forAnalysis(0, false, Surface.ROTATION_0, 320, 240, 640, 480);
+        assertPoint(transform, 10, 20, 20, 40);
+        assertPoint(transform, 320, 240, 640, 480);
+    }
+
+    @Test
+    public void backCamera_sensor90_portrait() {
+        // 传感器横向 640x480，竖屏显示为 480x640，传感器左上角在屏幕右上角
+        FaceTransform transform = FaceTransform.forAnalysis(90, false, Surface.ROTATION_0, 640, 480, 640, 480);
+        assertPoint(transform, 0, 0, 480, 0);
+        assertPoint(transform, 640, 0, 480, 640);
+        assertPoint(transform, 0, 480, 0, 0);
+    }
+
+    @Test
+    public void frontCamera_sensor270_portraitMirrored() {
+        FaceTransform transform = FaceTransform.forAnalysis(270, true, Surface.ROTATION_0, 640, 480, 640, 480);
+        assertPoint(transform, 0, 0, 480, 640);
+        assertPoint(transform, 640, 0, 480, 0);
+        assertPoint(transform, 0, 480, 0, 640);
+    }
+
+    @Test
+    public void backCamera_sensor90_landscape() {
+        FaceTransform transform = FaceTransform.forAnalysis(90, false, Surface.ROTATION_90, 640, 480, 640, 480);
+        assertPoint(transform, 0, 0, 0, 0);
+        assertPoint(transform, 640, 480, 640, 480);
+        assertFalse(FaceTransform.exchangeWidthAndHeight(Surface.ROTATION_90, 90));
+        assertTrue(FaceTransform.exchangeWidthAndHeight(Surface.ROTATION_0, 90));
+    }
+
+    @Test
+    public void cropRegion_centerCroppedToPreviewRatio() {
+        // 4:3 的成像区域输出 16:9 的预览，上下各裁掉 375
+        FaceTransform transform = FaceTransform.forCropRegion(0, false, Surface.ROTATION_0,
+                0, 0, 4000, 3000, 1920, 1080);
+        assertPoint(transform, 0, 375, 0, 0);
+        assertPoint(transform, 4000, 2625, 1920, 1080);
+        assertTrue(transform.matches(0, false, Surface.ROTATION_0, 0, 0, 4000, 3000, 1920, 1080));
+        assertFalse(transform.matches(0, false, Surface.ROTATION_0, 0, 0, 2000, 1500, 1920, 1080));
+    }
+
+    @Test
+    public void mapFaces_normalizesCorners() {
+        FaceTransform transform = FaceTransform.forAnalysis(90, false, Surface.ROTATION_0, 640, 480, 640, 480);
+        FaceFrame src = new FaceFrame(2);
+        src.reset(0, 0);
+        src.add(100, 50, 200, 150, 0.8f);
+        src.add(300, 50, 400, 150, 0.7f);
+        FaceFrame out = new FaceFrame(1);
+        out.reset(0, 0);
+        // out 只能放下一个
+        assertEquals(1, transform.mapFaces(src, out));
+        // 旋转后两个对角交换，结果仍是 left < right、top < bottom
+        assertEquals(330, out.getLeft(0), DELTA);
+        assertEquals(100, out.getTop(0), DELTA);
+        assertEquals(430, out.getRight(0), DELTA);
+        assertEquals(200, out.getBottom(0), DELTA);
+        assertEquals(0.8f, out.getScore(0), 0);
+    }
+
+    @Test
+    public void invert_roundTrip() {
+        int[] rotations = {Surface.ROTATION_0, Surface.ROTATION_90, Surface.ROTATION_180, Surface.ROTATION_270};
+        for (int sensorOrientation = 0; sensorOrientation < 360; sensorOrientation += 90) {
+            for (int rotation : rotations) {
+                for (boolean mirror : new boolean[]{false, true}) {
+                    FaceTransform transform = FaceTransform.forCropRegion(sensorOrientation, mirror, rotation,
+                            200, 100, 3800, 2900, 1920, 1080);
+                    FaceTransform inverse = transform.invert();
+                    float[] points = {500, 700, 3000, 1200, Float.NaN, Float.NaN};
+                    transform.mapPoints(points, 3);
+                    inverse.mapPoints(points, 3);
+                    assertEquals(500, points[0], 0.05f);
+                    assertEquals(700, points[1], 0.05f);
+                    assertEquals(3000, points[2], 0.05f);
+                    assertEquals(1200, points[3], 0.05f);
+                    assertTrue(Float.isNaN(points[4]) && Float.isNaN(points[5]));
+                }
+            }
+        }
+    }
+
+    private static void assertPoint(FaceTransform transform, float x, float y, float expectedX, float expectedY) {
+        float[] point = {x, y};
+        transform.mapPoints(point, 1);
+        assertEquals(expectedX, point[0], DELTA);
+        assertEquals(expectedY, point[1], DELTA);
+    }
+}
@@ -0,0 +1,92 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 耗时直方图的分桶边界、百分位数与排序后精确值的相对误差、越界值和快照
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets_containValue() {
+        Random random = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            long value = random.nextInt(1 << 20) >> random.nextInt(20);
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(LatencyHistogram.lowestValueOf(index) <= value);
+            assertTrue(LatencyHistogram.highestValueOf(index) >= value);
+        }
+        assertEquals(LatencyHistogram.MAX_VALUE,
+                LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(LatencyHistogram.MAX_VALUE)));
+    }
+
+    @Test
+    public void smallValues_exact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int value = 1; value <= 20; value++) {
+            histogram.record(value);
+        }
+        assertEquals(20, histogram.getCount());
+        assertEquals(1, histogram.getMin());
+        assertEquals(20, histogram.getMax());
+        assertEquals(10.5, histogram.getMean(), 1e-9);
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(18, histogram.getPercentile(90));
+        assertEquals(20, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentiles_withinRelativeError() {
+        Random random = new Random(2);
+        LatencyHistogram histogram = new LatencyHistogram();
+        long[] values = new long[50_000];
+        for (int i = 0; i < values.length; i++) {
+            // 对数分布，覆盖几十微秒到几百毫秒
+            values[i] = (long) Math.exp(3 + random.nextDouble() * 10);
+            histogram.recordNanos(values[i] * 1000);
+        }
+        Arrays.sort(values);
+        for (double percentile : new double[]{1, 50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(percentile / 100 * values.length) - 1];
+            long estimate = histogram.getPercentile(percentile);
+            assertTrue(percentile + ": " + estimate + " < " + exact, estimate >= exact);
+            assertTrue(percentile + ": " + estimate + " vs " + exact, estimate <= exact + exact / 16 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void outOfRange_clamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getMin());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getMax());
+        assertEquals(LatencyHistogram.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void copyToAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.record(i * 7);
+        }
+        LatencyHistogram snapshot = new LatencyHistogram();
+        histogram.copyTo(snapshot);
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(50));
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(1000, snapshot.getCount());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(6993, snapshot.getMax());
+        long p50 = snapshot.getPercentile(50);
+        assertTrue(p50 >= 3493 && p50 <= 3493 + 3493 / 16);
+    }
+}
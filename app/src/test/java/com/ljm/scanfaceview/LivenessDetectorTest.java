@@ -0,0 +1,143 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * 活体检测按眨眼、张嘴、转头的顺序推进，超时失败，没有关键点时跳过转头，人脸消失时回调没有动作
+ */
+public class LivenessDetectorTest {
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+    private static final int WARMUP_FRAMES = 10;
+
+    // 睁眼时眼睛附近有纹理，闭眼时是平的
+    private final byte[] mOpenEyes = noise(new Random(1));
+    private final byte[] mClosedEyes = flat();
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Test
+    public void challenges_completedInOrder() {
+        LivenessDetector detector = detector(LivenessDetector.CHALLENGE_BLINK,
+                LivenessDetector.CHALLENGE_OPEN_MOUTH, LivenessDetector.CHALLENGE_TURN_HEAD);
+        // 两眼水平，嘴巴在两眼中垂线上
+        float[] frontal = {60, 50, 100, 50, 80, 85};
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            detector.process(mOpenEyes, WIDTH, HEIGHT, face(), frontal);
+        }
+        assertEquals(Arrays.asList("challenge " + LivenessDetector.CHALLENGE_BLINK), mEvents);
+
+        // 闭眼一帧再睁开
+        detector.process(mClosedEyes, WIDTH, HEIGHT, face(), frontal);
+        detector.process(mOpenEyes, WIDTH, HEIGHT, face(), frontal);
+        assertEquals("challenge " + LivenessDetector.CHALLENGE_OPEN_MOUTH, last());
+
+        // 嘴巴下移，到两眼连线的距离增加约 30%
+        detector.process(mOpenEyes, WIDTH, HEIGHT, face(), new float[]{60, 50, 100, 50, 80, 96});
+        assertEquals("challenge " + LivenessDetector.CHALLENGE_TURN_HEAD, last());
+
+        // 先正对，再转头约 30 度
+        detector.process(mOpenEyes, WIDTH, HEIGHT, face(), frontal);
+        detector.process(mOpenEyes, WIDTH, HEIGHT, face(), new float[]{60, 50, 100, 50, 100, 85});
+        assertEquals("result true", last());
+        assertEquals(4, mEvents.size());
+
+        // 人脸消失
+        FaceFrame empty = new FaceFrame(1);
+        empty.reset(0, 0);
+        detector.process(mOpenEyes, WIDTH, HEIGHT, empty, null);
+        assertEquals("challenge " + LivenessDetector.CHALLENGE_NONE, last());
+    }
+
+    @Test
+    public void noAction_timesOut() {
+        LivenessDetector detector = detector(LivenessDetector.CHALLENGE_BLINK);
+        float[] frontal = {60, 50, 100, 50, 80, 85};
+        // 积累 8 帧历史后开始计时，最多等待 150 帧
+        for (int i = 0; i < 8 + 150; i++) {
+            detector.process(mOpenEyes, WIDTH, HEIGHT, face(), frontal);
+        }
+        assertFalse(mEvents.contains("result false"));
+        detector.process(mOpenEyes, WIDTH, HEIGHT, face(), frontal);
+        assertEquals("result false", last());
+    }
+
+    @Test
+    public void turnHead_skippedWithoutLandmarks() {
+        LivenessDetector detector = detector(LivenessDetector.CHALLENGE_TURN_HEAD);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            detector.process(mOpenEyes, WIDTH, HEIGHT, face(), null);
+        }
+        assertEquals("result true", last());
+    }
+
+    @Test
+    public void blink_withoutLandmarks() {
+        // 按人脸框推算眼睛位置，图像旋转 90 度显示
+        LivenessDetector detector = detector(LivenessDetector.CHALLENGE_BLINK);
+        detector.setRotationDegrees(90);
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            detector.process(mOpenEyes, WIDTH, HEIGHT, face(), null);
+        }
+        detector.process(mClosedEyes, WIDTH, HEIGHT, face(), null);
+        detector.process(mOpenEyes, WIDTH, HEIGHT, face(), null);
+        assertEquals("result true", last());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noChallenges_rejected() {
+        new LivenessDetector(new int[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownChallenge_rejected() {
+        new LivenessDetector(new int[]{LivenessDetector.CHALLENGE_NONE});
+    }
+
+    private LivenessDetector detector(int... challenges) {
+        LivenessDetector detector = new LivenessDetector(challenges);
+        detector.setListener(new LivenessDetector.Listener() {
+            @Override
+            public void onLivenessChallenge(int challenge) {
+                mEvents.add("challenge " + challenge);
+            }
+
+            @Override
+            public void onLivenessResult(boolean passed) {
+                mEvents.add("result " + passed);
+            }
+        });
+        return detector;
+    }
+
+    private String last() {
+        return mEvents.get(mEvents.size() - 1);
+    }
+
+    private static FaceFrame face() {
+        FaceFrame faceFrame = new FaceFrame(1);
+        faceFrame.reset(0, 0);
+        faceFrame.add(40, 20, 120, 100, 1);
+        return faceFrame;
+    }
+
+    private static byte[] noise(Random random) {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < luma.length; i++) {
+            luma[i] = (byte) (60 + random.nextInt(140));
+        }
+        return luma;
+    }
+
+    private static byte[] flat() {
+        byte[] luma = new byte[WIDTH * HEIGHT];
+        Arrays.fill(luma, (byte) 128);
+        return luma;
+    }
+}
@@ -0,0 +1,168 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 回放按录制顺序发布人脸、时间戳按录制间隔推进、坐标经过与相机相同的转换，以及检测间隔、亮度图像和损坏的文件
+ */
+public class ReplayFrameSourceTest {
+    private static final int FRAME_COUNT = 30;
+    private static final long FRAME_INTERVAL_NS = 33_333_333L;
+    // 模拟的垂直同步周期
+    private static final long VSYNC_NS = 16_666_667L;
+    private static final int LUMA_WIDTH = 32;
+    private static final int LUMA_HEIGHT = 24;
+
+    @Test
+    public void faces_publishedInOrderWithRecordedTimestamps() throws IOException {
+        // 录制的时间戳从任意值开始，间隔不均匀
+        long[] timestamps = new long[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            timestamps[i] = 5_000_000_000L + i * FRAME_INTERVAL_NS + (i % 3) * 1_000_000L;
+        }
+        FrameRecording header = new FrameRecording(0, false, 0, 4000, 3000, 1440, 1080, 0, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FrameRecording.Writer writer = new FrameRecording.Writer(out, header)) {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                writer.beginFaces(timestamps[i], 1);
+                writer.writeFace(1000 + i * 10, 1000, 1500 + i * 10, 1500, 90);
+            }
+        }
+        ReplayFrameSource source = new ReplayFrameSource(new ByteArrayInputStream(out.toByteArray()), false);
+        List<long[]> published = subscribe(source);
+        List<long[]> delivered = new ArrayList<>();
+        source.setFaceDetectListener(faceFrame -> delivered.add(new long[]{faceFrame.getFrameNumber(),
+                faceFrame.getTimestampNs(), Math.round(faceFrame.getLeft(0))}));
+
+        assertEquals(FRAME_COUNT, source.run());
+        source.release();
+
+        assertEquals(FRAME_COUNT, published.size());
+        long baseNs = published.get(0)[1];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            long[] event = published.get(i);
+            assertEquals(i, event[0]);
+            // 虚拟时间按录制的间隔推进
+            assertEquals(timestamps[i] - timestamps[0], event[1] - baseNs);
+            // 没有变焦、不旋转时 4000x3000 缩放到 1440x1080
+            assertEquals(Math.round((1000 + i * 10) * 0.36f), event[2]);
+        }
+
+        // 界面按模拟的垂直同步回调，帧号和时间都不倒退，显示时间不早于检测结果
+        assertFalse(delivered.isEmpty());
+        long lastFrameNumber = -1;
+        long lastVsyncNs = Long.MIN_VALUE;
+        for (long[] frame : delivered) {
+            assertTrue(frame[0] >= lastFrameNumber);
+            assertTrue(frame[1] > lastVsyncNs);
+            assertEquals(0, (frame[1] - (baseNs + VSYNC_NS)) % VSYNC_NS);
+            assertTrue(frame[1] >= published.get((int) frame[0])[1]);
+            lastFrameNumber = frame[0];
+            lastVsyncNs = frame[1];
+        }
+        assertEquals(FRAME_COUNT - 1, lastFrameNumber);
+    }
+
+    @Test
+    public void detectInterval_skipsRecords() throws IOException {
+        FrameRecording header = new FrameRecording(90, false, 0, 4000, 3000, 1440, 1080, 0, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FrameRecording.Writer writer = new FrameRecording.Writer(out, header)) {
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                writer.beginFaces(i * FRAME_INTERVAL_NS, 1);
+                writer.writeFace(1000, 1000, 1500, 1500, 90);
+            }
+        }
+        ReplayFrameSource source = new ReplayFrameSource(new ByteArrayInputStream(out.toByteArray()), false);
+        source.setFaceDetectInterval(3);
+        List<long[]> published = subscribe(source);
+        assertEquals(FRAME_COUNT, source.run());
+        source.release();
+
+        assertEquals(FRAME_COUNT / 3, published.size());
+        long baseNs = published.get(0)[1];
+        for (int i = 0; i < published.size(); i++) {
+            assertEquals(i, published.get(i)[0]);
+            assertEquals(i * 3 * FRAME_INTERVAL_NS, published.get(i)[1] - baseNs);
+        }
+        PipelineMetrics.Snapshot snapshot = source.getMetricsSnapshot(new PipelineMetrics.Snapshot());
+        assertEquals(FRAME_COUNT, snapshot.getPreviewFrameCount());
+        assertEquals(FRAME_COUNT / 3, snapshot.getOfferedCount());
+    }
+
+    @Test
+    public void luma_analyzedAndMapped() throws IOException {
+        FrameRecording header = new FrameRecording(0, false, 0, 4000, 3000, 320, 240, LUMA_WIDTH, LUMA_HEIGHT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (FrameRecording.Writer writer = new FrameRecording.Writer(out, header)) {
+            for (int i = 0; i < 3; i++) {
+                byte[] luma = new byte[LUMA_WIDTH * LUMA_HEIGHT];
+                luma[0] = (byte) i;
+                writer.writeLuma(i * FRAME_INTERVAL_NS, luma);
+            }
+        }
+        ReplayFrameSource source = new ReplayFrameSource(new ByteArrayInputStream(out.toByteArray()), false);
+        List<Integer> analyzed = new ArrayList<>();
+        source.setFaceAnalyzer((luma, width, height, faces) -> {
+            assertEquals(LUMA_WIDTH, width);
+            assertEquals(LUMA_HEIGHT, height);
+            analyzed.add((int) luma[0]);
+            faces.add(4, 2, 8, 6, 0.9f);
+        });
+        List<long[]> published = subscribe(source);
+        assertEquals(3, source.run());
+        source.release();
+
+        assertEquals(3, analyzed.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, (int) analyzed.get(i));
+            assertEquals(i, published.get(i)[0]);
+            // 32x24 放大 10 倍到 320x240
+            assertEquals(40, published.get(i)[2]);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unknownRecordType_rejected() throws IOException {
+        FrameRecording header = new FrameRecording(0, false, 0, 4000, 3000, 1440, 1080, 0, 0);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new FrameRecording.Writer(out, header).close();
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(9);
+        data.writeLong(0);
+        data.flush();
+        ReplayFrameSource source = new ReplayFrameSource(new ByteArrayInputStream(out.toByteArray()), false);
+        try {
+            source.run();
+        } finally {
+            source.release();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void badMagic_rejected() throws IOException {
+        new ReplayFrameSource(new ByteArrayInputStream(new byte[32]), false);
+    }
+
+    /**
+     * 在回放线程同步记录每一帧发布的帧号、时间戳和第一个人脸的左边界
+     */
+    private static List<long[]> subscribe(ReplayFrameSource source) {
+        List<long[]> published = new ArrayList<>();
+        source.getFaceEventStream().subscribe(Runnable::run, FaceEventStream.POLICY_BUFFER, FRAME_COUNT, event -> {
+            FaceFrame faceFrame = event.getFaceFrame();
+            published.add(new long[]{event.getFrameNumber(), event.getTimestampNs(),
+                    faceFrame.getCount() > 0 ? Math.round(faceFrame.getLeft(0)) : -1});
+        });
+        return published;
+    }
+}
@@ -0,0 +1,65 @@
+package com.ljm.scanfaceview;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 尺寸选择的优先顺序: 宽高比一致且足够大的最小尺寸、都不够大时最大的、宽高比最接近的、面积最小的，以及帧间隔过滤
+ */
+public class SizeSelectorTest {
+    private static final int[] SIZES = {4032, 3024, 1920, 1088, 1920, 1080, 1440, 1080, 1280, 720, 800, 600,
+            640, 480, 352, 288, 320, 240, 176, 144};
+
+    @Test
+    public void bigEnough_smallestWins() {
+        assertSize(SizeSelector.getBestSize(1280, 720, 4032, 3024, SIZES), 1280, 720);
+        // 1920x1088 与 16:9 的误差在 1% 以内，面积比 1920x1080 大
+        assertSize(SizeSelector.getBestSize(1300, 730, 4032, 3024, SIZES), 1920, 1080);
+        assertSize(SizeSelector.getBestSize(700, 525, 4032, 3024, SIZES), 800, 600);
+    }
+
+    @Test
+    public void noneBigEnough_largestWins() {
+        assertSize(SizeSelector.getBestSize(3000, 2250, 1920, 1080, SIZES), 1440, 1080);
+    }
+
+    @Test
+    public void noMatchingRatio_closestWins() {
+        // 没有 2:1 的尺寸，16:9 最接近，1920x1080 和 1280x720 误差相同时选面积大的
+        assertSize(SizeSelector.getBestSize(2000, 1000, 1920, 1088, SIZES), 1920, 1080);
+        assertSize(SizeSelector.getBestSize(2000, 1000, 1919, 1080, SIZES), 1280, 720);
+    }
+
+    @Test
+    public void nothingWithinBounds_smallestArea() {
+        assertSize(SizeSelector.getBestSize(1280, 720, 100, 100, SIZES), 176, 144);
+    }
+
+    @Test
+    public void frameDuration_filtersSlowSizes() {
+        long[] durations = new long[SIZES.length / 2];
+        // 1920x1080 只能 15fps
+        durations[2] = 66_666_666L;
+        durations[1] = 66_666_666L;
+        int index = SizeSelector.getBestSize(1920, 1080, 4032, 3024, SIZES, durations, 33_333_333L);
+        assertSize(index, 1280, 720);
+        // 0 表示未知，不过滤
+        assertSize(SizeSelector.getBestSize(1920, 1080, 4032, 3024, SIZES, new long[SIZES.length / 2], 33_333_333L),
+                1920, 1080);
+    }
+
+    @Test
+    public void largestSize() {
+        long[] durations = new long[SIZES.length / 2];
+        assertSize(SizeSelector.getLargestSize(4, 3, SIZES, durations, 100_000_000L), 4032, 3024);
+        durations[0] = 200_000_000L;
+        assertSize(SizeSelector.getLargestSize(4, 3, SIZES, durations, 100_000_000L), 1440, 1080);
+        assertEquals(-1, SizeSelector.getLargestSize(21, 9, SIZES, durations, 100_000_000L));
+    }
+
+    private static void assertSize(int index, int width, int height) {
+        assertEquals(width, SIZES[index * 2]);
+        assertEquals(height, SIZES[index * 2 + 1]);
+    }
+}
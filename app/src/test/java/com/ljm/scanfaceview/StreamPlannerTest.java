@@ -0,0 +1,109 @@
+package com.ljm.scanfaceview;
+
+import android.hardware.camera2.CameraCharacteristics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 流尺寸规划在不同硬件级别下对分析流、零延迟拍照流和拍照尺寸的限制，以及帧间隔过滤
+ */
+public class StreamPlannerTest {
+    private static final long FPS_30 = 33_333_333L;
+    private static final long FPS_20 = 50_000_000L;
+    private static final long FPS_15 = 66_666_666L;
+    private static final long FPS_5 = 200_000_000L;
+
+    private static final int[] PREVIEW_SIZES = {4032, 3024, 1920, 1080, 1440, 1080, 1280, 720, 640, 480, 640, 360};
+    private static final long[] PREVIEW_DURATIONS = {FPS_20, FPS_30, FPS_30, FPS_30, FPS_30, FPS_30};
+    private static final int[] YUV_SIZES = {4032, 3024, 2560, 1440, 1920, 1080, 1280, 720, 640, 480, 640, 360,
+            320, 240, 320, 180};
+    private static final long[] YUV_DURATIONS = {FPS_20, FPS_30, FPS_30, FPS_30, FPS_30, FPS_30,
+            16_666_666L, 16_666_666L};
+    private static final int[] JPEG_SIZES = {4032, 3024, 4032, 2268, 1920, 1080};
+    private static final long[] JPEG_DURATIONS = {FPS_20, FPS_15, FPS_30};
+
+    @Test
+    public void choosePreviewSize_boundedAndFast() {
+        StreamPlanner planner = planner(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED);
+        assertSize(planner, planner.choosePreviewSize(1920, 1080, 2400, 1080), 1920, 1080);
+        // 4032x3024 超过 PREVIEW 且达不到 30fps
+        assertSize(planner, planner.choosePreviewSize(1440, 1080, 2400, 1080), 1440, 1080);
+        assertSize(planner, planner.choosePreviewSize(4032, 3024, 4032, 3024), 1440, 1080);
+    }
+
+    @Test
+    public void limited_analysisBoundedByPreview() {
+        StreamPlanner planner = planner(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LIMITED);
+        StreamPlanner.Plan plan = planner.plan(1920, 1080, 320, 180, true, true);
+        assertEquals(320, plan.analysisWidth);
+        assertEquals(180, plan.analysisHeight);
+        assertEquals(1920, plan.captureWidth);
+        assertEquals(1080, plan.captureHeight);
+        // LIMITED 不保证两个 YUV 流加预览
+        assertFalse(plan.captureWithAnalysis);
+        // 15fps 的 4032x2268 满足拍照的帧间隔
+        assertEquals(4032, plan.stillWidth);
+        assertEquals(2268, plan.stillHeight);
+        assertEquals(FPS_30, plan.minFrameDurationNs);
+
+        // 需要比预览更大的分析流时不超过 PREVIEW
+        plan = planner.plan(1920, 1080, 2000, 1125, false, false);
+        assertEquals(1920, plan.analysisWidth);
+        assertEquals(1080, plan.analysisHeight);
+        assertFalse(plan.hasCapture());
+        assertFalse(plan.hasStill());
+    }
+
+    @Test
+    public void full_analysisUnboundedWithoutStill() {
+        StreamPlanner planner = planner(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_FULL);
+        StreamPlanner.Plan plan = planner.plan(1920, 1080, 2000, 1125, false, false);
+        assertEquals(2560, plan.analysisWidth);
+        assertEquals(1440, plan.analysisHeight);
+
+        plan = planner.plan(1920, 1080, 2000, 1125, false, true);
+        assertEquals(1920, plan.analysisWidth);
+    }
+
+    @Test
+    public void full_captureWithAnalysisOnlyUpToVga() {
+        StreamPlanner planner = planner(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_3);
+        StreamPlanner.Plan plan = planner.plan(1920, 1080, 640, 360, true, false);
+        assertTrue(plan.hasAnalysis());
+        assertTrue(plan.hasCapture());
+        assertTrue(plan.captureWithAnalysis);
+
+        plan = planner.plan(1920, 1080, 1280, 720, true, false);
+        assertFalse(plan.captureWithAnalysis);
+    }
+
+    @Test
+    public void still_fallsBackToLargestArea() {
+        // 没有 4:3 的 JPEG 尺寸
+        StreamPlanner planner = new StreamPlanner(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY,
+                PREVIEW_SIZES, PREVIEW_DURATIONS, YUV_SIZES, YUV_DURATIONS,
+                new int[]{1920, 1080, 4032, 2268}, new long[]{FPS_30, FPS_15});
+        StreamPlanner.Plan plan = planner.plan(1440, 1080, 0, 0, false, true);
+        assertFalse(plan.hasAnalysis());
+        assertEquals(4032, plan.stillWidth);
+        assertEquals(2268, plan.stillHeight);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noPreviewSizes_rejected() {
+        new StreamPlanner(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY,
+                new int[0], new long[0], YUV_SIZES, YUV_DURATIONS, JPEG_SIZES, JPEG_DURATIONS);
+    }
+
+    private static StreamPlanner planner(int hardwareLevel) {
+        return new StreamPlanner(hardwareLevel, PREVIEW_SIZES, PREVIEW_DURATIONS, YUV_SIZES, YUV_DURATIONS,
+                JPEG_SIZES, JPEG_DURATIONS);
+    }
+
+    private static void assertSize(StreamPlanner planner, int index, int width, int height) {
+        assertEquals(width, planner.getPreviewWidth(index));
+        assertEquals(height, planner.getPreviewHeight(index));
+    }
+}
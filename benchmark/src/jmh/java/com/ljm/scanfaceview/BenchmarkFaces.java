@@ -0,0 +1,49 @@
+package com.ljm.scanfaceview;
+
+import java.util.Random;
+
+/**
+ * 各个基准测试共用的人脸数据
+ */
+final class BenchmarkFaces {
+    /**
+     * 与 CameraHelper 单帧最多保存的人脸数量一致
+     */
+    static final int MAX_FACE_COUNT = 10;
+
+    private BenchmarkFaces() {
+    }
+
+    /**
+     * 4000x3000 成像区域中的人脸框，left、top、right、bottom 依次存放
+     */
+    static int[] sensorBounds(Random random, int count) {
+        int[] bounds = new int[count * FaceFrame.RECT_STRIDE];
+        for (int i = 0; i < count; i++) {
+            int size = 300 + random.nextInt(700);
+            int left = random.nextInt(4000 - size);
+            int top = random.nextInt(3000 - size);
+            bounds[i * FaceFrame.RECT_STRIDE] = left;
+            bounds[i * FaceFrame.RECT_STRIDE + 1] = top;
+            bounds[i * FaceFrame.RECT_STRIDE + 2] = left + size;
+            bounds[i * FaceFrame.RECT_STRIDE + 3] = top + size;
+        }
+        return bounds;
+    }
+
+    /**
+     * 1080x1440 预览中的人脸，偶数序号为已确认的人脸
+     */
+    static FaceFrame previewFaces(Random random, int count) {
+        FaceFrame faces = new FaceFrame(MAX_FACE_COUNT);
+        faces.reset(0, 0);
+        for (int i = 0; i < count; i++) {
+            float size = 150 + random.nextInt(300);
+            float left = random.nextInt((int) (1080 - size));
+            float top = random.nextInt((int) (1440 - size));
+            faces.add(left, top, left + size, top + size, 90, i,
+                    i % 2 == 0 ? FaceTracker.STATE_CONFIRMED : FaceTracker.STATE_TENTATIVE);
+        }
+        return faces;
+    }
+}
@@ -0,0 +1,98 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Random;
+
+/**
+ * 软件人脸检测在 320x240 图像上检测一帧的耗时
+ * <p>
+ * 使用与 OpenCV lbpcascade_frontalface 规模相同(24x24 窗口、20 个阶段、139 个弱分类器)的随机级联，
+ * 每个阶段约一半窗口通过，模拟真实模型的提前拒绝比例。
+ */
+@State(Scope.Thread)
+public class CascadeFaceDetectorBenchmark {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+    private static final int FRAME_COUNT = 8;
+    private static final int[] STAGE_WEAK_COUNTS = {3, 4, 4, 5, 5, 5, 5, 6, 6, 7, 7, 7, 7, 8, 8, 8, 9, 10, 11, 14};
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private CascadeFaceDetector mDetector;
+    private byte[][] mFrames;
+    private FaceFrame mOut;
+    private int mFrameIndex;
+
+    @Setup
+    public void setUp() {
+        mDetector = new CascadeFaceDetector(createCascade(new Random(1)), CascadeFaceDetector.DEFAULT_SCALE_FACTOR,
+                CascadeFaceDetector.DEFAULT_MIN_NEIGHBORS, CascadeFaceDetector.DEFAULT_MIN_FACE_SIZE, parallelism);
+        mFrames = createFrames(new Random(2));
+        mOut = new FaceFrame(BenchmarkFaces.MAX_FACE_COUNT);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mDetector.release();
+    }
+
+    @Benchmark
+    public FaceFrame analyze() {
+        mOut.reset(mFrameIndex, 0);
+        mDetector.analyze(mFrames[mFrameIndex++ % FRAME_COUNT], WIDTH, HEIGHT, mOut);
+        return mOut;
+    }
+
+    private static FaceCascade createCascade(Random random) {
+        int featureCount = 136;
+        int[] features = new int[featureCount * 4];
+        for (int i = 0; i < featureCount; i++) {
+            int cellWidth = 1 + random.nextInt(8);
+            int cellHeight = 1 + random.nextInt(8);
+            features[i * 4] = random.nextInt(24 - cellWidth * 3 + 1);
+            features[i * 4 + 1] = random.nextInt(24 - cellHeight * 3 + 1);
+            features[i * 4 + 2] = cellWidth;
+            features[i * 4 + 3] = cellHeight;
+        }
+        int weakCount = 0;
+        for (int count : STAGE_WEAK_COUNTS) {
+            weakCount += count;
+        }
+        int[] weakFeatures = new int[weakCount];
+        int[] weakSubsets = new int[weakCount * FaceCascade.SUBSET_SIZE];
+        float[] weakLeftValues = new float[weakCount];
+        float[] weakRightValues = new float[weakCount];
+        for (int i = 0; i < weakCount; i++) {
+            weakFeatures[i] = random.nextInt(featureCount);
+            for (int j = 0; j < FaceCascade.SUBSET_SIZE; j++) {
+                weakSubsets[i * FaceCascade.SUBSET_SIZE + j] = random.nextInt();
+            }
+            weakLeftValues[i] = -1.0f + random.nextFloat() * 0.2f;
+            weakRightValues[i] = 1.0f - random.nextFloat() * 0.2f;
+        }
+        return new FaceCascade(24, 24, features, new float[STAGE_WEAK_COUNTS.length],
+                STAGE_WEAK_COUNTS.clone(), weakFeatures, weakSubsets, weakLeftValues, weakRightValues);
+    }
+
+    private static byte[][] createFrames(Random random) {
+        byte[][] frames = new byte[FRAME_COUNT][WIDTH * HEIGHT];
+        for (byte[] frame : frames) {
+            int offsetX = random.nextInt(WIDTH);
+            int offsetY = random.nextInt(HEIGHT);
+            for (int y = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++) {
+                    int value = ((x + offsetX) * 3 + (y + offsetY) * 2) % 256 / 2 + random.nextInt(128);
+                    frame[y * WIDTH + x] = (byte) value;
+                }
+            }
+        }
+        return frames;
+    }
+}
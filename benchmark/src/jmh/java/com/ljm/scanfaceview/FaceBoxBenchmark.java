@@ -0,0 +1,35 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * FaceBox 每次绘制前生成所有人脸直角线段和几何信息的耗时，不包括 Canvas 绘制
+ */
+@State(Scope.Thread)
+public class FaceBoxBenchmark {
+    @Param({"1", "5", "10"})
+    public int faceCount;
+
+    private FaceFrame mFaces;
+    private float[] mLines;
+    private FaceGeometry mGeometry;
+
+    @Setup
+    public void setUp() {
+        mFaces = BenchmarkFaces.previewFaces(new Random(1), faceCount);
+        mLines = new float[BenchmarkFaces.MAX_FACE_COUNT * FaceBox.LINES_PER_FACE];
+        mGeometry = new FaceGeometry(BenchmarkFaces.MAX_FACE_COUNT);
+    }
+
+    @Benchmark
+    public int fillLines() {
+        mGeometry.reset();
+        return FaceBox.fillLines(mFaces, mLines, mGeometry);
+    }
+}
@@ -0,0 +1,158 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 人脸特征提取在 112x112 输入上推理一次的耗时
+ * <p>
+ * 使用与 MobileFaceNet 结构相同(约 2.2 亿次乘加)的随机量化权重，结束时输出每层的平均耗时和乘加次数，
+ * 用于找出最慢的层。
+ */
+@State(Scope.Thread)
+public class FaceEmbedderBenchmark {
+    private static final int INPUT_SIZE = 112;
+    private static final int EMBEDDING_SIZE = 128;
+    private static final int FRAME_WIDTH = 640;
+    private static final int FRAME_HEIGHT = 480;
+    // 所有张量使用相同的缩放系数，随机权重按输入通道数缩放，使激活值大致保持在量化范围内
+    private static final float TENSOR_SCALE = 1 / 32f;
+    // MobileFaceNet 的瓶颈层: 扩张倍数、输出通道、重复次数、第一次的步长
+    private static final int[][] BOTTLENECKS = {
+            {2, 64, 5, 2},
+            {4, 128, 1, 2},
+            {2, 128, 6, 1},
+            {4, 128, 1, 2},
+            {2, 128, 2, 1},
+    };
+    private static final String[] TYPE_NAMES = {"conv", "dw", "pw", "add"};
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    private FaceEmbeddingModel mModel;
+    private FaceEmbedder mEmbedder;
+    private final float[] mEmbedding = new float[EMBEDDING_SIZE];
+    private long[] mLayerNanos;
+    private long[] mLayerTotals;
+    private long mRuns;
+
+    @Setup
+    public void setUp() {
+        mModel = createMobileFaceNet(new Random(1));
+        mEmbedder = new FaceEmbedder(mModel, parallelism);
+        mEmbedder.setInputFromLuma(createFrame(new Random(2)), FRAME_WIDTH, FRAME_HEIGHT, 200, 120, 440, 360, 90);
+        mLayerNanos = new long[mModel.getLayerCount()];
+        mLayerTotals = new long[mModel.getLayerCount()];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEmbedder.release();
+        if (mRuns == 0) {
+            return;
+        }
+        for (int l = 0; l < mLayerTotals.length; l++) {
+            FaceEmbeddingModel.Layer layer = mModel.layers[l];
+            System.out.printf("  %2d %-4s %3dx%-3d %4d -> %3dx%-3d %4d  %6.2fM MACs  %.3fms%n", l,
+                    TYPE_NAMES[layer.type], mModel.tensorWidths[layer.input], mModel.tensorHeights[layer.input],
+                    mModel.tensorChannels[layer.input], mModel.tensorWidths[l + 1], mModel.tensorHeights[l + 1],
+                    layer.outChannels, mModel.getMacs(l) / 1e6, mLayerTotals[l] / 1e6 / mRuns);
+        }
+    }
+
+    @Benchmark
+    public float[] run() {
+        mEmbedder.run(mEmbedding);
+        // 复制每层耗时不分配对象，相对一次推理可以忽略
+        mEmbedder.getLayerNanos(mLayerNanos);
+        for (int l = 0; l < mLayerNanos.length; l++) {
+            mLayerTotals[l] += mLayerNanos[l];
+        }
+        mRuns++;
+        return mEmbedding;
+    }
+
+    private static FaceEmbeddingModel createMobileFaceNet(Random random) {
+        List<FaceEmbeddingModel.Layer> layers = new ArrayList<>();
+        int[] channels = {3};
+        // conv 3x3/2 -> 56x56x64, dw 3x3 -> 56x56x64
+        int tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_CONV, 0, channels, 64, 3, 2, 1,
+                FaceEmbeddingModel.ACTIVATION_PRELU);
+        tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_DEPTHWISE, tensor, channels, 64, 3, 1, 1,
+                FaceEmbeddingModel.ACTIVATION_PRELU);
+        for (int[] bottleneck : BOTTLENECKS) {
+            for (int n = 0; n < bottleneck[2]; n++) {
+                int inChannels = channels[0];
+                int stride = n == 0 ? bottleneck[3] : 1;
+                int block = tensor;
+                tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_POINTWISE, tensor, channels,
+                        inChannels * bottleneck[0], 1, 1, 0, FaceEmbeddingModel.ACTIVATION_PRELU);
+                tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_DEPTHWISE, tensor, channels,
+                        channels[0], 3, stride, 1, FaceEmbeddingModel.ACTIVATION_PRELU);
+                tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_POINTWISE, tensor, channels,
+                        bottleneck[1], 1, 1, 0, FaceEmbeddingModel.ACTIVATION_NONE);
+                if (stride == 1 && inChannels == bottleneck[1]) {
+                    layers.add(new FaceEmbeddingModel.Layer(block, tensor, channels[0], TENSOR_SCALE));
+                    tensor = layers.size();
+                }
+            }
+        }
+        // conv 1x1 -> 7x7x512, 全局深度卷积 7x7 -> 1x1x512, 线性 1x1 -> 128
+        tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_POINTWISE, tensor, channels, 512, 1, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_PRELU);
+        tensor = addConv(layers, random, FaceEmbeddingModel.LAYER_DEPTHWISE, tensor, channels, 512, 7, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_NONE);
+        addConv(layers, random, FaceEmbeddingModel.LAYER_POINTWISE, tensor, channels, EMBEDDING_SIZE, 1, 1, 0,
+                FaceEmbeddingModel.ACTIVATION_NONE);
+        return new FaceEmbeddingModel(INPUT_SIZE, INPUT_SIZE, 3, 1 / 128f,
+                layers.toArray(new FaceEmbeddingModel.Layer[0]));
+    }
+
+    /**
+     * 添加一个随机权重的卷积层，返回输出张量编号，channels[0] 更新为输出通道数
+     */
+    private static int addConv(List<FaceEmbeddingModel.Layer> layers, Random random, int type, int input,
+                               int[] channels, int outChannels, int kernel, int stride, int padding, int activation) {
+        int inChannels = channels[0];
+        int fanIn = type == FaceEmbeddingModel.LAYER_DEPTHWISE ? kernel * kernel : kernel * kernel * inChannels;
+        byte[] weights = new byte[fanIn * outChannels];
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] = (byte) (random.nextInt(255) - 127);
+        }
+        float inputScale = input == 0 ? 1 / 128f : TENSOR_SCALE;
+        float[] weightScales = new float[outChannels];
+        int[] bias = new int[outChannels];
+        float[] slopes = activation == FaceEmbeddingModel.ACTIVATION_PRELU ? new float[outChannels] : null;
+        for (int c = 0; c < outChannels; c++) {
+            // 均匀分布权重的方差为 range^2 / 3，PReLU 约去掉一半方差，按 He 初始化保持输出方差
+            weightScales[c] = (float) (Math.sqrt((slopes != null ? 6.0 : 3.0) / fanIn) / 127);
+            bias[c] = Math.round((random.nextFloat() - 0.5f) * 0.2f / (weightScales[c] * inputScale));
+            if (slopes != null) {
+                slopes[c] = 0.25f;
+            }
+        }
+        layers.add(new FaceEmbeddingModel.Layer(type, activation, input, outChannels, kernel, stride, padding,
+                TENSOR_SCALE, weightScales, bias, weights, slopes));
+        channels[0] = outChannels;
+        return layers.size();
+    }
+
+    private static byte[] createFrame(Random random) {
+        byte[] frame = new byte[FRAME_WIDTH * FRAME_HEIGHT];
+        for (int y = 0; y < FRAME_HEIGHT; y++) {
+            for (int x = 0; x < FRAME_WIDTH; x++) {
+                frame[y * FRAME_WIDTH + x] = (byte) ((x * 3 + y * 2) % 256 / 2 + random.nextInt(128));
+            }
+        }
+        return frame;
+    }
+}
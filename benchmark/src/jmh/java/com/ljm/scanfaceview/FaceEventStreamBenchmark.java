@@ -0,0 +1,56 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 人脸事件流发布一帧的耗时
+ * <p>
+ * 最新一帧和有界缓存两个订阅者的 Executor 从不执行任务，模拟一直被阻塞的订阅者，每次发布都要覆盖或挤出旧的一帧；
+ * 每 N 帧取一帧的订阅者在发布线程直接回调。稳态下 Event 全部来自池中，每次调用的对象分配量应当为 0。
+ */
+@State(Scope.Thread)
+public class FaceEventStreamBenchmark {
+    private static final int CAPACITY = BenchmarkFaces.MAX_FACE_COUNT;
+    private static final int BUFFER_SIZE = 4;
+    private static final int EVERY_NTH = 10;
+    // 被阻塞的订阅者，取数据的任务提交后永远不执行
+    private static final Executor BLOCKED = command -> {
+    };
+
+    @Param({"1", "3"})
+    public int faceCount;
+
+    private FaceEventStream mStream;
+    private FaceFrame mFaceFrame;
+    private long mFrameNumber;
+    private long mEveryNthCount;
+
+    @Setup
+    public void setUp() {
+        mStream = new FaceEventStream(CAPACITY);
+        mStream.subscribe(BLOCKED, event -> {
+        });
+        mStream.subscribe(BLOCKED, FaceEventStream.POLICY_BUFFER, BUFFER_SIZE, event -> {
+        });
+        mStream.subscribe(Runnable::run, FaceEventStream.POLICY_EVERY_NTH, EVERY_NTH, event -> mEveryNthCount++);
+        mFaceFrame = new FaceFrame(CAPACITY);
+    }
+
+    @Benchmark
+    public long publish() {
+        long frameNumber = mFrameNumber++;
+        mFaceFrame.reset(frameNumber, frameNumber * 33_333_333L);
+        for (int i = 0; i < faceCount; i++) {
+            float left = frameNumber % 1000 + i * 100;
+            mFaceFrame.add(left, i, left + 50, i + 50, 0.9f);
+        }
+        mStream.publish(mFaceFrame);
+        return mEveryNthCount;
+    }
+}
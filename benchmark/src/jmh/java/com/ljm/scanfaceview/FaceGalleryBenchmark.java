@@ -0,0 +1,81 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 人脸库 1:N 检索一次的耗时，{@link FaceGallery#INDEX_MIN_ENTRIES} 条随机 128 维特征，每个人录入一条，
+ * 查询是某个人的特征加上噪声；分别测量逐条计算和建立粗分区索引后只扫描 8 个分区
+ */
+@State(Scope.Thread)
+public class FaceGalleryBenchmark {
+    private static final int DIMENSION = 128;
+    private static final int TOP_K = 5;
+    private static final int QUERY_COUNT = 64;
+    private static final float QUERY_NOISE = 0.3f;
+
+    @Param({"0", "1"})
+    public int type;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private File mFile;
+    private FaceGallery mGallery;
+    private float[][] mQueries;
+    private final int[] mIds = new int[TOP_K];
+    private final float[] mScores = new float[TOP_K];
+    private int mQueryIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("gallery", ".bin");
+        mFile.delete();
+        mGallery = FaceGallery.open(mFile, DIMENSION, type);
+        Random random = new Random(1);
+        int count = FaceGallery.INDEX_MIN_ENTRIES;
+        mQueries = new float[QUERY_COUNT][];
+        int[] queried = new int[QUERY_COUNT];
+        for (int q = 0; q < QUERY_COUNT; q++) {
+            queried[q] = random.nextInt(count);
+        }
+        for (int i = 0; i < count; i++) {
+            float[] embedding = new float[DIMENSION];
+            for (int j = 0; j < DIMENSION; j++) {
+                embedding[j] = (float) random.nextGaussian();
+            }
+            mGallery.enroll(i, embedding, i == count - 1);
+            for (int q = 0; q < QUERY_COUNT; q++) {
+                if (queried[q] == i) {
+                    mQueries[q] = new float[DIMENSION];
+                    for (int j = 0; j < DIMENSION; j++) {
+                        mQueries[q][j] = embedding[j] + (float) random.nextGaussian() * QUERY_NOISE;
+                    }
+                }
+            }
+        }
+        if (indexed) {
+            mGallery.buildIndex(8);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mGallery.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int search() {
+        mGallery.search(mQueries[mQueryIndex++ % QUERY_COUNT], TOP_K, mIds, mScores);
+        return mIds[0];
+    }
+}
@@ -0,0 +1,42 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * ScanFaceView 每次绘制时判断人脸中心是否在圆形扫描框内并选出最近人脸的耗时
+ */
+@State(Scope.Thread)
+public class FaceGeometryBenchmark {
+    private static final float CIRCLE_CENTER_X = 540;
+    private static final float CIRCLE_CENTER_Y = 600;
+    private static final float CIRCLE_RADIUS = 400;
+
+    @Param({"1", "5", "10"})
+    public int faceCount;
+
+    private FaceGeometry mGeometry;
+
+    @Setup
+    public void setUp() {
+        FaceFrame faces = BenchmarkFaces.previewFaces(new Random(1), faceCount);
+        mGeometry = new FaceGeometry(BenchmarkFaces.MAX_FACE_COUNT);
+        FaceBox.fillLines(faces, new float[BenchmarkFaces.MAX_FACE_COUNT * FaceBox.LINES_PER_FACE], mGeometry);
+    }
+
+    @Benchmark
+    public int nearestInCircle() {
+        int count = mGeometry.getCount();
+        for (int i = 0; i < count; i++) {
+            float distance = FaceGeometry.getDistance(CIRCLE_CENTER_X, CIRCLE_CENTER_Y,
+                    mGeometry.getCenterX(i), mGeometry.getCenterY(i));
+            mGeometry.setMask(i, distance <= CIRCLE_RADIUS, distance);
+        }
+        return mGeometry.getNearestInMask();
+    }
+}
@@ -0,0 +1,60 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * 分析线程在 320x240 亮度平面上评估一帧所有人脸质量的耗时，候选替换时包含一次亮度平面复制
+ */
+@State(Scope.Thread)
+public class FaceQualityBenchmark {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @Param({"1", "5", "10"})
+    public int faceCount;
+
+    private FaceQuality mQuality;
+    private byte[] mLuma;
+    private FaceFrame mFaces;
+    private float[] mLandmarks;
+    private long mTimestampNs;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mLuma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < mLuma.length; i++) {
+            mLuma[i] = (byte) (60 + random.nextInt(140));
+        }
+        mQuality = new FaceQuality(WIDTH * HEIGHT, 8);
+        mFaces = new FaceFrame(BenchmarkFaces.MAX_FACE_COUNT);
+        mFaces.reset(0, 0);
+        mLandmarks = new float[BenchmarkFaces.MAX_FACE_COUNT * FaceQuality.LANDMARK_STRIDE];
+        Arrays.fill(mLandmarks, Float.NaN);
+        for (int i = 0; i < faceCount; i++) {
+            int size = 60 + random.nextInt(100);
+            int left = random.nextInt(WIDTH - size);
+            int top = random.nextInt(HEIGHT - size);
+            mFaces.add(left, top, left + size, top + size, 90);
+            int offset = i * FaceQuality.LANDMARK_STRIDE;
+            mLandmarks[offset] = 400;
+            mLandmarks[offset + 1] = 600;
+            mLandmarks[offset + 2] = 600;
+            mLandmarks[offset + 3] = 610;
+            mLandmarks[offset + 4] = 505;
+            mLandmarks[offset + 5] = 800;
+        }
+    }
+
+    @Benchmark
+    public boolean process() {
+        return mQuality.process(mLuma, WIDTH, HEIGHT, mTimestampNs++, mFaces, mLandmarks);
+    }
+}
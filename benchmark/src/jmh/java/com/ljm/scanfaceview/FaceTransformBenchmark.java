@@ -0,0 +1,45 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * handleFaces 中把一帧硬件人脸从传感器坐标转换到预览坐标并写入 FaceFrame 的耗时
+ */
+@State(Scope.Thread)
+public class FaceTransformBenchmark {
+    @Param({"1", "5", "10"})
+    public int faceCount;
+
+    private FaceTransform mTransform;
+    private FaceFrame mOut;
+    private float[] mRects;
+    private float[] mScores;
+
+    @Setup
+    public void setUp() {
+        // 前置摄像头，传感器方向 270，竖屏，2 倍数码变焦
+        mTransform = FaceTransform.forCropRegion(270, true, 0, 1000, 750, 3000, 2250, 1440, 1080);
+        mOut = new FaceFrame(BenchmarkFaces.MAX_FACE_COUNT);
+        int[] bounds = BenchmarkFaces.sensorBounds(new Random(1), faceCount);
+        mRects = new float[bounds.length];
+        for (int i = 0; i < bounds.length; i++) {
+            mRects[i] = bounds[i];
+        }
+        mScores = new float[faceCount];
+        Arrays.fill(mScores, 90);
+    }
+
+    @Benchmark
+    public FaceFrame mapFaces() {
+        mOut.reset(0, 0);
+        mTransform.mapFaces(mRects, mScores, faceCount, mOut);
+        return mOut;
+    }
+}
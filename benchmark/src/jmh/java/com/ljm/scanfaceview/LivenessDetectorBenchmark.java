@@ -0,0 +1,50 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * 分析线程在 320x240 亮度平面上更新一帧所有人脸活体检测进度的耗时，没有关键点时按人脸框推算
+ */
+@State(Scope.Thread)
+public class LivenessDetectorBenchmark {
+    private static final int WIDTH = 320;
+    private static final int HEIGHT = 240;
+
+    @Param({"1", "4"})
+    public int faceCount;
+
+    private LivenessDetector mDetector;
+    private byte[] mLuma;
+    private FaceFrame mFaces;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(1);
+        mLuma = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < mLuma.length; i++) {
+            mLuma[i] = (byte) (60 + random.nextInt(140));
+        }
+        mDetector = new LivenessDetector(new int[]{LivenessDetector.CHALLENGE_BLINK,
+                LivenessDetector.CHALLENGE_OPEN_MOUTH, LivenessDetector.CHALLENGE_TURN_HEAD});
+        mDetector.setRotationDegrees(270);
+        mFaces = new FaceFrame(BenchmarkFaces.MAX_FACE_COUNT);
+        mFaces.reset(0, 0);
+        for (int i = 0; i < faceCount; i++) {
+            // 人脸之间不重叠，每帧都对应到同一个跟踪
+            int left = i * 80;
+            mFaces.add(left, 60, left + 70, 130, 90);
+        }
+    }
+
+    @Benchmark
+    public LivenessDetector process() {
+        mDetector.process(mLuma, WIDTH, HEIGHT, mFaces, null);
+        return mDetector;
+    }
+}
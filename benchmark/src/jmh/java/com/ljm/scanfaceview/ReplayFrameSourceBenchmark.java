@@ -0,0 +1,66 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 按最快速度回放约 30fps、10 秒的移动人脸录制数据，测量相机之后整条人脸流水线(坐标转换、跟踪、分发)的耗时
+ */
+@State(Scope.Thread)
+public class ReplayFrameSourceBenchmark {
+    private static final int FRAME_COUNT = 300;
+    private static final long FRAME_INTERVAL_NS = 33_333_333L;
+
+    @Param({"1", "3"})
+    public int faceCount;
+
+    private byte[] mRecording;
+    private int mDelivered;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        // 前置摄像头，传感器方向 270，4:3 成像区域和预览
+        FrameRecording header = new FrameRecording(270, true, 0, 4000, 3000, 1440, 1080, 0, 0);
+        float[] x = new float[faceCount];
+        float[] y = new float[faceCount];
+        float[] dx = new float[faceCount];
+        float[] dy = new float[faceCount];
+        for (int i = 0; i < faceCount; i++) {
+            x[i] = 500 + random.nextInt(2500);
+            y[i] = 500 + random.nextInt(1500);
+            dx[i] = random.nextFloat() * 20 - 10;
+            dy[i] = random.nextFloat() * 20 - 10;
+        }
+        try (FrameRecording.Writer writer = new FrameRecording.Writer(out, header)) {
+            for (int frame = 0; frame < FRAME_COUNT; frame++) {
+                // 加上最多 2ms 的抖动，避免与模拟的垂直同步对齐
+                writer.beginFaces(frame * FRAME_INTERVAL_NS + random.nextInt(2_000_000), faceCount);
+                for (int i = 0; i < faceCount; i++) {
+                    x[i] = Math.max(0, Math.min(3500, x[i] + dx[i] + random.nextFloat() * 4 - 2));
+                    y[i] = Math.max(0, Math.min(2500, y[i] + dy[i] + random.nextFloat() * 4 - 2));
+                    writer.writeFace((int) x[i], (int) y[i], (int) x[i] + 500, (int) y[i] + 500, 90);
+                }
+            }
+        }
+        mRecording = out.toByteArray();
+    }
+
+    @Benchmark
+    public int replay() throws IOException {
+        ReplayFrameSource source = new ReplayFrameSource(new ByteArrayInputStream(mRecording), false);
+        source.setFaceDetectListener(faceFrame -> mDelivered++);
+        int recordCount = source.run();
+        source.release();
+        return recordCount + mDelivered;
+    }
+}
@@ -0,0 +1,45 @@
+package com.ljm.scanfaceview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * 打开相机时从 StreamConfigurationMap 的 SurfaceTexture 输出尺寸中选择预览尺寸的耗时
+ * <p>
+ * 与人脸数量无关，按尺寸列表的规模测量: 常见手机后置摄像头的 23 个尺寸，以及同时列出高帧率和裁剪尺寸的 60 个尺寸。
+ */
+@State(Scope.Thread)
+public class SizeSelectorBenchmark {
+    private static final int[] PHONE_SIZES = {
+            4032, 3024, 4000, 3000, 3840, 2160, 3264, 2448, 3200, 2400, 2976, 2976, 2592, 1944, 2688, 1512,
+            2048, 1536, 1920, 1440, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960, 1280, 720, 1024, 768,
+            800, 600, 720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 176, 144,
+    };
+
+    @Param({"23", "60"})
+    public int sizeCount;
+
+    private int[] mSizes;
+
+    @Setup
+    public void setUp() {
+        mSizes = new int[sizeCount * 2];
+        int phoneCount = PHONE_SIZES.length / 2;
+        for (int i = 0; i < sizeCount; i++) {
+            // 超出常见列表的部分用按比例缩小的尺寸补足，宽高比各不相同
+            int source = i % phoneCount;
+            int shrink = i / phoneCount;
+            mSizes[i * 2] = PHONE_SIZES[source * 2] - shrink * 16;
+            mSizes[i * 2 + 1] = PHONE_SIZES[source * 2 + 1] - shrink * 8;
+        }
+    }
+
+    @Benchmark
+    public int getBestSize() {
+        // 竖屏、传感器方向 90 时交换后的目标尺寸，最大为 2340x1080 的屏幕
+        return SizeSelector.getBestSize(1440, 1080, 2340, 1080, mSizes);
+    }
+}